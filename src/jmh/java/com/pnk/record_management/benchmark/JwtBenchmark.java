@@ -0,0 +1,82 @@
+package com.pnk.record_management.benchmark;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.MACSigner;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import com.pnk.record_management.configuration.CustomJwtDecoder;
+import com.pnk.record_management.utils.JwtUtils;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationToken;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Date;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+
+/*
+ * What every authenticated request pays before reaching a controller: the bearer token parsed by CustomJwtDecoder,
+ * and the caller read back from the security context by JwtUtils.extractDataFromJWT (its log line included, see
+ * logback-jmh.xml: formatted, then discarded).
+ * The token is an HS512 one as issued by the identity service, with its usual claims.
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JwtBenchmark {
+
+    CustomJwtDecoder customJwtDecoder = new CustomJwtDecoder();
+
+    String token;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws JOSEException {
+        byte[] signerKey = new byte[64];
+        new Random(42).nextBytes(signerKey);
+        Instant issueTime = Instant.now();
+
+        SignedJWT signedJWT = new SignedJWT(new JWSHeader(JWSAlgorithm.HS512), new JWTClaimsSet.Builder()
+                .subject("admin")
+                .issuer("hospitalmgmt.com")
+                .issueTime(Date.from(issueTime))
+                .expirationTime(Date.from(issueTime.plus(1, ChronoUnit.HOURS)))
+                .jwtID(UUID.randomUUID().toString())
+                .claim("scope", "ROLE_ADMIN")
+                .build());
+        signedJWT.sign(new MACSigner(signerKey));
+        token = signedJWT.serialize();
+
+        // on the benchmark thread: the security context is per thread
+        SecurityContextHolder.getContext().setAuthentication(new JwtAuthenticationToken(customJwtDecoder.decode(token)));
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SecurityContextHolder.clearContext();
+    }
+
+
+    @Benchmark
+    public Jwt decode() {
+        return customJwtDecoder.decode(token);
+    }
+
+
+    @Benchmark
+    public Map<String, Object> extractDataFromJWT() {
+        return JwtUtils.extractDataFromJWT();
+    }
+}
@@ -0,0 +1,19 @@
+package com.pnk.record_management.benchmark;
+
+import ch.qos.logback.core.OutputStreamAppender;
+
+import java.io.OutputStream;
+
+
+/*
+ * Formats and encodes every event like the file appender of the service, then drops the bytes: the benchmarks pay for
+ * the log lines of the code they run, not for a disk or a console
+ * */
+public class NullOutputStreamAppender<E> extends OutputStreamAppender<E> {
+
+    @Override
+    public void start() {
+        setOutputStream(OutputStream.nullOutputStream());
+        super.start();
+    }
+}
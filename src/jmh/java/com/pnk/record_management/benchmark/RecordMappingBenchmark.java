@@ -0,0 +1,91 @@
+package com.pnk.record_management.benchmark;
+
+import com.pnk.record_management.dto.response.MedicalRecordResponse;
+import com.pnk.record_management.dto.response.MedicalRecordS3Metadata;
+import com.pnk.record_management.entity.MedicalRecord;
+import com.pnk.record_management.mapper.MedicalRecordMapper;
+import com.pnk.record_management.mapper.MedicalRecordMapperImpl;
+import org.modelmapper.ModelMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Instant;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+
+/*
+ * Entity to DTO mapping of a record, as done after every upload, delete and record query: through the
+ * MedicalRecordMapper generated by MapStruct the services use, against the reflective ModelMapper they used before and
+ * the same copy written by hand as a floor.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecordMappingBenchmark {
+
+    MedicalRecordMapper medicalRecordMapper = new MedicalRecordMapperImpl();
+
+    ModelMapper modelMapper = new ModelMapper();
+
+    MedicalRecord medicalRecord;
+
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Instant now = Instant.now();
+        String key = SimulatedStorage.key(0);
+
+        medicalRecord = MedicalRecord.builder()
+                .id("66a0f1c2e4b0a1b2c3d4e5f6")
+                .medicalRecordName(key)
+                .patientId(SimulatedStorage.PATIENT_ID)
+                .creationDateTime(now)
+                .latestUpdateDateTime(now)
+                .s3Availability(true)
+                .updatedByUser("admin")
+                .medicalRecordS3Metadata(MedicalRecordS3Metadata.builder()
+                        .bucketName(SimulatedStorage.BUCKET_NAME)
+                        .key(key)
+                        .etag("9a0364b9e99bb480dd25e1f0284c8555")
+                        .size(4096)
+                        .lastModified(Date.from(now))
+                        .storageClass("STANDARD")
+                        .build())
+                .version(0L)
+                .build();
+    }
+
+
+    @Benchmark
+    public MedicalRecordResponse mapStruct() {
+        return medicalRecordMapper.toMedicalRecordResponse(medicalRecord);
+    }
+
+
+    @Benchmark
+    public MedicalRecordResponse modelMapper() {
+        return modelMapper.map(medicalRecord, MedicalRecordResponse.class);
+    }
+
+
+    @Benchmark
+    public MedicalRecordResponse handWritten() {
+        return MedicalRecordResponse.builder()
+                .id(medicalRecord.getId())
+                .medicalRecordName(medicalRecord.getMedicalRecordName())
+                .patientId(medicalRecord.getPatientId())
+                .creationDateTime(medicalRecord.getCreationDateTime())
+                .latestUpdateDateTime(medicalRecord.getLatestUpdateDateTime())
+                .s3Availability(medicalRecord.isS3Availability())
+                .updatedByUser(medicalRecord.getUpdatedByUser())
+                // ModelMapper hands the nested metadata over as is, it does not copy it
+                .medicalRecordS3Metadata(medicalRecord.getMedicalRecordS3Metadata())
+                .contentSha256(medicalRecord.getContentSha256())
+                .contentKey(medicalRecord.getContentKey())
+                .version(medicalRecord.getVersion())
+                .build();
+    }
+}
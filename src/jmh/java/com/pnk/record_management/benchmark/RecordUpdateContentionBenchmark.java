@@ -0,0 +1,135 @@
+package com.pnk.record_management.benchmark;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.pnk.record_management.entity.MedicalRecord;
+import com.pnk.record_management.repository.MedicalRecordRepository;
+import com.pnk.record_management.repository.MedicalRecordRepositoryCustomImpl;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.repository.support.MongoRepositoryFactory;
+import org.springframework.data.repository.core.support.RepositoryComposition.RepositoryFragments;
+import org.testcontainers.containers.MongoDBContainer;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+
+/*
+ * Concurrent status updates of the records of MedicalRecordRepository, against a MongoDB started in a container
+ * (Docker is needed), every thread updating one of the records at random:
+ * - findAndModify: findAndMarkUnavailable, the single atomic round trip the record writer does
+ * - versionedSave: the find and save the service used to do, retried from the find when the version check fails
+ * The fewer the records, the more the threads contend on each; conflicts counts the saves retried.
+ * Tune the contention with the thread count, e.g. -Djmh.args="RecordUpdateContention -t 64 -p records=1"
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(16)
+@Fork(1)
+public class RecordUpdateContentionBenchmark {
+
+    static final String UPDATED_BY_USER = "benchmark";
+
+    @Param({"1", "100"})
+    int records;
+
+    MongoDBContainer mongoDBContainer;
+
+    MongoClient mongoClient;
+
+    MedicalRecordRepository medicalRecordRepository;
+
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mongoDBContainer = new MongoDBContainer("mongo:7.0");
+        mongoDBContainer.start();
+
+        mongoClient = MongoClients.create(mongoDBContainer.getConnectionString());
+        MongoTemplate mongoTemplate = new MongoTemplate(mongoClient, "record-management");
+        // the unique index the application creates, findAndModify and the find of the save go through it
+        mongoTemplate.indexOps(MedicalRecord.class)
+                .ensureIndex(new Index("medicalRecordName", Sort.Direction.ASC).unique());
+
+        // the repository the application uses, its custom fragment included
+        medicalRecordRepository = new MongoRepositoryFactory(mongoTemplate).getRepository(
+                MedicalRecordRepository.class,
+                RepositoryFragments.just(new MedicalRecordRepositoryCustomImpl(mongoTemplate)));
+
+        List<MedicalRecord> medicalRecords = new ArrayList<>();
+        for (int i = 0; i < records; i++) {
+            medicalRecords.add(MedicalRecord.builder()
+                    .medicalRecordName(SimulatedStorage.key(i))
+                    .patientId(SimulatedStorage.PATIENT_ID)
+                    .creationDateTime(Instant.now())
+                    .latestUpdateDateTime(Instant.now())
+                    .s3Availability(true)
+                    .updatedByUser(UPDATED_BY_USER)
+                    .build());
+        }
+        medicalRecordRepository.saveAll(medicalRecords);
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mongoClient.close();
+        mongoDBContainer.stop();
+    }
+
+
+    @Benchmark
+    public Optional<MedicalRecord> findAndModify() {
+        return medicalRecordRepository.findAndMarkUnavailable(randomKey(), UPDATED_BY_USER);
+    }
+
+
+    @Benchmark
+    public MedicalRecord versionedSave(Conflicts conflicts) {
+        String medicalRecordName = randomKey();
+        while (true) {
+            MedicalRecord medicalRecord = medicalRecordRepository.findByMedicalRecordName(medicalRecordName)
+                    .orElseThrow();
+            medicalRecord.setS3Availability(false);
+            medicalRecord.setLatestUpdateDateTime(Instant.now());
+            medicalRecord.setUpdatedByUser(UPDATED_BY_USER);
+
+            try {
+                return medicalRecordRepository.save(medicalRecord);
+            } catch (OptimisticLockingFailureException e) {
+                conflicts.conflicts++;
+            }
+        }
+    }
+
+
+    private String randomKey() {
+        return SimulatedStorage.key(ThreadLocalRandom.current().nextInt(records));
+    }
+
+
+    // reported next to the throughput, the saves that lost against a concurrent one
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Conflicts {
+
+        public long conflicts;
+
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            conflicts = 0;
+        }
+    }
+}
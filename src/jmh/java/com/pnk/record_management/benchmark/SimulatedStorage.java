@@ -0,0 +1,123 @@
+package com.pnk.record_management.benchmark;
+
+import com.pnk.record_management.RecordManagementApplication;
+import com.pnk.record_management.entity.MedicalRecord;
+import com.pnk.record_management.repository.MedicalRecordRepository;
+import com.pnk.record_management.service.RecordBlobRegistry;
+import com.pnk.record_management.service.StorageService;
+import com.pnk.record_management.support.InMemoryAmazonS3;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+
+/*
+ * The whole application context, with the S3 client replaced by an in-memory bucket and the MongoDB repository and
+ * the record blob registry by stubs answering at once, so that the benchmarks measure the service code itself.
+ * Deduplication (which queries MongoDB) is off, and so is the content cache unless a benchmark asks for it, downloads
+ * then reach the bucket.
+ * */
+final class SimulatedStorage implements AutoCloseable {
+
+    static final String BUCKET_NAME = "hospitalmgmt-record-service";
+
+    static final String PATIENT_ID = "patient-1";
+
+    private final ConfigurableApplicationContext context;
+
+
+    private SimulatedStorage(ConfigurableApplicationContext context) {
+        this.context = context;
+    }
+
+
+    static SimulatedStorage start(String... properties) {
+        List<String> allProperties = new ArrayList<>(List.of(
+                "server.port=0",
+                "spring.main.banner-mode=off",
+                "logging.config=classpath:logback-jmh.xml",
+                "spring.data.mongodb.auto-index-creation=false",
+                "application.mongo.index-check=off",
+                "application.deduplication.enabled=false",
+                "application.content-cache.off-heap-budget=0",
+                "application.content-cache.disk-budget=0"));
+        // later values win, a benchmark can turn a feature back on
+        allProperties.addAll(List.of(properties));
+
+        // passed as command line arguments, default properties would lose against application.yml
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(
+                RecordManagementApplication.class, SimulatedBackends.class)
+                .run(allProperties.stream().map(property -> "--" + property).toArray(String[]::new));
+
+        // the benchmark threads are not the one starting the context, they all share this authentication
+        SecurityContextHolder.setStrategyName(SecurityContextHolder.MODE_GLOBAL);
+        SecurityContextHolder.getContext().setAuthentication(
+                new TestingAuthenticationToken("admin", "dummy-jwt", "ROLE_ADMIN"));
+
+        return new SimulatedStorage(context);
+    }
+
+
+    StorageService storageService() {
+        return context.getBean(StorageService.class);
+    }
+
+
+    InMemoryAmazonS3 s3() {
+        return context.getBean(InMemoryAmazonS3.class);
+    }
+
+
+    // a key of the patient layout, in listing order of i
+    static String key(int i) {
+        return String.format("%s_2024_07_01_10_00_00_000_1719828000_record-%08d.txt", PATIENT_ID, i);
+    }
+
+
+    @Override
+    public void close() {
+        SecurityContextHolder.clearContext();
+        context.close();
+    }
+
+
+    static class SimulatedBackends {
+
+        @Bean
+        @Primary
+        InMemoryAmazonS3 simulatedS3Client() {
+            return new InMemoryAmazonS3(BUCKET_NAME);
+        }
+
+
+        // stub-only: a regular mock would record every one of the millions of invocations
+        @Bean
+        @Primary
+        MedicalRecordRepository simulatedMedicalRecordRepository() {
+            MedicalRecordRepository medicalRecordRepository =
+                    mock(MedicalRecordRepository.class, withSettings().stubOnly());
+            when(medicalRecordRepository.save(any(MedicalRecord.class)))
+                    .thenAnswer(invocation -> invocation.getArgument(0));
+            return medicalRecordRepository;
+        }
+
+
+        // no shared object: every lookup of a download or search answers at once
+        @Bean
+        @Primary
+        RecordBlobRegistry simulatedRecordBlobRegistry() {
+            return mock(RecordBlobRegistry.class, withSettings().stubOnly());
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.pnk.record_management.benchmark;
+
+import com.pnk.record_management.dto.response.MedicalRecordS3Metadata;
+import com.pnk.record_management.dto.response.PageResponse;
+import com.pnk.record_management.service.StorageService;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+
+/*
+ * The searches of StorageServiceImpl over a bucket of bucketSize keys, 1% of which contain SEARCHED_WORD:
+ * - exact: a key whose metadata is cached, as after a first HEAD
+ * - containsPage: one page of 50 matches, the listing walked until the page is full (the whole bucket below 5000 keys)
+ * - containsIndex: the in-process key index, built on the first search
+ * - containsStream: every match streamed, the whole bucket listed
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class StorageSearchBenchmark {
+
+    static final String SEARCHED_WORD = "77.txt";
+
+    static final byte[] CONTENT = "sample content".getBytes();
+
+    @Param({"1000", "100000"})
+    int bucketSize;
+
+    SimulatedStorage simulatedStorage;
+
+    StorageService storageService;
+
+    String existingKey;
+
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        simulatedStorage = SimulatedStorage.start();
+        storageService = simulatedStorage.storageService();
+
+        for (int i = 0; i < bucketSize; i++)
+            simulatedStorage.s3().seed(SimulatedStorage.key(i), CONTENT);
+
+        existingKey = SimulatedStorage.key(bucketSize / 2);
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        simulatedStorage.close();
+    }
+
+
+    @Benchmark
+    public List<MedicalRecordS3Metadata> exact() {
+        return storageService.searchS3ExactFilename(existingKey);
+    }
+
+
+    @Benchmark
+    public PageResponse<MedicalRecordS3Metadata> containsPage() {
+        return storageService.searchS3ContainsFilename(SEARCHED_WORD, 50, null);
+    }
+
+
+    @Benchmark
+    public List<MedicalRecordS3Metadata> containsIndex() {
+        return storageService.searchS3ContainsFilename(SEARCHED_WORD);
+    }
+
+
+    @Benchmark
+    public void containsStream() throws IOException {
+        storageService.streamS3ContainsFilename(SEARCHED_WORD).writeTo(OutputStream.nullOutputStream());
+    }
+}
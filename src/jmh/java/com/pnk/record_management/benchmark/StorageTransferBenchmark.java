@@ -0,0 +1,99 @@
+package com.pnk.record_management.benchmark;
+
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.pnk.record_management.dto.response.MedicalRecordResponse;
+import com.pnk.record_management.service.StorageService;
+import com.pnk.record_management.support.InMemoryAmazonS3;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.mock.web.MockMultipartFile;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/*
+ * Upload and download of one record of objectSize bytes through StorageServiceImpl: S3 is an in-memory bucket and
+ * MongoDB a stub, so what is measured is the service path itself (key generation, S3 request building, metadata
+ * handling, the record mapping) and the copies of the content. Downloads reach the bucket, the content cache is off.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class StorageTransferBenchmark {
+
+    @Param({"4096", "1048576"})
+    int objectSize;
+
+    SimulatedStorage simulatedStorage;
+
+    StorageService storageService;
+
+    MockMultipartFile file;
+
+    String downloadedKey;
+
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        simulatedStorage = SimulatedStorage.start();
+        storageService = simulatedStorage.storageService();
+
+        byte[] content = new byte[objectSize];
+        new Random(42).nextBytes(content);
+        file = new MockMultipartFile("file", "record.bin", "application/octet-stream", content);
+
+        downloadedKey = SimulatedStorage.key(0);
+        simulatedStorage.s3().seed(downloadedKey, content);
+    }
+
+
+    // the uploads of an iteration are dropped, or the bucket would hold every one of them
+    @TearDown(Level.Iteration)
+    public void dropUploads() {
+        InMemoryAmazonS3 s3 = simulatedStorage.s3();
+        ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(SimulatedStorage.BUCKET_NAME);
+        ListObjectsV2Result result;
+
+        do {
+            result = s3.listObjectsV2(request);
+            for (S3ObjectSummary summary : result.getObjectSummaries()) {
+                if (!summary.getKey().equals(downloadedKey))
+                    s3.deleteObject(SimulatedStorage.BUCKET_NAME, summary.getKey());
+            }
+            request.setContinuationToken(result.getNextContinuationToken());
+        } while (result.isTruncated());
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        simulatedStorage.close();
+    }
+
+
+    @Benchmark
+    public MedicalRecordResponse upload() {
+        return storageService.uploadFileToS3(file, SimulatedStorage.PATIENT_ID);
+    }
+
+
+    @Benchmark
+    public byte[] download() {
+        return storageService.downloadFileFromS3(downloadedKey);
+    }
+
+
+    @Benchmark
+    public void stream() throws IOException {
+        storageService.streamFileFromS3(downloadedKey, null, null, null)
+                .getContent()
+                .writeTo(OutputStream.nullOutputStream());
+    }
+}
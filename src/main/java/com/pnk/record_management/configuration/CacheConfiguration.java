@@ -0,0 +1,70 @@
+package com.pnk.record_management.configuration;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.pnk.record_management.dto.response.MedicalRecordS3Metadata;
+import com.pnk.record_management.service.RecordContentCache;
+import com.pnk.record_management.service.StorageMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+
+
+@Configuration
+public class CacheConfiguration {
+
+    @Value("${application.metadata-cache.maximum-size}")
+    private long metadataCacheMaximumSize;
+
+    @Value("${application.metadata-cache.expire-after-write}")
+    private Duration metadataCacheExpireAfterWrite;
+
+    @Value("${application.content-cache.off-heap-budget}")
+    private DataSize contentCacheOffHeapBudget;
+
+    @Value("${application.content-cache.off-heap-max-object-size}")
+    private DataSize contentCacheOffHeapMaxObjectSize;
+
+    @Value("${application.content-cache.disk-budget}")
+    private DataSize contentCacheDiskBudget;
+
+    @Value("${application.content-cache.max-object-size}")
+    private DataSize contentCacheMaxObjectSize;
+
+    @Value("${application.content-cache.directory}")
+    private Path contentCacheDirectory;
+
+    @Value("${application.content-cache.fresh-for}")
+    private Duration contentCacheFreshFor;
+
+
+    /*
+     * Size and TTL bounded, evicted by Caffeine's W-TinyLFU policy; the TTL bounds the staleness of entries
+     * changed by other instances of the service, local changes are applied to the cache directly
+     * */
+    @Bean
+    public Cache<String, MedicalRecordS3Metadata> s3MetadataCaffeineCache() {
+        return Caffeine.newBuilder()
+                .maximumSize(metadataCacheMaximumSize)
+                .expireAfterWrite(metadataCacheExpireAfterWrite)
+                .recordStats()
+                .build();
+    }
+
+
+    /*
+     * Budgets of 0 disable the corresponding tier
+     * */
+    @Bean
+    public RecordContentCache recordContentCache(StorageMetrics storageMetrics) throws IOException {
+        return new RecordContentCache(
+                contentCacheOffHeapBudget.toBytes(), contentCacheOffHeapMaxObjectSize.toBytes(),
+                contentCacheDiskBudget.toBytes(), contentCacheMaxObjectSize.toBytes(),
+                contentCacheDirectory, contentCacheFreshFor, storageMetrics);
+    }
+}
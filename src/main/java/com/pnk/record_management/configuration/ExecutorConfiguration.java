@@ -0,0 +1,40 @@
+package com.pnk.record_management.configuration;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnThreading;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.security.concurrent.DelegatingSecurityContextExecutorService;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+@Configuration
+public class ExecutorConfiguration {
+
+    /*
+     * Executor for blocking S3 work fanned out from a request (multipart parts, ...).
+     * Callers bound their own parallelism; the security context of the submitting request is propagated
+     * so that JwtUtils keeps working inside the tasks.
+     * */
+    @Bean(destroyMethod = "shutdown")
+    @ConditionalOnThreading(Threading.PLATFORM)
+    public ExecutorService storageTaskExecutor() {
+        return new DelegatingSecurityContextExecutorService(
+                Executors.newCachedThreadPool(new CustomizableThreadFactory("storage-task-")));
+    }
+
+
+    /*
+     * Same executor when spring.threads.virtual.enabled is set: one virtual thread per task, the blocking S3 calls
+     * park the virtual thread instead of holding a platform thread
+     * */
+    @Bean(name = "storageTaskExecutor", destroyMethod = "shutdown")
+    @ConditionalOnThreading(Threading.VIRTUAL)
+    public ExecutorService virtualStorageTaskExecutor() {
+        return new DelegatingSecurityContextExecutorService(
+                Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("storage-task-", 0).factory()));
+    }
+}
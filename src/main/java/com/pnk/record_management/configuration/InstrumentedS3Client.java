@@ -0,0 +1,85 @@
+package com.pnk.record_management.configuration;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.pnk.record_management.service.StorageMetrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+import static java.util.Map.entry;
+
+
+/*
+ * Times the calls of the synchronous S3 client per operation and outcome (record.s3.requests). A dynamic proxy rather
+ * than a wrapper class: AmazonS3 has some two hundred methods, of which only the ones below are on the hot paths and
+ * timed, the others are passed through. A GET is timed up to its response headers, the content being read afterwards
+ * by the caller.
+ * */
+final class InstrumentedS3Client implements InvocationHandler {
+
+    static final Map<String, String> OPERATIONS = Map.ofEntries(
+            entry("putObject", "put"),
+            entry("getObject", "get"),
+            entry("getObjectMetadata", "head"),
+            entry("listObjectsV2", "list"),
+            entry("listObjects", "list"),
+            entry("listNextBatchOfObjects", "list"),
+            entry("deleteObject", "delete"),
+            entry("deleteObjects", "delete"),
+            entry("copyObject", "copy"),
+            entry("initiateMultipartUpload", "multipart-initiate"),
+            entry("uploadPart", "multipart-part"),
+            entry("completeMultipartUpload", "multipart-complete"),
+            entry("abortMultipartUpload", "multipart-abort"));
+
+    private final AmazonS3 s3Client;
+
+    private final StorageMetrics storageMetrics;
+
+
+    private InstrumentedS3Client(AmazonS3 s3Client, StorageMetrics storageMetrics) {
+        this.s3Client = s3Client;
+        this.storageMetrics = storageMetrics;
+    }
+
+
+    static AmazonS3 instrument(AmazonS3 s3Client, StorageMetrics storageMetrics) {
+        return (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(), new Class<?>[]{AmazonS3.class},
+                new InstrumentedS3Client(s3Client, storageMetrics));
+    }
+
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String operation = OPERATIONS.get(method.getName());
+        if (operation == null)
+            return invokeClient(method, args);
+
+        long startedAt = System.nanoTime();
+        String outcome = StorageMetrics.unknownOutcome();
+        try {
+            Object result = invokeClient(method, args);
+            outcome = StorageMetrics.successOutcome();
+            return result;
+        } catch (AmazonServiceException e) {
+            outcome = StorageMetrics.outcomeOf(e.getStatusCode());
+            throw e;
+        } finally {
+            storageMetrics.recordS3Request(StorageMetrics.SYNC_CLIENT, operation, outcome, System.nanoTime() - startedAt);
+        }
+    }
+
+
+    // the client's own exception, not the reflective wrapper, reaches the caller
+    private Object invokeClient(Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(s3Client, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
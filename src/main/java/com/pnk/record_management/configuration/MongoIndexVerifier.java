@@ -0,0 +1,129 @@
+package com.pnk.record_management.configuration;
+
+import com.pnk.record_management.entity.MedicalRecord;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/*
+ * Startup check that every query of MedicalRecordRepository is answered by an index: each query shape is explained
+ * against the live collection and a plan scanning the collection or sorting in memory is reported. Such a query
+ * gets slower as the collection grows, so "fail" refuses to start instead of only logging a warning.
+ * application.mongo.index-check: warn (default), fail or off.
+ * */
+@Component
+@RequiredArgsConstructor // injected by Constructor, no longer need of @Autowire
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@Slf4j
+public class MongoIndexVerifier implements ApplicationRunner {
+
+    // the query shapes of MedicalRecordRepository and of the /records query, values are placeholders: only the plan matters
+    static final List<CheckedQuery> REPOSITORY_QUERIES = List.of(
+            new CheckedQuery("findByMedicalRecordName",
+                    new Document("medicalRecordName", "index-check"), null),
+            new CheckedQuery("findByPatientIdAndS3AvailabilityTrueOrderByCreationDateTimeDesc",
+                    new Document("patientId", "index-check").append("s3Availability", true),
+                    new Document("creationDateTime", -1)),
+            new CheckedQuery("streamByS3AvailabilityTrue",
+                    new Document("s3Availability", true), null),
+            new CheckedQuery("updateS3AvailabilityByMedicalRecordNameIn",
+                    new Document("medicalRecordName", new Document("$in", List.of("index-check"))), null),
+            new CheckedQuery("queryRecords",
+                    new Document(), new Document("creationDateTime", -1).append("_id", -1)),
+            new CheckedQuery("queryRecords by patient",
+                    new Document("patientId", "index-check"), new Document("creationDateTime", -1).append("_id", -1))
+    );
+
+    MongoTemplate mongoTemplate;
+
+    @NonFinal
+    @Value("${application.mongo.index-check:warn}")
+    String mode;
+
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if ("off".equalsIgnoreCase(mode))
+            return;
+
+        String collectionName = mongoTemplate.getCollectionName(MedicalRecord.class);
+        List<String> unindexedQueries = new ArrayList<>();
+
+        try {
+            for (CheckedQuery checkedQuery : REPOSITORY_QUERIES) {
+                Document winningPlan = explain(collectionName, checkedQuery);
+                String unindexedStage = findUnindexedStage(winningPlan);
+                if (unindexedStage != null)
+                    unindexedQueries.add(checkedQuery.name() + " (" + unindexedStage + ")");
+            }
+        } catch (Exception e) {
+            log.warn(">> run >> Index check of {} skipped: {}", collectionName, e.getMessage());
+            return;
+        }
+
+        if (unindexedQueries.isEmpty()) {
+            log.info(">> run >> All {} queries of {} use an index", REPOSITORY_QUERIES.size(), collectionName);
+            return;
+        }
+
+        String message = "Queries of " + collectionName + " not served by an index: " + unindexedQueries;
+        if ("fail".equalsIgnoreCase(mode))
+            throw new IllegalStateException(message);
+        log.warn(">> run >> {}", message);
+    }
+
+
+    private Document explain(String collectionName, CheckedQuery checkedQuery) {
+        Document find = new Document("find", collectionName).append("filter", checkedQuery.filter());
+        if (checkedQuery.sort() != null)
+            find.append("sort", checkedQuery.sort());
+
+        Document explanation = mongoTemplate.getDb().runCommand(
+                new Document("explain", find).append("verbosity", "queryPlanner"));
+
+        return explanation.get("queryPlanner", Document.class).get("winningPlan", Document.class);
+    }
+
+
+    /*
+     * First stage of the plan tree that does not scale with an index (collection scan or in-memory sort),
+     * null when the whole plan is index-backed
+     * */
+    static String findUnindexedStage(Document plan) {
+        if (plan == null)
+            return null;
+
+        String stage = plan.getString("stage");
+        if ("COLLSCAN".equals(stage) || "SORT".equals(stage))
+            return stage;
+
+        // classic plans nest through inputStage(s), slot-based ones wrap the classic tree in queryPlan
+        String unindexedStage = findUnindexedStage(plan.get("queryPlan", Document.class));
+        if (unindexedStage == null)
+            unindexedStage = findUnindexedStage(plan.get("inputStage", Document.class));
+
+        List<Document> inputStages = plan.getList("inputStages", Document.class);
+        if (inputStages != null) {
+            for (int i = 0; i < inputStages.size() && unindexedStage == null; i++)
+                unindexedStage = findUnindexedStage(inputStages.get(i));
+        }
+
+        return unindexedStage;
+    }
+
+
+    record CheckedQuery(String name, Document filter, Document sort) {
+    }
+}
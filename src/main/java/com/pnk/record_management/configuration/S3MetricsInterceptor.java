@@ -0,0 +1,76 @@
+package com.pnk.record_management.configuration;
+
+import com.pnk.record_management.service.StorageMetrics;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttribute;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+import software.amazon.awssdk.core.interceptor.SdkExecutionAttribute;
+
+import java.util.Locale;
+import java.util.Map;
+
+import static java.util.Map.entry;
+
+
+/*
+ * Times the calls of the non-blocking S3 client under the same meter and operation names as the synchronous one
+ * (record.s3.requests, client=async). A call is timed from its start to its completion, a GET thus including its
+ * content; the parts the client splits a large upload into are timed each.
+ * */
+final class S3MetricsInterceptor implements ExecutionInterceptor {
+
+    static final Map<String, String> OPERATIONS = Map.ofEntries(
+            entry("PutObject", "put"),
+            entry("GetObject", "get"),
+            entry("HeadObject", "head"),
+            entry("ListObjectsV2", "list"),
+            entry("DeleteObject", "delete"),
+            entry("DeleteObjects", "delete"),
+            entry("CopyObject", "copy"),
+            entry("CreateMultipartUpload", "multipart-initiate"),
+            entry("UploadPart", "multipart-part"),
+            entry("CompleteMultipartUpload", "multipart-complete"),
+            entry("AbortMultipartUpload", "multipart-abort"));
+
+    static final ExecutionAttribute<Long> STARTED_AT = new ExecutionAttribute<>("RecordMetricsStartedAt");
+
+    private final StorageMetrics storageMetrics;
+
+
+    S3MetricsInterceptor(StorageMetrics storageMetrics) {
+        this.storageMetrics = storageMetrics;
+    }
+
+
+    @Override
+    public void beforeExecution(Context.BeforeExecution context, ExecutionAttributes executionAttributes) {
+        executionAttributes.putAttribute(STARTED_AT, System.nanoTime());
+    }
+
+
+    @Override
+    public void afterExecution(Context.AfterExecution context, ExecutionAttributes executionAttributes) {
+        record(executionAttributes, StorageMetrics.successOutcome());
+    }
+
+
+    @Override
+    public void onExecutionFailure(Context.FailedExecution context, ExecutionAttributes executionAttributes) {
+        record(executionAttributes, context.exception() instanceof SdkServiceException serviceException
+                ? StorageMetrics.outcomeOf(serviceException.statusCode())
+                : StorageMetrics.unknownOutcome());
+    }
+
+
+    private void record(ExecutionAttributes executionAttributes, String outcome) {
+        Long startedAt = executionAttributes.getAttribute(STARTED_AT);
+        if (startedAt == null)
+            return;
+
+        String operationName = executionAttributes.getAttribute(SdkExecutionAttribute.OPERATION_NAME);
+        String operation = OPERATIONS.getOrDefault(operationName, String.valueOf(operationName).toLowerCase(Locale.ROOT));
+        storageMetrics.recordS3Request(StorageMetrics.ASYNC_CLIENT, operation, outcome, System.nanoTime() - startedAt);
+    }
+}
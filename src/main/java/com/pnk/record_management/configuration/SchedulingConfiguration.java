@@ -0,0 +1,16 @@
+package com.pnk.record_management.configuration;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableScheduling;
+
+
+/*
+ * The reconciliation is the only scheduled job; no scheduler is started while it is off
+ * */
+@Configuration
+@EnableScheduling
+@ConditionalOnProperty(name = "application.reconciliation.enabled", havingValue = "true")
+public class SchedulingConfiguration {
+
+}
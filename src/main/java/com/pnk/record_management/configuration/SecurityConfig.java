@@ -20,6 +20,11 @@ public class SecurityConfig {
     private static final String[] PUBLIC_ENDPOINTS = {
     };
 
+    // probed by the orchestrator without a token; the meters, /actuator/prometheus included, need one like the API
+    private static final String[] ACTUATOR_ENDPOINTS = {
+            "/actuator/health", "/actuator/health/**"
+    };
+
     private final CustomJwtDecoder customJwtDecoder;
 
     public SecurityConfig(CustomJwtDecoder customJwtDecoder) {
@@ -31,6 +36,8 @@ public class SecurityConfig {
     @Bean
     public SecurityFilterChain filterChain(HttpSecurity httpSecurity) throws Exception {
         httpSecurity.authorizeHttpRequests(request -> request.requestMatchers(HttpMethod.POST, PUBLIC_ENDPOINTS)
+                .permitAll()
+                .requestMatchers(HttpMethod.GET, ACTUATOR_ENDPOINTS)
                 .permitAll()
                 .anyRequest()
                 .authenticated());
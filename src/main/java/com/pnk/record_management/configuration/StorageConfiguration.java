@@ -1,13 +1,23 @@
 package com.pnk.record_management.configuration;
 
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.pnk.record_management.service.StorageMetrics;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.util.unit.DataSize;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.multipart.MultipartConfiguration;
 
 
 @Configuration
@@ -22,13 +32,46 @@ public class StorageConfiguration {
     @Value("${aws.region.static}")
     private String region;
 
+    @Value("${application.s3.max-connections}")
+    private int maxConnections;
 
+    @Value("${application.upload.multipart.threshold}")
+    private DataSize multipartThreshold;
+
+    @Value("${application.upload.multipart.part-size}")
+    private DataSize multipartPartSize;
+
+
+    // every S3 call of the services is timed, see InstrumentedS3Client
     @Bean
-    public AmazonS3 s3Client() {
+    public AmazonS3 s3Client(StorageMetrics storageMetrics) {
         AWSCredentials awsCredentials = new BasicAWSCredentials(accessKey, secretKey);
-        return AmazonS3ClientBuilder.standard()
+        return InstrumentedS3Client.instrument(AmazonS3ClientBuilder.standard()
                 .withCredentials(new AWSStaticCredentialsProvider(awsCredentials))
                 .withRegion(region)
+                .withClientConfiguration(new ClientConfiguration().withMaxConnections(maxConnections))
+                .build(), storageMetrics);
+    }
+
+
+    /*
+     * Non-blocking client of the "async" storage engine; large uploads are split into parts by the client itself,
+     * with the same threshold and part size as the synchronous multipart engine
+     * */
+    @Bean
+    @ConditionalOnProperty(name = "application.storage.engine", havingValue = "async")
+    public S3AsyncClient s3AsyncClient(StorageMetrics storageMetrics) {
+        return S3AsyncClient.builder()
+                .credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create(accessKey, secretKey)))
+                .region(Region.of(region))
+                .httpClientBuilder(NettyNioAsyncHttpClient.builder().maxConcurrency(maxConnections))
+                .multipartEnabled(true)
+                .multipartConfiguration(MultipartConfiguration.builder()
+                        .thresholdInBytes(multipartThreshold.toBytes())
+                        .minimumPartSizeInBytes(multipartPartSize.toBytes())
+                        .build())
+                .overrideConfiguration(configuration -> configuration
+                        .addExecutionInterceptor(new S3MetricsInterceptor(storageMetrics)))
                 .build();
     }
 }
@@ -0,0 +1,117 @@
+package com.pnk.record_management.controller;
+
+import com.pnk.record_management.dto.response.ApiResponse;
+import com.pnk.record_management.dto.response.MedicalRecordAsyncDownload;
+import com.pnk.record_management.dto.response.MedicalRecordResponse;
+import com.pnk.record_management.dto.response.MedicalRecordS3Metadata;
+import com.pnk.record_management.service.AsyncStorageService;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+
+/*
+ * Asynchronous variant of the single-file endpoints: the request thread is released as soon as the storage call is
+ * started and the response is written once the returned future completes
+ * */
+@RestController
+@RequestMapping("/files/async")
+@RequiredArgsConstructor // injected by Constructor, no longer need of @Autowire
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@Slf4j
+public class AsyncStorageController {
+
+    AsyncStorageService asyncStorageService;
+
+
+    @PostMapping("/upload")
+    public CompletableFuture<ApiResponse<MedicalRecordResponse>> uploadFile(
+            @RequestParam(value = "file") MultipartFile file,
+            @RequestParam(value = "patientId") String patientId) {
+        log.info(">> uploadFile >> {}, patientId: {}", file.getOriginalFilename(), patientId);
+
+        return asyncStorageService.uploadFileToS3(file, patientId)
+                .thenApply(medicalRecordResponse -> ApiResponse.<MedicalRecordResponse>builder()
+                        .result(medicalRecordResponse)
+                        .build());
+    }
+
+
+    @GetMapping("/search/exact/{searchingWord}")
+    public CompletableFuture<ApiResponse<List<MedicalRecordS3Metadata>>> searchExactFile(
+            @PathVariable String searchingWord) {
+        log.info(">> searchExactFile::searchingWord: {}", searchingWord);
+
+        return asyncStorageService.searchS3ExactFilename(searchingWord)
+                .thenApply(matchingFiles -> ApiResponse.<List<MedicalRecordS3Metadata>>builder()
+                        .result(matchingFiles)
+                        .build());
+    }
+
+
+    /*
+     * Same headers as /files/stream; the body is pushed into the emitter as the storage engine receives it
+     * */
+    @GetMapping("/stream/{fileName}")
+    public CompletableFuture<ResponseEntity<ResponseBodyEmitter>> streamFile(
+            @PathVariable String fileName,
+            @RequestHeader(value = HttpHeaders.RANGE, required = false) String rangeHeader,
+            @RequestHeader(value = HttpHeaders.IF_RANGE, required = false) String ifRangeHeader,
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncodingHeader) {
+        log.info(">> streamFile::fileName: {}, range: {}", fileName, rangeHeader);
+
+        return asyncStorageService.streamFileFromS3(fileName, rangeHeader, ifRangeHeader, acceptEncodingHeader)
+                .thenApply(this::toStreamingResponse);
+    }
+
+
+    @DeleteMapping("/delete/{fileName}")
+    public CompletableFuture<ApiResponse<MedicalRecordResponse>> deleteFile(@PathVariable String fileName) {
+        log.info(">> deleteFile::fileName: {}", fileName);
+
+        return asyncStorageService.deleteFileFromS3(fileName)
+                .thenApply(deletionResult -> ApiResponse.<MedicalRecordResponse>builder()
+                        .result(deletionResult)
+                        .build());
+    }
+
+
+    private ResponseEntity<ResponseBodyEmitter> toStreamingResponse(MedicalRecordAsyncDownload download) {
+        // no timeout: large objects may take longer than the default async request timeout
+        ResponseBodyEmitter emitter = new ResponseBodyEmitter(0L);
+
+        ResponseEntity.BodyBuilder responseBuilder = ResponseEntity
+                .status(download.isPartial() ? HttpStatus.PARTIAL_CONTENT : HttpStatus.OK)
+                .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                // compressed records are sent encoded or not depending on Accept-Encoding
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                .header("Content-type", "application/octet-stream")
+                .header("Content-disposition", "attachment; file=\"" + download.getFileName() + "\"");
+
+        if (download.getContentLength() >= 0)
+            responseBuilder.contentLength(download.getContentLength());
+        if (download.getContentEncoding() != null)
+            responseBuilder.header(HttpHeaders.CONTENT_ENCODING, download.getContentEncoding());
+        if (download.getEtag() != null)
+            responseBuilder.eTag(download.getEtag());
+        if (download.getLastModified() != null)
+            responseBuilder.lastModified(download.getLastModified().toInstant());
+        if (download.isPartial())
+            responseBuilder.header(HttpHeaders.CONTENT_RANGE,
+                    "bytes " + download.getRangeStart() + "-" + download.getRangeEnd() + "/" + download.getInstanceLength());
+
+        download.getContent().accept(emitter);
+
+        return responseBuilder.body(emitter);
+    }
+}
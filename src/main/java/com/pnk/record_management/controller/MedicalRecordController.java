@@ -0,0 +1,44 @@
+package com.pnk.record_management.controller;
+
+import com.pnk.record_management.dto.request.MedicalRecordQueryRequest;
+import com.pnk.record_management.dto.response.ApiResponse;
+import com.pnk.record_management.dto.response.MedicalRecordResponse;
+import com.pnk.record_management.dto.response.PageResponse;
+import com.pnk.record_management.service.MedicalRecordQueryService;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.ModelAttribute;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+
+@RestController
+@RequestMapping("/records")
+@RequiredArgsConstructor // injected by Constructor, no longer need of @Autowire
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@Slf4j
+public class MedicalRecordController {
+
+    MedicalRecordQueryService medicalRecordQueryService;
+
+
+    /*
+     * Records matching the filters, newest first, read from MongoDB only (no S3 metadata);
+     * the next page is requested with the returned cursor and the same filters
+     * */
+    @GetMapping
+    public ApiResponse<PageResponse<MedicalRecordResponse>> queryRecords(
+            @ModelAttribute MedicalRecordQueryRequest queryRequest,
+            @RequestParam(value = "limit", defaultValue = "50") int limit,
+            @RequestParam(value = "cursor", required = false) String cursor) {
+        log.info(">> queryRecords::query: {}, limit: {}", queryRequest, limit);
+
+        return ApiResponse.<PageResponse<MedicalRecordResponse>>builder()
+                .result(medicalRecordQueryService.queryRecords(queryRequest, limit, cursor))
+                .build();
+    }
+}
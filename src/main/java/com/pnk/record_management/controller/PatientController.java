@@ -0,0 +1,36 @@
+package com.pnk.record_management.controller;
+
+import com.pnk.record_management.dto.response.ApiResponse;
+import com.pnk.record_management.dto.response.MedicalRecordResponse;
+import com.pnk.record_management.service.PatientService;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+
+
+@RestController
+@RequestMapping("/patients")
+@RequiredArgsConstructor // injected by Constructor, no longer need of @Autowire
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@Slf4j
+public class PatientController {
+
+    PatientService patientService;
+
+
+    @GetMapping("/{patientId}/files")
+    public ApiResponse<List<MedicalRecordResponse>> getPatientFiles(@PathVariable String patientId) {
+        log.info(">> getPatientFiles::patientId: {}", patientId);
+
+        return ApiResponse.<List<MedicalRecordResponse>>builder()
+                .result(patientService.getPatientFiles(patientId))
+                .build();
+    }
+}
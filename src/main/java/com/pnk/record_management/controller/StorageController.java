@@ -1,18 +1,28 @@
 package com.pnk.record_management.controller;
 
 import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.pnk.record_management.dto.request.MedicalRecordBatchDeleteRequest;
 import com.pnk.record_management.dto.response.ApiResponse;
+import com.pnk.record_management.dto.response.MedicalRecordBatchItemResponse;
+import com.pnk.record_management.dto.response.MedicalRecordDownload;
 import com.pnk.record_management.dto.response.MedicalRecordResponse;
 import com.pnk.record_management.dto.response.MedicalRecordS3Metadata;
+import com.pnk.record_management.dto.response.MetadataCacheStatsResponse;
+import com.pnk.record_management.dto.response.PageResponse;
 import com.pnk.record_management.service.StorageService;
+import jakarta.validation.Valid;
 import lombok.AccessLevel;
 import lombok.RequiredArgsConstructor;
 import lombok.experimental.FieldDefaults;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.util.List;
 
@@ -28,11 +38,24 @@ public class StorageController {
 
 
     @PostMapping("/upload")
-    public ApiResponse<MedicalRecordResponse> uploadFile(@RequestParam(value = "file") MultipartFile file) {
-        log.info(">> uploadFile >> {}", file.getOriginalFilename());
+    public ApiResponse<MedicalRecordResponse> uploadFile(@RequestParam(value = "file") MultipartFile file,
+                                                         @RequestParam(value = "patientId") String patientId) {
+        log.info(">> uploadFile >> {}, patientId: {}", file.getOriginalFilename(), patientId);
 
         return ApiResponse.<MedicalRecordResponse>builder()
-                .result(storageService.uploadFileToS3(file))
+                .result(storageService.uploadFileToS3(file, patientId))
+                .build();
+    }
+
+
+    @PostMapping("/upload/batch")
+    public ApiResponse<List<MedicalRecordBatchItemResponse>> uploadFiles(
+            @RequestParam(value = "files") List<MultipartFile> files,
+            @RequestParam(value = "patientId") String patientId) {
+        log.info(">> uploadFiles >> {} files, patientId: {}", files.size(), patientId);
+
+        return ApiResponse.<List<MedicalRecordBatchItemResponse>>builder()
+                .result(storageService.uploadFilesToS3(files, patientId))
                 .build();
     }
 
@@ -47,6 +70,38 @@ public class StorageController {
     }
 
 
+    /*
+     * Paginated variant of the search: one page of at most limit matches, the next page is requested with the
+     * returned cursor
+     * */
+    @GetMapping("/search")
+    public ApiResponse<PageResponse<MedicalRecordS3Metadata>> searchFilePage(
+            @RequestParam(value = "word") String searchingWord,
+            @RequestParam(value = "limit", defaultValue = "50") int limit,
+            @RequestParam(value = "cursor", required = false) String cursor) {
+        log.info(">> searchFilePage::searchingWord: {}, limit: {}", searchingWord, limit);
+
+        return ApiResponse.<PageResponse<MedicalRecordS3Metadata>>builder()
+                .result(storageService.searchS3ContainsFilename(searchingWord, limit, cursor))
+                .build();
+    }
+
+
+    /*
+     * Complete result set of the search as newline-delimited JSON, selected with "Accept: application/x-ndjson";
+     * matches are written while the bucket is listed instead of being collected first
+     * */
+    @GetMapping(value = "/search", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamSearchFile(@RequestParam(value = "word") String searchingWord) {
+        log.info(">> streamSearchFile::searchingWord: {}", searchingWord);
+
+        return ResponseEntity
+                .ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(storageService.streamS3ContainsFilename(searchingWord));
+    }
+
+
     @GetMapping("/download/{fileName}")
     public ResponseEntity<ByteArrayResource> downloadFile(@PathVariable String fileName) {
         log.info(">> downloadFile::downloadFile: {}", fileName);
@@ -71,6 +126,45 @@ public class StorageController {
     }
 
 
+    /*
+     * Streaming variant of the download: the object is piped from S3 without being held in memory,
+     * Range / If-Range requests are answered with 206 partial content
+     * */
+    @GetMapping("/stream/{fileName}")
+    public ResponseEntity<StreamingResponseBody> streamFile(
+            @PathVariable String fileName,
+            @RequestHeader(value = HttpHeaders.RANGE, required = false) String rangeHeader,
+            @RequestHeader(value = HttpHeaders.IF_RANGE, required = false) String ifRangeHeader,
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncodingHeader) {
+        log.info(">> streamFile::fileName: {}, range: {}", fileName, rangeHeader);
+
+        MedicalRecordDownload download =
+                storageService.streamFileFromS3(fileName, rangeHeader, ifRangeHeader, acceptEncodingHeader);
+
+        ResponseEntity.BodyBuilder responseBuilder = ResponseEntity
+                .status(download.isPartial() ? HttpStatus.PARTIAL_CONTENT : HttpStatus.OK)
+                .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                // compressed records are sent encoded or not depending on Accept-Encoding
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                .header("Content-type", "application/octet-stream")
+                .header("Content-disposition", "attachment; file=\"" + fileName + "\"");
+
+        if (download.getContentLength() >= 0)
+            responseBuilder.contentLength(download.getContentLength());
+        if (download.getContentEncoding() != null)
+            responseBuilder.header(HttpHeaders.CONTENT_ENCODING, download.getContentEncoding());
+        if (download.getEtag() != null)
+            responseBuilder.eTag(download.getEtag());
+        if (download.getLastModified() != null)
+            responseBuilder.lastModified(download.getLastModified().toInstant());
+        if (download.isPartial())
+            responseBuilder.header(HttpHeaders.CONTENT_RANGE,
+                    "bytes " + download.getRangeStart() + "-" + download.getRangeEnd() + "/" + download.getInstanceLength());
+
+        return responseBuilder.body(download.getContent());
+    }
+
+
     @DeleteMapping("/delete/{fileName}")
     public ApiResponse<MedicalRecordResponse> deleteFile(@PathVariable String fileName) {
         log.info(">> deleteFile::fileName: {}", fileName);
@@ -81,4 +175,23 @@ public class StorageController {
                 .result(deletionResult)
                 .build();
     }
+
+
+    @PostMapping("/delete/batch")
+    public ApiResponse<List<MedicalRecordBatchItemResponse>> deleteFiles(
+            @RequestBody @Valid MedicalRecordBatchDeleteRequest request) {
+        log.info(">> deleteFiles >> {} files", request.getFileNames().size());
+
+        return ApiResponse.<List<MedicalRecordBatchItemResponse>>builder()
+                .result(storageService.deleteFilesFromS3(request.getFileNames()))
+                .build();
+    }
+
+
+    @GetMapping("/cache/stats")
+    public ApiResponse<MetadataCacheStatsResponse> getMetadataCacheStats() {
+        return ApiResponse.<MetadataCacheStatsResponse>builder()
+                .result(storageService.getMetadataCacheStats())
+                .build();
+    }
 }
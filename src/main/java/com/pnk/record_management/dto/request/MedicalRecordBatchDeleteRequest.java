@@ -0,0 +1,20 @@
+package com.pnk.record_management.dto.request;
+
+import jakarta.validation.constraints.NotEmpty;
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+
+import java.util.List;
+
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class MedicalRecordBatchDeleteRequest {
+
+    @NotEmpty(message = "INVALID_KEY")
+    List<String> fileNames;
+
+}
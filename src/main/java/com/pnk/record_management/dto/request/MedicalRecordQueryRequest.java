@@ -0,0 +1,34 @@
+package com.pnk.record_management.dto.request;
+
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+
+import java.time.Instant;
+
+
+/*
+ * Filters of the record query, bound from the query string; a filter left null is not applied.
+ * Time ranges are ISO-8601 instants, "from" inclusive and "to" exclusive.
+ * */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class MedicalRecordQueryRequest {
+
+    String patientId;
+
+    String updatedByUser;
+
+    Boolean s3Availability;
+
+    Instant createdFrom;
+
+    Instant createdTo;
+
+    Instant updatedFrom;
+
+    Instant updatedTo;
+
+}
@@ -0,0 +1,24 @@
+package com.pnk.record_management.dto.response;
+
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class KeyMigrationReport {
+
+    long migrated;
+
+    // already under their patient prefix
+    long alreadyMigrated;
+
+    // no valid patientId on the record, the key cannot be derived
+    long skipped;
+
+    long failed;
+
+}
@@ -0,0 +1,45 @@
+package com.pnk.record_management.dto.response;
+
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import java.util.Date;
+import java.util.function.Consumer;
+
+
+/*
+ * A download of the async storage engine: response headers plus the body, pushed into the emitter chunk by chunk
+ * as it arrives; content completes the emitter once the body was sent
+ * */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class MedicalRecordAsyncDownload {
+
+    String fileName;
+
+    String etag;
+
+    Date lastModified;
+
+    // bytes sent in this response, -1 when unknown
+    long contentLength;
+
+    // size of the whole object
+    long instanceLength;
+
+    boolean partial;
+
+    long rangeStart;
+
+    long rangeEnd;
+
+    // coding of the bytes sent, null when sent as is
+    String contentEncoding;
+
+    Consumer<ResponseBodyEmitter> content;
+
+}
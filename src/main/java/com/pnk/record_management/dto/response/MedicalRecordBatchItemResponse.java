@@ -0,0 +1,29 @@
+package com.pnk.record_management.dto.response;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+
+
+/*
+ * Outcome of one file of a batch request: either the stored record or the error that made it fail
+ * */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE)
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class MedicalRecordBatchItemResponse {
+
+    String fileName;
+
+    boolean success;
+
+    Integer code;
+
+    String message;
+
+    MedicalRecordResponse result;
+
+}
@@ -0,0 +1,43 @@
+package com.pnk.record_management.dto.response;
+
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.util.Date;
+
+
+/*
+ * A download about to be streamed: response headers plus the body writer
+ * */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class MedicalRecordDownload {
+
+    String fileName;
+
+    String etag;
+
+    Date lastModified;
+
+    // bytes sent in this response, -1 when unknown
+    long contentLength;
+
+    // size of the whole object
+    long instanceLength;
+
+    boolean partial;
+
+    long rangeStart;
+
+    long rangeEnd;
+
+    // coding of the bytes sent, null when sent as is
+    String contentEncoding;
+
+    StreamingResponseBody content;
+
+}
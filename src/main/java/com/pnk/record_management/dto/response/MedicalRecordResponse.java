@@ -29,4 +29,10 @@ public class MedicalRecordResponse {
 
     MedicalRecordS3Metadata medicalRecordS3Metadata;
 
+    String contentSha256;
+
+    String contentKey;
+
+    Long version;
+
 }
@@ -20,6 +20,8 @@ public class MedicalRecordS3Metadata {
 
     String etag;
 
+    String versionId;
+
     long size;
 
     Date lastModified;
@@ -28,4 +30,7 @@ public class MedicalRecordS3Metadata {
 
     Owner owner;
 
+    // chunk size of an object encrypted by this service, null for an object stored as is (or not known yet)
+    Integer encryptionChunkSize;
+
 }
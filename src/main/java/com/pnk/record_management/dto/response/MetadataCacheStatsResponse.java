@@ -0,0 +1,24 @@
+package com.pnk.record_management.dto.response;
+
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class MetadataCacheStatsResponse {
+
+    long estimatedSize;
+
+    long hitCount;
+
+    long missCount;
+
+    double hitRate;
+
+    long evictionCount;
+
+}
@@ -0,0 +1,25 @@
+package com.pnk.record_management.dto.response;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+
+import java.util.List;
+
+
+/*
+ * One page of a listing; nextCursor is handed back to get the following page and is absent on the last one
+ * */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE)
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class PageResponse<T> {
+
+    List<T> items;
+
+    String nextCursor;
+
+}
@@ -0,0 +1,32 @@
+package com.pnk.record_management.dto.response;
+
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class ReconciliationReport {
+
+    long scannedKeys;
+
+    // objects without a record, a record was created for them
+    long adoptedObjects;
+
+    // records marked as deleted whose object is in the bucket, marked available again
+    long restoredRecords;
+
+    // records marked as available whose object is gone, marked as deleted
+    long missingObjects;
+
+    long completedRanges;
+
+    long failedRanges;
+
+    // leased by another instance, reconciled there
+    long skippedRanges;
+
+}
@@ -4,6 +4,10 @@ import com.pnk.record_management.dto.response.MedicalRecordS3Metadata;
 import lombok.*;
 import lombok.experimental.FieldDefaults;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Version;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.time.Instant;
@@ -17,11 +21,23 @@ import java.time.Instant;
 @AllArgsConstructor
 @FieldDefaults(level = AccessLevel.PRIVATE)
 @Document("medical-record")
+@CompoundIndexes({
+        // records of a patient, newest first; _id breaks ties of the keyset pagination of /records
+        @CompoundIndex(name = "patientId_creationDateTime_id",
+                def = "{ 'patientId' : 1, 'creationDateTime' : -1, '_id' : -1 }"),
+        // all records, newest first, for /records queries without a patient
+        @CompoundIndex(name = "creationDateTime_id", def = "{ 'creationDateTime' : -1, '_id' : -1 }"),
+        // available / deleted records by last update
+        @CompoundIndex(name = "s3Availability_latestUpdateDateTime",
+                def = "{ 's3Availability' : 1, 'latestUpdateDateTime' : -1 }")
+})
 public class MedicalRecord {
 
     @Id
     String id;
 
+    // the object key, one record per key
+    @Indexed(unique = true)
     String medicalRecordName;
 
     String patientId;
@@ -36,4 +52,15 @@ public class MedicalRecord {
 
     MedicalRecordS3Metadata medicalRecordS3Metadata;
 
+    // hex SHA-256 of the uploaded content, null for records uploaded without deduplication
+    String contentSha256;
+
+    // key of the object the record shares with an earlier record of the same content, null: the object named
+    // medicalRecordName
+    String contentKey;
+
+    // incremented by every change: a save of a record changed since it was read fails instead of overwriting it
+    @Version
+    Long version;
+
 }
@@ -0,0 +1,51 @@
+package com.pnk.record_management.entity;
+
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+
+/*
+ * Progress of the reconciliation of one key range, saved after every page so that an interrupted pass resumes
+ * after lastKey. Keys of the range are those after rangeStart up to and including rangeEnd (null: unbounded).
+ * */
+@ToString
+@Getter
+@Setter
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE)
+@Document("reconciliation-checkpoint")
+public class ReconciliationCheckpoint {
+
+    // "<rangeStart>..<rangeEnd>", a change of the split keys starts new checkpoints
+    @Id
+    String id;
+
+    String rangeStart;
+
+    String rangeEnd;
+
+    // last key reconciled by the current pass, the listing resumes after it
+    String lastKey;
+
+    boolean completed;
+
+    Instant passStartedAt;
+
+    Instant updatedAt;
+
+    // counters of the current pass
+    long scannedKeys;
+
+    long adoptedObjects;
+
+    long restoredRecords;
+
+    long missingObjects;
+
+}
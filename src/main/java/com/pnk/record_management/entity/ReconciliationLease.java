@@ -0,0 +1,34 @@
+package com.pnk.record_management.entity;
+
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+
+/*
+ * Claim of one instance of the service on the reconciliation of a key range: only the owner repairs the range and
+ * saves its checkpoint until expiresAt, extended after every page. An expired lease is free to be taken over.
+ * */
+@ToString
+@Getter
+@Setter
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE)
+@Document("reconciliation-lease")
+public class ReconciliationLease {
+
+    // id of the key range, the one of its checkpoint
+    @Id
+    String id;
+
+    // random id of the instance holding the lease
+    String owner;
+
+    Instant expiresAt;
+
+}
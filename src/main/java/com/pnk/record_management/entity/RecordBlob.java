@@ -0,0 +1,46 @@
+package com.pnk.record_management.entity;
+
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+import java.util.List;
+
+
+/*
+ * An object whose content is shared by the records of a patient who uploaded the same content again: every record
+ * named in references is served from it, and it is deleted from S3 along with the last of them.
+ * Objects stored before deduplication, or while it is off, have none and belong to their own record only.
+ * */
+@ToString
+@Getter
+@Setter
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE)
+@Document("record-blob")
+// content already stored for the patient; dedup is per patient, the object key being under the patient prefix
+@CompoundIndex(name = "patientId_sha256", def = "{ 'patientId' : 1, 'sha256' : 1 }", unique = true)
+public class RecordBlob {
+
+    // the object key
+    @Id
+    String id;
+
+    String patientId;
+
+    // hex SHA-256 of the content as uploaded, before any compression
+    String sha256;
+
+    // names of the records served from the object, the record it was uploaded with first
+    @Indexed
+    List<String> references;
+
+    Instant creationDateTime;
+
+}
@@ -13,7 +13,15 @@ public enum ErrorCode {
     UNAUTHORIZED(1007, "You do not have permission", HttpStatus.FORBIDDEN),
     CANNOT_SEND_EMAIL(1008, "Cannot send email", HttpStatus.BAD_REQUEST),
     MEDICAL_RECORD_NOT_EXISTING(1009, "Medical record not existing", HttpStatus.NOT_FOUND),
-    FILE_DELETION_FAILED(1010, "Failed to delete file from S3", HttpStatus.BAD_REQUEST)
+    FILE_DELETION_FAILED(1010, "Failed to delete file from S3", HttpStatus.BAD_REQUEST),
+    RANGE_NOT_SATISFIABLE(1011, "Requested range not satisfiable", HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE),
+    FILE_UPLOAD_FAILED(1012, "Failed to upload file to S3", HttpStatus.BAD_REQUEST),
+    FILE_PERSISTENCE_FAILED(1013, "S3 operation succeeded but the database entry could not be updated", HttpStatus.INTERNAL_SERVER_ERROR),
+    BATCH_TOO_LARGE(1014, "Too many files in one batch", HttpStatus.BAD_REQUEST),
+    INVALID_PAGINATION(1015, "Invalid page limit or cursor", HttpStatus.BAD_REQUEST),
+    INVALID_PATIENT_ID(1016, "Patient id must be 1 to 64 letters, digits or '-'", HttpStatus.BAD_REQUEST),
+    INVALID_TIME_RANGE(1017, "Time range start must be before its end", HttpStatus.BAD_REQUEST),
+    RECORD_WRITE_QUEUE_FULL(1018, "Too many pending record changes, retry later", HttpStatus.SERVICE_UNAVAILABLE)
     ;
 
     private final int code;
@@ -0,0 +1,28 @@
+package com.pnk.record_management.mapper;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.pnk.record_management.dto.response.MedicalRecordResponse;
+import com.pnk.record_management.dto.response.MedicalRecordS3Metadata;
+import com.pnk.record_management.entity.MedicalRecord;
+import org.mapstruct.Mapper;
+import org.mapstruct.Mapping;
+import org.mapstruct.ReportingPolicy;
+
+
+/*
+ * Entity and S3 to DTO mappings, generated at compile time (MedicalRecordMapperImpl, a Spring bean): plain getter and
+ * builder calls, no reflection per mapping. A target property without a source fails the build.
+ * */
+@Mapper(unmappedTargetPolicy = ReportingPolicy.ERROR)
+public interface MedicalRecordMapper {
+
+    // the embedded S3 metadata is handed over as is, not copied
+    MedicalRecordResponse toMedicalRecordResponse(MedicalRecord medicalRecord);
+
+
+    // a listing gives neither the version nor the user metadata of an object
+    @Mapping(target = "etag", source = "ETag")
+    @Mapping(target = "versionId", ignore = true)
+    @Mapping(target = "encryptionChunkSize", ignore = true)
+    MedicalRecordS3Metadata toMedicalRecordS3Metadata(S3ObjectSummary summary);
+}
@@ -2,14 +2,32 @@ package com.pnk.record_management.repository;
 
 import com.pnk.record_management.entity.MedicalRecord;
 import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.data.mongodb.repository.Query;
+import org.springframework.data.mongodb.repository.Update;
 import org.springframework.stereotype.Repository;
 
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 
 @Repository
-public interface MedicalRecordRepository extends MongoRepository<MedicalRecord, String> {
+public interface MedicalRecordRepository extends MongoRepository<MedicalRecord, String>, MedicalRecordRepositoryCustom {
 
     Optional<MedicalRecord> findByMedicalRecordName(String medicalRecordName);
 
+    List<MedicalRecord> findByPatientIdAndS3AvailabilityTrueOrderByCreationDateTimeDesc(String patientId);
+
+    // records still available in S3, read through a cursor instead of being loaded at once
+    Stream<MedicalRecord> streamByS3AvailabilityTrue();
+
+    // a single updateMany for all the given records, returns the number of matched documents
+    @Query("{ 'medicalRecordName' : { '$in' : ?0 } }")
+    @Update("{ '$set' : { 's3Availability' : ?1, 'latestUpdateDateTime' : ?2, 'updatedByUser' : ?3 }, "
+            + "'$inc' : { 'version' : 1 } }")
+    long updateS3AvailabilityByMedicalRecordNameIn(Collection<String> medicalRecordNames, boolean s3Availability,
+                                                   Instant latestUpdateDateTime, String updatedByUser);
+
 }
@@ -0,0 +1,30 @@
+package com.pnk.record_management.repository;
+
+import com.pnk.record_management.entity.MedicalRecord;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+
+/*
+ * Record changes made in a single atomic findAndModify, returning the record as changed, and bulk writes reporting
+ * the outcome of each record
+ * */
+public interface MedicalRecordRepositoryCustom {
+
+    // empty when no record has this name
+    Optional<MedicalRecord> findAndMarkUnavailable(String medicalRecordName, String updatedByUser);
+
+    // empty when the record changed since it was read (other version) or no longer exists
+    Optional<MedicalRecord> findAndRename(MedicalRecord medicalRecord, String newMedicalRecordName,
+                                          String updatedByUser);
+
+
+    /*
+     * One unordered bulk insert, every record being tried whatever happens to the others; the positions of the
+     * records that could not be inserted (a duplicate name typically). Ids are assigned to the records beforehand.
+     * */
+    Set<Integer> insertUnordered(List<MedicalRecord> medicalRecords);
+
+}
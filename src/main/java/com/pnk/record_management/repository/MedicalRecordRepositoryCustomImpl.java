@@ -0,0 +1,83 @@
+package com.pnk.record_management.repository;
+
+import com.mongodb.bulk.BulkWriteError;
+import com.pnk.record_management.entity.MedicalRecord;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import org.bson.types.ObjectId;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+
+/*
+ * One round trip per change instead of a find followed by a save: MongoDB applies the update to the current document,
+ * so concurrent changes of other fields are never overwritten, and the version is incremented with it
+ * */
+@RequiredArgsConstructor // injected by Constructor, no longer need of @Autowire
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class MedicalRecordRepositoryCustomImpl implements MedicalRecordRepositoryCustom {
+
+    MongoTemplate mongoTemplate;
+
+
+    @Override
+    public Optional<MedicalRecord> findAndMarkUnavailable(String medicalRecordName, String updatedByUser) {
+        return Optional.ofNullable(mongoTemplate.findAndModify(
+                new Query(Criteria.where("medicalRecordName").is(medicalRecordName)),
+                change(updatedByUser).set("s3Availability", false),
+                FindAndModifyOptions.options().returnNew(true),
+                MedicalRecord.class));
+    }
+
+
+    @Override
+    public Optional<MedicalRecord> findAndRename(MedicalRecord medicalRecord, String newMedicalRecordName,
+                                                 String updatedByUser) {
+        // the version read with the record, null for records saved before versioning matches a missing field
+        return Optional.ofNullable(mongoTemplate.findAndModify(
+                new Query(Criteria.where("id").is(medicalRecord.getId())
+                        .and("version").is(medicalRecord.getVersion())),
+                change(updatedByUser).set("medicalRecordName", newMedicalRecordName),
+                FindAndModifyOptions.options().returnNew(true),
+                MedicalRecord.class));
+    }
+
+
+    @Override
+    public Set<Integer> insertUnordered(List<MedicalRecord> medicalRecords) {
+        // the bulk insert does not write the generated ids back to the records
+        medicalRecords.stream()
+                .filter(medicalRecord -> medicalRecord.getId() == null)
+                .forEach(medicalRecord -> medicalRecord.setId(new ObjectId().toHexString()));
+
+        try {
+            mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, MedicalRecord.class)
+                    .insert(medicalRecords)
+                    .execute();
+            return Set.of();
+        } catch (BulkOperationException e) {
+            // one error per record that failed, at its position in the bulk
+            return e.getErrors().stream().map(BulkWriteError::getIndex).collect(Collectors.toSet());
+        }
+    }
+
+
+    private static Update change(String updatedByUser) {
+        return new Update()
+                .set("latestUpdateDateTime", Instant.now())
+                .set("updatedByUser", updatedByUser)
+                .inc("version", 1);
+    }
+}
@@ -0,0 +1,11 @@
+package com.pnk.record_management.repository;
+
+import com.pnk.record_management.entity.ReconciliationCheckpoint;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+
+@Repository
+public interface ReconciliationCheckpointRepository extends MongoRepository<ReconciliationCheckpoint, String> {
+
+}
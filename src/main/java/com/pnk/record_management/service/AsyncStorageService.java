@@ -0,0 +1,27 @@
+package com.pnk.record_management.service;
+
+import com.pnk.record_management.dto.response.MedicalRecordAsyncDownload;
+import com.pnk.record_management.dto.response.MedicalRecordResponse;
+import com.pnk.record_management.dto.response.MedicalRecordS3Metadata;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+
+/*
+ * Storage operations completing asynchronously, backed by the engine selected with application.storage.engine:
+ * "sync" runs StorageService on the storage task executor, "async" uses the non-blocking S3 client
+ * */
+public interface AsyncStorageService {
+
+    CompletableFuture<MedicalRecordResponse> uploadFileToS3(MultipartFile file, String patientId);
+
+    CompletableFuture<List<MedicalRecordS3Metadata>> searchS3ExactFilename(String searchingWord);
+
+    CompletableFuture<MedicalRecordAsyncDownload> streamFileFromS3(
+            String fileName, String rangeHeader, String ifRangeHeader, String acceptEncodingHeader);
+
+    CompletableFuture<MedicalRecordResponse> deleteFileFromS3(String fileName);
+
+}
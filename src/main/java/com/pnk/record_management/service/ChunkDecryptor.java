@@ -0,0 +1,90 @@
+package com.pnk.record_management.service;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+
+
+/*
+ * Decrypts the chunks of an EncryptedRange as their bytes are pushed in, whatever the pieces they arrive in: a chunk
+ * is decrypted once complete and the part of its plaintext within the range written out. Nothing of a chunk is
+ * written before its tag was verified, and finish() fails unless every chunk of the range was received.
+ * */
+public final class ChunkDecryptor {
+
+    private final ChunkedCipher.EncryptedRange range;
+
+    private final Cipher cipher;
+
+    private final byte[] chunk;
+
+    private final byte[] plainChunk;
+
+    private int filled;
+
+    private long chunkIndex;
+
+    private long toSkip;
+
+    private long remaining;
+
+
+    ChunkDecryptor(ChunkedCipher.EncryptedRange range) {
+        this.range = range;
+        this.cipher = range.cipher().newCipher();
+        this.chunk = new byte[range.cipher().getChunkSize() + ChunkedCipher.TAG_LENGTH];
+        this.plainChunk = new byte[range.cipher().getChunkSize()];
+        this.chunkIndex = range.firstChunk();
+        this.toSkip = range.skip();
+        this.remaining = range.length();
+    }
+
+
+    public void update(byte[] bytes, int offset, int length, OutputStream plaintext) throws IOException {
+        while (length > 0) {
+            if (chunkIndex > range.lastChunk())
+                throw new IOException("Encrypted content longer than its range, chunk " + chunkIndex);
+
+            int chunkLength = range.encryptedChunkLength(chunkIndex);
+            int count = Math.min(length, chunkLength - filled);
+            System.arraycopy(bytes, offset, chunk, filled, count);
+            filled += count;
+            offset += count;
+            length -= count;
+
+            if (filled == chunkLength)
+                decryptChunk(chunkLength, plaintext);
+        }
+    }
+
+
+    public void finish() throws IOException {
+        if (chunkIndex <= range.lastChunk())
+            throw new IOException("Encrypted content truncated in chunk " + chunkIndex);
+    }
+
+
+    private void decryptChunk(int chunkLength, OutputStream plaintext) throws IOException {
+        range.cipher().initChunk(cipher, Cipher.DECRYPT_MODE, chunkIndex, chunkIndex == range.finalChunk());
+
+        int plainLength;
+        try {
+            plainLength = cipher.doFinal(chunk, 0, chunkLength, plainChunk, 0);
+        } catch (AEADBadTagException e) {
+            throw new IOException("Chunk " + chunkIndex + " failed authentication", e);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+
+        int start = (int) Math.min(toSkip, plainLength);
+        int count = (int) Math.min(remaining, plainLength - start);
+        plaintext.write(plainChunk, start, count);
+
+        toSkip -= start;
+        remaining -= count;
+        filled = 0;
+        chunkIndex++;
+    }
+}
@@ -0,0 +1,193 @@
+package com.pnk.record_management.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+
+/*
+ * Decompresses a gzip or deflate (zlib) body as its bytes are pushed in, whatever the pieces they arrive in, for the
+ * engines receiving the body chunk by chunk instead of reading it. The gzip header and trailer are parsed here, the
+ * trailer checked against what was inflated, members following each other decoded in turn like GZIPInputStream
+ * does; finish() fails unless the compressed content was complete.
+ * */
+public final class ChunkInflater {
+
+    private static final int GZIP_HEADER_LENGTH = 10;
+
+    private static final int GZIP_TRAILER_LENGTH = 8;
+
+    private static final int FHCRC = 2;
+
+    private static final int FEXTRA = 4;
+
+    private static final int FNAME = 8;
+
+    private static final int FCOMMENT = 16;
+
+    private final boolean gzip;
+
+    private final Inflater inflater;
+
+    private final CRC32 crc = new CRC32();
+
+    private final byte[] inflated = new byte[8192];
+
+    // bytes of a gzip header or trailer still incomplete
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+    private State state;
+
+    private boolean memberDecoded;
+
+
+    ChunkInflater(CompressionCodec codec) {
+        this.gzip = codec == CompressionCodec.GZIP;
+        // gzip members hold raw deflate data, parsed out of their header and trailer here
+        this.inflater = new Inflater(gzip);
+        this.state = gzip ? State.HEADER : State.BODY;
+    }
+
+
+    public void update(byte[] bytes, int offset, int length, OutputStream decoded) throws IOException {
+        while (length > 0) {
+            int consumed = switch (state) {
+                case HEADER -> readHeader(bytes, offset, length);
+                case BODY -> inflate(bytes, offset, length, decoded);
+                case TRAILER -> readTrailer(bytes, offset, length);
+                case DONE -> throw new IOException("Content after the end of the compressed stream");
+            };
+            offset += consumed;
+            length -= consumed;
+        }
+    }
+
+
+    public void finish() throws IOException {
+        boolean complete = gzip
+                ? state == State.HEADER && pending.size() == 0 && memberDecoded
+                : state == State.DONE;
+        if (!complete)
+            throw new IOException("Compressed content truncated");
+    }
+
+
+    // releases the native memory of the inflater, at the end of the download whichever way it ends
+    public void end() {
+        inflater.end();
+    }
+
+
+    private int inflate(byte[] bytes, int offset, int length, OutputStream decoded) throws IOException {
+        inflater.setInput(bytes, offset, length);
+        try {
+            while (true) {
+                int count = inflater.inflate(inflated);
+                if (count > 0) {
+                    decoded.write(inflated, 0, count);
+                    crc.update(inflated, 0, count);
+                }
+
+                if (inflater.finished()) {
+                    state = gzip ? State.TRAILER : State.DONE;
+                    return length - inflater.getRemaining();
+                }
+                if (inflater.needsDictionary())
+                    throw new IOException("Compressed content needs a preset dictionary");
+                if (count == 0 && inflater.needsInput())
+                    return length;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed content", e);
+        }
+    }
+
+
+    private int readHeader(byte[] bytes, int offset, int length) throws IOException {
+        int alreadyPending = pending.size();
+        pending.write(bytes, offset, length);
+
+        int headerLength = gzipHeaderLength(pending.toByteArray());
+        if (headerLength < 0)
+            return length;
+
+        pending.reset();
+        inflater.reset();
+        crc.reset();
+        state = State.BODY;
+        return headerLength - alreadyPending;
+    }
+
+
+    private int readTrailer(byte[] bytes, int offset, int length) throws IOException {
+        int alreadyPending = pending.size();
+        int count = Math.min(length, GZIP_TRAILER_LENGTH - alreadyPending);
+        pending.write(bytes, offset, count);
+        if (pending.size() < GZIP_TRAILER_LENGTH)
+            return count;
+
+        byte[] trailer = pending.toByteArray();
+        if (littleEndianInt(trailer, 0) != (int) crc.getValue())
+            throw new IOException("Corrupt gzip trailer, CRC mismatch");
+        if (littleEndianInt(trailer, 4) != (int) inflater.getBytesWritten())
+            throw new IOException("Corrupt gzip trailer, length mismatch");
+
+        pending.reset();
+        memberDecoded = true;
+        state = State.HEADER;
+        return count;
+    }
+
+
+    // -1 while the header is incomplete
+    private static int gzipHeaderLength(byte[] header) throws IOException {
+        if (header.length < GZIP_HEADER_LENGTH)
+            return -1;
+        if (header[0] != (byte) 0x1f || header[1] != (byte) 0x8b || header[2] != 8)
+            throw new IOException("Not in gzip format");
+
+        int flags = header[3];
+        int position = GZIP_HEADER_LENGTH;
+        if ((flags & FEXTRA) != 0) {
+            if (header.length < position + 2)
+                return -1;
+            position += 2 + ((header[position] & 0xff) | (header[position + 1] & 0xff) << 8);
+        }
+        if ((flags & FNAME) != 0)
+            position = afterZero(header, position);
+        if ((flags & FCOMMENT) != 0 && position >= 0)
+            position = afterZero(header, position);
+        if ((flags & FHCRC) != 0 && position >= 0)
+            position += 2;
+
+        return position >= 0 && position <= header.length ? position : -1;
+    }
+
+
+    // position after the zero ending the string starting at position, -1 while not received
+    private static int afterZero(byte[] header, int position) {
+        for (int i = position; i < header.length; i++) {
+            if (header[i] == 0)
+                return i + 1;
+        }
+        return -1;
+    }
+
+
+    private static int littleEndianInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8
+                | (bytes[offset + 2] & 0xff) << 16 | (bytes[offset + 3] & 0xff) << 24;
+    }
+
+
+    private enum State {
+        HEADER,
+        BODY,
+        TRAILER,
+        // end of a zlib stream, nothing may follow
+        DONE
+    }
+}
@@ -0,0 +1,160 @@
+package com.pnk.record_management.service;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+
+/*
+ * AES-GCM over fixed-size chunks of an object, each chunk sealed on its own: chunk i holds plaintext bytes
+ * [i x chunkSize, (i + 1) x chunkSize) followed by its 16-byte tag, only the final chunk may be shorter (and is
+ * present, tag only, for an empty object). Any plaintext range is thus readable from the chunks holding it alone.
+ * The nonce of a chunk is its index, unique under the data key since each object gets its own; the index and a
+ * final-chunk flag are authenticated too, so that chunks cannot be reordered and a truncated object is detected.
+ * */
+public final class ChunkedCipher {
+
+    static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    static final int TAG_LENGTH = 16;
+
+    static final int NONCE_LENGTH = 12;
+
+    private final SecretKey dataKey;
+
+    private final int chunkSize;
+
+
+    ChunkedCipher(SecretKey dataKey, int chunkSize) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+
+        this.dataKey = dataKey;
+        this.chunkSize = chunkSize;
+    }
+
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+
+    SecretKey getDataKey() {
+        return dataKey;
+    }
+
+
+    // an empty object still has its (tag only) final chunk
+    public long chunkCount(long plainLength) {
+        return Math.max(1, Math.ceilDiv(plainLength, chunkSize));
+    }
+
+
+    public long encryptedLength(long plainLength) {
+        return plainLength + TAG_LENGTH * chunkCount(plainLength);
+    }
+
+
+    public long plainLength(long encryptedLength) {
+        long chunks = Math.max(1, Math.ceilDiv(encryptedLength, chunkSize + TAG_LENGTH));
+        long plainLength = encryptedLength - TAG_LENGTH * chunks;
+        if (plainLength < 0)
+            throw new IllegalArgumentException("Not a chunked encrypted length: " + encryptedLength);
+
+        return plainLength;
+    }
+
+
+    /*
+     * The chunks holding plaintext bytes [first, last] of an object of plainLength bytes
+     * */
+    public EncryptedRange encryptedRange(long first, long last, long plainLength) {
+        long encryptedChunkSize = chunkSize + TAG_LENGTH;
+        long encryptedLength = encryptedLength(plainLength);
+        long firstChunk = first / chunkSize;
+        long lastChunk = Math.max(firstChunk, last / chunkSize);
+
+        return new EncryptedRange(this,
+                firstChunk,
+                lastChunk,
+                chunkCount(plainLength) - 1,
+                encryptedLength,
+                firstChunk * encryptedChunkSize,
+                Math.min((lastChunk + 1) * encryptedChunkSize, encryptedLength) - 1,
+                first - firstChunk * chunkSize,
+                Math.max(0, last - first + 1));
+    }
+
+
+    public EncryptedRange wholeObject(long plainLength) {
+        return encryptedRange(0, plainLength - 1, plainLength);
+    }
+
+
+    // reads the encrypted form of inputStream, chunk by chunk as it is read
+    public InputStream encrypting(InputStream inputStream) {
+        return new EncryptingInputStream(inputStream, this);
+    }
+
+
+    // reads the plaintext of range out of inputStream, which holds the encrypted bytes of range only
+    public InputStream decrypting(InputStream inputStream, EncryptedRange range, int bufferSize) {
+        return new DecryptingInputStream(inputStream, range.decryptor(), bufferSize);
+    }
+
+
+    Cipher newCipher() {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            // every JRE provides AES/GCM
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    // prepares cipher for one chunk, in Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+    void initChunk(Cipher cipher, int mode, long chunkIndex, boolean finalChunk) {
+        byte[] nonce = ByteBuffer.allocate(NONCE_LENGTH)
+                .putInt(0)
+                .putLong(chunkIndex)
+                .array();
+        byte[] associatedData = ByteBuffer.allocate(Long.BYTES + 1)
+                .putLong(chunkIndex)
+                .put((byte) (finalChunk ? 1 : 0))
+                .array();
+
+        try {
+            cipher.init(mode, dataKey, new GCMParameterSpec(TAG_LENGTH * Byte.SIZE, nonce));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot initialize chunk " + chunkIndex, e);
+        }
+        cipher.updateAAD(associatedData);
+    }
+
+
+    /*
+     * Chunks [firstChunk, lastChunk] of an object, stored at encrypted bytes [encryptedFirst, encryptedLast]; once
+     * decrypted, skip bytes of the first chunk are dropped and length bytes kept
+     * */
+    public record EncryptedRange(ChunkedCipher cipher, long firstChunk, long lastChunk, long finalChunk,
+                                 long encryptedLength, long encryptedFirst, long encryptedLast, long skip,
+                                 long length) {
+
+        // the encrypted length of a chunk of the range, tag included
+        int encryptedChunkLength(long chunkIndex) {
+            long encryptedChunkSize = cipher.chunkSize + TAG_LENGTH;
+            return (int) (chunkIndex < finalChunk
+                    ? encryptedChunkSize
+                    : encryptedLength - finalChunk * encryptedChunkSize);
+        }
+
+
+        public ChunkDecryptor decryptor() {
+            return new ChunkDecryptor(this);
+        }
+    }
+}
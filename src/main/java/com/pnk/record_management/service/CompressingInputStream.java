@@ -0,0 +1,97 @@
+package com.pnk.record_management.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+
+/*
+ * Compresses the source while it is read: each read of the source is pushed through the codec, whose output is
+ * collected in a buffer that reads drain. Memory stays at about two buffers whatever the source length, which lets
+ * a compressed upload of unknown length go straight into the multipart engine.
+ * */
+final class CompressingInputStream extends InputStream {
+
+    private final InputStream source;
+
+    private final byte[] sourceBuffer;
+
+    private final DrainableBuffer encoded;
+
+    private final OutputStream encoder;
+
+    private int position;
+
+    private boolean finished;
+
+
+    CompressingInputStream(InputStream source, CompressionCodec codec, int bufferSize) throws IOException {
+        this.source = source;
+        this.sourceBuffer = new byte[bufferSize];
+        this.encoded = new DrainableBuffer(bufferSize);
+        this.encoder = codec.encoding(encoded);
+    }
+
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+    }
+
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0)
+            return 0;
+
+        // the codec may keep small inputs to itself, read the source until it gives something out
+        while (position == encoded.size()) {
+            if (finished)
+                return -1;
+
+            encoded.reset();
+            position = 0;
+
+            int bytesRead = source.read(sourceBuffer);
+            if (bytesRead == -1) {
+                // flushes what the codec still holds plus its trailer
+                encoder.close();
+                finished = true;
+            } else {
+                encoder.write(sourceBuffer, 0, bytesRead);
+            }
+        }
+
+        int count = Math.min(length, encoded.size() - position);
+        System.arraycopy(encoded.bytes(), position, bytes, offset, count);
+        position += count;
+        return count;
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        try {
+            source.close();
+        } finally {
+            // releases the native state of the codec
+            if (!finished)
+                encoder.close();
+        }
+    }
+
+
+    // exposes its buffer instead of copying it on every read
+    private static final class DrainableBuffer extends ByteArrayOutputStream {
+
+        DrainableBuffer(int size) {
+            super(size);
+        }
+
+        byte[] bytes() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.pnk.record_management.service;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+
+/*
+ * Codecs records can be stored with, named after the HTTP content coding they produce so that a stored object can be
+ * sent as is to a client accepting it
+ * */
+@Getter
+@RequiredArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public enum CompressionCodec {
+
+    GZIP("gzip") {
+        @Override
+        public OutputStream encoding(OutputStream outputStream) throws IOException {
+            return new GZIPOutputStream(outputStream);
+        }
+
+        @Override
+        public InputStream decoding(InputStream inputStream) throws IOException {
+            return new GZIPInputStream(inputStream);
+        }
+    },
+
+    // zlib format, which is what "deflate" means in HTTP
+    DEFLATE("deflate") {
+        @Override
+        public OutputStream encoding(OutputStream outputStream) {
+            return new DeflaterOutputStream(outputStream);
+        }
+
+        @Override
+        public InputStream decoding(InputStream inputStream) {
+            return new InflaterInputStream(inputStream);
+        }
+    };
+
+    String contentEncoding;
+
+
+    // writes the encoded form of what it is given into outputStream, completed on close
+    public abstract OutputStream encoding(OutputStream outputStream) throws IOException;
+
+    // reads the decoded content of inputStream
+    public abstract InputStream decoding(InputStream inputStream) throws IOException;
+
+
+    // reads the encoded form of inputStream, compressed as it is read
+    public InputStream compressing(InputStream inputStream, int bufferSize) throws IOException {
+        return new CompressingInputStream(inputStream, this, bufferSize);
+    }
+
+
+    // empty for an identity or unknown Content-Encoding
+    public static Optional<CompressionCodec> fromContentEncoding(String contentEncoding) {
+        return Arrays.stream(values())
+                .filter(codec -> codec.contentEncoding.equalsIgnoreCase(contentEncoding))
+                .findFirst();
+    }
+}
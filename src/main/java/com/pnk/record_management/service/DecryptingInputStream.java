@@ -0,0 +1,88 @@
+package com.pnk.record_management.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/*
+ * Pull side of a ChunkDecryptor: reads of the source are pushed through the decryptor, whose plaintext is collected
+ * in a buffer that reads drain. Memory stays at about two chunks whatever the range length.
+ * */
+final class DecryptingInputStream extends InputStream {
+
+    private final InputStream source;
+
+    private final ChunkDecryptor decryptor;
+
+    private final byte[] sourceBuffer;
+
+    private final DrainableBuffer decrypted;
+
+    private int position;
+
+    private boolean finished;
+
+
+    DecryptingInputStream(InputStream source, ChunkDecryptor decryptor, int bufferSize) {
+        this.source = source;
+        this.decryptor = decryptor;
+        this.sourceBuffer = new byte[bufferSize];
+        this.decrypted = new DrainableBuffer(bufferSize);
+    }
+
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+    }
+
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0)
+            return 0;
+
+        // nothing comes out until a whole chunk was read
+        while (position == decrypted.size()) {
+            if (finished)
+                return -1;
+
+            decrypted.reset();
+            position = 0;
+
+            int bytesRead = source.read(sourceBuffer);
+            if (bytesRead == -1) {
+                decryptor.finish();
+                finished = true;
+            } else {
+                decryptor.update(sourceBuffer, 0, bytesRead, decrypted);
+            }
+        }
+
+        int count = Math.min(length, decrypted.size() - position);
+        System.arraycopy(decrypted.bytes(), position, bytes, offset, count);
+        position += count;
+        return count;
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+
+    // exposes its buffer instead of copying it on every read
+    private static final class DrainableBuffer extends ByteArrayOutputStream {
+
+        DrainableBuffer(int size) {
+            super(size);
+        }
+
+        byte[] bytes() {
+            return buf;
+        }
+    }
+}
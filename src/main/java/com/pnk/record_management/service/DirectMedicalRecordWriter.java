@@ -0,0 +1,61 @@
+package com.pnk.record_management.service;
+
+import com.pnk.record_management.entity.MedicalRecord;
+import com.pnk.record_management.exception.AppException;
+import com.pnk.record_management.exception.ErrorCode;
+import com.pnk.record_management.repository.MedicalRecordRepository;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+
+/*
+ * Default writer: the change is saved in MongoDB before the request responds
+ * */
+@Service
+@ConditionalOnProperty(name = "application.record-write.mode", havingValue = "sync", matchIfMissing = true)
+@RequiredArgsConstructor // injected by Constructor, no longer need of @Autowire
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class DirectMedicalRecordWriter implements MedicalRecordWriter {
+
+    MedicalRecordRepository medicalRecordRepository;
+
+
+    @Override
+    public MedicalRecord insert(MedicalRecord medicalRecord) {
+        return medicalRecordRepository.save(medicalRecord);
+    }
+
+
+    @Override
+    public MedicalRecord markUnavailable(String medicalRecordName, String updatedByUser) {
+        return medicalRecordRepository
+                .findAndMarkUnavailable(medicalRecordName, updatedByUser)
+                .orElseThrow(() -> new AppException(ErrorCode.MEDICAL_RECORD_NOT_EXISTING));
+    }
+
+
+    @Override
+    public List<MedicalRecord> insertAll(List<MedicalRecord> medicalRecords) {
+        Set<Integer> failedPositions = medicalRecordRepository.insertUnordered(medicalRecords);
+
+        return IntStream.range(0, medicalRecords.size())
+                .mapToObj(position -> failedPositions.contains(position) ? null : medicalRecords.get(position))
+                .toList();
+    }
+
+
+    @Override
+    public long markAllUnavailable(Collection<String> medicalRecordNames, String updatedByUser) {
+        return medicalRecordRepository.updateS3AvailabilityByMedicalRecordNameIn(
+                medicalRecordNames, false, Instant.now(), updatedByUser);
+    }
+}
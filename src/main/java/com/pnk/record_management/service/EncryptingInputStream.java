@@ -0,0 +1,100 @@
+package com.pnk.record_management.service;
+
+import javax.crypto.Cipher;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+
+
+/*
+ * Encrypts the source while it is read, one chunk at a time: a chunk is sealed once chunkSize bytes were read, or at
+ * the end of the source, which a one-byte lookahead detects so that the final chunk is flagged as such. Memory stays
+ * at two chunks whatever the source length, and the output length is known up front (ChunkedCipher.encryptedLength).
+ * */
+final class EncryptingInputStream extends InputStream {
+
+    private final InputStream source;
+
+    private final ChunkedCipher chunkedCipher;
+
+    private final Cipher cipher;
+
+    private final byte[] plainChunk;
+
+    private final byte[] chunk;
+
+    private int chunkLength;
+
+    private int position;
+
+    private long chunkIndex;
+
+    // first byte of the next chunk, read to find out whether the current one is the final one
+    private int lookahead = -1;
+
+    private boolean finished;
+
+
+    EncryptingInputStream(InputStream source, ChunkedCipher chunkedCipher) {
+        this.source = source;
+        this.chunkedCipher = chunkedCipher;
+        this.cipher = chunkedCipher.newCipher();
+        this.plainChunk = new byte[chunkedCipher.getChunkSize()];
+        this.chunk = new byte[chunkedCipher.getChunkSize() + ChunkedCipher.TAG_LENGTH];
+    }
+
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+    }
+
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0)
+            return 0;
+
+        if (position == chunkLength) {
+            if (finished)
+                return -1;
+            encryptNextChunk();
+        }
+
+        int count = Math.min(length, chunkLength - position);
+        System.arraycopy(chunk, position, bytes, offset, count);
+        position += count;
+        return count;
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+
+    private void encryptNextChunk() throws IOException {
+        int plainLength = 0;
+        if (lookahead != -1) {
+            plainChunk[plainLength++] = (byte) lookahead;
+            lookahead = -1;
+        }
+        plainLength += source.readNBytes(plainChunk, plainLength, plainChunk.length - plainLength);
+
+        if (plainLength == plainChunk.length)
+            lookahead = source.read();
+        finished = lookahead == -1;
+
+        chunkedCipher.initChunk(cipher, Cipher.ENCRYPT_MODE, chunkIndex, finished);
+        try {
+            chunkLength = cipher.doFinal(plainChunk, 0, plainLength, chunk, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot encrypt chunk " + chunkIndex, e);
+        }
+
+        position = 0;
+        chunkIndex++;
+    }
+}
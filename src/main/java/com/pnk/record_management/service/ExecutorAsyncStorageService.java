@@ -0,0 +1,117 @@
+package com.pnk.record_management.service;
+
+import com.pnk.record_management.dto.response.MedicalRecordAsyncDownload;
+import com.pnk.record_management.dto.response.MedicalRecordDownload;
+import com.pnk.record_management.dto.response.MedicalRecordResponse;
+import com.pnk.record_management.dto.response.MedicalRecordS3Metadata;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+
+/*
+ * "sync" engine: the blocking StorageService runs on the storage task executor, which carries the security context
+ * over so that @PreAuthorize and JwtUtils keep working. Frees the request thread but still holds a task thread
+ * (virtual when enabled) per transfer.
+ * */
+@Service
+@ConditionalOnProperty(name = "application.storage.engine", havingValue = "sync", matchIfMissing = true)
+@RequiredArgsConstructor // injected by Constructor, no longer need of @Autowire
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@Slf4j
+public class ExecutorAsyncStorageService implements AsyncStorageService {
+
+    StorageService storageService;
+
+    ExecutorService storageTaskExecutor;
+
+
+    @Override
+    public CompletableFuture<MedicalRecordResponse> uploadFileToS3(MultipartFile file, String patientId) {
+        return CompletableFuture.supplyAsync(
+                () -> storageService.uploadFileToS3(file, patientId), storageTaskExecutor);
+    }
+
+
+    @Override
+    public CompletableFuture<List<MedicalRecordS3Metadata>> searchS3ExactFilename(String searchingWord) {
+        return CompletableFuture.supplyAsync(
+                () -> storageService.searchS3ExactFilename(searchingWord), storageTaskExecutor);
+    }
+
+
+    @Override
+    public CompletableFuture<MedicalRecordAsyncDownload> streamFileFromS3(
+            String fileName, String rangeHeader, String ifRangeHeader, String acceptEncodingHeader) {
+        return CompletableFuture.supplyAsync(
+                () -> toAsyncDownload(
+                        storageService.streamFileFromS3(fileName, rangeHeader, ifRangeHeader, acceptEncodingHeader)),
+                storageTaskExecutor);
+    }
+
+
+    @Override
+    public CompletableFuture<MedicalRecordResponse> deleteFileFromS3(String fileName) {
+        return CompletableFuture.supplyAsync(() -> storageService.deleteFileFromS3(fileName), storageTaskExecutor);
+    }
+
+
+    private MedicalRecordAsyncDownload toAsyncDownload(MedicalRecordDownload download) {
+        return MedicalRecordAsyncDownload.builder()
+                .fileName(download.getFileName())
+                .etag(download.getEtag())
+                .lastModified(download.getLastModified())
+                .contentLength(download.getContentLength())
+                .instanceLength(download.getInstanceLength())
+                .partial(download.isPartial())
+                .rangeStart(download.getRangeStart())
+                .rangeEnd(download.getRangeEnd())
+                .contentEncoding(download.getContentEncoding())
+                .content(emitter -> storageTaskExecutor.execute(() -> {
+                    try {
+                        download.getContent().writeTo(new EmitterOutputStream(emitter));
+                        emitter.complete();
+                    } catch (Exception e) {
+                        log.warn(">> streamFile >> Streaming {} failed: {}", download.getFileName(), e.getMessage());
+                        emitter.completeWithError(e);
+                    }
+                }))
+                .build();
+    }
+
+
+    /*
+     * Every write becomes one chunk of the emitter; StorageServiceImpl writes whole buffers, not single bytes
+     * */
+    private static final class EmitterOutputStream extends OutputStream {
+
+        final ResponseBodyEmitter emitter;
+
+        EmitterOutputStream(ResponseBodyEmitter emitter) {
+            this.emitter = emitter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            emitter.send(new byte[]{(byte) b}, MediaType.APPLICATION_OCTET_STREAM);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            emitter.send(Arrays.copyOfRange(bytes, offset, offset + length), MediaType.APPLICATION_OCTET_STREAM);
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package com.pnk.record_management.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.pnk.record_management.entity.MedicalRecord;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+
+/*
+ * Local journal of the record changes not yet applied to MongoDB: one JSON line per change, forced to disk before the
+ * change is acknowledged. The sequence of the last applied change is kept next to it; the journal is truncated
+ * whenever everything appended has been applied, so it only holds the backlog. Changes are idempotent (upsert by id,
+ * $set by name), so the ones applied again after a crash between applying and recording it are harmless.
+ * Appends and checkpoints are timed (record.file.io, store=outbox), an append sitting on the request path.
+ *
+ * Appends are group committed: each one writes its lines, then one of the appenders waiting forces the journal for
+ * all the lines written since the last force and acknowledges them together. Only ReentrantLocks are held around the
+ * file I/O, a virtual thread blocked on them is unmounted instead of pinning its carrier.
+ *
+ * A refused append (failed write or force) is cut out of the journal again: what the journal holds was acknowledged.
+ * A line that still cannot be parsed on replay is moved to a quarantine file instead of failing the start.
+ * */
+@Slf4j
+class MedicalRecordOutbox implements Closeable {
+
+    static final String JOURNAL_FILE = "outbox.ndjson";
+
+    static final String APPLIED_SEQUENCE_FILE = "applied-sequence";
+
+    static final String QUARANTINE_FILE = "outbox-quarantine.ndjson";
+
+    static final String METRICS_STORE = "outbox";
+
+    private final Path journal;
+
+    private final Path appliedSequenceFile;
+
+    private final Path quarantineFile;
+
+    private final ObjectMapper objectMapper;
+
+    private final StorageMetrics storageMetrics;
+
+    private final FileChannel channel;
+
+    // sequences, journal writes and checkpoints
+    private final ReentrantLock journalLock = new ReentrantLock();
+
+    // one force at a time, held by the appender forcing for the group
+    private final ReentrantLock forceLock = new ReentrantLock();
+
+    // written and not forced yet, in journal order (guarded by journalLock)
+    private List<PendingAppend> unforcedAppends = new ArrayList<>();
+
+    private long lastSequence;
+
+    private long appliedSequence;
+
+    // a partial line could not be cut off the journal, the next append starts a new line (guarded by journalLock)
+    private boolean tornTail;
+
+
+    MedicalRecordOutbox(Path directory, ObjectMapper objectMapper, StorageMetrics storageMetrics) throws IOException {
+        this(directory, objectMapper, storageMetrics, UnaryOperator.identity());
+    }
+
+
+    // channelDecorator wraps the journal channel, to fail its I/O in tests
+    MedicalRecordOutbox(Path directory, ObjectMapper objectMapper, StorageMetrics storageMetrics,
+                        UnaryOperator<FileChannel> channelDecorator) throws IOException {
+        Files.createDirectories(directory);
+        this.journal = directory.resolve(JOURNAL_FILE);
+        this.appliedSequenceFile = directory.resolve(APPLIED_SEQUENCE_FILE);
+        this.quarantineFile = directory.resolve(QUARANTINE_FILE);
+        this.objectMapper = objectMapper;
+        this.storageMetrics = storageMetrics;
+
+        if (Files.exists(appliedSequenceFile))
+            appliedSequence = Long.parseLong(Files.readString(appliedSequenceFile).trim());
+        lastSequence = appliedSequence;
+
+        channel = channelDecorator.apply(
+                FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE));
+        channel.position(channel.size());
+    }
+
+
+    /*
+     * Changes appended by a previous run and not applied, in journal order. A line torn by a crash during its append
+     * was never acknowledged: it is cut off so that the next appends start on a line of their own. Lines that cannot
+     * be parsed, never acknowledged either, are quarantined.
+     * */
+    List<OutboxEntry> readPending() throws IOException {
+        journalLock.lock();
+        try {
+            return readCompleteEntries();
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+
+    private List<OutboxEntry> readCompleteEntries() throws IOException {
+        byte[] content = Files.readAllBytes(journal);
+        int completeLength = content.length;
+        while (completeLength > 0 && content[completeLength - 1] != '\n')
+            completeLength--;
+        if (completeLength < content.length)
+            log.warn(">> readPending >> Torn journal entry of {} bytes dropped", content.length - completeLength);
+        channel.truncate(completeLength);
+        channel.position(completeLength);
+
+        List<OutboxEntry> pendingEntries = new ArrayList<>();
+        for (String line : new String(content, 0, completeLength, StandardCharsets.UTF_8).split("\n")) {
+            if (line.isBlank())
+                continue;
+
+            OutboxEntry entry;
+            try {
+                entry = objectMapper.readValue(line, OutboxEntry.class);
+            } catch (JsonProcessingException e) {
+                log.error(">> readPending >> Unreadable journal entry moved to {}: {}", quarantineFile, e.getMessage());
+                Files.writeString(quarantineFile, line + "\n", StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                continue;
+            }
+            lastSequence = Math.max(lastSequence, entry.sequence());
+            if (entry.sequence() > appliedSequence)
+                pendingEntries.add(entry);
+        }
+
+        return pendingEntries;
+    }
+
+
+    /*
+     * Journals the changes of all the records and hands them to whenDurable once they are forced to disk, before
+     * returning. whenDurable is called in journal order across appends, by whichever appender forced them.
+     * */
+    List<OutboxEntry> append(Operation operation, List<MedicalRecord> medicalRecords,
+                             Consumer<List<OutboxEntry>> whenDurable) throws IOException {
+        PendingAppend pendingAppend = write(operation, medicalRecords, whenDurable);
+
+        forceLock.lock();
+        try {
+            // acknowledged by the force of an appender ahead, otherwise this one forces for the whole group
+            if (!pendingAppend.forced().isDone())
+                forceUnforcedAppends();
+        } finally {
+            forceLock.unlock();
+        }
+
+        try {
+            pendingAppend.forced().join();
+        } catch (CompletionException e) {
+            throw (IOException) e.getCause();
+        }
+        return pendingAppend.entries();
+    }
+
+
+    private PendingAppend write(Operation operation, List<MedicalRecord> medicalRecords,
+                                Consumer<List<OutboxEntry>> whenDurable) throws IOException {
+        journalLock.lock();
+        try {
+            List<OutboxEntry> entries = new ArrayList<>(medicalRecords.size());
+            ByteArrayOutputStream lines = new ByteArrayOutputStream();
+            if (tornTail)
+                lines.write('\n');
+            for (MedicalRecord medicalRecord : medicalRecords) {
+                OutboxEntry entry = new OutboxEntry(lastSequence + entries.size() + 1, operation, medicalRecord);
+                lines.write(toLine(entry));
+                entries.add(entry);
+            }
+
+            ByteBuffer content = ByteBuffer.wrap(lines.toByteArray());
+            long position = channel.position();
+            long startedAt = System.nanoTime();
+            boolean written = false;
+            try {
+                while (content.hasRemaining())
+                    channel.write(content);
+                written = true;
+                tornTail = false;
+            } catch (IOException e) {
+                // e.g. a full disk: the part written would merge with the next line
+                cutJournal(position);
+                throw e;
+            } finally {
+                storageMetrics.recordFileIo(METRICS_STORE, "append", written, System.nanoTime() - startedAt,
+                        content.position());
+            }
+
+            lastSequence += entries.size();
+            PendingAppend pendingAppend = new PendingAppend(entries, position, whenDurable, new CompletableFuture<>());
+            unforcedAppends.add(pendingAppend);
+            return pendingAppend;
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+
+    /*
+     * Called holding forceLock. Appends written meanwhile wait for the next force; when the force fails, the appends
+     * it covered fail together with the ones written behind them, and their lines are cut out of the journal: none of
+     * them is ever applied, as their appenders are told.
+     * */
+    private void forceUnforcedAppends() {
+        List<PendingAppend> group;
+        journalLock.lock();
+        try {
+            group = unforcedAppends;
+            unforcedAppends = new ArrayList<>();
+        } finally {
+            journalLock.unlock();
+        }
+
+        long startedAt = System.nanoTime();
+        boolean forced = false;
+        try {
+            channel.force(false);
+            forced = true;
+        } catch (IOException e) {
+            rollBack(group, e);
+            return;
+        } finally {
+            storageMetrics.recordFileIo(METRICS_STORE, "force", forced, System.nanoTime() - startedAt, 0);
+        }
+
+        for (PendingAppend pendingAppend : group) {
+            pendingAppend.whenDurable().accept(pendingAppend.entries());
+            pendingAppend.forced().complete(null);
+        }
+    }
+
+
+    private void rollBack(List<PendingAppend> group, IOException cause) {
+        List<PendingAppend> refusedAppends = new ArrayList<>(group);
+        journalLock.lock();
+        try {
+            refusedAppends.addAll(unforcedAppends);
+            unforcedAppends = new ArrayList<>();
+
+            PendingAppend first = group.get(0);
+            if (cutJournal(first.position()))
+                lastSequence = first.entries().get(0).sequence() - 1;
+            else
+                log.error(">> append >> {} refused appends left in the journal, the next run applies them",
+                        refusedAppends.size());
+        } finally {
+            journalLock.unlock();
+        }
+
+        refusedAppends.forEach(pendingAppend -> pendingAppend.forced().completeExceptionally(cause));
+    }
+
+
+    // called holding journalLock, drops what was written from position on; false when the journal cannot be cut
+    private boolean cutJournal(long position) {
+        try {
+            channel.truncate(position);
+            channel.position(position);
+            return true;
+        } catch (IOException e) {
+            log.error(">> append >> Cannot cut the journal back to {}", position, e);
+            tornTail = true;
+            return false;
+        }
+    }
+
+
+    void markApplied(long sequence) throws IOException {
+        journalLock.lock();
+        try {
+            checkpoint(sequence);
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+
+    private void checkpoint(long sequence) throws IOException {
+        appliedSequence = sequence;
+
+        String content = Long.toString(sequence);
+        long startedAt = System.nanoTime();
+        boolean recorded = false;
+        try {
+            Path temporaryFile = appliedSequenceFile.resolveSibling(APPLIED_SEQUENCE_FILE + ".tmp");
+            Files.writeString(temporaryFile, content);
+            Files.move(temporaryFile, appliedSequenceFile,
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            if (appliedSequence == lastSequence) {
+                channel.truncate(0);
+                channel.position(0);
+            }
+            recorded = true;
+        } finally {
+            storageMetrics.recordFileIo(METRICS_STORE, "checkpoint", recorded, System.nanoTime() - startedAt,
+                    content.length());
+        }
+    }
+
+
+    long backlog() {
+        journalLock.lock();
+        try {
+            return lastSequence - appliedSequence;
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        journalLock.lock();
+        try {
+            channel.close();
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+
+    private byte[] toLine(OutboxEntry entry) throws JsonProcessingException {
+        byte[] json = objectMapper.writeValueAsBytes(entry);
+        byte[] line = new byte[json.length + 1];
+        System.arraycopy(json, 0, line, 0, json.length);
+        line[json.length] = '\n';
+        return line;
+    }
+
+
+    enum Operation {
+        // the whole record, upserted by id
+        INSERT,
+        // medicalRecordName, latestUpdateDateTime and updatedByUser of a record flagged as deleted from S3
+        MARK_UNAVAILABLE
+    }
+
+
+    record OutboxEntry(long sequence, Operation operation, MedicalRecord medicalRecord) {
+    }
+
+
+    // position: where its lines start in the journal
+    private record PendingAppend(List<OutboxEntry> entries, long position, Consumer<List<OutboxEntry>> whenDurable,
+                                 CompletableFuture<Void> forced) {
+    }
+}
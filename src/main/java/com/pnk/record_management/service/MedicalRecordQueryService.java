@@ -0,0 +1,14 @@
+package com.pnk.record_management.service;
+
+import com.pnk.record_management.dto.request.MedicalRecordQueryRequest;
+import com.pnk.record_management.dto.response.MedicalRecordResponse;
+import com.pnk.record_management.dto.response.PageResponse;
+import org.springframework.stereotype.Repository;
+
+
+@Repository
+public interface MedicalRecordQueryService {
+
+    PageResponse<MedicalRecordResponse> queryRecords(MedicalRecordQueryRequest queryRequest, int limit, String cursor);
+
+}
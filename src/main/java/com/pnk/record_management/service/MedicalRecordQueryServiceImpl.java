@@ -0,0 +1,147 @@
+package com.pnk.record_management.service;
+
+import com.pnk.record_management.dto.request.MedicalRecordQueryRequest;
+import com.pnk.record_management.dto.response.MedicalRecordResponse;
+import com.pnk.record_management.dto.response.PageResponse;
+import com.pnk.record_management.entity.MedicalRecord;
+import com.pnk.record_management.exception.AppException;
+import com.pnk.record_management.exception.ErrorCode;
+import com.pnk.record_management.mapper.MedicalRecordMapper;
+import com.pnk.record_management.utils.CursorUtils;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/*
+ * Record discovery served from the medical-record collection instead of S3 listings. Pages are read newest first
+ * with keyset pagination on (creationDateTime, id): the cursor holds the last returned pair and the next page
+ * starts strictly after it, so a page costs the same whatever its depth, unlike skip/limit.
+ * */
+@Service
+@RequiredArgsConstructor // injected by Constructor, no longer need of @Autowire
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@Slf4j
+public class MedicalRecordQueryServiceImpl implements MedicalRecordQueryService {
+
+    // fields read from MongoDB, the embedded S3 metadata is left out: S3 stays the source of truth for it
+    static final String[] PROJECTED_FIELDS = {"id", "medicalRecordName", "patientId", "creationDateTime",
+            "latestUpdateDateTime", "s3Availability", "updatedByUser", "contentKey"};
+
+    static final String CURSOR_SEPARATOR = "|";
+
+    MongoTemplate mongoTemplate;
+
+    MedicalRecordMapper medicalRecordMapper;
+
+    @NonFinal
+    @Value("${application.search.page.max-limit}")
+    int pageMaxLimit;
+
+
+    @Override
+    public PageResponse<MedicalRecordResponse> queryRecords(MedicalRecordQueryRequest queryRequest, int limit,
+                                                            String cursor) {
+        if (limit < 1 || limit > pageMaxLimit)
+            throw new AppException(ErrorCode.INVALID_PAGINATION);
+
+        List<Criteria> criteria = buildFilterCriteria(queryRequest);
+        String position = CursorUtils.decode(cursor);
+        if (position != null)
+            criteria.add(afterPosition(position));
+
+        Query query = new Query()
+                .with(Sort.by(Sort.Direction.DESC, "creationDateTime", "id"))
+                // one more than the page to know whether another page follows
+                .limit(limit + 1);
+        if (!criteria.isEmpty())
+            query.addCriteria(new Criteria().andOperator(criteria));
+        query.fields().include(PROJECTED_FIELDS);
+
+        List<MedicalRecord> medicalRecords = mongoTemplate.find(query, MedicalRecord.class);
+
+        boolean hasNextPage = medicalRecords.size() > limit;
+        List<MedicalRecordResponse> items = medicalRecords.stream()
+                .limit(limit)
+                .map(medicalRecordMapper::toMedicalRecordResponse)
+                .toList();
+
+        log.info(">> queryRecords >> {} records, next page: {}", items.size(), hasNextPage);
+
+        String nextCursor = null;
+        if (hasNextPage) {
+            MedicalRecordResponse last = items.get(items.size() - 1);
+            nextCursor = CursorUtils.encode(last.getCreationDateTime() + CURSOR_SEPARATOR + last.getId());
+        }
+
+        return PageResponse.<MedicalRecordResponse>builder()
+                .items(items)
+                .nextCursor(nextCursor)
+                .build();
+    }
+
+
+    private static List<Criteria> buildFilterCriteria(MedicalRecordQueryRequest queryRequest) {
+        List<Criteria> criteria = new ArrayList<>();
+
+        if (queryRequest.getPatientId() != null)
+            criteria.add(Criteria.where("patientId").is(queryRequest.getPatientId()));
+        if (queryRequest.getUpdatedByUser() != null)
+            criteria.add(Criteria.where("updatedByUser").is(queryRequest.getUpdatedByUser()));
+        if (queryRequest.getS3Availability() != null)
+            criteria.add(Criteria.where("s3Availability").is(queryRequest.getS3Availability()));
+
+        addRange(criteria, "creationDateTime", queryRequest.getCreatedFrom(), queryRequest.getCreatedTo());
+        addRange(criteria, "latestUpdateDateTime", queryRequest.getUpdatedFrom(), queryRequest.getUpdatedTo());
+
+        return criteria;
+    }
+
+
+    private static void addRange(List<Criteria> criteria, String field, Instant from, Instant to) {
+        if (from != null && to != null && !from.isBefore(to))
+            throw new AppException(ErrorCode.INVALID_TIME_RANGE);
+
+        if (from != null)
+            criteria.add(Criteria.where(field).gte(from));
+        if (to != null)
+            criteria.add(Criteria.where(field).lt(to));
+    }
+
+
+    /*
+     * Records sorted after the (creationDateTime, id) position of the cursor in descending order
+     * */
+    private static Criteria afterPosition(String position) {
+        int separatorIndex = position.lastIndexOf(CURSOR_SEPARATOR);
+        if (separatorIndex < 1 || separatorIndex == position.length() - 1)
+            throw new AppException(ErrorCode.INVALID_PAGINATION);
+
+        Instant creationDateTime;
+        try {
+            creationDateTime = Instant.parse(position.substring(0, separatorIndex));
+        } catch (DateTimeParseException e) {
+            throw new AppException(ErrorCode.INVALID_PAGINATION);
+        }
+        String id = position.substring(separatorIndex + 1);
+
+        return new Criteria().orOperator(
+                Criteria.where("creationDateTime").lt(creationDateTime),
+                new Criteria().andOperator(
+                        Criteria.where("creationDateTime").is(creationDateTime),
+                        Criteria.where("id").lt(id)));
+    }
+}
@@ -0,0 +1,29 @@
+package com.pnk.record_management.service;
+
+import com.pnk.record_management.entity.MedicalRecord;
+
+import java.util.Collection;
+import java.util.List;
+
+
+/*
+ * Persistence of the record changes made by uploads and deletes, single or batched, selected by
+ * application.record-write.mode. Every record change goes through it, so that a write-behind writer applies them all in
+ * the order they were made.
+ * */
+public interface MedicalRecordWriter {
+
+    MedicalRecord insert(MedicalRecord medicalRecord);
+
+    MedicalRecord markUnavailable(String medicalRecordName, String updatedByUser);
+
+    /*
+     * A single bulk insert, the records are returned in the same order with null in place of those that could not be
+     * inserted; throws when the outcome of the records is not known one by one
+     * */
+    List<MedicalRecord> insertAll(List<MedicalRecord> medicalRecords);
+
+    // a single change for all the records of these names; the number of records changed, or of changes queued
+    long markAllUnavailable(Collection<String> medicalRecordNames, String updatedByUser);
+
+}
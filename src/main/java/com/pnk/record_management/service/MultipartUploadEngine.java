@@ -0,0 +1,231 @@
+package com.pnk.record_management.service;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import com.pnk.record_management.dto.response.MedicalRecordS3Metadata;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/*
+ * Uploads a stream of any length to S3 as a multipart upload whose parts are sent concurrently.
+ * The stream is cut into part-size buffers; at most `parallelism` buffers exist at once, so memory per upload is
+ * bounded by parallelism x part-size whatever the file size. Incomplete uploads are aborted on failure
+ * (a bucket lifecycle rule AbortIncompleteMultipartUpload still covers crashes of the service itself).
+ * */
+@Component
+@RequiredArgsConstructor // injected by Constructor, no longer need of @Autowire
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@Slf4j
+public class MultipartUploadEngine {
+
+    // S3 rejects parts smaller than 5MB, except for the last one
+    static final long MIN_PART_SIZE = DataSize.ofMegabytes(5).toBytes();
+
+    AmazonS3 s3Client;
+
+    S3MetadataResolver s3MetadataResolver;
+
+    ExecutorService storageTaskExecutor;
+
+    @NonFinal
+    @Value("${application.bucket.name}")
+    String bucketName;
+
+    @NonFinal
+    @Value("${application.upload.multipart.part-size}")
+    DataSize partSize;
+
+    @NonFinal
+    @Value("${application.upload.multipart.parallelism}")
+    int parallelism;
+
+
+    /*
+     * objectMetadata carries the content type and user metadata; its content length is ignored, the stream is read
+     * until EOF. A stream shorter than one part is sent with a single putObject instead.
+     * */
+    public MedicalRecordS3Metadata upload(String key, InputStream inputStream, ObjectMetadata objectMetadata)
+            throws IOException {
+        int partLength = (int) Math.max(partSize.toBytes(), MIN_PART_SIZE);
+        PartBufferPool bufferPool = new PartBufferPool(partLength, Math.max(1, parallelism));
+
+        byte[] firstBuffer = bufferPool.take();
+        int firstFilled = readFully(inputStream, firstBuffer);
+
+        if (firstFilled < partLength) {
+            log.info(">> upload >> {} fits in a single part ({} bytes), using putObject", key, firstFilled);
+            objectMetadata.setContentLength(firstFilled);
+            PutObjectResult putObjectResult = s3Client.putObject(new PutObjectRequest(
+                    bucketName, key, new ByteArrayInputStream(firstBuffer, 0, firstFilled), objectMetadata));
+            return s3MetadataResolver.fromPutObjectResult(key, firstFilled, putObjectResult);
+        }
+
+        String uploadId = s3Client
+                .initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, key, objectMetadata))
+                .getUploadId();
+        log.info(">> upload >> Started multipart upload {} of {}, part size {}", uploadId, key, partLength);
+
+        List<Future<PartETag>> partFutures = new ArrayList<>();
+        AtomicReference<Exception> partFailure = new AtomicReference<>();
+        long totalSize = 0;
+        try {
+            byte[] buffer = firstBuffer;
+            int filled = firstFilled;
+            int partNumber = 1;
+
+            while (filled > 0) {
+                partFutures.add(submitPart(key, uploadId, partNumber++, buffer, filled, bufferPool, partFailure));
+                totalSize += filled;
+
+                if (filled < partLength)
+                    break;
+
+                // blocks while `parallelism` parts are still in flight
+                buffer = bufferPool.take();
+
+                // stop reading the rest of the stream as soon as one part has failed
+                if (partFailure.get() != null) {
+                    bufferPool.release(buffer);
+                    throw partFailure.get();
+                }
+
+                filled = readFully(inputStream, buffer);
+                if (filled == 0)
+                    bufferPool.release(buffer);
+            }
+
+            List<PartETag> partETags = new ArrayList<>(partFutures.size());
+            for (Future<PartETag> partFuture : partFutures)
+                partETags.add(partFuture.get());
+
+            CompleteMultipartUploadResult completeResult = s3Client.completeMultipartUpload(
+                    new CompleteMultipartUploadRequest(bucketName, key, uploadId, partETags));
+
+            log.info(">> upload >> Completed multipart upload of {} in {} parts, {} bytes",
+                    key, partETags.size(), totalSize);
+
+            return s3MetadataResolver.fromCompleteMultipartUploadResult(key, totalSize, completeResult);
+        } catch (Exception e) {
+            abort(key, uploadId, partFutures);
+
+            if (e instanceof InterruptedException)
+                Thread.currentThread().interrupt();
+            if (e instanceof ExecutionException && e.getCause() instanceof RuntimeException cause)
+                throw cause;
+            if (e instanceof IOException ioException)
+                throw ioException;
+            if (e instanceof RuntimeException runtimeException)
+                throw runtimeException;
+            throw new IOException("Multipart upload of " + key + " failed", e);
+        }
+    }
+
+
+    private Future<PartETag> submitPart(String key, String uploadId, int partNumber, byte[] buffer, int length,
+                                        PartBufferPool bufferPool, AtomicReference<Exception> partFailure) {
+        return storageTaskExecutor.submit(() -> {
+            try {
+                UploadPartRequest uploadPartRequest = new UploadPartRequest()
+                        .withBucketName(bucketName)
+                        .withKey(key)
+                        .withUploadId(uploadId)
+                        .withPartNumber(partNumber)
+                        .withPartSize(length)
+                        .withInputStream(new ByteArrayInputStream(buffer, 0, length));
+
+                return s3Client.uploadPart(uploadPartRequest).getPartETag();
+            } catch (Exception e) {
+                partFailure.compareAndSet(null, e);
+                throw e;
+            } finally {
+                bufferPool.release(buffer);
+            }
+        });
+    }
+
+
+    private void abort(String key, String uploadId, List<Future<PartETag>> partFutures) {
+        partFutures.forEach(partFuture -> partFuture.cancel(true));
+        try {
+            s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+            log.warn(">> abort >> Aborted multipart upload {} of {}", uploadId, key);
+        } catch (Exception e) {
+            log.error(">> abort >> Failed to abort multipart upload {} of {}", uploadId, key, e);
+        }
+    }
+
+
+    // read until the buffer is full or the stream ends, returns the number of bytes read
+    private static int readFully(InputStream inputStream, byte[] buffer) throws IOException {
+        int filled = 0;
+        while (filled < buffer.length) {
+            int bytesRead = inputStream.read(buffer, filled, buffer.length - filled);
+            if (bytesRead == -1)
+                break;
+            filled += bytesRead;
+        }
+        return filled;
+    }
+
+
+    /*
+     * Part buffers of one upload, allocated lazily and recycled: taking a buffer blocks once all of them are in use
+     * */
+    private static final class PartBufferPool {
+
+        final int bufferLength;
+
+        final int capacity;
+
+        final BlockingQueue<byte[]> freeBuffers;
+
+        int allocated;
+
+
+        PartBufferPool(int bufferLength, int capacity) {
+            this.bufferLength = bufferLength;
+            this.capacity = capacity;
+            this.freeBuffers = new ArrayBlockingQueue<>(capacity);
+        }
+
+
+        byte[] take() throws InterruptedIOException {
+            byte[] buffer = freeBuffers.poll();
+            if (buffer != null)
+                return buffer;
+
+            if (allocated < capacity) {
+                allocated++;
+                return new byte[bufferLength];
+            }
+
+            try {
+                return freeBuffers.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a free part buffer");
+            }
+        }
+
+
+        void release(byte[] buffer) {
+            freeBuffers.offer(buffer);
+        }
+    }
+}
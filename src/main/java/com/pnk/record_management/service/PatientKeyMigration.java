@@ -0,0 +1,176 @@
+package com.pnk.record_management.service;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.pnk.record_management.dto.response.KeyMigrationReport;
+import com.pnk.record_management.entity.MedicalRecord;
+import com.pnk.record_management.repository.MedicalRecordRepository;
+import com.pnk.record_management.utils.RecordKeyUtils;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+
+/*
+ * One-off tool moving the objects of the old key layout under their patient prefix, run at startup when
+ * application.key-migration.enabled is set. Each object is copied to its new key, its record is pointed to the new
+ * key and only then the old object is deleted, so that an interrupted run can simply be started again: the old object
+ * of a record already pointed to its new key, left behind by a run stopped before the delete, is deleted then.
+ * Records without a valid patientId (the old placeholder) are left untouched and counted as skipped.
+ * */
+@Component
+@ConditionalOnProperty(name = "application.key-migration.enabled", havingValue = "true")
+@RequiredArgsConstructor // injected by Constructor, no longer need of @Autowire
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@Slf4j
+public class PatientKeyMigration implements ApplicationRunner {
+
+    static final String MIGRATION_USER = "key-migration";
+
+    MedicalRecordRepository medicalRecordRepository;
+
+    AmazonS3 s3Client;
+
+    S3KeyIndex s3KeyIndex;
+
+    S3MetadataCache s3MetadataCache;
+
+    RecordContentCache recordContentCache;
+
+    ExecutorService storageTaskExecutor;
+
+    @NonFinal
+    @Value("${application.bucket.name}")
+    String bucketName;
+
+    @NonFinal
+    @Value("${application.key-migration.parallelism}")
+    int parallelism;
+
+
+    @Override
+    public void run(ApplicationArguments args) {
+        migrate();
+    }
+
+
+    public KeyMigrationReport migrate() {
+        long startedAt = System.nanoTime();
+        LongAdder migrated = new LongAdder();
+        LongAdder alreadyMigrated = new LongAdder();
+        LongAdder skipped = new LongAdder();
+        LongAdder failed = new LongAdder();
+
+        Semaphore permits = new Semaphore(parallelism);
+        List<Future<?>> migrations = new ArrayList<>();
+
+        try (Stream<MedicalRecord> medicalRecords = medicalRecordRepository.streamByS3AvailabilityTrue()) {
+            for (MedicalRecord medicalRecord : (Iterable<MedicalRecord>) medicalRecords::iterator) {
+                if (!RecordKeyUtils.isValidPatientId(medicalRecord.getPatientId())) {
+                    skipped.increment();
+                    continue;
+                }
+                boolean isMigrated = medicalRecord.getMedicalRecordName()
+                        .startsWith(RecordKeyUtils.patientKeyPrefix(medicalRecord.getPatientId()));
+
+                permits.acquire();
+                migrations.add(storageTaskExecutor.submit(() -> {
+                    try {
+                        if (isMigrated) {
+                            deleteLeftover(medicalRecord);
+                            alreadyMigrated.increment();
+                        } else {
+                            migrateRecord(medicalRecord);
+                            migrated.increment();
+                        }
+                    } catch (Exception e) {
+                        log.error(">> migrate >> Cannot move {}", medicalRecord.getMedicalRecordName(), e);
+                        failed.increment();
+                    } finally {
+                        permits.release();
+                    }
+                }));
+            }
+
+            for (Future<?> migration : migrations)
+                migration.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            migrations.forEach(migration -> migration.cancel(true));
+        } catch (ExecutionException e) {
+            // the tasks catch their own failures
+            log.error(">> migrate >> Unexpected migration failure", e.getCause());
+        }
+
+        KeyMigrationReport report = KeyMigrationReport.builder()
+                .migrated(migrated.sum())
+                .alreadyMigrated(alreadyMigrated.sum())
+                .skipped(skipped.sum())
+                .failed(failed.sum())
+                .build();
+        log.info(">> migrate >> {} in {} ms", report, (System.nanoTime() - startedAt) / 1_000_000);
+        return report;
+    }
+
+
+    private void migrateRecord(MedicalRecord medicalRecord) {
+        String oldKey = medicalRecord.getMedicalRecordName();
+        String newKey = RecordKeyUtils.patientKeyPrefix(medicalRecord.getPatientId()) + oldKey;
+
+        // server-side copy, the content does not go through this service
+        s3Client.copyObject(bucketName, oldKey, bucketName, newKey);
+
+        if (medicalRecordRepository.findAndRename(medicalRecord, newKey, MIGRATION_USER).isEmpty()) {
+            // changed (e.g. deleted) since it was read: the old key stays in use, the copy is dropped
+            s3Client.deleteObject(bucketName, newKey);
+            throw new OptimisticLockingFailureException("Record of " + oldKey + " changed during its migration");
+        }
+
+        s3Client.deleteObject(bucketName, oldKey);
+
+        s3MetadataCache.invalidate(oldKey);
+        recordContentCache.invalidate(oldKey);
+        s3KeyIndex.remove(oldKey);
+        if (s3KeyIndex.isBuilt())
+            s3MetadataCache.resolve(newKey).ifPresent(s3KeyIndex::add);
+
+        log.info(">> migrateRecord >> {} -> {}", oldKey, newKey);
+    }
+
+
+    // the old object of a migrated record, still there when a run stopped between the rename and the delete
+    private void deleteLeftover(MedicalRecord medicalRecord) {
+        String newKey = medicalRecord.getMedicalRecordName();
+        String oldKey = newKey.substring(RecordKeyUtils.patientKeyPrefix(medicalRecord.getPatientId()).length());
+
+        if (!s3Client.doesObjectExist(bucketName, oldKey))
+            return;
+        // never the object of another record, in case one was named like that
+        if (medicalRecordRepository.findByMedicalRecordName(oldKey).isPresent())
+            return;
+
+        s3Client.deleteObject(bucketName, oldKey);
+
+        s3MetadataCache.invalidate(oldKey);
+        recordContentCache.invalidate(oldKey);
+        s3KeyIndex.remove(oldKey);
+
+        log.info(">> deleteLeftover >> {} of {}", oldKey, newKey);
+    }
+}
@@ -0,0 +1,14 @@
+package com.pnk.record_management.service;
+
+import com.pnk.record_management.dto.response.MedicalRecordResponse;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+
+@Repository
+public interface PatientService {
+
+    List<MedicalRecordResponse> getPatientFiles(String patientId);
+
+}
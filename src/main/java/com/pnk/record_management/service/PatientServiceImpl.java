@@ -0,0 +1,115 @@
+package com.pnk.record_management.service;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.pnk.record_management.dto.response.MedicalRecordResponse;
+import com.pnk.record_management.dto.response.MedicalRecordS3Metadata;
+import com.pnk.record_management.entity.MedicalRecord;
+import com.pnk.record_management.mapper.MedicalRecordMapper;
+import com.pnk.record_management.repository.MedicalRecordRepository;
+import com.pnk.record_management.utils.RecordKeyUtils;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+
+
+@Service
+@RequiredArgsConstructor // injected by Constructor, no longer need of @Autowire
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@Slf4j
+public class PatientServiceImpl implements PatientService {
+
+    MedicalRecordRepository medicalRecordRepository;
+
+    AmazonS3 s3Client;
+
+    ExecutorService storageTaskExecutor;
+
+    MedicalRecordMapper medicalRecordMapper;
+
+    @NonFinal
+    @Value("${application.bucket.name}")
+    String bucketName;
+
+
+    /*
+     * Records of one patient: the patientId index of MongoDB gives the records, a listing restricted to the
+     * patient's key prefix gives their S3 metadata. Both run concurrently and only touch this patient's data.
+     * A record sharing the object of an identical upload gets the metadata of that object.
+     * */
+    @Override
+    public List<MedicalRecordResponse> getPatientFiles(String patientId) {
+        String keyPrefix = RecordKeyUtils.patientKeyPrefix(patientId);
+
+        CompletableFuture<Map<String, MedicalRecordS3Metadata>> s3Listing =
+                CompletableFuture.supplyAsync(() -> listS3ObjectsByPrefix(keyPrefix), storageTaskExecutor);
+
+        List<MedicalRecord> medicalRecords =
+                medicalRecordRepository.findByPatientIdAndS3AvailabilityTrueOrderByCreationDateTimeDesc(patientId);
+
+        Map<String, MedicalRecordS3Metadata> s3MetadataByKey;
+        try {
+            s3MetadataByKey = s3Listing.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException runtimeException ? runtimeException : e;
+        }
+
+        List<MedicalRecordResponse> patientFiles = new ArrayList<>(medicalRecords.size());
+        for (MedicalRecord medicalRecord : medicalRecords) {
+            // a record sharing the object of an identical upload has none of its own, the shared object is listed
+            // under the same patient prefix
+            String objectKey = medicalRecord.getContentKey() != null
+                    ? medicalRecord.getContentKey()
+                    : medicalRecord.getMedicalRecordName();
+            MedicalRecordS3Metadata s3Metadata = s3MetadataByKey.get(objectKey);
+            if (s3Metadata == null) {
+                // recorded as available but gone from the bucket, or still under a key of the old layout
+                log.warn(">> getPatientFiles >> {} of patient {} is not under the patient prefix in S3",
+                        objectKey, patientId);
+                continue;
+            }
+
+            MedicalRecordResponse medicalRecordResponse = medicalRecordMapper.toMedicalRecordResponse(medicalRecord);
+            medicalRecordResponse.setMedicalRecordS3Metadata(s3Metadata);
+            patientFiles.add(medicalRecordResponse);
+        }
+
+        log.info(">> getPatientFiles >> {} records, {} objects for patient {}",
+                medicalRecords.size(), s3MetadataByKey.size(), patientId);
+        return patientFiles;
+    }
+
+
+    private Map<String, MedicalRecordS3Metadata> listS3ObjectsByPrefix(String keyPrefix) {
+        ListObjectsV2Request request = new ListObjectsV2Request()
+                .withBucketName(bucketName)
+                .withPrefix(keyPrefix);
+        Map<String, MedicalRecordS3Metadata> s3MetadataByKey = new HashMap<>();
+        ListObjectsV2Result result;
+
+        do {
+            result = s3Client.listObjectsV2(request);
+
+            for (S3ObjectSummary summary : result.getObjectSummaries())
+                s3MetadataByKey.put(summary.getKey(), medicalRecordMapper.toMedicalRecordS3Metadata(summary));
+
+            request.setContinuationToken(result.getNextContinuationToken());
+        } while (result.isTruncated());
+
+        return s3MetadataByKey;
+    }
+}
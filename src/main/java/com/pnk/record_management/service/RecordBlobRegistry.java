@@ -0,0 +1,198 @@
+package com.pnk.record_management.service;
+
+import com.pnk.record_management.entity.RecordBlob;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+
+/*
+ * Content-addressed deduplication of uploads, turned on with application.deduplication.enabled. An upload whose
+ * SHA-256 matches an object already stored for the same patient gets a record referencing that object instead of a
+ * second copy. The references of each shared object are counted in its RecordBlob: a release removes one, and only
+ * the release of the last one lets the object be deleted. Every change is a single atomic update, and releasing a
+ * record twice changes nothing, so concurrent uploads and deletes never lose a reference.
+ * Lookups and releases also run while deduplication is off, so that objects shared earlier are still honoured.
+ * */
+@Component
+@RequiredArgsConstructor // injected by Constructor, no longer need of @Autowire
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@Slf4j
+public class RecordBlobRegistry {
+
+    static final int MAX_KEYS_PER_QUERY = 1000;
+
+    MongoTemplate mongoTemplate;
+
+    @NonFinal
+    @Value("${application.deduplication.enabled}")
+    boolean enabled;
+
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+
+    /*
+     * Adds recordName to the references of the object holding this content for the patient; empty when there is
+     * none, or when its last reference is being released (the object is about to be deleted)
+     * */
+    public Optional<String> acquire(String patientId, String sha256, String recordName) {
+        Query query = new Query(Criteria.where("patientId").is(patientId)
+                .and("sha256").is(sha256)
+                .and("references.0").exists(true));
+        query.fields().include("id");
+
+        return Optional.ofNullable(mongoTemplate.findAndModify(
+                        query, new Update().addToSet("references", recordName), RecordBlob.class))
+                .map(RecordBlob::getId);
+    }
+
+
+    /*
+     * Tracks a newly stored object, referenced by its own record. An identical upload of the same patient stored
+     * meanwhile keeps the content: this object then stays untracked and is deleted along with its record.
+     * */
+    public void register(String objectKey, String patientId, String sha256) {
+        try {
+            mongoTemplate.insert(RecordBlob.builder()
+                    .id(objectKey)
+                    .patientId(patientId)
+                    .sha256(sha256)
+                    .references(List.of(objectKey))
+                    .creationDateTime(Instant.now())
+                    .build());
+        } catch (DuplicateKeyException e) {
+            log.warn(">> register >> Content of {} stored concurrently, the object is not shared", objectKey);
+        }
+    }
+
+
+    /*
+     * Key of the shared object serving recordName: the object it references, or its own object while other records
+     * still reference it. Empty for a record whose object is not shared.
+     * */
+    public Optional<String> findObjectKey(String recordName) {
+        return Optional.ofNullable(findObjectKeys(List.of(recordName)).get(recordName));
+    }
+
+
+    // findObjectKey of many records with a single query, only the records of shared objects are mapped
+    public Map<String, String> findObjectKeys(Collection<String> recordNames) {
+        Query query = new Query(new Criteria().orOperator(
+                Criteria.where("id").in(recordNames),
+                Criteria.where("references").in(recordNames)));
+        query.fields().include("id", "references");
+
+        Set<String> requestedNames = new HashSet<>(recordNames);
+        Map<String, String> objectKeys = new HashMap<>();
+        for (RecordBlob recordBlob : mongoTemplate.find(query, RecordBlob.class)) {
+            objectKeys.put(recordBlob.getId(), recordBlob.getId());
+            for (String reference : recordBlob.getReferences()) {
+                if (requestedNames.contains(reference))
+                    objectKeys.put(reference, recordBlob.getId());
+            }
+        }
+
+        return objectKeys;
+    }
+
+
+    /*
+     * True when objectKey is a shared object whose own record was deleted while other records still reference it: the
+     * object then only serves those records, never its own (deleted) name
+     * */
+    public boolean isReleased(String objectKey) {
+        return !findReleasedObjectKeys(List.of(objectKey)).isEmpty();
+    }
+
+
+    // the released objects among objectKeys, see isReleased; one query per thousand keys
+    public Set<String> findReleasedObjectKeys(Collection<String> objectKeys) {
+        List<String> distinctKeys = List.copyOf(new HashSet<>(objectKeys));
+        Set<String> releasedKeys = new HashSet<>();
+
+        for (int from = 0; from < distinctKeys.size(); from += MAX_KEYS_PER_QUERY) {
+            Query query = new Query(Criteria.where("id")
+                    .in(distinctKeys.subList(from, Math.min(from + MAX_KEYS_PER_QUERY, distinctKeys.size()))));
+            query.fields().include("id", "references");
+
+            for (RecordBlob recordBlob : mongoTemplate.find(query, RecordBlob.class)) {
+                if (!recordBlob.getReferences().contains(recordBlob.getId()))
+                    releasedKeys.add(recordBlob.getId());
+            }
+        }
+
+        return releasedKeys;
+    }
+
+
+    /*
+     * Removes recordName from the references of the object; true when none is left (or the object is not shared),
+     * the object can then be deleted
+     * */
+    public boolean release(String objectKey, String recordName) {
+        RecordBlob recordBlob = mongoTemplate.findAndModify(
+                new Query(Criteria.where("id").is(objectKey)),
+                new Update().pull("references", recordName),
+                FindAndModifyOptions.options().returnNew(true),
+                RecordBlob.class);
+
+        if (recordBlob == null)
+            return true;
+        if (!recordBlob.getReferences().isEmpty()) {
+            log.info(">> release >> {} released, {} still referenced by {} records",
+                    recordName, objectKey, recordBlob.getReferences().size());
+            return false;
+        }
+
+        // nothing can reference an object without references any more, see acquire
+        mongoTemplate.remove(new Query(Criteria.where("id").is(objectKey).and("references").size(0)), RecordBlob.class);
+        return true;
+    }
+
+
+    // hex SHA-256 of the whole stream
+    public static String sha256(InputStream inputStream) throws IOException {
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every JRE provides SHA-256
+            throw new IllegalStateException(e);
+        }
+
+        try (DigestInputStream digestInputStream = new DigestInputStream(inputStream, messageDigest)) {
+            digestInputStream.transferTo(OutputStream.nullOutputStream());
+        }
+
+        return HexFormat.of().formatHex(messageDigest.digest());
+    }
+}
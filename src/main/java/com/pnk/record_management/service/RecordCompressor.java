@@ -0,0 +1,114 @@
+package com.pnk.record_management.service;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+
+/*
+ * Opt-in compression of the stored records, turned on with application.compression.enabled. A compressed object
+ * carries its codec as Content-Encoding and its original length as user metadata; its Content-Length, like the
+ * size shown in the S3 metadata, is the compressed one. Formats that are compressed already (skip-content-types)
+ * and small files, where the codec overhead outweighs the gain, are stored as is.
+ * */
+@Component
+@FieldDefaults(level = AccessLevel.PRIVATE)
+@Slf4j
+public class RecordCompressor {
+
+    // x-amz-meta-uncompressed-length
+    static final String UNCOMPRESSED_LENGTH_METADATA = "uncompressed-length";
+
+    @NonFinal
+    @Value("${application.compression.enabled}")
+    boolean enabled;
+
+    @NonFinal
+    @Value("${application.compression.codec}")
+    CompressionCodec codec;
+
+    @NonFinal
+    @Value("${application.compression.min-size}")
+    DataSize minSize;
+
+    @NonFinal
+    @Value("${application.compression.skip-content-types}")
+    List<MediaType> skipContentTypes;
+
+
+    /*
+     * Codec to store an upload with, empty when it is stored as is
+     * */
+    public Optional<CompressionCodec> codecFor(String contentType, long size) {
+        if (!enabled || size < minSize.toBytes() || isSkipped(contentType))
+            return Optional.empty();
+
+        return Optional.of(codec);
+    }
+
+
+    public static void tag(ObjectMetadata objectMetadata, CompressionCodec codec, long uncompressedLength) {
+        objectMetadata.setContentEncoding(codec.getContentEncoding());
+        objectMetadata.addUserMetadata(UNCOMPRESSED_LENGTH_METADATA, Long.toString(uncompressedLength));
+    }
+
+
+    // empty for an object stored as is
+    public static Optional<CompressionCodec> codecOf(ObjectMetadata objectMetadata) {
+        return objectMetadata != null
+                ? CompressionCodec.fromContentEncoding(objectMetadata.getContentEncoding())
+                : Optional.empty();
+    }
+
+
+    public static Map<String, String> userMetadataOf(long uncompressedLength) {
+        return Map.of(UNCOMPRESSED_LENGTH_METADATA, Long.toString(uncompressedLength));
+    }
+
+
+    // -1 when the object was not tagged by this service
+    public static long uncompressedLength(ObjectMetadata objectMetadata) {
+        return uncompressedLength(objectMetadata.getUserMetaDataOf(UNCOMPRESSED_LENGTH_METADATA));
+    }
+
+
+    // same, from the user metadata of the v2 client
+    public static long uncompressedLength(Map<String, String> userMetadata) {
+        return uncompressedLength(userMetadata.get(UNCOMPRESSED_LENGTH_METADATA));
+    }
+
+
+    private static long uncompressedLength(String uncompressedLength) {
+        try {
+            return uncompressedLength != null ? Long.parseLong(uncompressedLength) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+
+    // an unknown or malformed content type is compressed, it may well be text
+    private boolean isSkipped(String contentType) {
+        if (contentType == null)
+            return false;
+
+        try {
+            MediaType mediaType = MediaType.parseMediaType(contentType);
+            return skipContentTypes.stream().anyMatch(skipped -> skipped.includes(mediaType));
+        } catch (InvalidMediaTypeException e) {
+            log.info(">> codecFor >> Unparseable content type {}, compressed", contentType);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,614 @@
+package com.pnk.record_management.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Policy.CacheEntry;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+
+/*
+ * Content of recently downloaded objects, keyed by object key and only served for the ETag it was fetched with.
+ * Objects up to offHeapMaxObjectSize are held off-heap in direct buffers, larger ones (up to maxObjectSize) are
+ * spilled to files of a local directory. Each tier is evicted within its own byte budget, which also covers the
+ * direct buffers and files of the objects still being downloaded, reserved before they are allocated.
+ * Content is fresh for freshFor after it was fetched or revalidated; past that, the object may have been deleted or
+ * replaced by another instance and the caller checks it on S3 before serving it.
+ * The file I/O of the disk tier is timed (record.file.io, store=content-cache), a write once its file is complete.
+ * */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@Slf4j
+public class RecordContentCache {
+
+    static final String FILE_PREFIX = "record-";
+
+    static final String FILE_SUFFIX = ".bin";
+
+    static final String METRICS_STORE = "content-cache";
+
+    Cache<String, CachedContent> offHeapTier;
+
+    Cache<String, CachedContent> diskTier;
+
+    long offHeapBudget;
+
+    // bytes of the direct buffers, cached or still being filled
+    AtomicLong offHeapReserved = new AtomicLong();
+
+    long diskBudget;
+
+    // bytes of the files, cached or still being written
+    AtomicLong diskReserved = new AtomicLong();
+
+    Duration freshFor;
+
+    long offHeapMaxObjectSize;
+
+    long maxObjectSize;
+
+    Path directory;
+
+    StorageMetrics storageMetrics;
+
+
+    public RecordContentCache(long offHeapBudget, long offHeapMaxObjectSize,
+                              long diskBudget, long maxObjectSize, Path directory, Duration freshFor,
+                              StorageMetrics storageMetrics) throws IOException {
+        this.offHeapBudget = offHeapBudget;
+        this.diskBudget = diskBudget;
+        this.freshFor = freshFor;
+        this.offHeapMaxObjectSize = Math.min(offHeapMaxObjectSize, offHeapBudget);
+        this.maxObjectSize = Math.min(Integer.MAX_VALUE,
+                diskBudget > 0 ? Math.min(maxObjectSize, diskBudget) : this.offHeapMaxObjectSize);
+        this.directory = directory;
+        this.storageMetrics = storageMetrics;
+
+        this.offHeapTier = newTier(offHeapBudget);
+        this.diskTier = newTier(diskBudget);
+
+        if (diskBudget > 0) {
+            Files.createDirectories(directory);
+            deleteLeftoverFiles();
+        }
+    }
+
+
+    /*
+     * Cached content of key, empty when absent or cached for another version of the object
+     * */
+    public CachedContent get(String key, String etag) {
+        CachedContent cachedContent = offHeapTier.getIfPresent(key);
+        if (cachedContent == null)
+            cachedContent = diskTier.getIfPresent(key);
+
+        return cachedContent != null && Objects.equals(cachedContent.getEtag(), etag) ? cachedContent : null;
+    }
+
+
+    /*
+     * Whether cachedContent was fetched or revalidated less than freshFor ago
+     * */
+    public boolean isFresh(CachedContent cachedContent) {
+        return System.nanoTime() - cachedContent.validatedAtNanos < freshFor.toNanos();
+    }
+
+
+    // S3 still holds the version of cachedContent, it is fresh again
+    public void revalidated(CachedContent cachedContent) {
+        cachedContent.validatedAtNanos = System.nanoTime();
+    }
+
+
+    /*
+     * Writer filling the cache while the object is streamed from S3, null when the object is too large to be cached or
+     * the budget of its tier is taken by the objects being downloaded
+     * */
+    public ContentWriter open(String key, String etag, Date lastModified, long size) {
+        if (etag == null || size < 0 || size > maxObjectSize)
+            return null;
+
+        if (size <= offHeapMaxObjectSize) {
+            if (!reserve(offHeapTier, offHeapReserved, offHeapBudget, size))
+                return null;
+
+            try {
+                return new OffHeapContentWriter(key, etag, lastModified, size);
+            } catch (OutOfMemoryError e) {
+                // the direct memory limit of the JVM is lower than the budget
+                offHeapReserved.addAndGet(-size);
+                log.warn(">> open >> Cannot cache content of {}: {}", key, e.getMessage());
+                return null;
+            }
+        }
+
+        if (!reserve(diskTier, diskReserved, diskBudget, size))
+            return null;
+
+        try {
+            return new DiskContentWriter(key, etag, lastModified, size);
+        } catch (IOException e) {
+            diskReserved.addAndGet(-size);
+            log.warn(">> open >> Cannot cache content of {}: {}", key, e.getMessage());
+            return null;
+        }
+    }
+
+
+    public void invalidate(String key) {
+        offHeapTier.invalidate(key);
+        diskTier.invalidate(key);
+    }
+
+
+    public void invalidateAll() {
+        offHeapTier.invalidateAll();
+        diskTier.invalidateAll();
+    }
+
+
+    public long offHeapBytes() {
+        return weightedSize(offHeapTier);
+    }
+
+
+    public long diskBytes() {
+        return weightedSize(diskTier);
+    }
+
+
+    private static long weightedSize(Cache<String, CachedContent> tier) {
+        return tier.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L);
+    }
+
+
+    /*
+     * Reserves size bytes of the budget of tier, evicting its coldest cached objects when they hold the missing
+     * bytes; fails when the objects being downloaded into the tier leave no room
+     * */
+    private static boolean reserve(Cache<String, CachedContent> tier, AtomicLong reserved, long budget, long size) {
+        if (tryReserve(reserved, budget, size))
+            return true;
+
+        long cached = weightedSize(tier);
+        long missing = reserved.get() + size - budget;
+        if (missing > cached)
+            return false;
+
+        // their removal gives their bytes back to the budget
+        List<String> coldestKeys = tier.policy().eviction()
+                .map(eviction -> eviction.coldest(entries -> keysHolding(entries, missing)))
+                .orElse(List.of());
+        tier.invalidateAll(coldestKeys);
+
+        return tryReserve(reserved, budget, size);
+    }
+
+
+    private static boolean tryReserve(AtomicLong reserved, long budget, long size) {
+        long reservedBytes;
+        do {
+            reservedBytes = reserved.get();
+            if (reservedBytes + size > budget)
+                return false;
+        } while (!reserved.compareAndSet(reservedBytes, reservedBytes + size));
+
+        return true;
+    }
+
+
+    // first keys of entries whose weights add up to bytes
+    private static List<String> keysHolding(Stream<CacheEntry<String, CachedContent>> entries, long bytes) {
+        List<String> keys = new ArrayList<>();
+        long held = 0;
+        Iterator<CacheEntry<String, CachedContent>> iterator = entries.iterator();
+        while (held < bytes && iterator.hasNext()) {
+            CacheEntry<String, CachedContent> entry = iterator.next();
+            keys.add(entry.getKey());
+            held += entry.weight();
+        }
+        return keys;
+    }
+
+
+    private Cache<String, CachedContent> newTier(long budget) {
+        return Caffeine.newBuilder()
+                .maximumWeight(budget)
+                .weigher((String key, CachedContent cachedContent) -> (int) Math.max(1, cachedContent.getSize()))
+                // released on the calling thread so that the byte budgets hold at any time
+                .executor(Runnable::run)
+                .removalListener((String key, CachedContent cachedContent, RemovalCause cause) -> {
+                    if (cachedContent != null)
+                        cachedContent.release();
+                })
+                .build();
+    }
+
+
+    private void deleteLeftoverFiles() throws IOException {
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(directory, FILE_PREFIX + "*" + FILE_SUFFIX)) {
+            for (Path leftover : leftovers)
+                Files.deleteIfExists(leftover);
+        }
+    }
+
+
+    /*
+     * Immutable content of one object version; readers get their own view so that they never interfere
+     * */
+    @Getter
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    public abstract static class CachedContent {
+
+        String etag;
+
+        Date lastModified;
+
+        long size;
+
+        // System.nanoTime of the last time S3 was seen holding this version
+        @Getter(AccessLevel.NONE)
+        @NonFinal
+        volatile long validatedAtNanos;
+
+
+        CachedContent(String etag, Date lastModified, long size, long validatedAtNanos) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.validatedAtNanos = validatedAtNanos;
+        }
+
+
+        /*
+         * Reader over [position, position + count), to be opened on the request thread: once opened it keeps
+         * working even if the entry is evicted meanwhile
+         * */
+        public abstract ContentReader openReader(long position, long count) throws IOException;
+
+
+        abstract void release();
+    }
+
+
+    public interface ContentReader extends AutoCloseable {
+
+        void transferTo(OutputStream outputStream) throws IOException;
+
+        byte[] readAllBytes() throws IOException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+
+    private static final class OffHeapContent extends CachedContent {
+
+        final ByteBuffer buffer;
+
+        final AtomicLong offHeapReserved;
+
+
+        OffHeapContent(String etag, Date lastModified, ByteBuffer buffer, AtomicLong offHeapReserved,
+                       long validatedAtNanos) {
+            super(etag, lastModified, buffer.capacity(), validatedAtNanos);
+            this.buffer = buffer.asReadOnlyBuffer();
+            this.offHeapReserved = offHeapReserved;
+        }
+
+
+        @Override
+        public ContentReader openReader(long position, long count) {
+            ByteBuffer view = buffer.duplicate()
+                    .position((int) position)
+                    .limit((int) (position + count));
+
+            return new ContentReader() {
+                @Override
+                public void transferTo(OutputStream outputStream) throws IOException {
+                    WritableByteChannel channel = Channels.newChannel(outputStream);
+                    while (view.hasRemaining())
+                        channel.write(view);
+                }
+
+                @Override
+                public byte[] readAllBytes() {
+                    byte[] content = new byte[view.remaining()];
+                    view.get(content);
+                    return content;
+                }
+
+                @Override
+                public void close() {
+                    // nothing to release, the buffer belongs to the cache
+                }
+            };
+        }
+
+
+        @Override
+        void release() {
+            // the direct buffer is freed once the last reader drops it
+            offHeapReserved.addAndGet(-getSize());
+        }
+    }
+
+
+    private static final class DiskContent extends CachedContent {
+
+        final Path file;
+
+        final AtomicLong diskReserved;
+
+        final StorageMetrics storageMetrics;
+
+
+        DiskContent(String etag, Date lastModified, long size, Path file, AtomicLong diskReserved,
+                    StorageMetrics storageMetrics, long validatedAtNanos) {
+            super(etag, lastModified, size, validatedAtNanos);
+            this.file = file;
+            this.diskReserved = diskReserved;
+            this.storageMetrics = storageMetrics;
+        }
+
+
+        @Override
+        public ContentReader openReader(long position, long count) throws IOException {
+            FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ);
+
+            return new ContentReader() {
+                @Override
+                public void transferTo(OutputStream outputStream) throws IOException {
+                    WritableByteChannel channel = Channels.newChannel(outputStream);
+                    long startedAt = System.nanoTime();
+                    long transferred = 0;
+                    try {
+                        while (transferred < count) {
+                            long bytes = fileChannel.transferTo(position + transferred, count - transferred, channel);
+                            if (bytes <= 0)
+                                throw new IOException("Cached file " + file + " is shorter than expected");
+                            transferred += bytes;
+                        }
+                    } finally {
+                        // includes the writes to the client, the file is sent to it directly
+                        storageMetrics.recordFileIo(METRICS_STORE, "read", transferred == count,
+                                System.nanoTime() - startedAt, transferred);
+                    }
+                }
+
+                @Override
+                public byte[] readAllBytes() throws IOException {
+                    ByteBuffer content = ByteBuffer.allocate((int) count);
+                    long startedAt = System.nanoTime();
+                    try {
+                        while (content.hasRemaining()) {
+                            if (fileChannel.read(content, position + content.position()) < 0)
+                                throw new IOException("Cached file " + file + " is shorter than expected");
+                        }
+                    } finally {
+                        storageMetrics.recordFileIo(METRICS_STORE, "read", !content.hasRemaining(),
+                                System.nanoTime() - startedAt, content.position());
+                    }
+                    return content.array();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    fileChannel.close();
+                }
+            };
+        }
+
+
+        @Override
+        void release() {
+            // readers still holding the file open keep reading the unlinked file
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                log.warn(">> release >> Cannot delete cached file {}: {}", file, e.getMessage());
+            }
+            diskReserved.addAndGet(-getSize());
+        }
+    }
+
+
+    /*
+     * Receives the object while it is streamed; the content is only cached once exactly size bytes were written.
+     * A failing cache write never fails the download, the writer just gives up. Aborting after commit is a no-op,
+     * so abort() can sit in a finally block.
+     * */
+    public abstract static class ContentWriter {
+
+        final String key;
+
+        final String etag;
+
+        final Date lastModified;
+
+        final long size;
+
+        // the content is read from S3 from then on
+        final long openedAtNanos = System.nanoTime();
+
+        long written;
+
+        // committed or aborted, later calls are no-ops
+        boolean closed;
+
+
+        ContentWriter(String key, String etag, Date lastModified, long size) {
+            this.key = key;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+
+
+        public void write(byte[] bytes, int offset, int length) {
+            if (closed)
+                return;
+
+            if (written + length > size) {
+                abort();
+                return;
+            }
+
+            try {
+                append(bytes, offset, length);
+                written += length;
+            } catch (IOException e) {
+                log.warn(">> write >> Cannot cache content of {}: {}", key, e.getMessage());
+                abort();
+            }
+        }
+
+
+        public void commit() {
+            if (closed)
+                return;
+
+            if (written != size) {
+                abort();
+                return;
+            }
+
+            closed = true;
+            try {
+                publish();
+            } catch (IOException e) {
+                log.warn(">> commit >> Cannot cache content of {}: {}", key, e.getMessage());
+                discard();
+            }
+        }
+
+
+        public void abort() {
+            if (closed)
+                return;
+
+            closed = true;
+            discard();
+        }
+
+
+        abstract void append(byte[] bytes, int offset, int length) throws IOException;
+
+        abstract void publish() throws IOException;
+
+        abstract void discard();
+    }
+
+
+    private final class OffHeapContentWriter extends ContentWriter {
+
+        final ByteBuffer buffer;
+
+
+        // size bytes of the off-heap budget reserved by the caller, handed over to the cached content on publish
+        OffHeapContentWriter(String key, String etag, Date lastModified, long size) {
+            super(key, etag, lastModified, size);
+            this.buffer = ByteBuffer.allocateDirect((int) size);
+        }
+
+
+        @Override
+        void append(byte[] bytes, int offset, int length) {
+            buffer.put(bytes, offset, length);
+        }
+
+
+        @Override
+        void publish() {
+            diskTier.invalidate(key);
+            offHeapTier.put(key, new OffHeapContent(etag, lastModified, buffer.flip(), offHeapReserved, openedAtNanos));
+        }
+
+
+        @Override
+        void discard() {
+            // the direct buffer is garbage collected
+            offHeapReserved.addAndGet(-size);
+        }
+    }
+
+
+    private final class DiskContentWriter extends ContentWriter {
+
+        final Path file;
+
+        final FileChannel fileChannel;
+
+        // spent in file I/O so far, the writes being interleaved with the download
+        long ioNanos;
+
+
+        // size bytes of the disk budget reserved by the caller, handed over to the cached content on publish
+        DiskContentWriter(String key, String etag, Date lastModified, long size) throws IOException {
+            super(key, etag, lastModified, size);
+            this.file = Files.createTempFile(directory, FILE_PREFIX, FILE_SUFFIX);
+            this.fileChannel = FileChannel.open(file, StandardOpenOption.WRITE);
+        }
+
+
+        @Override
+        void append(byte[] bytes, int offset, int length) throws IOException {
+            long startedAt = System.nanoTime();
+            try {
+                ByteBuffer source = ByteBuffer.wrap(bytes, offset, length);
+                while (source.hasRemaining())
+                    fileChannel.write(source);
+            } finally {
+                ioNanos += System.nanoTime() - startedAt;
+            }
+        }
+
+
+        @Override
+        void publish() throws IOException {
+            long startedAt = System.nanoTime();
+            fileChannel.close();
+            ioNanos += System.nanoTime() - startedAt;
+            storageMetrics.recordFileIo(METRICS_STORE, "write", true, ioNanos, size);
+
+            offHeapTier.invalidate(key);
+            diskTier.put(key, new DiskContent(etag, lastModified, size, file, diskReserved, storageMetrics,
+                    openedAtNanos));
+        }
+
+
+        @Override
+        void discard() {
+            storageMetrics.recordFileIo(METRICS_STORE, "write", false, ioNanos, written);
+            try {
+                fileChannel.close();
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                log.warn(">> discard >> Cannot delete cached file {}: {}", file, e.getMessage());
+            }
+            diskReserved.addAndGet(-size);
+        }
+    }
+}
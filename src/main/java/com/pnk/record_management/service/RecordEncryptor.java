@@ -0,0 +1,185 @@
+package com.pnk.record_management.service;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import jakarta.annotation.PostConstruct;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+
+
+/*
+ * Opt-in client-side envelope encryption of the stored records, turned on with application.encryption.enabled.
+ * Each object is encrypted with its own random AES-256 data key in authenticated chunks (see ChunkedCipher), the data
+ * key travels with the object as user metadata, wrapped (AES key wrap) under the master key. Its Content-Length, like
+ * the size shown in the S3 metadata, is the encrypted one. Encryption applies after compression, on the stored bytes.
+ * Objects encrypted earlier are still decrypted while encryption is off, as long as the master key is configured.
+ * */
+@Component
+@FieldDefaults(level = AccessLevel.PRIVATE)
+@Slf4j
+public class RecordEncryptor {
+
+    // x-amz-meta-encryption
+    static final String ENCRYPTION_METADATA = "encryption";
+
+    static final String ENCRYPTION_SCHEME = "aes-256-gcm-chunked";
+
+    // x-amz-meta-encryption-data-key
+    static final String DATA_KEY_METADATA = "encryption-data-key";
+
+    // x-amz-meta-encryption-chunk-size
+    static final String CHUNK_SIZE_METADATA = "encryption-chunk-size";
+
+    static final String KEY_WRAP_ALGORITHM = "AESWrap";
+
+    static final int MASTER_KEY_LENGTH = 32;
+
+    final SecureRandom secureRandom = new SecureRandom();
+
+    @NonFinal
+    @Value("${application.encryption.enabled}")
+    boolean enabled;
+
+    @NonFinal
+    @Value("${application.encryption.chunk-size}")
+    DataSize chunkSize;
+
+    // base64 of a 256-bit AES key
+    @NonFinal
+    @Value("${application.encryption.master-key}")
+    String masterKey;
+
+
+    // a missing or malformed master key fails the startup rather than the first upload or download
+    @PostConstruct
+    void checkMasterKey() {
+        // still needed while encryption is off when configured, to decrypt the objects encrypted earlier
+        if (!enabled && (masterKey == null || masterKey.isBlank()))
+            return;
+
+        masterKey();
+        if (!enabled)
+            return;
+
+        log.info(">> checkMasterKey >> Records stored encrypted in chunks of {}", chunkSize);
+    }
+
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+
+    /*
+     * Cipher of a new object, under a data key of its own
+     * */
+    public ChunkedCipher newCipher() {
+        try {
+            KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+            keyGenerator.init(256, secureRandom);
+            return new ChunkedCipher(keyGenerator.generateKey(), (int) chunkSize.toBytes());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    // user metadata an object encrypted with cipher is stored with
+    public Map<String, String> metadataOf(ChunkedCipher cipher) {
+        byte[] wrappedDataKey;
+        try {
+            Cipher keyWrap = Cipher.getInstance(KEY_WRAP_ALGORITHM);
+            keyWrap.init(Cipher.WRAP_MODE, masterKey());
+            wrappedDataKey = keyWrap.wrap(cipher.getDataKey());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot wrap the data key", e);
+        }
+
+        return Map.of(
+                ENCRYPTION_METADATA, ENCRYPTION_SCHEME,
+                DATA_KEY_METADATA, Base64.getEncoder().encodeToString(wrappedDataKey),
+                CHUNK_SIZE_METADATA, Integer.toString(cipher.getChunkSize()));
+    }
+
+
+    public void tag(ObjectMetadata objectMetadata, ChunkedCipher cipher) {
+        metadataOf(cipher).forEach(objectMetadata::addUserMetadata);
+    }
+
+
+    /*
+     * Cipher of a stored object, from its user metadata; fails on an object this service did not encrypt, or
+     * whose data key was not wrapped under the configured master key
+     * */
+    public ChunkedCipher cipherOf(Map<String, String> userMetadata) {
+        Integer objectChunkSize = chunkSizeOf(userMetadata);
+        String wrappedDataKey = userMetadata.get(DATA_KEY_METADATA);
+        if (objectChunkSize == null || wrappedDataKey == null)
+            throw new IllegalStateException("Object not encrypted in chunks by this service");
+
+        try {
+            Cipher keyWrap = Cipher.getInstance(KEY_WRAP_ALGORITHM);
+            keyWrap.init(Cipher.UNWRAP_MODE, masterKey());
+            SecretKey dataKey = (SecretKey) keyWrap.unwrap(
+                    Base64.getDecoder().decode(wrappedDataKey), "AES", Cipher.SECRET_KEY);
+            return new ChunkedCipher(dataKey, objectChunkSize);
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            throw new IllegalStateException("Cannot unwrap the data key, wrong master key?", e);
+        }
+    }
+
+
+    public static boolean isEncrypted(Map<String, String> userMetadata) {
+        return userMetadata != null && ENCRYPTION_SCHEME.equals(userMetadata.get(ENCRYPTION_METADATA));
+    }
+
+
+    public static boolean isEncrypted(ObjectMetadata objectMetadata) {
+        return objectMetadata != null && isEncrypted(objectMetadata.getUserMetadata());
+    }
+
+
+    // null for an object stored as is
+    public static Integer chunkSizeOf(Map<String, String> userMetadata) {
+        if (!isEncrypted(userMetadata))
+            return null;
+
+        try {
+            return Integer.valueOf(userMetadata.get(CHUNK_SIZE_METADATA));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+
+    private SecretKey masterKey() {
+        if (masterKey == null || masterKey.isBlank())
+            throw new IllegalStateException("application.encryption.master-key is not configured");
+
+        byte[] key;
+        try {
+            key = Base64.getDecoder().decode(masterKey.strip());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("application.encryption.master-key is not base64", e);
+        }
+        // AESWrap and AES-GCM would accept a 128 or 192-bit key as well
+        if (key.length != MASTER_KEY_LENGTH)
+            throw new IllegalStateException("application.encryption.master-key must be a 256-bit key, not "
+                    + key.length * 8 + "-bit");
+
+        return new SecretKeySpec(key, "AES");
+    }
+}
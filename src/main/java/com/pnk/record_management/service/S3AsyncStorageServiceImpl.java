@@ -0,0 +1,853 @@
+package com.pnk.record_management.service;
+
+import com.pnk.record_management.dto.response.MedicalRecordAsyncDownload;
+import com.pnk.record_management.dto.response.MedicalRecordResponse;
+import com.pnk.record_management.dto.response.MedicalRecordS3Metadata;
+import com.pnk.record_management.entity.MedicalRecord;
+import com.pnk.record_management.exception.AppException;
+import com.pnk.record_management.exception.ErrorCode;
+import com.pnk.record_management.mapper.MedicalRecordMapper;
+import com.pnk.record_management.utils.ContentEncodingUtils;
+import com.pnk.record_management.utils.HttpRangeUtils;
+import com.pnk.record_management.utils.RecordKeyUtils;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.core.async.ResponsePublisher;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.StorageClass;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+
+import static com.pnk.record_management.utils.JwtUtils.extractDataFromJWT;
+
+
+/*
+ * "async" engine on the non-blocking S3 client: no thread waits on S3, downloads are pushed to the client chunk by
+ * chunk as they arrive. Only the MongoDB writes, which have no async API here, run on the storage task executor.
+ * */
+@Service
+@ConditionalOnProperty(name = "application.storage.engine", havingValue = "async")
+@RequiredArgsConstructor // injected by Constructor, no longer need of @Autowire
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@Slf4j
+public class S3AsyncStorageServiceImpl implements AsyncStorageService {
+
+    MedicalRecordWriter medicalRecordWriter;
+
+    S3AsyncClient s3AsyncClient;
+
+    S3KeyIndex s3KeyIndex;
+
+    S3MetadataCache s3MetadataCache;
+
+    RecordContentCache recordContentCache;
+
+    ExecutorService storageTaskExecutor;
+
+    RecordBlobRegistry recordBlobRegistry;
+
+    RecordEncryptor recordEncryptor;
+
+    RecordCompressor recordCompressor;
+
+    StorageMetrics storageMetrics;
+
+    MedicalRecordMapper medicalRecordMapper;
+
+    @NonFinal
+    @Value("${application.bucket.name}")
+    String bucketName;
+
+    @NonFinal
+    @Value("${application.upload.buffer-size}")
+    DataSize uploadBufferSize;
+
+    @NonFinal
+    @Value("${application.upload.multipart.threshold}")
+    DataSize multipartThreshold;
+
+
+    @Override
+    @PreAuthorize("hasRole('ADMIN')")
+    public CompletableFuture<MedicalRecordResponse> uploadFileToS3(MultipartFile file, String patientId) {
+        // resolved on the request thread, the completion stages run elsewhere
+        String updatedByUser = extractDataFromJWT().get("name").toString();
+        Instant utcNow = ZonedDateTime.now(ZoneId.of("UTC")).toInstant();
+        String fileName = RecordKeyUtils.generateFileName(patientId, utcNow, file);
+
+        // null for an upload stored unencrypted; encrypted chunk by chunk while the body is sent
+        ChunkedCipher cipher = recordEncryptor.isEnabled() ? recordEncryptor.newCipher() : null;
+        Optional<CompressionCodec> codec = recordCompressor.codecFor(file.getContentType(), file.getSize());
+
+        PutObjectRequest.Builder putObjectRequest = PutObjectRequest.builder()
+                .bucket(bucketName)
+                .key(fileName)
+                .contentType(file.getContentType());
+        Map<String, String> userMetadata = new HashMap<>();
+        if (cipher != null)
+            userMetadata.putAll(recordEncryptor.metadataOf(cipher));
+        codec.ifPresent(compressionCodec -> {
+            putObjectRequest.contentEncoding(compressionCodec.getContentEncoding());
+            userMetadata.putAll(RecordCompressor.userMetadataOf(file.getSize()));
+        });
+        if (!userMetadata.isEmpty())
+            putObjectRequest.metadata(userMetadata);
+
+        /* the compressed length is only known once compressed: files under the multipart threshold are compressed in
+         * memory, on the storage task executor; larger ones are compressed while the client reads them, sent with an
+         * unknown length that the client splits into parts, so that at most a part is held in memory */
+        boolean compressedInMemory = codec.isPresent() && file.getSize() < multipartThreshold.toBytes();
+        CompletableFuture<UploadBody> uploadBody = compressedInMemory
+                ? CompletableFuture.supplyAsync(
+                        () -> uploadBody(fileName, file, codec.get(), true, cipher), storageTaskExecutor)
+                : CompletableFuture.supplyAsync(
+                        () -> uploadBody(fileName, file, codec.orElse(null), false, cipher), Runnable::run);
+
+        log.info(">> uploadFile >> Uploading file: {} on S3", fileName);
+
+        return uploadBody
+                .thenCompose(body -> s3AsyncClient
+                        .putObject(putObjectRequest.contentLength(body.contentLength()).build(),
+                                AsyncRequestBody.fromInputStream(
+                                        body.content(), body.contentLength(), storageTaskExecutor))
+                        .whenComplete((putObjectResponse, throwable) -> closeQuietly(body.content()))
+                        .thenApplyAsync(putObjectResponse -> toUploadResponse(fileName, patientId, updatedByUser,
+                                body.storedLength(), cipher, putObjectResponse), storageTaskExecutor))
+                .exceptionally(throwable -> {
+                    throw translate(throwable, ErrorCode.FILE_UPLOAD_FAILED);
+                });
+    }
+
+
+    /*
+     * What is sent to S3: the upload, compressed when codec is not null, then encrypted when cipher is not null. The
+     * content length is unknown (null) when compressed while being sent rather than in memory.
+     * */
+    private UploadBody uploadBody(String fileName, MultipartFile file, CompressionCodec codec, boolean inMemory,
+                                  ChunkedCipher cipher) {
+        try {
+            InputStream content = file.getInputStream();
+            Long length = file.getSize();
+            if (codec != null && !inMemory) {
+                content = codec.compressing(content, (int) uploadBufferSize.toBytes());
+                length = null;
+            } else if (codec != null) {
+                byte[] compressedContent;
+                try (InputStream compressedStream = codec.compressing(content, (int) uploadBufferSize.toBytes())) {
+                    compressedContent = compressedStream.readAllBytes();
+                }
+                log.info(">> uploadFile >> {} stored {}-compressed, {} of {} bytes",
+                        fileName, codec.getContentEncoding(), compressedContent.length, file.getSize());
+                content = new ByteArrayInputStream(compressedContent);
+                length = (long) compressedContent.length;
+            }
+
+            if (cipher != null) {
+                content = cipher.encrypting(content);
+                length = length != null ? cipher.encryptedLength(length) : null;
+            }
+            return new UploadBody(new CountingInputStream(content), length);
+        } catch (IOException e) {
+            log.error(">> uploadFile >> Cannot read uploaded file {}", fileName, e);
+            throw new AppException(ErrorCode.FILE_UPLOAD_FAILED);
+        }
+    }
+
+
+    private MedicalRecordResponse toUploadResponse(String fileName, String patientId, String updatedByUser,
+                                                   long storedLength, ChunkedCipher cipher,
+                                                   PutObjectResponse putObjectResponse) {
+        MedicalRecordS3Metadata s3Metadata = MedicalRecordS3Metadata.builder()
+                .bucketName(bucketName)
+                .key(fileName)
+                .etag(unquote(putObjectResponse.eTag()))
+                .versionId(putObjectResponse.versionId())
+                .size(storedLength)
+                .lastModified(new Date())
+                .storageClass(StorageClass.STANDARD.toString())
+                .encryptionChunkSize(cipher != null ? cipher.getChunkSize() : null)
+                .build();
+        storageMetrics.recordTransfer(StorageMetrics.UPLOAD, StorageMetrics.S3, storedLength);
+        s3KeyIndex.add(s3Metadata);
+        s3MetadataCache.put(s3Metadata);
+
+        MedicalRecord medicalRecord;
+        try {
+            medicalRecord = medicalRecordWriter.insert(
+                    StorageServiceImpl.buildMedicalRecord(s3Metadata, patientId, updatedByUser));
+        } catch (RuntimeException e) {
+            // reported failed: the object is deleted rather than adopted as a record by the reconciliation
+            s3KeyIndex.remove(fileName);
+            s3MetadataCache.invalidate(fileName);
+            s3AsyncClient.deleteObject(builder -> builder.bucket(bucketName).key(fileName))
+                    .whenComplete((deleteObjectResponse, throwable) -> {
+                        if (throwable != null)
+                            log.error(">> uploadFile >> Object {} of the unsaved record not deleted", fileName,
+                                    throwable);
+                    });
+            throw e;
+        }
+
+        MedicalRecordResponse medicalRecordResponse = medicalRecordMapper.toMedicalRecordResponse(medicalRecord);
+        medicalRecordResponse.setMedicalRecordS3Metadata(s3Metadata);
+        return medicalRecordResponse;
+    }
+
+
+    @Override
+    public CompletableFuture<List<MedicalRecordS3Metadata>> searchS3ExactFilename(String searchingWord) {
+        Optional<MedicalRecordS3Metadata> cachedMetadata = s3MetadataCache.getIfPresent(searchingWord);
+        CompletableFuture<Optional<MedicalRecordS3Metadata>> s3Metadata = cachedMetadata.isPresent()
+                ? CompletableFuture.completedFuture(cachedMetadata)
+                : headObject(searchingWord).thenApply(headS3Metadata -> {
+                    headS3Metadata.ifPresent(s3MetadataCache::put);
+                    return headS3Metadata;
+                });
+
+        // the object of a deleted record still shared by other records is not listed
+        return s3Metadata.thenApplyAsync(existingS3Metadata -> existingS3Metadata
+                .filter(metadata -> !recordBlobRegistry.isReleased(metadata.getKey()))
+                .map(List::of)
+                .orElseGet(List::of), storageTaskExecutor);
+    }
+
+
+    /*
+     * The Range header is handed to S3 as is (suffix ranges included); If-Range becomes an If-Match /
+     * If-Unmodified-Since precondition and a failed precondition is answered with the whole object.
+     * Chunks are relayed as they arrive. A compressed object is sent as stored, with its Content-Encoding, to a
+     * client accepting that encoding (ranges then apply to the encoded bytes); for the others, a missing
+     * Accept-Encoding included, it is decompressed on the storage task executor as its chunks arrive, as a whole: the
+     * range is dropped and the whole object fetched instead.
+     * An encrypted object is decrypted on the storage task executor as its chunks arrive, the range then being
+     * translated into the chunks holding it (right away when its metadata is cached, otherwise by a second GET).
+     * */
+    @Override
+    public CompletableFuture<MedicalRecordAsyncDownload> streamFileFromS3(
+            String fileName, String rangeHeader, String ifRangeHeader, String acceptEncodingHeader) {
+        HttpRangeUtils.ByteRange byteRange = HttpRangeUtils.parseRange(rangeHeader);
+        boolean ranged = byteRange != null;
+
+        GetObjectRequest.Builder request = GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(fileName);
+        if (ranged) {
+            Optional<MedicalRecordS3Metadata> encryptedS3Metadata = s3MetadataCache.getIfPresent(fileName)
+                    .filter(s3Metadata -> s3Metadata.getEncryptionChunkSize() != null);
+            request.range(encryptedS3Metadata.isPresent()
+                    ? chunksRangeHeader(StorageServiceImpl.chunksOf(byteRange, encryptedS3Metadata.get()))
+                    : rangeHeader);
+            if (ifRangeHeader != null)
+                applyIfRange(request, ifRangeHeader);
+        }
+
+        log.info(">> streamFile >> Streaming file: {}, range: {}", fileName, rangeHeader);
+
+        return CompletableFuture
+                .supplyAsync(() -> recordBlobRegistry.isReleased(fileName), storageTaskExecutor)
+                .thenCompose(released -> {
+                    // the object of a deleted record still shared by other records is theirs only
+                    if (released)
+                        throw new AppException(ErrorCode.MEDICAL_RECORD_NOT_EXISTING);
+                    return s3AsyncClient.getObject(
+                            request.build(), AsyncResponseTransformer.<GetObjectResponse>toPublisher());
+                })
+                .exceptionallyCompose(throwable -> {
+                    if (ranged && ifRangeHeader != null
+                            && statusCode(throwable) == HttpStatus.PRECONDITION_FAILED.value()) {
+                        // the If-Range validator no longer matches: the whole current object is sent instead
+                        return s3AsyncClient.getObject(
+                                GetObjectRequest.builder().bucket(bucketName).key(fileName).build(),
+                                AsyncResponseTransformer.<GetObjectResponse>toPublisher());
+                    }
+                    return CompletableFuture.failedFuture(throwable);
+                })
+                .exceptionallyComposeAsync(throwable -> {
+                    // a record sharing the object of an earlier identical upload has no object of its own
+                    Optional<String> sharedObjectKey = statusCode(throwable) == HttpStatus.NOT_FOUND.value()
+                            ? recordBlobRegistry.findObjectKey(fileName).filter(objectKey -> !objectKey.equals(fileName))
+                            : Optional.empty();
+                    if (sharedObjectKey.isEmpty())
+                        return CompletableFuture.failedFuture(throwable);
+
+                    return s3AsyncClient.getObject(
+                            request.key(sharedObjectKey.get()).build(),
+                            AsyncResponseTransformer.<GetObjectResponse>toPublisher());
+                }, storageTaskExecutor)
+                .thenCompose(responsePublisher -> {
+                    // null when sent as stored
+                    CompressionCodec decodedCodec = CompressionCodec
+                            .fromContentEncoding(responsePublisher.response().contentEncoding())
+                            .filter(codec -> !ContentEncodingUtils.isAccepted(
+                                    acceptEncodingHeader, codec.getContentEncoding()))
+                            .orElse(null);
+
+                    if (RecordEncryptor.isEncrypted(responsePublisher.response().metadata()))
+                        return toDecryptedDownload(fileName, request, byteRange, responsePublisher, decodedCodec);
+                    if (decodedCodec != null)
+                        return toInflatedDownload(fileName, request, responsePublisher, decodedCodec);
+                    return CompletableFuture.completedFuture(toAsyncDownload(fileName, responsePublisher));
+                })
+                .exceptionally(throwable -> {
+                    throw translate(throwable, null);
+                });
+    }
+
+
+    @Override
+    @PreAuthorize("hasRole('ADMIN')")
+    public CompletableFuture<MedicalRecordResponse> deleteFileFromS3(String fileName) {
+        String updatedByUser = extractDataFromJWT().get("name").toString();
+
+        log.info(">> deleteFile >> Deleting file: {} on S3", fileName);
+
+        // the object of a record sharing its content with other records is only deleted along with the last of them
+        return CompletableFuture
+                .supplyAsync(() -> recordBlobRegistry.findObjectKey(fileName), storageTaskExecutor)
+                .thenCompose(sharedObjectKey -> {
+                    String objectKey = sharedObjectKey.orElse(fileName);
+                    return headObject(objectKey).thenComposeAsync(s3Metadata -> {
+                        if (s3Metadata.isEmpty())
+                            throw new AppException(ErrorCode.MEDICAL_RECORD_NOT_EXISTING);
+                        if (sharedObjectKey.isPresent() && !recordBlobRegistry.release(objectKey, fileName))
+                            return CompletableFuture.completedFuture(Optional.<String>empty());
+                        return s3AsyncClient.deleteObject(builder -> builder.bucket(bucketName).key(objectKey))
+                                .thenApply(deleteObjectResponse -> Optional.of(objectKey));
+                    }, storageTaskExecutor);
+                })
+                .thenApplyAsync(deletedObjectKey -> {
+                    deletedObjectKey.ifPresent(objectKey -> {
+                        s3KeyIndex.remove(objectKey);
+                        s3MetadataCache.invalidate(objectKey);
+                        recordContentCache.invalidate(objectKey);
+                    });
+
+                    return medicalRecordMapper.toMedicalRecordResponse(
+                            medicalRecordWriter.markUnavailable(fileName, updatedByUser));
+                }, storageTaskExecutor)
+                .exceptionally(throwable -> {
+                    throw translate(throwable, ErrorCode.FILE_DELETION_FAILED);
+                });
+    }
+
+
+    // HEAD the key, empty when S3 answers 404
+    private CompletableFuture<Optional<MedicalRecordS3Metadata>> headObject(String key) {
+        return s3AsyncClient.headObject(HeadObjectRequest.builder().bucket(bucketName).key(key).build())
+                .thenApply(headObjectResponse -> Optional.of(toS3Metadata(key, headObjectResponse)))
+                .exceptionallyCompose(throwable -> statusCode(throwable) == HttpStatus.NOT_FOUND.value()
+                        ? CompletableFuture.completedFuture(Optional.empty())
+                        : CompletableFuture.failedFuture(throwable));
+    }
+
+
+    private MedicalRecordS3Metadata toS3Metadata(String key, HeadObjectResponse headObjectResponse) {
+        return MedicalRecordS3Metadata.builder()
+                .bucketName(bucketName)
+                .key(key)
+                .etag(unquote(headObjectResponse.eTag()))
+                .versionId(headObjectResponse.versionId())
+                .size(headObjectResponse.contentLength())
+                .lastModified(headObjectResponse.lastModified() != null
+                        ? Date.from(headObjectResponse.lastModified())
+                        : null)
+                .storageClass(headObjectResponse.storageClassAsString() != null
+                        ? headObjectResponse.storageClassAsString()
+                        : StorageClass.STANDARD.toString())
+                .build();
+    }
+
+
+    private void applyIfRange(GetObjectRequest.Builder request, String ifRangeHeader) {
+        if (HttpRangeUtils.isEntityTag(ifRangeHeader)) {
+            // weak validators never match for If-Range; an impossible ETag makes S3 skip the ranged answer
+            request.ifMatch(ifRangeHeader.startsWith("W/") ? "\"\"" : ifRangeHeader);
+            return;
+        }
+
+        Date ifRangeDate = HttpRangeUtils.parseHttpDate(ifRangeHeader);
+        request.ifUnmodifiedSince(ifRangeDate != null ? ifRangeDate.toInstant() : Instant.EPOCH);
+    }
+
+
+    private MedicalRecordAsyncDownload toAsyncDownload(
+            String fileName, ResponsePublisher<GetObjectResponse> responsePublisher) {
+        GetObjectResponse getObjectResponse = responsePublisher.response();
+        long contentLength = getObjectResponse.contentLength();
+
+        // "bytes <first>-<last>/<size>" on ranged answers only
+        long[] contentRange = parseContentRange(getObjectResponse.contentRange());
+
+        return MedicalRecordAsyncDownload.builder()
+                .fileName(fileName)
+                .etag(unquote(getObjectResponse.eTag()))
+                .lastModified(getObjectResponse.lastModified() != null
+                        ? Date.from(getObjectResponse.lastModified())
+                        : null)
+                .contentLength(contentLength)
+                .instanceLength(contentRange != null ? contentRange[2] : contentLength)
+                .partial(contentRange != null)
+                .rangeStart(contentRange != null ? contentRange[0] : 0)
+                .rangeEnd(contentRange != null ? contentRange[1] : contentLength - 1)
+                .contentEncoding(getObjectResponse.contentEncoding())
+                .content(emitter -> responsePublisher.subscribe(
+                        new EmitterSubscriber(fileName, emitter, storageTaskExecutor, null, null, storageMetrics)))
+                .build();
+    }
+
+
+    /*
+     * Download of a compressed object for a client that cannot decode it. An answer covering a range of the encoded
+     * bytes is dropped and the whole object fetched instead, from the same version.
+     * */
+    private CompletableFuture<MedicalRecordAsyncDownload> toInflatedDownload(
+            String fileName, GetObjectRequest.Builder request, ResponsePublisher<GetObjectResponse> responsePublisher,
+            CompressionCodec codec) {
+        GetObjectResponse getObjectResponse = responsePublisher.response();
+
+        CompletableFuture<ResponsePublisher<GetObjectResponse>> wholePublisher;
+        if (getObjectResponse.contentRange() == null) {
+            wholePublisher = CompletableFuture.completedFuture(responsePublisher);
+        } else {
+            responsePublisher.subscribe(new CancellingSubscriber());
+            wholePublisher = s3AsyncClient.getObject(
+                    request.range(null)
+                            .ifUnmodifiedSince(null)
+                            .ifMatch(getObjectResponse.eTag())
+                            .build(),
+                    AsyncResponseTransformer.<GetObjectResponse>toPublisher());
+        }
+
+        // unknown (-1) for compressed objects not written by this service: sent without Content-Length
+        long uncompressedLength = RecordCompressor.uncompressedLength(getObjectResponse.metadata());
+
+        log.info(">> streamFile >> Streaming file decompressed: {}", fileName);
+
+        return wholePublisher.thenApply(publisher -> MedicalRecordAsyncDownload.builder()
+                .fileName(fileName)
+                .etag(unquote(getObjectResponse.eTag()))
+                .lastModified(getObjectResponse.lastModified() != null
+                        ? Date.from(getObjectResponse.lastModified())
+                        : null)
+                .contentLength(uncompressedLength)
+                .instanceLength(uncompressedLength)
+                .partial(false)
+                .rangeStart(0)
+                .rangeEnd(uncompressedLength - 1)
+                .content(emitter -> publisher.subscribe(new EmitterSubscriber(fileName, emitter, storageTaskExecutor,
+                        null, new ChunkInflater(codec), storageMetrics)))
+                .build());
+    }
+
+
+    /*
+     * Download of an encrypted object, in plaintext coordinates. request is the GET that was answered (its key is
+     * the shared object's after a fallback); it is sent again for the chunks holding the range when the answer did
+     * not cover exactly these, pinned to the version the data key was read from.
+     * With a decodedCodec, the plaintext is the compressed content: it is decompressed as a whole, the range dropped.
+     * */
+    private CompletableFuture<MedicalRecordAsyncDownload> toDecryptedDownload(
+            String fileName, GetObjectRequest.Builder request, HttpRangeUtils.ByteRange requestedRange,
+            ResponsePublisher<GetObjectResponse> responsePublisher, CompressionCodec decodedCodec) {
+        GetObjectResponse getObjectResponse = responsePublisher.response();
+        HttpRangeUtils.ByteRange byteRange = decodedCodec == null ? requestedRange : null;
+        long[] contentRange = parseContentRange(getObjectResponse.contentRange());
+        long encryptedLength = contentRange != null ? contentRange[2] : getObjectResponse.contentLength();
+
+        ChunkedCipher cipher = recordEncryptor.cipherOf(getObjectResponse.metadata());
+        long plainLength = cipher.plainLength(encryptedLength);
+
+        // no range when S3 skipped it, the If-Range validator no longer matching
+        boolean partial = byteRange != null && contentRange != null;
+        long[] plainRange = partial
+                ? StorageServiceImpl.resolveRange(byteRange, plainLength)
+                : new long[]{0, plainLength - 1};
+        ChunkedCipher.EncryptedRange encryptedRange = cipher.encryptedRange(plainRange[0], plainRange[1], plainLength);
+
+        CompletableFuture<ResponsePublisher<GetObjectResponse>> chunksPublisher;
+        if (contentRange == null || (contentRange[0] == encryptedRange.encryptedFirst()
+                && contentRange[1] == encryptedRange.encryptedLast())) {
+            chunksPublisher = CompletableFuture.completedFuture(responsePublisher);
+        } else {
+            responsePublisher.subscribe(new CancellingSubscriber());
+            chunksPublisher = s3AsyncClient.getObject(
+                    request.range(chunksRangeHeader(encryptedRange))
+                            .ifUnmodifiedSince(null)
+                            .ifMatch(getObjectResponse.eTag())
+                            .build(),
+                    AsyncResponseTransformer.<GetObjectResponse>toPublisher());
+        }
+
+        log.info(">> streamFile >> Streaming encrypted file: {}, range: {}-{} of {}",
+                fileName, plainRange[0], plainRange[1], plainLength);
+
+        if (decodedCodec != null) {
+            // unknown (-1) for compressed objects not written by this service: sent without Content-Length
+            long uncompressedLength = RecordCompressor.uncompressedLength(getObjectResponse.metadata());
+            return chunksPublisher.thenApply(publisher -> MedicalRecordAsyncDownload.builder()
+                    .fileName(fileName)
+                    .etag(unquote(getObjectResponse.eTag()))
+                    .lastModified(getObjectResponse.lastModified() != null
+                            ? Date.from(getObjectResponse.lastModified())
+                            : null)
+                    .contentLength(uncompressedLength)
+                    .instanceLength(uncompressedLength)
+                    .partial(false)
+                    .rangeStart(0)
+                    .rangeEnd(uncompressedLength - 1)
+                    .content(emitter -> publisher.subscribe(new EmitterSubscriber(fileName, emitter,
+                            storageTaskExecutor, encryptedRange.decryptor(), new ChunkInflater(decodedCodec),
+                            storageMetrics)))
+                    .build());
+        }
+
+        return chunksPublisher.thenApply(publisher -> MedicalRecordAsyncDownload.builder()
+                .fileName(fileName)
+                .etag(unquote(getObjectResponse.eTag()))
+                .lastModified(getObjectResponse.lastModified() != null
+                        ? Date.from(getObjectResponse.lastModified())
+                        : null)
+                .contentLength(plainRange[1] - plainRange[0] + 1)
+                .instanceLength(plainLength)
+                .partial(partial)
+                .rangeStart(plainRange[0])
+                .rangeEnd(plainRange[1])
+                .contentEncoding(getObjectResponse.contentEncoding())
+                .content(emitter -> publisher.subscribe(
+                        new EmitterSubscriber(fileName, emitter, storageTaskExecutor, encryptedRange.decryptor(),
+                                null, storageMetrics)))
+                .build());
+    }
+
+
+    private static String chunksRangeHeader(ChunkedCipher.EncryptedRange encryptedRange) {
+        return "bytes=" + encryptedRange.encryptedFirst() + "-" + encryptedRange.encryptedLast();
+    }
+
+
+    private static long[] parseContentRange(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes "))
+            return null;
+
+        String[] rangeAndSize = contentRange.substring("bytes ".length()).split("/");
+        String[] firstAndLast = rangeAndSize[0].split("-");
+        return new long[]{
+                Long.parseLong(firstAndLast[0]), Long.parseLong(firstAndLast[1]), Long.parseLong(rangeAndSize[1])};
+    }
+
+
+    // the v2 client keeps the quotes of the ETag header, the v1 client and the rest of the service do not
+    private static String unquote(String etag) {
+        return etag != null && etag.length() >= 2 && etag.startsWith("\"") && etag.endsWith("\"")
+                ? etag.substring(1, etag.length() - 1)
+                : etag;
+    }
+
+
+    private static int statusCode(Throwable throwable) {
+        Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null
+                ? throwable.getCause()
+                : throwable;
+        return cause instanceof S3Exception s3Exception ? s3Exception.statusCode() : -1;
+    }
+
+
+    /*
+     * S3 errors become the AppExceptions the synchronous engine throws; fallbackErrorCode, when not null,
+     * replaces any other S3 error
+     * */
+    private static RuntimeException translate(Throwable throwable, ErrorCode fallbackErrorCode) {
+        Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null
+                ? throwable.getCause()
+                : throwable;
+
+        if (cause instanceof AppException appException)
+            return appException;
+
+        int statusCode = statusCode(cause);
+        if (statusCode == HttpStatus.NOT_FOUND.value())
+            return new AppException(ErrorCode.MEDICAL_RECORD_NOT_EXISTING);
+        if (statusCode == HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value())
+            return new AppException(ErrorCode.RANGE_NOT_SATISFIABLE);
+
+        log.error(">> translate >> S3 request failed", cause);
+        if (fallbackErrorCode != null)
+            return new AppException(fallbackErrorCode);
+        return cause instanceof RuntimeException runtimeException ? runtimeException : new CompletionException(cause);
+    }
+
+
+    private static void closeQuietly(InputStream inputStream) {
+        try {
+            inputStream.close();
+        } catch (IOException e) {
+            log.warn(">> closeQuietly >> {}", e.getMessage());
+        }
+    }
+
+
+    // contentLength: null when only known once sent
+    private record UploadBody(CountingInputStream content, Long contentLength) {
+
+        long storedLength() {
+            return contentLength != null ? contentLength : content.getCount();
+        }
+    }
+
+
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+
+        CountingInputStream(InputStream inputStream) {
+            super(inputStream);
+        }
+
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read >= 0)
+                count++;
+            return read;
+        }
+
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = super.read(bytes, offset, length);
+            if (read > 0)
+                count += read;
+            return read;
+        }
+
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+
+        long getCount() {
+            return count;
+        }
+    }
+
+
+    // drops an answer that is not used, releasing its connection
+    private static final class CancellingSubscriber implements Subscriber<ByteBuffer> {
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            subscription.cancel();
+        }
+
+        @Override
+        public void onNext(ByteBuffer byteBuffer) {
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+
+
+    /*
+     * Pushes the S3 body into the emitter one chunk at a time: the next chunk is only requested once the previous
+     * one was written, so a slow client slows the S3 transfer down instead of buffering it. The writes run on the
+     * storage task executor, never on the event loop of the S3 client, chained so that they keep their order.
+     * With a decryptor, what is written is the plaintext of the encrypted chunks completed so far; with an inflater,
+     * the decompressed form of that (decrypted) content.
+     * */
+    private static final class EmitterSubscriber implements Subscriber<ByteBuffer> {
+
+        final String fileName;
+
+        final ResponseBodyEmitter emitter;
+
+        final ExecutorService writeExecutor;
+
+        final ChunkDecryptor decryptor;
+
+        final ChunkInflater inflater;
+
+        final StorageMetrics storageMetrics;
+
+        Subscription subscription;
+
+        // bytes sent to the client, only touched by the chained writes
+        long transferred;
+
+        boolean transferRecorded;
+
+        // signals are serialized by the publisher, each one appends its write to this chain
+        CompletableFuture<Void> lastWrite = CompletableFuture.completedFuture(null);
+
+        volatile boolean cancelled;
+
+
+        EmitterSubscriber(String fileName, ResponseBodyEmitter emitter, ExecutorService writeExecutor,
+                          ChunkDecryptor decryptor, ChunkInflater inflater, StorageMetrics storageMetrics) {
+            this.fileName = fileName;
+            this.emitter = emitter;
+            this.writeExecutor = writeExecutor;
+            this.decryptor = decryptor;
+            this.inflater = inflater;
+            this.storageMetrics = storageMetrics;
+        }
+
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+
+        @Override
+        public void onNext(ByteBuffer byteBuffer) {
+            byte[] chunk = new byte[byteBuffer.remaining()];
+            byteBuffer.get(chunk);
+
+            lastWrite = lastWrite.thenRunAsync(() -> {
+                if (cancelled)
+                    return;
+
+                byte[] content = decryptor != null || inflater != null ? decode(chunk) : chunk;
+                if (content == null)
+                    return;
+
+                try {
+                    if (content.length > 0)
+                        emitter.send(content, MediaType.APPLICATION_OCTET_STREAM);
+                    transferred += content.length;
+                    subscription.request(1);
+                } catch (IOException | IllegalStateException e) {
+                    // client went away: stop the S3 transfer
+                    log.info(">> streamFile >> Client stopped reading {}: {}", fileName, e.getMessage());
+                    cancelled = true;
+                    subscription.cancel();
+                    recordTransfer();
+                }
+            }, writeExecutor);
+        }
+
+
+        @Override
+        public void onError(Throwable throwable) {
+            log.warn(">> streamFile >> Streaming {} from S3 failed: {}", fileName, throwable.getMessage());
+            lastWrite = lastWrite.thenRunAsync(() -> {
+                recordTransfer();
+                emitter.completeWithError(throwable);
+            }, writeExecutor);
+        }
+
+
+        @Override
+        public void onComplete() {
+            lastWrite = lastWrite.thenRunAsync(() -> {
+                if (cancelled)
+                    return;
+
+                recordTransfer();
+                try {
+                    if (decryptor != null)
+                        decryptor.finish();
+                    if (inflater != null)
+                        inflater.finish();
+                    emitter.complete();
+                } catch (IOException e) {
+                    log.warn(">> streamFile >> Decoding {} failed: {}", fileName, e.getMessage());
+                    emitter.completeWithError(e);
+                }
+            }, writeExecutor);
+        }
+
+
+        /*
+         * Decrypted then decompressed; null once the content failed authentication or is not validly compressed, the
+         * transfer is then stopped and the response failed
+         * */
+        private byte[] decode(byte[] chunk) {
+            try {
+                byte[] content = chunk;
+                if (decryptor != null) {
+                    ByteArrayOutputStream plaintext = new ByteArrayOutputStream(content.length);
+                    decryptor.update(content, 0, content.length, plaintext);
+                    content = plaintext.toByteArray();
+                }
+                if (inflater != null) {
+                    ByteArrayOutputStream decompressed = new ByteArrayOutputStream(content.length * 4);
+                    inflater.update(content, 0, content.length, decompressed);
+                    content = decompressed.toByteArray();
+                }
+                return content;
+            } catch (IOException e) {
+                log.warn(">> streamFile >> Decoding {} failed: {}", fileName, e.getMessage());
+                cancelled = true;
+                subscription.cancel();
+                recordTransfer();
+                emitter.completeWithError(e);
+                return null;
+            }
+        }
+
+
+        // once per download, whichever way it ends
+        private void recordTransfer() {
+            if (transferRecorded)
+                return;
+
+            transferRecorded = true;
+            if (inflater != null)
+                inflater.end();
+            storageMetrics.recordTransfer(StorageMetrics.DOWNLOAD, StorageMetrics.S3, transferred);
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package com.pnk.record_management.service;
+
+import com.pnk.record_management.dto.response.MedicalRecordS3Metadata;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+
+/*
+ * In-process trigram index over the object keys of the bucket, answering "key contains word" queries without S3.
+ * Every key gets an int id; each trigram of a key maps to an ascending int[] posting list of ids.
+ * Deleted keys are tomb-stoned and the index is compacted once tombstones outweigh a quarter of the live keys.
+ * Uploads and deletes of this instance are applied as they happen; those of other instances, the objects adopted by
+ * the reconciliation and the keys moved by a migration on another node are only seen by a rebuild: the index is
+ * listed again by the first search past max-age, so it lags the bucket by at most max-age plus one listing.
+ * */
+@Component
+@FieldDefaults(level = AccessLevel.PRIVATE)
+@Slf4j
+public class S3KeyIndex {
+
+    static final int GRAM_LENGTH = 3;
+
+    static final int MIN_TOMBSTONES_BEFORE_COMPACTION = 1024;
+
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // held for the whole bucket listing: a ReentrantLock, so that virtual threads waiting on it do not pin a carrier
+    final ReentrantLock buildLock = new ReentrantLock();
+
+    Structure structure = new Structure();
+
+    // mutations received while the bucket listing is in progress, replayed on the freshly built structure
+    List<Consumer<Structure>> pendingMutations;
+
+    volatile boolean built;
+
+    // System.nanoTime of the start of the listing the current structure was built from
+    volatile long builtAtNanos;
+
+    @Value("${application.key-index.max-age}")
+    Duration maxAge;
+
+
+    public boolean isBuilt() {
+        return built;
+    }
+
+
+    /*
+     * Build the index from a full bucket listing if it was never built or is older than maxAge; loader pushes every
+     * object of the bucket to the consumer.
+     * Concurrent callers wait for the first build instead of listing the bucket again. A rebuild is done by a single
+     * caller, the others keep searching the previous structure meanwhile; if it fails, that structure is kept.
+     * */
+    public void buildIfStale(Consumer<Consumer<MedicalRecordS3Metadata>> loader) {
+        if (built && !isStale())
+            return;
+
+        if (built) {
+            if (!buildLock.tryLock())
+                return;
+        } else {
+            buildLock.lock();
+        }
+        try {
+            if (built && !isStale())
+                return;
+
+            long startedAt = System.nanoTime();
+
+            lock.writeLock().lock();
+            try {
+                pendingMutations = new ArrayList<>();
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            Structure freshStructure = new Structure();
+            try {
+                loader.accept(freshStructure::put);
+            } catch (RuntimeException e) {
+                lock.writeLock().lock();
+                try {
+                    pendingMutations = null;
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                if (!built)
+                    throw e;
+                // the next search past maxAge tries again
+                log.warn(">> buildIfStale >> Rebuild failed, the previous index is kept: {}", e.getMessage());
+                return;
+            }
+
+            lock.writeLock().lock();
+            try {
+                pendingMutations.forEach(mutation -> mutation.accept(freshStructure));
+                pendingMutations = null;
+                structure = freshStructure;
+                builtAtNanos = startedAt;
+                built = true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            log.info(">> buildIfStale >> Indexed {} keys in {} ms",
+                    freshStructure.liveCount(), (System.nanoTime() - startedAt) / 1_000_000);
+        } finally {
+            buildLock.unlock();
+        }
+    }
+
+
+    private boolean isStale() {
+        return System.nanoTime() - builtAtNanos > maxAge.toNanos();
+    }
+
+
+    public void add(MedicalRecordS3Metadata s3Metadata) {
+        lock.writeLock().lock();
+        try {
+            if (pendingMutations != null)
+                pendingMutations.add(pending -> pending.put(s3Metadata));
+            structure.put(s3Metadata);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    public void remove(String key) {
+        lock.writeLock().lock();
+        try {
+            if (pendingMutations != null)
+                pendingMutations.add(pending -> pending.remove(key));
+            structure.remove(key);
+
+            if (structure.needsCompaction())
+                structure = structure.compact();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /*
+     * All indexed objects whose key contains searchingWord, in insertion order
+     * */
+    public List<MedicalRecordS3Metadata> searchContains(String searchingWord) {
+        lock.readLock().lock();
+        try {
+            return structure.searchContains(searchingWord);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return structure.liveCount();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    private static long gramAt(String key, int offset) {
+        return ((long) key.charAt(offset) << 32) | ((long) key.charAt(offset + 1) << 16) | key.charAt(offset + 2);
+    }
+
+
+    /*
+     * Not thread-safe, guarded by the read-write lock of the enclosing index
+     * */
+    private static final class Structure {
+
+        final List<MedicalRecordS3Metadata> entries = new ArrayList<>();
+
+        final Map<String, Integer> idsByKey = new HashMap<>();
+
+        final Map<Long, Postings> postingsByGram = new HashMap<>();
+
+        int tombstones;
+
+
+        void put(MedicalRecordS3Metadata s3Metadata) {
+            Integer existingId = idsByKey.get(s3Metadata.getKey());
+            if (existingId != null) {
+                // same key re-uploaded: the grams are unchanged, only the metadata is refreshed
+                entries.set(existingId, s3Metadata);
+                return;
+            }
+
+            int id = entries.size();
+            entries.add(s3Metadata);
+            idsByKey.put(s3Metadata.getKey(), id);
+
+            String key = s3Metadata.getKey();
+            Set<Long> grams = new LinkedHashSet<>();
+            for (int offset = 0; offset + GRAM_LENGTH <= key.length(); offset++)
+                grams.add(gramAt(key, offset));
+
+            for (Long gram : grams)
+                postingsByGram.computeIfAbsent(gram, ignored -> new Postings()).append(id);
+        }
+
+
+        void remove(String key) {
+            Integer id = idsByKey.remove(key);
+            if (id == null)
+                return;
+
+            entries.set(id, null);
+            tombstones++;
+        }
+
+
+        int liveCount() {
+            return idsByKey.size();
+        }
+
+
+        boolean needsCompaction() {
+            return tombstones >= MIN_TOMBSTONES_BEFORE_COMPACTION && tombstones * 4 > liveCount();
+        }
+
+
+        Structure compact() {
+            Structure compacted = new Structure();
+            for (MedicalRecordS3Metadata entry : entries) {
+                if (entry != null)
+                    compacted.put(entry);
+            }
+            return compacted;
+        }
+
+
+        List<MedicalRecordS3Metadata> searchContains(String searchingWord) {
+            List<MedicalRecordS3Metadata> matchingFiles = new ArrayList<>();
+
+            if (searchingWord.length() < GRAM_LENGTH) {
+                // too short to be covered by a gram, fall back to a scan of the in-memory keys
+                for (MedicalRecordS3Metadata entry : entries) {
+                    if (entry != null && entry.getKey().contains(searchingWord))
+                        matchingFiles.add(entry);
+                }
+                return matchingFiles;
+            }
+
+            List<Postings> candidates = new ArrayList<>();
+            Set<Long> grams = new LinkedHashSet<>();
+            for (int offset = 0; offset + GRAM_LENGTH <= searchingWord.length(); offset++)
+                grams.add(gramAt(searchingWord, offset));
+
+            for (Long gram : grams) {
+                Postings postings = postingsByGram.get(gram);
+                if (postings == null)
+                    return matchingFiles;
+                candidates.add(postings);
+            }
+
+            // intersect the shortest lists first so the working set shrinks as fast as possible
+            candidates.sort((left, right) -> Integer.compare(left.size, right.size));
+
+            int[] ids = Arrays.copyOf(candidates.getFirst().ids, candidates.getFirst().size);
+            int idCount = ids.length;
+            for (int i = 1; i < candidates.size() && idCount > 0; i++)
+                idCount = candidates.get(i).retainAll(ids, idCount);
+
+            for (int i = 0; i < idCount; i++) {
+                MedicalRecordS3Metadata entry = entries.get(ids[i]);
+                // grams only narrow the candidates down, the exact containment check removes false positives
+                if (entry != null && entry.getKey().contains(searchingWord))
+                    matchingFiles.add(entry);
+            }
+
+            return matchingFiles;
+        }
+    }
+
+
+    /*
+     * Growable, ascending array of ids
+     * */
+    private static final class Postings {
+
+        int[] ids = new int[4];
+
+        int size;
+
+
+        void append(int id) {
+            if (size == ids.length)
+                ids = Arrays.copyOf(ids, size + (size >> 1) + 1);
+            ids[size++] = id;
+        }
+
+
+        /*
+         * Keep in target (ascending, length targetSize) only the ids present in this list, returns the new length
+         * */
+        int retainAll(int[] target, int targetSize) {
+            int kept = 0;
+            int cursor = 0;
+            for (int i = 0; i < targetSize; i++) {
+                int id = target[i];
+                while (cursor < size && ids[cursor] < id)
+                    cursor++;
+                if (cursor == size)
+                    break;
+                if (ids[cursor] == id)
+                    target[kept++] = id;
+            }
+            return kept;
+        }
+    }
+}
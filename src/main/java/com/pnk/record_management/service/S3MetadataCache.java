@@ -0,0 +1,76 @@
+package com.pnk.record_management.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.pnk.record_management.dto.response.MedicalRecordS3Metadata;
+import com.pnk.record_management.dto.response.MetadataCacheStatsResponse;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.Optional;
+
+
+/*
+ * Cache of the S3 metadata of single keys in front of S3MetadataResolver.
+ * Only existing keys are cached: a key uploaded right after a miss must not be reported missing.
+ * */
+@Component
+@RequiredArgsConstructor // injected by Constructor, no longer need of @Autowire
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@Slf4j
+public class S3MetadataCache {
+
+    S3MetadataResolver s3MetadataResolver;
+
+    Cache<String, MedicalRecordS3Metadata> s3MetadataCache;
+
+
+    public Optional<MedicalRecordS3Metadata> resolve(String key) {
+        MedicalRecordS3Metadata cachedMetadata = s3MetadataCache.getIfPresent(key);
+        if (cachedMetadata != null)
+            return Optional.of(cachedMetadata);
+
+        Optional<MedicalRecordS3Metadata> s3Metadata = s3MetadataResolver.resolve(key);
+        s3Metadata.ifPresent(this::put);
+
+        return s3Metadata;
+    }
+
+
+    // cached metadata only, never a request to S3
+    public Optional<MedicalRecordS3Metadata> getIfPresent(String key) {
+        return Optional.ofNullable(s3MetadataCache.getIfPresent(key));
+    }
+
+
+    public void put(MedicalRecordS3Metadata s3Metadata) {
+        s3MetadataCache.put(s3Metadata.getKey(), s3Metadata);
+    }
+
+
+    public void invalidate(String key) {
+        s3MetadataCache.invalidate(key);
+    }
+
+
+    public void invalidateAll(Collection<String> keys) {
+        s3MetadataCache.invalidateAll(keys);
+    }
+
+
+    public MetadataCacheStatsResponse stats() {
+        CacheStats cacheStats = s3MetadataCache.stats();
+
+        return MetadataCacheStatsResponse.builder()
+                .estimatedSize(s3MetadataCache.estimatedSize())
+                .hitCount(cacheStats.hitCount())
+                .missCount(cacheStats.missCount())
+                .hitRate(cacheStats.hitRate())
+                .evictionCount(cacheStats.evictionCount())
+                .build();
+    }
+}
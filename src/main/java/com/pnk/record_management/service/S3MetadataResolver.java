@@ -0,0 +1,115 @@
+package com.pnk.record_management.service;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.StorageClass;
+import com.pnk.record_management.dto.response.MedicalRecordS3Metadata;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import java.util.Date;
+import java.util.Objects;
+import java.util.Optional;
+
+
+/*
+ * Builds MedicalRecordS3Metadata of a single key in at most one round trip:
+ * a HEAD request (getObjectMetadata) for lookups, or no request at all right after a put
+ * */
+@Component
+@RequiredArgsConstructor // injected by Constructor, no longer need of @Autowire
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@Slf4j
+public class S3MetadataResolver {
+
+    AmazonS3 s3Client;
+
+    @NonFinal
+    @Value("${application.bucket.name}")
+    String bucketName;
+
+
+    /*
+     * HEAD the key, empty when S3 answers 404
+     * */
+    public Optional<MedicalRecordS3Metadata> resolve(String key) {
+        try {
+            return Optional.of(fromObjectMetadata(key, s3Client.getObjectMetadata(bucketName, key)));
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == HttpStatus.NOT_FOUND.value()) {
+                log.info(">> resolve >> Key {} not found on S3", key);
+                return Optional.empty();
+            }
+            throw e;
+        }
+    }
+
+
+    /*
+     * Metadata of a whole object, as returned by HEAD or by a GET without range
+     * */
+    public MedicalRecordS3Metadata fromObjectMetadata(String key, ObjectMetadata objectMetadata) {
+        return MedicalRecordS3Metadata.builder()
+                .bucketName(bucketName)
+                .key(key)
+                .etag(objectMetadata.getETag())
+                .versionId(objectMetadata.getVersionId())
+                .size(objectMetadata.getInstanceLength())
+                .lastModified(objectMetadata.getLastModified())
+                .storageClass(storageClassOrDefault(objectMetadata.getStorageClass()))
+                .encryptionChunkSize(RecordEncryptor.chunkSizeOf(objectMetadata.getUserMetadata()))
+                .build();
+    }
+
+
+    /*
+     * Metadata of an object just written, taken from the put response: the PUT response carries the ETag and version
+     * but no Last-Modified, the time of the response is used instead
+     * */
+    public MedicalRecordS3Metadata fromPutObjectResult(String key, long size, PutObjectResult putObjectResult) {
+        ObjectMetadata objectMetadata = putObjectResult.getMetadata();
+
+        Date lastModified = objectMetadata != null && objectMetadata.getLastModified() != null
+                ? objectMetadata.getLastModified()
+                : new Date();
+
+        return MedicalRecordS3Metadata.builder()
+                .bucketName(bucketName)
+                .key(key)
+                .etag(putObjectResult.getETag())
+                .versionId(putObjectResult.getVersionId())
+                .size(size)
+                .lastModified(lastModified)
+                .storageClass(storageClassOrDefault(objectMetadata != null ? objectMetadata.getStorageClass() : null))
+                .build();
+    }
+
+
+    public MedicalRecordS3Metadata fromCompleteMultipartUploadResult(
+            String key, long size, CompleteMultipartUploadResult completeMultipartUploadResult) {
+        return MedicalRecordS3Metadata.builder()
+                .bucketName(bucketName)
+                .key(key)
+                .etag(completeMultipartUploadResult.getETag())
+                .versionId(completeMultipartUploadResult.getVersionId())
+                .size(size)
+                .lastModified(new Date())
+                .storageClass(StorageClass.Standard.toString())
+                .build();
+    }
+
+
+    // S3 omits the storage class header for STANDARD objects
+    private static String storageClassOrDefault(String storageClass) {
+        return Objects.requireNonNullElse(storageClass, StorageClass.Standard.toString());
+    }
+}
@@ -0,0 +1,500 @@
+package com.pnk.record_management.service;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.pnk.record_management.dto.response.MedicalRecordS3Metadata;
+import com.pnk.record_management.dto.response.ReconciliationReport;
+import com.pnk.record_management.entity.MedicalRecord;
+import com.pnk.record_management.entity.ReconciliationCheckpoint;
+import com.pnk.record_management.entity.ReconciliationLease;
+import com.pnk.record_management.repository.ReconciliationCheckpointRepository;
+import com.pnk.record_management.utils.RecordKeyUtils;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/*
+ * Background job repairing the drift between the bucket and the medical-record collection left by uploads and
+ * deletes interrupted between their S3 and MongoDB steps. The key space is split into ranges reconciled in parallel;
+ * each range is listed page by page with StartAfter and its checkpoint is saved after every page, so a pass
+ * interrupted by a restart resumes where it stopped. Each page is compared with the records of the same key interval
+ * in two bulk lookups and repaired with a single unordered bulk write:
+ * - object without a record: a record is created (never deleted, the object may be the only copy of the content)
+ * - record marked as deleted whose object exists: marked available again, unless the object is still shared by
+ *   other records (its own record was deleted, the object stays for them)
+ * - record marked as available whose object is gone: marked as deleted
+ * Records changed less than grace-period before the page was listed are left alone: the listing may predate their
+ * upload or delete, still in progress or just done. The bulk updates repeat that condition, so a record changed
+ * between the lookups and the write is not repaired either.
+ * Every instance of the service runs the job, but a range is only reconciled by the instance holding its lease
+ * (reconciliation-lease collection), extended after every page; the other instances skip the range meanwhile and
+ * take it over, from its checkpoint, once the lease expired.
+ * Runs every application.reconciliation.interval when application.reconciliation.enabled is set.
+ * */
+@Component
+@ConditionalOnProperty(name = "application.reconciliation.enabled", havingValue = "true")
+@RequiredArgsConstructor // injected by Constructor, no longer need of @Autowire
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@Slf4j
+public class S3Reconciler {
+
+    static final String RECONCILER_USER = "reconciler";
+
+    MongoTemplate mongoTemplate;
+
+    ReconciliationCheckpointRepository checkpointRepository;
+
+    AmazonS3 s3Client;
+
+    ExecutorService storageTaskExecutor;
+
+    RecordBlobRegistry recordBlobRegistry;
+
+    StorageMetrics storageMetrics;
+
+    @NonFinal
+    @Value("${application.bucket.name}")
+    String bucketName;
+
+    @NonFinal
+    @Value("${application.reconciliation.split-keys}")
+    List<String> splitKeys;
+
+    @NonFinal
+    @Value("${application.reconciliation.parallelism}")
+    int parallelism;
+
+    @NonFinal
+    @Value("${application.reconciliation.page-size}")
+    int pageSize;
+
+    @NonFinal
+    @Value("${application.reconciliation.max-pages-per-second}")
+    double maxPagesPerSecond;
+
+    @NonFinal
+    @Value("${application.reconciliation.grace-period}")
+    Duration gracePeriod;
+
+    @NonFinal
+    @Value("${application.reconciliation.lease-duration}")
+    Duration leaseDuration;
+
+    // owner of the leases taken by this instance
+    String instanceId = UUID.randomUUID().toString();
+
+    // next instant (System.nanoTime) a listing may start, shared by all ranges
+    AtomicLong nextListingNanos = new AtomicLong(System.nanoTime());
+
+
+    @Scheduled(fixedDelayString = "${application.reconciliation.interval}")
+    public void scheduledReconcile() {
+        // the report is logged by reconcile
+        reconcile();
+    }
+
+
+    public ReconciliationReport reconcile() {
+        long startedAt = System.nanoTime();
+        Progress progress = new Progress(storageMetrics);
+
+        Semaphore permits = new Semaphore(parallelism);
+        List<Future<?>> reconciliations = new ArrayList<>();
+
+        try {
+            for (KeyRange keyRange : keyRanges(splitKeys)) {
+                permits.acquire();
+                reconciliations.add(storageTaskExecutor.submit(() -> {
+                    try {
+                        if (reconcileRange(keyRange, progress))
+                            progress.completedRanges.increment();
+                        else
+                            progress.skippedRanges.increment();
+                    } catch (Exception e) {
+                        // the checkpoint of the last reconciled page is kept, the next run resumes from it
+                        log.error(">> reconcile >> Range {} interrupted", keyRange.id(), e);
+                        progress.failedRanges.increment();
+                    } finally {
+                        permits.release();
+                    }
+                }));
+            }
+
+            for (Future<?> reconciliation : reconciliations)
+                reconciliation.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            reconciliations.forEach(reconciliation -> reconciliation.cancel(true));
+        } catch (ExecutionException e) {
+            // the tasks catch their own failures
+            log.error(">> reconcile >> Unexpected reconciliation failure", e.getCause());
+        }
+
+        ReconciliationReport report = progress.toReport();
+        log.info(">> reconcile >> {} in {} ms", report, (System.nanoTime() - startedAt) / 1_000_000);
+        return report;
+    }
+
+
+    /*
+     * Ranges between consecutive split keys, from the start to the end of the key space
+     * */
+    static List<KeyRange> keyRanges(List<String> splitKeys) {
+        List<String> boundaries = splitKeys.stream().filter(key -> !key.isBlank()).sorted().distinct().toList();
+        List<KeyRange> keyRanges = new ArrayList<>(boundaries.size() + 1);
+
+        String rangeStart = null;
+        for (String boundary : boundaries) {
+            keyRanges.add(new KeyRange(rangeStart, boundary));
+            rangeStart = boundary;
+        }
+        keyRanges.add(new KeyRange(rangeStart, null));
+
+        return keyRanges;
+    }
+
+
+    /*
+     * Reconciles the range to its end, false when another instance holds its lease or takes it over meanwhile
+     * */
+    private boolean reconcileRange(KeyRange keyRange, Progress progress) throws InterruptedException {
+        if (!acquireLease(keyRange)) {
+            log.info(">> reconcileRange >> Range {} leased by another instance, skipped", keyRange.id());
+            return false;
+        }
+
+        try {
+            return reconcileLeasedRange(keyRange, progress);
+        } finally {
+            releaseLease(keyRange);
+        }
+    }
+
+
+    private boolean reconcileLeasedRange(KeyRange keyRange, Progress progress) throws InterruptedException {
+        Instant now = Instant.now();
+        Optional<ReconciliationCheckpoint> savedCheckpoint = checkpointRepository.findById(keyRange.id());
+        // the lag of the range is known again after a restart
+        savedCheckpoint
+                .filter(completedCheckpoint -> completedCheckpoint.isCompleted()
+                        && completedCheckpoint.getPassStartedAt() != null)
+                .ifPresent(completedCheckpoint -> storageMetrics.recordCompletedPass(
+                        keyRange.id(), completedCheckpoint.getPassStartedAt()));
+
+        // an unfinished pass is resumed, a finished one is started again from the range start
+        ReconciliationCheckpoint checkpoint = savedCheckpoint
+                .filter(unfinishedCheckpoint -> !unfinishedCheckpoint.isCompleted())
+                .orElseGet(() -> ReconciliationCheckpoint.builder()
+                        .id(keyRange.id())
+                        .rangeStart(keyRange.start())
+                        .rangeEnd(keyRange.end())
+                        .lastKey(keyRange.start())
+                        .passStartedAt(now)
+                        .build());
+
+        log.info(">> reconcileRange >> Range {} from {}", keyRange.id(), checkpoint.getLastKey());
+
+        while (!checkpoint.isCompleted()) {
+            awaitListingPermit();
+
+            // the checkpoint is only saved while the lease is held, a page may take long to list and repair
+            if (!acquireLease(keyRange)) {
+                log.warn(">> reconcileRange >> Lease of range {} lost at {}", keyRange.id(), checkpoint.getLastKey());
+                return false;
+            }
+
+            Instant listedAt = Instant.now();
+            ListObjectsV2Result result = s3Client.listObjectsV2(new ListObjectsV2Request()
+                    .withBucketName(bucketName)
+                    .withStartAfter(checkpoint.getLastKey())
+                    .withMaxKeys(pageSize));
+
+            List<S3ObjectSummary> summaries = result.getObjectSummaries().stream()
+                    .filter(summary -> keyRange.end() == null || summary.getKey().compareTo(keyRange.end()) <= 0)
+                    .toList();
+            boolean rangeEndReached = !result.isTruncated() || summaries.size() < result.getObjectSummaries().size();
+            String upperKey = rangeEndReached ? keyRange.end() : summaries.get(summaries.size() - 1).getKey();
+
+            PageRepairs pageRepairs = reconcilePage(checkpoint.getLastKey(), upperKey, summaries, listedAt);
+
+            checkpoint.setLastKey(upperKey);
+            checkpoint.setCompleted(rangeEndReached);
+            checkpoint.setUpdatedAt(Instant.now());
+            checkpoint.setScannedKeys(checkpoint.getScannedKeys() + summaries.size());
+            checkpoint.setAdoptedObjects(checkpoint.getAdoptedObjects() + pageRepairs.adoptedObjects());
+            checkpoint.setRestoredRecords(checkpoint.getRestoredRecords() + pageRepairs.restoredRecords());
+            checkpoint.setMissingObjects(checkpoint.getMissingObjects() + pageRepairs.missingObjects());
+            checkpointRepository.save(checkpoint);
+
+            progress.add(keyRange, checkpoint, summaries.size(), pageRepairs);
+        }
+
+        log.info(">> reconcileRange >> Range {} done: {} keys, {} adopted, {} restored, {} missing",
+                keyRange.id(), checkpoint.getScannedKeys(), checkpoint.getAdoptedObjects(),
+                checkpoint.getRestoredRecords(), checkpoint.getMissingObjects());
+        return true;
+    }
+
+
+    /*
+     * Takes or extends the lease of the range for leaseDuration; fails while another instance holds it unexpired.
+     * The lease of a range never leased is created by the upsert, two instances creating it at once conflict on its id.
+     * */
+    private boolean acquireLease(KeyRange keyRange) {
+        Instant now = Instant.now();
+        Query leaseQuery = new Query(Criteria.where("_id").is(keyRange.id())
+                .orOperator(Criteria.where("owner").is(instanceId), Criteria.where("expiresAt").lt(now)));
+        Update leaseUpdate = new Update()
+                .set("owner", instanceId)
+                .set("expiresAt", now.plus(leaseDuration));
+
+        try {
+            return mongoTemplate.findAndModify(leaseQuery, leaseUpdate,
+                    FindAndModifyOptions.options().upsert(true).returnNew(true), ReconciliationLease.class) != null;
+        } catch (DuplicateKeyException e) {
+            return false;
+        }
+    }
+
+
+    // the next run of any instance may take the range at once
+    private void releaseLease(KeyRange keyRange) {
+        try {
+            mongoTemplate.remove(new Query(Criteria.where("_id").is(keyRange.id()).and("owner").is(instanceId)),
+                    ReconciliationLease.class);
+        } catch (DataAccessException e) {
+            log.warn(">> releaseLease >> Lease of range {} left to expire: {}", keyRange.id(), e.getMessage());
+        }
+    }
+
+
+    /*
+     * Compares the objects of the key interval (lowerKey, upperKey], listed at listedAt, with its records and repairs
+     * the differences
+     * */
+    private PageRepairs reconcilePage(String lowerKey, String upperKey, List<S3ObjectSummary> summaries,
+                                      Instant listedAt) {
+        // objects and records this recent may belong to an upload or a delete the listing did not see complete
+        Instant repairableBefore = listedAt.minus(gracePeriod);
+
+        Map<String, S3ObjectSummary> summariesByKey = new LinkedHashMap<>();
+        summaries.forEach(summary -> summariesByKey.put(summary.getKey(), summary));
+
+        // records of the listed objects
+        Query listedRecordsQuery = new Query(Criteria.where("medicalRecordName").in(summariesByKey.keySet()));
+        listedRecordsQuery.fields().include("medicalRecordName", "s3Availability", "latestUpdateDateTime");
+        Map<String, MedicalRecord> listedRecordsByKey = new LinkedHashMap<>();
+        if (!summariesByKey.isEmpty())
+            mongoTemplate.find(listedRecordsQuery, MedicalRecord.class).forEach(medicalRecord ->
+                    listedRecordsByKey.put(medicalRecord.getMedicalRecordName(), medicalRecord));
+
+        // records of the interval said to be available, whatever the listing returned; a record sharing the object of
+        // an identical upload (contentKey) has no object of its own to be found
+        Criteria keyInterval = Criteria.where("medicalRecordName");
+        if (lowerKey != null)
+            keyInterval.gt(lowerKey);
+        if (upperKey != null)
+            keyInterval.lte(upperKey);
+        if (lowerKey == null && upperKey == null)
+            keyInterval.exists(true);
+        Query availableRecordsQuery = new Query(keyInterval)
+                .addCriteria(Criteria.where("s3Availability").is(true))
+                .addCriteria(Criteria.where("contentKey").is(null));
+        availableRecordsQuery.fields().include("medicalRecordName", "latestUpdateDateTime");
+        Set<String> availableKeys = new HashSet<>();
+        mongoTemplate.find(availableRecordsQuery, MedicalRecord.class).stream()
+                .filter(medicalRecord -> isRepairable(medicalRecord, repairableBefore))
+                .forEach(medicalRecord -> availableKeys.add(medicalRecord.getMedicalRecordName()));
+
+        List<MedicalRecord> adoptedRecords = new ArrayList<>();
+        List<String> restoredKeys = new ArrayList<>();
+        for (S3ObjectSummary summary : summariesByKey.values()) {
+            MedicalRecord listedRecord = listedRecordsByKey.get(summary.getKey());
+            if (listedRecord == null && summary.getLastModified().toInstant().isBefore(repairableBefore))
+                adoptedRecords.add(adoptedRecord(summary));
+            else if (listedRecord != null && !listedRecord.isS3Availability()
+                    && isRepairable(listedRecord, repairableBefore))
+                restoredKeys.add(summary.getKey());
+        }
+
+        // the object of a deleted record that other records still share is theirs, not a sign of an interrupted delete
+        if (!restoredKeys.isEmpty())
+            restoredKeys.removeAll(recordBlobRegistry.findReleasedObjectKeys(restoredKeys));
+
+        List<String> missingKeys = availableKeys.stream()
+                .filter(key -> !summariesByKey.containsKey(key))
+                .toList();
+
+        if (adoptedRecords.isEmpty() && restoredKeys.isEmpty() && missingKeys.isEmpty())
+            return new PageRepairs(0, 0, 0);
+
+        BulkOperations repairs = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, MedicalRecord.class);
+        if (!adoptedRecords.isEmpty())
+            repairs.insert(adoptedRecords);
+        if (!restoredKeys.isEmpty())
+            repairs.updateMulti(repairableByKeys(restoredKeys, false, repairableBefore), availabilityUpdate(true));
+        if (!missingKeys.isEmpty())
+            repairs.updateMulti(repairableByKeys(missingKeys, true, repairableBefore), availabilityUpdate(false));
+
+        try {
+            repairs.execute();
+        } catch (DataAccessException e) {
+            // typically the record of an adopted object saved meanwhile (unique key), the next pass sees it
+            log.warn(">> reconcilePage >> Some repairs of ({}, {}] failed: {}", lowerKey, upperKey, e.getMessage());
+        }
+
+        log.info(">> reconcilePage >> ({}, {}]: {} adopted, {} restored, {} missing",
+                lowerKey, upperKey, adoptedRecords.size(), restoredKeys.size(), missingKeys.size());
+        return new PageRepairs(adoptedRecords.size(), restoredKeys.size(), missingKeys.size());
+    }
+
+
+    private static MedicalRecord adoptedRecord(S3ObjectSummary summary) {
+        MedicalRecord medicalRecord = StorageServiceImpl.buildMedicalRecord(MedicalRecordS3Metadata.builder()
+                .key(summary.getKey())
+                .lastModified(summary.getLastModified())
+                .build(), RecordKeyUtils.extractPatientId(summary.getKey()), RECONCILER_USER);
+        // the upload time is the best known creation time
+        medicalRecord.setCreationDateTime(summary.getLastModified().toInstant());
+        return medicalRecord;
+    }
+
+
+    // records without an update time predate it
+    private static boolean isRepairable(MedicalRecord medicalRecord, Instant repairableBefore) {
+        return medicalRecord.getLatestUpdateDateTime() == null
+                || medicalRecord.getLatestUpdateDateTime().isBefore(repairableBefore);
+    }
+
+
+    // the records of the keys still in the state they were repaired for, and not changed since
+    private static Query repairableByKeys(Collection<String> keys, boolean s3Availability, Instant repairableBefore) {
+        return new Query(Criteria.where("medicalRecordName").in(keys))
+                .addCriteria(Criteria.where("s3Availability").is(s3Availability))
+                .addCriteria(Criteria.where("latestUpdateDateTime").not().gte(repairableBefore));
+    }
+
+
+    private static Update availabilityUpdate(boolean s3Availability) {
+        return new Update()
+                .set("s3Availability", s3Availability)
+                .set("latestUpdateDateTime", Instant.now())
+                .set("updatedByUser", RECONCILER_USER)
+                .inc("version", 1);
+    }
+
+
+    /*
+     * Spaces the listings of all ranges to at most maxPagesPerSecond, to leave the S3 request rate to the traffic
+     * */
+    private void awaitListingPermit() throws InterruptedException {
+        long listingIntervalNanos = (long) (1_000_000_000L / maxPagesPerSecond);
+        long now = System.nanoTime();
+        // the earliest free slot is taken without a monitor, the ranges then sleep apart
+        long listingSlot = nextListingNanos.getAndUpdate(nextListing ->
+                (nextListing - now > 0 ? nextListing : now) + listingIntervalNanos);
+        long waitNanos = listingSlot - now;
+
+        if (waitNanos > 0)
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+
+
+    // keys after start up to and including end, null meaning unbounded
+    record KeyRange(String start, String end) {
+
+        String id() {
+            return (start == null ? "" : start) + ".." + (end == null ? "" : end);
+        }
+    }
+
+
+    record PageRepairs(long adoptedObjects, long restoredRecords, long missingObjects) {
+    }
+
+
+    // counters of a run, summed over the ranges reconciled in parallel, and the reconciliation meters
+    private static final class Progress {
+
+        final StorageMetrics storageMetrics;
+
+        final LongAdder scannedKeys = new LongAdder();
+
+        final LongAdder adoptedObjects = new LongAdder();
+
+        final LongAdder restoredRecords = new LongAdder();
+
+        final LongAdder missingObjects = new LongAdder();
+
+        final LongAdder completedRanges = new LongAdder();
+
+        final LongAdder failedRanges = new LongAdder();
+
+        final LongAdder skippedRanges = new LongAdder();
+
+        Progress(StorageMetrics storageMetrics) {
+            this.storageMetrics = storageMetrics;
+        }
+
+        // checkpoint: the one saved after the page
+        void add(KeyRange keyRange, ReconciliationCheckpoint checkpoint, long pageKeys, PageRepairs pageRepairs) {
+            scannedKeys.add(pageKeys);
+            adoptedObjects.add(pageRepairs.adoptedObjects());
+            restoredRecords.add(pageRepairs.restoredRecords());
+            missingObjects.add(pageRepairs.missingObjects());
+
+            storageMetrics.recordReconciledPage(keyRange.id(), pageKeys, pageRepairs.adoptedObjects(),
+                    pageRepairs.restoredRecords(), pageRepairs.missingObjects(), checkpoint.getUpdatedAt());
+            if (checkpoint.isCompleted() && checkpoint.getPassStartedAt() != null)
+                storageMetrics.recordCompletedPass(keyRange.id(), checkpoint.getPassStartedAt());
+        }
+
+        ReconciliationReport toReport() {
+            return ReconciliationReport.builder()
+                    .scannedKeys(scannedKeys.sum())
+                    .adoptedObjects(adoptedObjects.sum())
+                    .restoredRecords(restoredRecords.sum())
+                    .missingObjects(missingObjects.sum())
+                    .completedRanges(completedRanges.sum())
+                    .failedRanges(failedRanges.sum())
+                    .skippedRanges(skippedRanges.sum())
+                    .build();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.pnk.record_management.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.Timer;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import org.springframework.boot.actuate.metrics.http.Outcome;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/*
+ * Meters of the storage hot paths, scraped with the other actuator meters from /actuator/prometheus. The S3 calls
+ * are timed by the instrumented clients (see StorageConfiguration) and the MongoDB ones by Spring Boot itself
+ * (mongodb.driver.commands per command, spring.data.repository.invocations per repository method); this records
+ * what only the services see: the bytes moved, the listing pages a search walks, the local file I/O and the progress
+ * of the reconciliation.
+ * Histogram buckets, for p99 SLOs, are turned on per meter under management.metrics.distribution.
+ * */
+@Component
+@RequiredArgsConstructor // injected by Constructor, no longer need of @Autowire
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class StorageMetrics {
+
+    // tags: client (sync, async), operation (put, get, head, list, delete, copy, multipart-*), outcome
+    public static final String S3_REQUESTS = "record.s3.requests";
+
+    // tags: direction (upload, download), source (s3, cache)
+    public static final String TRANSFERRED = "record.transferred";
+
+    // tags: search (page, stream, index)
+    public static final String SEARCH_LIST_PAGES = "record.search.list.pages";
+
+    // tags: store (content-cache, outbox), operation (write, read, append, force, checkpoint), outcome
+    public static final String FILE_IO = "record.file.io";
+
+    // same tags as record.file.io
+    public static final String FILE_IO_SIZE = "record.file.io.size";
+
+    public static final String RECONCILIATION_SCANNED = "record.reconciliation.scanned";
+
+    // tags: repair (adopted, restored, missing)
+    public static final String RECONCILIATION_REPAIRS = "record.reconciliation.repairs";
+
+    // tags: range; time of the last page reconciled
+    public static final String RECONCILIATION_LAST_PAGE = "record.reconciliation.range.last.page";
+
+    // tags: range; time since the start of the last completed pass, any older drift of the range is repaired
+    public static final String RECONCILIATION_LAG = "record.reconciliation.range.lag";
+
+    // outcome of failed file I/O, there is no status to classify it by
+    static final String FILE_IO_ERROR = "ERROR";
+
+    public static final String SYNC_CLIENT = "sync";
+
+    public static final String ASYNC_CLIENT = "async";
+
+    public static final String UPLOAD = "upload";
+
+    public static final String DOWNLOAD = "download";
+
+    public static final String S3 = "s3";
+
+    public static final String CACHE = "cache";
+
+    MeterRegistry meterRegistry;
+
+    // epoch millis per key range, read by the reconciliation gauges
+    Map<String, AtomicLong> lastPageMillisByRange = new ConcurrentHashMap<>();
+
+    Map<String, AtomicLong> completedPassStartMillisByRange = new ConcurrentHashMap<>();
+
+
+    /*
+     * Outcome tag of a call answered with statusCode, the same values as the http.server.requests ones
+     * */
+    public static String outcomeOf(int statusCode) {
+        return Outcome.forStatus(statusCode).name();
+    }
+
+
+    // outcome of a call that failed without a response (connection, timeout, interrupted)
+    public static String unknownOutcome() {
+        return Outcome.UNKNOWN.name();
+    }
+
+
+    public static String successOutcome() {
+        return Outcome.SUCCESS.name();
+    }
+
+
+    public void recordS3Request(String client, String operation, String outcome, long nanos) {
+        Timer.builder(S3_REQUESTS)
+                .description("S3 calls, a GET up to its response headers")
+                .tags("client", client, "operation", operation, "outcome", outcome)
+                .register(meterRegistry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+
+    public void recordTransfer(String direction, String source, long bytes) {
+        DistributionSummary.builder(TRANSFERRED)
+                .description("Record content uploaded to S3 (as stored) or served to the client")
+                .baseUnit("bytes")
+                .tags("direction", direction, "source", source)
+                .register(meterRegistry)
+                .record(bytes);
+    }
+
+
+    public void recordListPages(String search, int pages) {
+        DistributionSummary.builder(SEARCH_LIST_PAGES)
+                .description("S3 listing pages walked by one search")
+                .tags("search", search)
+                .register(meterRegistry)
+                .record(pages);
+    }
+
+
+    public void recordFileIo(String store, String operation, boolean succeeded, long nanos, long bytes) {
+        String outcome = succeeded ? successOutcome() : FILE_IO_ERROR;
+
+        Timer.builder(FILE_IO)
+                .description("Local file I/O of the content cache disk tier and of the write-behind outbox")
+                .tags("store", store, "operation", operation, "outcome", outcome)
+                .register(meterRegistry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+
+        DistributionSummary.builder(FILE_IO_SIZE)
+                .baseUnit("bytes")
+                .tags("store", store, "operation", operation, "outcome", outcome)
+                .register(meterRegistry)
+                .record(bytes);
+    }
+
+
+    public void recordReconciledPage(String range, long scannedKeys, long adoptedObjects, long restoredRecords,
+                                     long missingObjects, Instant reconciledAt) {
+        Counter.builder(RECONCILIATION_SCANNED)
+                .description("Keys listed by the reconciliation")
+                .register(meterRegistry)
+                .increment(scannedKeys);
+        recordRepairs("adopted", adoptedObjects);
+        recordRepairs("restored", restoredRecords);
+        recordRepairs("missing", missingObjects);
+
+        lastPageMillisByRange.computeIfAbsent(range, ignored -> {
+            AtomicLong lastPageMillis = new AtomicLong();
+            TimeGauge.builder(RECONCILIATION_LAST_PAGE, lastPageMillis, TimeUnit.MILLISECONDS, AtomicLong::get)
+                    .description("Time the key range last had a page reconciled, since the epoch")
+                    .tags("range", range)
+                    .register(meterRegistry);
+            return lastPageMillis;
+        }).set(reconciledAt.toEpochMilli());
+    }
+
+
+    public void recordCompletedPass(String range, Instant passStartedAt) {
+        completedPassStartMillisByRange.computeIfAbsent(range, ignored -> {
+            AtomicLong passStartMillis = new AtomicLong();
+            TimeGauge.builder(RECONCILIATION_LAG, passStartMillis, TimeUnit.MILLISECONDS,
+                            startMillis -> System.currentTimeMillis() - startMillis.get())
+                    .description("Time since the last completed reconciliation pass of the key range started")
+                    .tags("range", range)
+                    .register(meterRegistry);
+            return passStartMillis;
+        }).set(passStartedAt.toEpochMilli());
+    }
+
+
+    private void recordRepairs(String repair, long count) {
+        Counter.builder(RECONCILIATION_REPAIRS)
+                .description("Drift repaired by the reconciliation")
+                .tags("repair", repair)
+                .register(meterRegistry)
+                .increment(count);
+    }
+}
@@ -1,9 +1,14 @@
 package com.pnk.record_management.service;
 
+import com.pnk.record_management.dto.response.MedicalRecordBatchItemResponse;
+import com.pnk.record_management.dto.response.MedicalRecordDownload;
 import com.pnk.record_management.dto.response.MedicalRecordResponse;
 import com.pnk.record_management.dto.response.MedicalRecordS3Metadata;
+import com.pnk.record_management.dto.response.MetadataCacheStatsResponse;
+import com.pnk.record_management.dto.response.PageResponse;
 import org.springframework.stereotype.Repository;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.io.File;
 import java.util.List;
@@ -12,14 +17,27 @@ import java.util.List;
 @Repository
 public interface StorageService {
 
-    MedicalRecordResponse uploadFileToS3(MultipartFile file);
+    MedicalRecordResponse uploadFileToS3(MultipartFile file, String patientId);
+
+    List<MedicalRecordBatchItemResponse> uploadFilesToS3(List<MultipartFile> files, String patientId);
 
     List<MedicalRecordS3Metadata> searchS3ExactFilename(String searchingWord);
 
     List<MedicalRecordS3Metadata> searchS3ContainsFilename(String searchingWord);
 
+    PageResponse<MedicalRecordS3Metadata> searchS3ContainsFilename(String searchingWord, int limit, String cursor);
+
+    StreamingResponseBody streamS3ContainsFilename(String searchingWord);
+
     byte[] downloadFileFromS3(String fileName);
 
+    MedicalRecordDownload streamFileFromS3(String fileName, String rangeHeader, String ifRangeHeader,
+                                           String acceptEncodingHeader);
+
     MedicalRecordResponse deleteFileFromS3(String fileName);
 
+    List<MedicalRecordBatchItemResponse> deleteFilesFromS3(List<String> fileNames);
+
+    MetadataCacheStatsResponse getMetadataCacheStats();
+
 }
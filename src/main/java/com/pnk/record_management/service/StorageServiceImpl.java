@@ -3,36 +3,64 @@ package com.pnk.record_management.service;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.*;
 import com.amazonaws.util.IOUtils;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.pnk.record_management.dto.response.MedicalRecordBatchItemResponse;
+import com.pnk.record_management.dto.response.MedicalRecordDownload;
 import com.pnk.record_management.dto.response.MedicalRecordResponse;
 import com.pnk.record_management.dto.response.MedicalRecordS3Metadata;
+import com.pnk.record_management.dto.response.MetadataCacheStatsResponse;
+import com.pnk.record_management.dto.response.PageResponse;
 import com.pnk.record_management.entity.MedicalRecord;
 import com.pnk.record_management.exception.AppException;
 import com.pnk.record_management.exception.ErrorCode;
-import com.pnk.record_management.repository.MedicalRecordRepository;
+import com.pnk.record_management.mapper.MedicalRecordMapper;
+import com.pnk.record_management.utils.ContentEncodingUtils;
+import com.pnk.record_management.utils.CursorUtils;
+import com.pnk.record_management.utils.HttpRangeUtils;
+import com.pnk.record_management.utils.RecordKeyUtils;
+import com.pnk.record_management.utils.HttpRangeUtils.ByteRange;
 import lombok.AccessLevel;
 import lombok.RequiredArgsConstructor;
 import lombok.experimental.FieldDefaults;
 import lombok.experimental.NonFinal;
 import lombok.extern.slf4j.Slf4j;
-import org.modelmapper.ModelMapper;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.stereotype.Service;
+import org.springframework.util.StreamUtils;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.multipart.MultipartException;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.InputStream;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import static com.pnk.record_management.utils.JwtUtils.extractDataFromJWT;
 
@@ -43,7 +71,8 @@ import static com.pnk.record_management.utils.JwtUtils.extractDataFromJWT;
 @Slf4j
 public class StorageServiceImpl implements StorageService {
 
-    MedicalRecordRepository medicalRecordRepository;
+    // hard limit of S3 for one multi-object delete request
+    static final int MAX_KEYS_PER_DELETE_REQUEST = 1000;
 
     private final AmazonS3 s3Client;
 
@@ -55,30 +84,99 @@ public class StorageServiceImpl implements StorageService {
     @Value("${application.bucket.name}")
     private String bucketName;
 
-    ModelMapper modelMapper = new ModelMapper();
+    @NonFinal
+    @Value("${application.download.buffer-size}")
+    private DataSize downloadBufferSize;
+
+    @NonFinal
+    @Value("${application.upload.buffer-size}")
+    private DataSize uploadBufferSize;
+
+    @NonFinal
+    @Value("${application.upload.multipart.threshold}")
+    private DataSize multipartThreshold;
+
+    @NonFinal
+    @Value("${application.upload.batch.parallelism}")
+    private int batchParallelism;
+
+    @NonFinal
+    @Value("${application.upload.batch.max-files}")
+    private int batchMaxFiles;
+
+    @NonFinal
+    @Value("${application.delete.batch.max-keys}")
+    private int batchMaxDeletedKeys;
+
+    @NonFinal
+    @Value("${application.search.page.max-limit}")
+    private int searchPageMaxLimit;
+
+    @NonFinal
+    @Value("${application.search.page.max-scanned-keys}")
+    private int searchPageMaxScannedKeys;
+
+    S3KeyIndex s3KeyIndex;
+
+    S3MetadataResolver s3MetadataResolver;
+
+    S3MetadataCache s3MetadataCache;
+
+    RecordContentCache recordContentCache;
+
+    MultipartUploadEngine multipartUploadEngine;
+
+    ObjectMapper objectMapper;
+
+    ExecutorService storageTaskExecutor;
+
+    MedicalRecordWriter medicalRecordWriter;
+
+    RecordCompressor recordCompressor;
+
+    RecordEncryptor recordEncryptor;
+
+    RecordBlobRegistry recordBlobRegistry;
+
+    StorageMetrics storageMetrics;
+
+    MedicalRecordMapper medicalRecordMapper;
 
 
     @Override
     @PreAuthorize("hasRole('ADMIN')")
-    public MedicalRecordResponse uploadFileToS3(MultipartFile file) {
+    public MedicalRecordResponse uploadFileToS3(MultipartFile file, String patientId) {
         Instant utcNow = ZonedDateTime.now(ZoneId.of("UTC")).toInstant();
+        String fileName = RecordKeyUtils.generateFileName(patientId, utcNow, file);
 
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy_MM_dd_hh_mm_ss_SSS");
-        String timePrefix = utcNow.atZone(ZoneId.of("UTC")).format(formatter);
-        String fileName = timePrefix + "_" + utcNow.getEpochSecond() + "_" + file.getOriginalFilename();
-
-        File fileObject = null;
         try {
-            log.info(">> uploadFile >> Uploading file: {} on S3", fileName);
+            // the part is already spooled locally by the servlet container: hashing it first costs no S3 request
+            // and lets a duplicate skip the put
+            String contentSha256 = recordBlobRegistry.isEnabled() ? contentSha256(file) : null;
+
+            MedicalRecordS3Metadata sharedS3Metadata =
+                    contentSha256 != null ? acquireSharedObject(fileName, patientId, contentSha256) : null;
+            if (sharedS3Metadata != null)
+                return insertSharedMedicalRecordInDB(fileName, sharedS3Metadata, patientId, contentSha256);
 
-            fileObject = convertMultiPartFileToFile(file);
-            s3Client.putObject(new PutObjectRequest(bucketName, fileName, fileObject));
+            log.info(">> uploadFile >> Uploading file: {} on S3", fileName);
 
-            // after uploading, search with exact fileName to get metadata of the file in S3
-            MedicalRecordS3Metadata s3Metadata = searchS3ExactFilename(fileName).getFirst();
+            // metadata of the uploaded file comes from the put response, no extra lookup in S3
+            MedicalRecordS3Metadata s3Metadata = putMultipartFileToS3(fileName, file);
+            storageMetrics.recordTransfer(StorageMetrics.UPLOAD, StorageMetrics.S3, s3Metadata.getSize());
+            s3KeyIndex.add(s3Metadata);
+            s3MetadataCache.put(s3Metadata);
+            if (contentSha256 != null)
+                recordBlobRegistry.register(fileName, patientId, contentSha256);
 
             // add uploaded file name to a database (MongoDB) for management purpose
-            MedicalRecordResponse medicalRecordResponse = insertMedicalRecordInDB(s3Metadata);
+            MedicalRecordResponse medicalRecordResponse;
+            try {
+                medicalRecordResponse = insertMedicalRecordInDB(s3Metadata, patientId, contentSha256);
+            } catch (RuntimeException e) {
+                deleteUnsavedObject(fileName, contentSha256 != null);
+                throw e;
+            }
             medicalRecordResponse.setMedicalRecordS3Metadata(s3Metadata);
 
             return medicalRecordResponse;
@@ -88,106 +186,321 @@ public class StorageServiceImpl implements StorageService {
         } catch (Exception e) {
             log.error(">> uploadFile >> Error uploading file to S3", e);
             throw new RuntimeException("File upload failed");
-        } finally {
-            if (fileObject != null) {
-                try {
-                    Files.delete(fileObject.toPath());
-                    log.info(">> uploadFile >> Temporary file deleted successfully");
-                } catch (Exception e) {
-                    log.warn(">> uploadFile >> Failed to delete temporary file", e);
-                }
+        }
+    }
+
+
+    /*
+     * The object of an upload whose record could not be saved: deleted, the upload being reported failed, rather than
+     * adopted as a record by the reconciliation. Kept when an identical upload shares it meanwhile.
+     * */
+    private void deleteUnsavedObject(String fileName, boolean registered) {
+        try {
+            if (registered && !recordBlobRegistry.release(fileName, fileName))
+                return;
+            s3Client.deleteObject(bucketName, fileName);
+        } catch (Exception e) {
+            log.error(">> uploadFile >> Object {} of the unsaved record not deleted", fileName, e);
+        }
+        s3KeyIndex.remove(fileName);
+        s3MetadataCache.invalidate(fileName);
+    }
+
+
+    private static String contentSha256(MultipartFile file) throws IOException {
+        try (InputStream inputStream = file.getInputStream()) {
+            return RecordBlobRegistry.sha256(inputStream);
+        }
+    }
+
+
+    /*
+     * Metadata of the object already holding this content for the patient, now also referenced by fileName;
+     * null when the upload has to be stored. An object gone from S3 meanwhile is released again.
+     * */
+    private MedicalRecordS3Metadata acquireSharedObject(String fileName, String patientId, String contentSha256) {
+        Optional<String> objectKey = recordBlobRegistry.acquire(patientId, contentSha256, fileName);
+        if (objectKey.isEmpty())
+            return null;
+
+        Optional<MedicalRecordS3Metadata> s3Metadata = s3MetadataCache.resolve(objectKey.get());
+        if (s3Metadata.isEmpty()) {
+            log.warn(">> uploadFile >> Shared object {} missing from S3, {} stored again", objectKey.get(), fileName);
+            recordBlobRegistry.release(objectKey.get(), fileName);
+            return null;
+        }
+
+        return s3Metadata.get();
+    }
+
+
+    /*
+     * Upload many files at once: the S3 puts run concurrently (at most batch-parallelism at a time) and all
+     * successfully stored files are persisted with a single bulk insert of the record writer. A failing file does not
+     * fail the batch; the objects of the files whose record could not be inserted are deleted again, with a single
+     * DeleteObjects.
+     * */
+    @Override
+    @PreAuthorize("hasRole('ADMIN')")
+    public List<MedicalRecordBatchItemResponse> uploadFilesToS3(List<MultipartFile> files, String patientId) {
+        if (files.size() > batchMaxFiles)
+            throw new AppException(ErrorCode.BATCH_TOO_LARGE);
+
+        // resolved once on the request thread, the upload tasks run elsewhere
+        String updatedByUser = extractDataFromJWT().get("name").toString();
+
+        List<String> fileNames = generateUniqueFileNames(patientId, files);
+        Semaphore permits = new Semaphore(batchParallelism);
+        List<Future<MedicalRecordS3Metadata>> uploads = new ArrayList<>(files.size());
+
+        log.info(">> uploadFiles >> Uploading {} files on S3", files.size());
+
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                MultipartFile file = files.get(i);
+                String fileName = fileNames.get(i);
+
+                permits.acquire();
+                uploads.add(storageTaskExecutor.submit(() -> {
+                    try {
+                        return putMultipartFileToS3(fileName, file);
+                    } finally {
+                        permits.release();
+                    }
+                }));
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            uploads.forEach(upload -> upload.cancel(true));
+            throw new AppException(ErrorCode.FILE_UPLOAD_FAILED);
         }
+
+        MedicalRecordBatchItemResponse[] itemResponses = new MedicalRecordBatchItemResponse[files.size()];
+        List<MedicalRecord> medicalRecords = new ArrayList<>();
+        List<MedicalRecordS3Metadata> uploadedS3Metadata = new ArrayList<>();
+        List<Integer> uploadedPositions = new ArrayList<>();
+
+        for (int i = 0; i < files.size(); i++) {
+            try {
+                MedicalRecordS3Metadata s3Metadata = uploads.get(i).get();
+                storageMetrics.recordTransfer(StorageMetrics.UPLOAD, StorageMetrics.S3, s3Metadata.getSize());
+
+                medicalRecords.add(buildMedicalRecord(s3Metadata, patientId, updatedByUser));
+                uploadedS3Metadata.add(s3Metadata);
+                uploadedPositions.add(i);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                itemResponses[i] = failedItem(fileNames.get(i), ErrorCode.FILE_UPLOAD_FAILED);
+            } catch (ExecutionException e) {
+                log.error(">> uploadFiles >> Error uploading file {} to S3", fileNames.get(i), e.getCause());
+                itemResponses[i] = failedItem(fileNames.get(i), ErrorCode.FILE_UPLOAD_FAILED);
+            }
+        }
+
+        // a single bulk insert for the whole batch instead of one save per file; null for the records not inserted
+        List<MedicalRecord> savedMedicalRecords;
+        try {
+            savedMedicalRecords = medicalRecords.isEmpty() ? List.of() : medicalRecordWriter.insertAll(medicalRecords);
+        } catch (Exception e) {
+            log.error(">> uploadFiles >> Error saving {} medical records in DB", medicalRecords.size(), e);
+            savedMedicalRecords = Collections.nCopies(medicalRecords.size(), null);
+        }
+
+        List<String> unsavedFileNames = new ArrayList<>();
+        for (int i = 0; i < savedMedicalRecords.size(); i++) {
+            MedicalRecord savedMedicalRecord = savedMedicalRecords.get(i);
+            MedicalRecordS3Metadata s3Metadata = uploadedS3Metadata.get(i);
+            int position = uploadedPositions.get(i);
+
+            if (savedMedicalRecord == null) {
+                itemResponses[position] = failedItem(fileNames.get(position), ErrorCode.FILE_PERSISTENCE_FAILED);
+                unsavedFileNames.add(s3Metadata.getKey());
+                continue;
+            }
+
+            s3KeyIndex.add(s3Metadata);
+            s3MetadataCache.put(s3Metadata);
+
+            MedicalRecordResponse medicalRecordResponse = medicalRecordMapper.toMedicalRecordResponse(savedMedicalRecord);
+            medicalRecordResponse.setMedicalRecordS3Metadata(s3Metadata);
+
+            itemResponses[position] = MedicalRecordBatchItemResponse.builder()
+                    .fileName(savedMedicalRecord.getMedicalRecordName())
+                    .success(true)
+                    .result(medicalRecordResponse)
+                    .build();
+        }
+
+        if (!unsavedFileNames.isEmpty()) {
+            log.warn(">> uploadFiles >> {} records not saved, deleting their objects", unsavedFileNames.size());
+            // an object failing to be deleted is left to the reconciliation, which adopts it
+            deleteS3ObjectsBatch(unsavedFileNames).forEach((fileName, error) ->
+                    log.error(">> uploadFiles >> Object of unsaved record {} not deleted: {}", fileName, error));
+        }
+
+        return List.of(itemResponses);
     }
 
 
     /*
      * key: is the file's filename existing in S3
+     * The searches leave out the objects stored under the name of a deleted record that other records still share.
      * */
     @Override
     public List<MedicalRecordS3Metadata> searchS3ExactFilename(String searchingWord) {
-        // Create a request to list objects in the S3 bucket
-        ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucketName);
-        ListObjectsV2Result result;
+        // a single HEAD request instead of listing the bucket, none for recently seen keys
+        return s3MetadataCache.resolve(searchingWord)
+                .filter(s3Metadata -> !recordBlobRegistry.isReleased(s3Metadata.getKey()))
+                .map(List::of)
+                .orElseGet(List::of);
+    }
+
+
+    /*
+     * Served from the in-process key index; the first search after startup lists the bucket to build it, the first
+     * one past application.key-index.max-age to rebuild it
+     * */
+    @Override
+    public List<MedicalRecordS3Metadata> searchS3ContainsFilename(String searchingWord) {
+        s3KeyIndex.buildIfStale(this::listAllS3Objects);
+
+        return withoutReleasedObjects(s3KeyIndex.searchContains(searchingWord));
+    }
 
-        List<MedicalRecordS3Metadata> matchingFiles = new ArrayList<>();
+
+    /*
+     * One page of the keys containing searchingWord, in key order. The bucket is listed from the cursor on and the
+     * listing stops as soon as the page is full, or once maxScannedKeys keys were examined: a rare word then yields
+     * a short (possibly empty) page whose cursor resumes the scan where it stopped.
+     * */
+    @Override
+    public PageResponse<MedicalRecordS3Metadata> searchS3ContainsFilename(String searchingWord, int limit, String cursor) {
+        if (limit < 1 || limit > searchPageMaxLimit)
+            throw new AppException(ErrorCode.INVALID_PAGINATION);
+
+        ListObjectsV2Request request = new ListObjectsV2Request()
+                .withBucketName(bucketName)
+                .withStartAfter(CursorUtils.decode(cursor));
+
+        List<MedicalRecordS3Metadata> matchingFiles = new ArrayList<>(limit);
+        String lastScannedKey = null;
+        int scannedKeys = 0;
+        int pages = 0;
+        ListObjectsV2Result result;
 
         do {
-            // Get the next batch of objects from the bucket
             result = s3Client.listObjectsV2(request);
+            pages++;
+            Set<String> releasedKeys = releasedObjectKeys(result, searchingWord);
 
             for (S3ObjectSummary summary : result.getObjectSummaries()) {
-//                log.info(">> searchS3FilenameExact::summary: {}", summary);
-                String key = summary.getKey();
-                if (key.equals(searchingWord)) {
-//                    log.info(">> searchFilenameExact::key {}", key);
-                    matchingFiles.add(
-                            MedicalRecordS3Metadata.builder()
-                                    .bucketName(summary.getBucketName())
-                                    .key(summary.getKey())
-                                    .etag(summary.getETag())
-                                    .size(summary.getSize())
-                                    .lastModified(summary.getLastModified())
-                                    .storageClass(summary.getStorageClass())
-                                    .owner(summary.getOwner())
-                                    .build()
-                    );
+                lastScannedKey = summary.getKey();
+                scannedKeys++;
+
+                if (summary.getKey().contains(searchingWord) && !releasedKeys.contains(summary.getKey()))
+                    matchingFiles.add(medicalRecordMapper.toMedicalRecordS3Metadata(summary));
+
+                if (matchingFiles.size() == limit || scannedKeys == searchPageMaxScannedKeys) {
+                    log.info(">> searchFilePage >> {} matches in {} scanned keys", matchingFiles.size(), scannedKeys);
+                    storageMetrics.recordListPages("page", pages);
+                    return PageResponse.<MedicalRecordS3Metadata>builder()
+                            .items(matchingFiles)
+                            .nextCursor(CursorUtils.encode(lastScannedKey))
+                            .build();
                 }
             }
-            // If there are more objects, get the next batch
+
             request.setContinuationToken(result.getNextContinuationToken());
         } while (result.isTruncated());
 
-        return matchingFiles;
+        log.info(">> searchFilePage >> {} matches in {} scanned keys, end of bucket", matchingFiles.size(), scannedKeys);
+        storageMetrics.recordListPages("page", pages);
+        return PageResponse.<MedicalRecordS3Metadata>builder()
+                .items(matchingFiles)
+                .build();
     }
 
 
+    /*
+     * Every key containing searchingWord, written as newline-delimited JSON while the bucket is listed: one line per
+     * match, flushed after each S3 page, so that memory stays constant and the first matches reach the client after
+     * one listing round trip
+     * */
     @Override
-    public List<MedicalRecordS3Metadata> searchS3ContainsFilename(String searchingWord) {
-        // Create a request to list objects in the S3 bucket
-        ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucketName);
-        ListObjectsV2Result result;
+    public StreamingResponseBody streamS3ContainsFilename(String searchingWord) {
+        ObjectWriter metadataWriter = objectMapper
+                .writerFor(MedicalRecordS3Metadata.class)
+                .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
 
-        List<MedicalRecordS3Metadata> matchingFiles = new ArrayList<>();
+        return outputStream -> {
+            ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucketName);
+            ListObjectsV2Result result;
+            long matches = 0;
+            int pages = 0;
 
-        do {
-            // Get the next batch of objects from the bucket
-            result = s3Client.listObjectsV2(request);
+            try (JsonGenerator generator = metadataWriter.createGenerator(outputStream)) {
+                // each line ends with its own newline, no separator before the next root value (a space by default)
+                generator.setRootValueSeparator(null);
+                do {
+                    result = s3Client.listObjectsV2(request);
+                    pages++;
+                    Set<String> releasedKeys = releasedObjectKeys(result, searchingWord);
 
-            for (S3ObjectSummary summary : result.getObjectSummaries()) {
-//                log.info(">> searchS3FilenameContains::summary: {}", summary);
-                String key = summary.getKey();
-                if (key.contains(searchingWord)) {
-//                    log.info(">> searchFilenameContains::key {}", key);
-                    matchingFiles.add(
-                            MedicalRecordS3Metadata.builder()
-                                    .bucketName(summary.getBucketName())
-                                    .key(summary.getKey())
-                                    .etag(summary.getETag())
-                                    .size(summary.getSize())
-                                    .lastModified(summary.getLastModified())
-                                    .storageClass(summary.getStorageClass())
-                                    .owner(summary.getOwner())
-                                    .build()
-                    );
-                }
+                    for (S3ObjectSummary summary : result.getObjectSummaries()) {
+                        if (!summary.getKey().contains(searchingWord) || releasedKeys.contains(summary.getKey()))
+                            continue;
+
+                        metadataWriter.writeValue(generator, medicalRecordMapper.toMedicalRecordS3Metadata(summary));
+                        generator.writeRaw('\n');
+                        matches++;
+                    }
+
+                    generator.flush();
+                    request.setContinuationToken(result.getNextContinuationToken());
+                } while (result.isTruncated());
             }
-            // If there are more objects, get the next batch
-            request.setContinuationToken(result.getNextContinuationToken());
-        } while (result.isTruncated());
 
-        return matchingFiles;
+            log.info(">> streamSearch >> {} matches streamed for {}", matches, searchingWord);
+            storageMetrics.recordListPages("stream", pages);
+        };
     }
 
 
     @Override
     public byte[] downloadFileFromS3(String fileName) {
+        // the object of a deleted record still shared by other records is theirs only
+        if (recordBlobRegistry.isReleased(fileName))
+            throw new AppException(ErrorCode.MEDICAL_RECORD_NOT_EXISTING);
+
+        return downloadObject(fileName);
+    }
+
+
+    private byte[] downloadObject(String fileName) {
+        byte[] cachedContent = readFromContentCache(fileName);
+        if (cachedContent != null) {
+            log.info(">> downloadFile >> File served from cache: {}", fileName);
+            storageMetrics.recordTransfer(StorageMetrics.DOWNLOAD, StorageMetrics.CACHE, cachedContent.length);
+            return cachedContent;
+        }
+
         try (S3Object s3Object = s3Client.getObject(bucketName, fileName);
              S3ObjectInputStream s3ObjectInputStream = s3Object.getObjectContent()) {
-            byte[] content = IOUtils.toByteArray(s3ObjectInputStream);
+            byte[] content = readContent(s3ObjectInputStream, s3Object.getObjectMetadata());
+            // decrypted content is not cached, its larger objects would be spilled to disk in plaintext
+            if (!RecordEncryptor.isEncrypted(s3Object.getObjectMetadata()))
+                cacheContent(fileName, s3Object.getObjectMetadata(), content);
             log.info(">> downloadFile >> File downloaded: {}", fileName);
+            storageMetrics.recordTransfer(StorageMetrics.DOWNLOAD, StorageMetrics.S3, content.length);
             return content;
         } catch (AmazonS3Exception e) {
+            // a record sharing the object of an earlier identical upload has no object of its own
+            Optional<String> sharedObjectKey = e.getStatusCode() == HttpStatus.NOT_FOUND.value()
+                    ? sharedObjectKey(fileName)
+                    : Optional.empty();
+            if (sharedObjectKey.isPresent())
+                return downloadObject(sharedObjectKey.get());
+
             log.error(">> downloadFile >> S3 error while downloading file: {}", fileName, e);
             throw new AmazonS3Exception("Failed to download file from S3 due to an S3 error", e);
         } catch (IOException e) {
@@ -200,27 +513,527 @@ public class StorageServiceImpl implements StorageService {
     }
 
 
+    /*
+     * Stream the object (or the requested byte range of it) straight from S3 to the client through a fixed-size buffer.
+     * If-Range is evaluated by S3 itself through an ETag / unmodified-since constraint on the ranged GET.
+     * Hot objects are served from the content cache instead, whole GETs fill it while streaming.
+     * A compressed object is sent as stored, with its Content-Encoding, to a client accepting that encoding (ranges
+     * then apply to the encoded bytes) and decompressed while streamed for the others.
+     * An encrypted object is decrypted while streamed, ranges and lengths being those of its plaintext.
+     * A record sharing the object of an earlier identical upload is streamed from that object.
+     * */
+    @Override
+    public MedicalRecordDownload streamFileFromS3(String fileName, String rangeHeader, String ifRangeHeader,
+                                                  String acceptEncodingHeader) {
+        if (recordBlobRegistry.isReleased(fileName))
+            throw new AppException(ErrorCode.MEDICAL_RECORD_NOT_EXISTING);
+
+        try {
+            return streamObject(fileName, rangeHeader, ifRangeHeader, acceptEncodingHeader);
+        } catch (AppException e) {
+            Optional<String> sharedObjectKey = e.getErrorCode() == ErrorCode.MEDICAL_RECORD_NOT_EXISTING
+                    ? sharedObjectKey(fileName)
+                    : Optional.empty();
+            if (sharedObjectKey.isEmpty())
+                throw e;
+
+            MedicalRecordDownload download =
+                    streamObject(sharedObjectKey.get(), rangeHeader, ifRangeHeader, acceptEncodingHeader);
+            download.setFileName(fileName);
+            return download;
+        }
+    }
+
+
+    // the released shared objects among the keys of a listed page containing searchingWord
+    private Set<String> releasedObjectKeys(ListObjectsV2Result result, String searchingWord) {
+        List<String> matchingKeys = result.getObjectSummaries().stream()
+                .map(S3ObjectSummary::getKey)
+                .filter(key -> key.contains(searchingWord))
+                .toList();
+
+        return matchingKeys.isEmpty() ? Set.of() : recordBlobRegistry.findReleasedObjectKeys(matchingKeys);
+    }
+
+
+    private List<MedicalRecordS3Metadata> withoutReleasedObjects(List<MedicalRecordS3Metadata> matchingFiles) {
+        if (matchingFiles.isEmpty())
+            return matchingFiles;
+
+        Set<String> releasedKeys = recordBlobRegistry.findReleasedObjectKeys(
+                matchingFiles.stream().map(MedicalRecordS3Metadata::getKey).toList());
+        return releasedKeys.isEmpty()
+                ? matchingFiles
+                : matchingFiles.stream().filter(s3Metadata -> !releasedKeys.contains(s3Metadata.getKey())).toList();
+    }
+
+
+    // the shared object serving fileName, which has no object of its own
+    private Optional<String> sharedObjectKey(String fileName) {
+        return recordBlobRegistry.findObjectKey(fileName)
+                .filter(objectKey -> !objectKey.equals(fileName));
+    }
+
+
+    private MedicalRecordDownload streamObject(String fileName, String rangeHeader, String ifRangeHeader,
+                                               String acceptEncodingHeader) {
+        ByteRange byteRange = HttpRangeUtils.parseRange(rangeHeader);
+
+        if (byteRange == null || ifRangeHeader == null) {
+            MedicalRecordDownload cachedDownload = streamFromContentCache(fileName, byteRange);
+            if (cachedDownload != null)
+                return cachedDownload;
+        }
+
+        GetObjectRequest request = new GetObjectRequest(bucketName, fileName);
+        if (byteRange != null) {
+            applyRange(request, fileName, byteRange);
+            if (ifRangeHeader != null)
+                applyIfRange(request, ifRangeHeader);
+        }
+
+        S3Object s3Object = getS3Object(() -> s3Client.getObject(request));
+
+        // the If-Range validator no longer matches: the whole current object is sent instead of the range
+        if (s3Object == null)
+            s3Object = getS3Object(() -> s3Client.getObject(bucketName, fileName));
+
+        ObjectMetadata objectMetadata = s3Object.getObjectMetadata();
+        if (RecordEncryptor.isEncrypted(objectMetadata))
+            return streamEncrypted(fileName, s3Object, byteRange, rangeHeader, ifRangeHeader, acceptEncodingHeader);
+
+        Long[] contentRange = objectMetadata.getContentRange();
+
+        Optional<CompressionCodec> codec = RecordCompressor.codecOf(objectMetadata);
+        if (codec.isPresent()
+                && !ContentEncodingUtils.isAccepted(acceptEncodingHeader, codec.get().getContentEncoding()))
+            return streamDecompressed(fileName, s3Object, codec.get(), rangeHeader);
+
+        RecordContentCache.ContentWriter contentWriter = null;
+        // the content cache holds decoded content, the encoded bytes sent as is are not cached
+        if (contentRange == null && codec.isEmpty()) {
+            s3MetadataCache.put(s3MetadataResolver.fromObjectMetadata(fileName, objectMetadata));
+            contentWriter = recordContentCache.open(fileName, objectMetadata.getETag(),
+                    objectMetadata.getLastModified(), objectMetadata.getContentLength());
+        }
+
+        log.info(">> streamFile >> Streaming file: {}, range: {}", fileName, rangeHeader);
+
+        return MedicalRecordDownload.builder()
+                .fileName(fileName)
+                .etag(objectMetadata.getETag())
+                .lastModified(objectMetadata.getLastModified())
+                .contentLength(objectMetadata.getContentLength())
+                .instanceLength(objectMetadata.getInstanceLength())
+                .partial(contentRange != null)
+                .rangeStart(contentRange != null ? contentRange[0] : 0)
+                .rangeEnd(contentRange != null ? contentRange[1] : objectMetadata.getContentLength() - 1)
+                .contentEncoding(codec.map(CompressionCodec::getContentEncoding).orElse(null))
+                .content(streamS3Object(s3Object, null, null, contentWriter))
+                .build();
+    }
+
+
+    /*
+     * A client-side encrypted object: only the chunks holding the requested plaintext range are streamed, decrypted
+     * and cut down to that range. The first GET fetched them right away when the object was known to be encrypted
+     * (see applyRange); otherwise they are fetched again, from the same version of the object.
+     * Decrypted content is not put in the content cache, whose larger objects are spilled to disk.
+     * */
+    private MedicalRecordDownload streamEncrypted(String fileName, S3Object s3Object, ByteRange byteRange,
+                                                  String rangeHeader, String ifRangeHeader,
+                                                  String acceptEncodingHeader) {
+        ObjectMetadata objectMetadata = s3Object.getObjectMetadata();
+        s3MetadataCache.put(s3MetadataResolver.fromObjectMetadata(fileName, objectMetadata));
+
+        ChunkedCipher cipher = recordEncryptor.cipherOf(objectMetadata.getUserMetadata());
+        long plainLength = cipher.plainLength(objectMetadata.getInstanceLength());
+
+        Optional<CompressionCodec> codec = RecordCompressor.codecOf(objectMetadata);
+        boolean decoded = codec.isPresent()
+                && !ContentEncodingUtils.isAccepted(acceptEncodingHeader, codec.get().getContentEncoding());
+
+        // no range when S3 skipped it (If-Range no longer matching), or for an object decompressed as a whole
+        Long[] contentRange = objectMetadata.getContentRange();
+        boolean partial = byteRange != null && contentRange != null && !decoded;
+        long[] plainRange = partial ? resolveRange(byteRange, plainLength) : new long[]{0, plainLength - 1};
+        ChunkedCipher.EncryptedRange encryptedRange = cipher.encryptedRange(plainRange[0], plainRange[1], plainLength);
+
+        S3Object chunksS3Object = s3Object;
+        if (contentRange != null && (contentRange[0] != encryptedRange.encryptedFirst()
+                || contentRange[1] != encryptedRange.encryptedLast())) {
+            abortQuietly(s3Object);
+
+            GetObjectRequest request = new GetObjectRequest(bucketName, fileName)
+                    .withRange(encryptedRange.encryptedFirst(), encryptedRange.encryptedLast());
+            request.setMatchingETagConstraints(List.of("\"" + objectMetadata.getETag() + "\""));
+            chunksS3Object = getS3Object(() -> s3Client.getObject(request));
+
+            // replaced in between, the data key read belongs to the previous version
+            if (chunksS3Object == null)
+                return streamObject(fileName, rangeHeader, ifRangeHeader, acceptEncodingHeader);
+        }
+
+        // unknown (-1) for compressed objects not written by this service: sent without Content-Length
+        long contentLength = decoded
+                ? RecordCompressor.uncompressedLength(objectMetadata)
+                : plainRange[1] - plainRange[0] + 1;
+
+        log.info(">> streamFile >> Streaming encrypted file: {}, range: {}-{} of {}",
+                fileName, plainRange[0], plainRange[1], plainLength);
+
+        return MedicalRecordDownload.builder()
+                .fileName(fileName)
+                .etag(objectMetadata.getETag())
+                .lastModified(objectMetadata.getLastModified())
+                .contentLength(contentLength)
+                .instanceLength(decoded ? contentLength : plainLength)
+                .partial(partial)
+                .rangeStart(plainRange[0])
+                .rangeEnd(decoded ? contentLength - 1 : plainRange[1])
+                .contentEncoding(decoded ? null : codec.map(CompressionCodec::getContentEncoding).orElse(null))
+                .content(streamS3Object(chunksS3Object, encryptedRange, decoded ? codec.get() : null, null))
+                .build();
+    }
+
+
+    /*
+     * A compressed object for a client that cannot decode it: the whole object is decompressed while streamed.
+     * A requested range, which S3 applied to the encoded bytes, is dropped and the whole object fetched instead.
+     * */
+    private MedicalRecordDownload streamDecompressed(String fileName, S3Object s3Object, CompressionCodec codec,
+                                                     String rangeHeader) {
+        if (s3Object.getObjectMetadata().getContentRange() != null) {
+            abortQuietly(s3Object);
+            s3Object = getS3Object(() -> s3Client.getObject(bucketName, fileName));
+        }
+
+        ObjectMetadata objectMetadata = s3Object.getObjectMetadata();
+        s3MetadataCache.put(s3MetadataResolver.fromObjectMetadata(fileName, objectMetadata));
+
+        // unknown (-1) for compressed objects not written by this service: sent without Content-Length
+        long uncompressedLength = RecordCompressor.uncompressedLength(objectMetadata);
+        RecordContentCache.ContentWriter contentWriter = uncompressedLength >= 0
+                ? recordContentCache.open(fileName, objectMetadata.getETag(), objectMetadata.getLastModified(),
+                uncompressedLength)
+                : null;
+
+        log.info(">> streamFile >> Streaming file decompressed: {}, range ignored: {}", fileName, rangeHeader);
+
+        return MedicalRecordDownload.builder()
+                .fileName(fileName)
+                .etag(objectMetadata.getETag())
+                .lastModified(objectMetadata.getLastModified())
+                .contentLength(uncompressedLength)
+                .instanceLength(uncompressedLength)
+                .partial(false)
+                .rangeStart(0)
+                .rangeEnd(uncompressedLength - 1)
+                .content(streamS3Object(s3Object, null, codec, contentWriter))
+                .build();
+    }
+
+
+    // null when the constraints of the request (If-Range) no longer match
+    private S3Object getS3Object(Supplier<S3Object> getObject) {
+        try {
+            return getObject.get();
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == HttpStatus.NOT_FOUND.value())
+                throw new AppException(ErrorCode.MEDICAL_RECORD_NOT_EXISTING);
+            if (e.getStatusCode() == HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value())
+                throw new AppException(ErrorCode.RANGE_NOT_SATISFIABLE);
+            throw e;
+        }
+    }
+
+
+    private static void abortQuietly(S3Object s3Object) {
+        try (S3Object closingS3Object = s3Object) {
+            closingS3Object.getObjectContent().abort();
+        } catch (IOException e) {
+            log.warn(">> streamFile >> Closing {} failed: {}", s3Object.getKey(), e.getMessage());
+        }
+    }
+
+
+    private byte[] readContent(S3ObjectInputStream s3ObjectInputStream, ObjectMetadata objectMetadata)
+            throws IOException {
+        Optional<CompressionCodec> codec = RecordCompressor.codecOf(objectMetadata);
+        ChunkedCipher.EncryptedRange encryptedRange = null;
+        if (RecordEncryptor.isEncrypted(objectMetadata)) {
+            ChunkedCipher cipher = recordEncryptor.cipherOf(objectMetadata.getUserMetadata());
+            encryptedRange = cipher.wholeObject(cipher.plainLength(objectMetadata.getContentLength()));
+        }
+
+        if (codec.isEmpty() && encryptedRange == null)
+            return IOUtils.toByteArray(s3ObjectInputStream);
+
+        // the decoders are closed on their own, the S3 stream by the caller
+        try (InputStream decodingStream =
+                     decoding(StreamUtils.nonClosing(s3ObjectInputStream), encryptedRange, codec.orElse(null))) {
+            return IOUtils.toByteArray(decodingStream);
+        }
+    }
+
+
+    // the stored bytes of encryptedRange decrypted, when not null, then decoded with codec, when not null
+    private InputStream decoding(InputStream storedStream, ChunkedCipher.EncryptedRange encryptedRange,
+                                 CompressionCodec codec) throws IOException {
+        InputStream contentStream = storedStream;
+        if (encryptedRange != null)
+            contentStream = encryptedRange.cipher()
+                    .decrypting(contentStream, encryptedRange, (int) downloadBufferSize.toBytes());
+        if (codec != null)
+            contentStream = codec.decoding(contentStream);
+        return contentStream;
+    }
+
+
+    /*
+     * Served without any S3 request when both the metadata and the content of the current ETag are cached;
+     * null on a miss
+     * */
+    private MedicalRecordDownload streamFromContentCache(String fileName, ByteRange byteRange) {
+        RecordContentCache.CachedContent cachedContent = lookupContentCache(fileName);
+        if (cachedContent == null)
+            return null;
+
+        long size = cachedContent.getSize();
+        long[] range = byteRange != null ? resolveRange(byteRange, size) : new long[]{0, size - 1};
+        long rangeStart = range[0];
+        long rangeEnd = range[1];
+
+        RecordContentCache.ContentReader contentReader;
+        try {
+            contentReader = cachedContent.openReader(rangeStart, rangeEnd - rangeStart + 1);
+        } catch (IOException e) {
+            log.warn(">> streamFile >> Cached content of {} unreadable, falling back to S3: {}", fileName, e.getMessage());
+            return null;
+        }
+
+        log.info(">> streamFile >> Streaming file from cache: {}, range: {}-{}", fileName, rangeStart, rangeEnd);
+
+        return MedicalRecordDownload.builder()
+                .fileName(fileName)
+                .etag(cachedContent.getEtag())
+                .lastModified(cachedContent.getLastModified())
+                .contentLength(rangeEnd - rangeStart + 1)
+                .instanceLength(size)
+                .partial(byteRange != null)
+                .rangeStart(rangeStart)
+                .rangeEnd(rangeEnd)
+                .content(outputStream -> {
+                    try (RecordContentCache.ContentReader closingContentReader = contentReader) {
+                        closingContentReader.transferTo(outputStream);
+                    }
+                    storageMetrics.recordTransfer(
+                            StorageMetrics.DOWNLOAD, StorageMetrics.CACHE, rangeEnd - rangeStart + 1);
+                })
+                .build();
+    }
+
+
+    /*
+     * Only trusted when the metadata is cached: checking the current ETag on S3 would cost the round trip we avoid.
+     * Content past its freshness window is revalidated with a HEAD request, still cheaper than fetching it again;
+     * the content of an object deleted or replaced by another instance meanwhile is dropped.
+     * */
+    private RecordContentCache.CachedContent lookupContentCache(String fileName) {
+        RecordContentCache.CachedContent cachedContent = s3MetadataCache.getIfPresent(fileName)
+                .map(s3Metadata -> recordContentCache.get(fileName, s3Metadata.getEtag()))
+                .orElse(null);
+        if (cachedContent == null || recordContentCache.isFresh(cachedContent))
+            return cachedContent;
+
+        Optional<MedicalRecordS3Metadata> s3Metadata = s3MetadataResolver.resolve(fileName);
+        if (s3Metadata.isPresent() && Objects.equals(s3Metadata.get().getEtag(), cachedContent.getEtag())) {
+            recordContentCache.revalidated(cachedContent);
+            s3MetadataCache.put(s3Metadata.get());
+            return cachedContent;
+        }
+
+        log.info(">> lookupContentCache >> Cached content of {} is outdated", fileName);
+        recordContentCache.invalidate(fileName);
+        s3MetadataCache.invalidate(fileName);
+        return null;
+    }
+
+
+    private byte[] readFromContentCache(String fileName) {
+        RecordContentCache.CachedContent cachedContent = lookupContentCache(fileName);
+        if (cachedContent == null)
+            return null;
+
+        try (RecordContentCache.ContentReader contentReader = cachedContent.openReader(0, cachedContent.getSize())) {
+            return contentReader.readAllBytes();
+        } catch (IOException e) {
+            log.warn(">> downloadFile >> Cached content of {} unreadable, falling back to S3: {}", fileName, e.getMessage());
+            return null;
+        }
+    }
+
+
+    private void cacheContent(String fileName, ObjectMetadata objectMetadata, byte[] content) {
+        if (objectMetadata == null)
+            return;
+
+        RecordContentCache.ContentWriter contentWriter = recordContentCache.open(
+                fileName, objectMetadata.getETag(), objectMetadata.getLastModified(), content.length);
+        if (contentWriter == null)
+            return;
+
+        contentWriter.write(content, 0, content.length);
+        contentWriter.commit();
+        s3MetadataCache.put(s3MetadataResolver.fromObjectMetadata(fileName, objectMetadata));
+    }
+
+
+    private void applyRange(GetObjectRequest request, String fileName, ByteRange byteRange) {
+        // "the last N bytes" cannot be expressed through GetObjectRequest, the object size is needed first
+        Optional<MedicalRecordS3Metadata> s3Metadata = byteRange.isSuffix()
+                ? s3MetadataCache.resolve(fileName)
+                : s3MetadataCache.getIfPresent(fileName);
+
+        // an object known to be encrypted is read from the chunks holding the requested plaintext
+        if (s3Metadata.isPresent() && s3Metadata.get().getEncryptionChunkSize() != null) {
+            ChunkedCipher.EncryptedRange encryptedRange = chunksOf(byteRange, s3Metadata.get());
+            request.setRange(encryptedRange.encryptedFirst(), encryptedRange.encryptedLast());
+            return;
+        }
+
+        if (!byteRange.isSuffix()) {
+            if (byteRange.getLastBytePosition() == null)
+                request.setRange(byteRange.getFirstBytePosition());
+            else
+                request.setRange(byteRange.getFirstBytePosition(), byteRange.getLastBytePosition());
+            return;
+        }
+
+        long size = s3Metadata
+                .orElseThrow(() -> new AppException(ErrorCode.MEDICAL_RECORD_NOT_EXISTING))
+                .getSize();
+
+        if (byteRange.getSuffixLength() == 0 || size == 0)
+            throw new AppException(ErrorCode.RANGE_NOT_SATISFIABLE);
+
+        request.setRange(Math.max(0, size - byteRange.getSuffixLength()), size - 1);
+    }
+
+
+    // the chunks of an encrypted object holding the requested plaintext; the layout alone locates them, without key
+    static ChunkedCipher.EncryptedRange chunksOf(ByteRange byteRange, MedicalRecordS3Metadata s3Metadata) {
+        ChunkedCipher layout = new ChunkedCipher(null, s3Metadata.getEncryptionChunkSize());
+        long plainLength = layout.plainLength(s3Metadata.getSize());
+        long[] plainRange = resolveRange(byteRange, plainLength);
+        return layout.encryptedRange(plainRange[0], plainRange[1], plainLength);
+    }
+
+
+    // first and last byte positions of byteRange within an object of size bytes
+    static long[] resolveRange(ByteRange byteRange, long size) {
+        if (byteRange.isSuffix()) {
+            if (byteRange.getSuffixLength() == 0 || size == 0)
+                throw new AppException(ErrorCode.RANGE_NOT_SATISFIABLE);
+            return new long[]{Math.max(0, size - byteRange.getSuffixLength()), size - 1};
+        }
+
+        if (byteRange.getFirstBytePosition() >= size)
+            throw new AppException(ErrorCode.RANGE_NOT_SATISFIABLE);
+        long rangeEnd = byteRange.getLastBytePosition() != null
+                ? Math.min(byteRange.getLastBytePosition(), size - 1)
+                : size - 1;
+        return new long[]{byteRange.getFirstBytePosition(), rangeEnd};
+    }
+
+
+    private void applyIfRange(GetObjectRequest request, String ifRangeHeader) {
+        if (HttpRangeUtils.isEntityTag(ifRangeHeader)) {
+            // weak validators never match for If-Range; an impossible ETag makes S3 skip the ranged answer
+            request.setMatchingETagConstraints(List.of(ifRangeHeader.startsWith("W/") ? "\"\"" : ifRangeHeader));
+            return;
+        }
+
+        Date ifRangeDate = HttpRangeUtils.parseHttpDate(ifRangeHeader);
+        request.setUnmodifiedSinceConstraint(ifRangeDate != null ? ifRangeDate : new Date(0));
+    }
+
+
+    // encryptedRange, when not null, decrypts the chunks it covers and codec, when not null, decodes the object while
+    // it is streamed; contentWriter, when not null, receives a copy of the streamed bytes for the content cache
+    private StreamingResponseBody streamS3Object(S3Object s3Object, ChunkedCipher.EncryptedRange encryptedRange,
+                                                 CompressionCodec codec,
+                                                 RecordContentCache.ContentWriter contentWriter) {
+        return outputStream -> {
+            try (S3Object closingS3Object = s3Object;
+                 S3ObjectInputStream s3ObjectInputStream = closingS3Object.getObjectContent()) {
+                byte[] buffer = new byte[(int) downloadBufferSize.toBytes()];
+                int bytesRead;
+                long transferred = 0;
+                InputStream contentStream = s3ObjectInputStream;
+                try {
+                    if (encryptedRange != null || codec != null)
+                        contentStream = decoding(StreamUtils.nonClosing(s3ObjectInputStream), encryptedRange, codec);
+
+                    while ((bytesRead = contentStream.read(buffer)) != -1) {
+                        outputStream.write(buffer, 0, bytesRead);
+                        transferred += bytesRead;
+                        if (contentWriter != null)
+                            contentWriter.write(buffer, 0, bytesRead);
+                    }
+                    if (contentWriter != null)
+                        contentWriter.commit();
+                } catch (IOException e) {
+                    // client went away: drop the S3 connection instead of draining the rest of the object
+                    s3ObjectInputStream.abort();
+                    throw e;
+                } finally {
+                    // what reached the client, also when it went away
+                    storageMetrics.recordTransfer(StorageMetrics.DOWNLOAD, StorageMetrics.S3, transferred);
+                    // releases the decoder, the S3 stream is closed by the block
+                    if (contentStream != s3ObjectInputStream)
+                        contentStream.close();
+                }
+            } finally {
+                if (contentWriter != null)
+                    contentWriter.abort();
+            }
+        };
+    }
+
+
+    /*
+     * The object of a record sharing its content with other records is only deleted along with the last of them
+     * */
     @Override
     @PreAuthorize("hasRole('ADMIN')")
     public MedicalRecordResponse deleteFileFromS3(String fileName) {
         log.info(">> deleteFile >> Deleting file: {} on S3", fileName);
 
+        Optional<String> sharedObjectKey = recordBlobRegistry.findObjectKey(fileName);
+        String objectKey = sharedObjectKey.orElse(fileName);
+
         // Check if the file exists in S3 before deletion
-        List<MedicalRecordS3Metadata> searchResultBeforeDeletion = searchS3ExactFilename(fileName);
-        if (searchResultBeforeDeletion.isEmpty())
+        if (s3MetadataCache.resolve(objectKey).isEmpty())
             throw new AppException(ErrorCode.MEDICAL_RECORD_NOT_EXISTING);
 
+        // other records still reference the object: only the record goes
+        if (sharedObjectKey.isPresent() && !recordBlobRegistry.release(objectKey, fileName))
+            return updateMedicalRecordExistenceStatusInDB(fileName);
+
         // Delete the file from the S3 bucket
-        s3Client.deleteObject(bucketName, fileName);
+        s3Client.deleteObject(bucketName, objectKey);
+        s3MetadataCache.invalidate(objectKey);
+        recordContentCache.invalidate(objectKey);
 
-        // Check if the file was successfully deleted from S3
-        List<MedicalRecordS3Metadata> searchResultAfterDeletion = searchS3ExactFilename(fileName);
+        // Check if the file was successfully deleted from S3, bypassing the cache
+        if (s3MetadataResolver.resolve(objectKey).isEmpty()) {
+            s3KeyIndex.remove(objectKey);
 
-        if (searchResultAfterDeletion.isEmpty()) {
             // update existence status in MongoDB for management purposes
             MedicalRecordResponse savedMedicalRecordResponse = updateMedicalRecordExistenceStatusInDB(fileName);
 
-            log.info("File {} deleted successfully from S3 and its correspondent database entry updated.", fileName);
+            log.info("File {} deleted successfully from S3 and its correspondent database entry updated.", objectKey);
 
             // Return a response indicating successful deletion
             return savedMedicalRecordResponse;
@@ -230,52 +1043,315 @@ public class StorageServiceImpl implements StorageService {
     }
 
 
-    private File convertMultiPartFileToFile(MultipartFile file) {
-        log.info(">> convertMultiPartFileToFile::file: {}", file);
+    /*
+     * Delete many files with multi-object DeleteObjects requests (up to 1000 keys each) instead of one call per key,
+     * then flag all deleted records as unavailable with a single change of the record writer.
+     * Missing keys are reported as deleted, like S3 does, since deleting them is idempotent.
+     * A shared object is deleted with its last reference only, the other records just release theirs.
+     * */
+    @Override
+    @PreAuthorize("hasRole('ADMIN')")
+    public List<MedicalRecordBatchItemResponse> deleteFilesFromS3(List<String> fileNames) {
+        List<String> distinctFileNames = new ArrayList<>(new LinkedHashSet<>(fileNames));
+        if (distinctFileNames.size() > batchMaxDeletedKeys)
+            throw new AppException(ErrorCode.BATCH_TOO_LARGE);
 
-        File convertedFile = new File(Objects.requireNonNull(file.getOriginalFilename()));
-        try (FileOutputStream fileOutputStream = new FileOutputStream(convertedFile)) {
-            fileOutputStream.write(file.getBytes());
-        } catch (IOException e) {
-            log.error(">> convertMultiPartFileToFile >> Error converting MultipartFile to File", e);
-            throw new RuntimeException(e);
+        String updatedByUser = extractDataFromJWT().get("name").toString();
+
+        log.info(">> deleteFiles >> Deleting {} files on S3", distinctFileNames.size());
+
+        // a single lookup for the whole batch, the files of unshared objects are not released one by one
+        Map<String, String> sharedObjectKeys = recordBlobRegistry.findObjectKeys(distinctFileNames);
+
+        Map<String, MedicalRecordBatchItemResponse> itemResponses = new LinkedHashMap<>();
+        List<String> deletedFileNames = new ArrayList<>(distinctFileNames.size());
+        List<String> deletedObjectKeys = new ArrayList<>(distinctFileNames.size());
+
+        for (int from = 0; from < distinctFileNames.size(); from += MAX_KEYS_PER_DELETE_REQUEST) {
+            List<String> batch = distinctFileNames.subList(
+                    from, Math.min(from + MAX_KEYS_PER_DELETE_REQUEST, distinctFileNames.size()));
+
+            // the object to delete for each file, none while other records still reference it
+            Map<String, String> objectKeys = new LinkedHashMap<>();
+            for (String fileName : batch) {
+                String objectKey = sharedObjectKeys.getOrDefault(fileName, fileName);
+                if (!sharedObjectKeys.containsKey(fileName) || recordBlobRegistry.release(objectKey, fileName))
+                    objectKeys.put(fileName, objectKey);
+            }
+
+            Map<String, String> failures = objectKeys.isEmpty()
+                    ? Map.of()
+                    : deleteS3ObjectsBatch(new ArrayList<>(new LinkedHashSet<>(objectKeys.values())));
+
+            for (String fileName : batch) {
+                String objectKey = objectKeys.get(fileName);
+                if (objectKey != null && failures.containsKey(objectKey)) {
+                    itemResponses.put(fileName, MedicalRecordBatchItemResponse.builder()
+                            .fileName(fileName)
+                            .success(false)
+                            .code(ErrorCode.FILE_DELETION_FAILED.getCode())
+                            .message(failures.get(objectKey))
+                            .build());
+                } else {
+                    if (objectKey != null) {
+                        s3KeyIndex.remove(objectKey);
+                        recordContentCache.invalidate(objectKey);
+                        deletedObjectKeys.add(objectKey);
+                    }
+                    deletedFileNames.add(fileName);
+                }
+            }
+        }
+
+        s3MetadataCache.invalidateAll(deletedObjectKeys);
+
+        if (!deletedFileNames.isEmpty()) {
+            try {
+                long matchedRecords = medicalRecordWriter.markAllUnavailable(deletedFileNames, updatedByUser);
+
+                log.info(">> deleteFiles >> {} files deleted from S3, {} database entries updated",
+                        deletedFileNames.size(), matchedRecords);
+
+                for (String fileName : deletedFileNames)
+                    itemResponses.put(fileName, MedicalRecordBatchItemResponse.builder()
+                            .fileName(fileName)
+                            .success(true)
+                            .build());
+            } catch (Exception e) {
+                log.error(">> deleteFiles >> Error updating {} medical records in DB", deletedFileNames.size(), e);
+                for (String fileName : deletedFileNames)
+                    itemResponses.put(fileName, failedItem(fileName, ErrorCode.FILE_PERSISTENCE_FAILED));
+            }
+        }
+
+        return distinctFileNames.stream().map(itemResponses::get).toList();
+    }
+
+
+    // quiet DeleteObjects: S3 only reports the keys it failed to delete, mapped here to their error message
+    private Map<String, String> deleteS3ObjectsBatch(List<String> fileNames) {
+        DeleteObjectsRequest request = new DeleteObjectsRequest(bucketName)
+                .withKeys(fileNames.toArray(new String[0]))
+                .withQuiet(true);
+
+        Map<String, String> failures = new HashMap<>();
+        try {
+            s3Client.deleteObjects(request);
+        } catch (MultiObjectDeleteException e) {
+            for (MultiObjectDeleteException.DeleteError error : e.getErrors())
+                failures.put(error.getKey(), error.getCode() + ": " + error.getMessage());
+        } catch (Exception e) {
+            log.error(">> deleteFiles >> DeleteObjects request of {} keys failed", fileNames.size(), e);
+            for (String fileName : fileNames)
+                failures.put(fileName, ErrorCode.FILE_DELETION_FAILED.getMessage());
+        }
+
+        return failures;
+    }
+
+
+    @Override
+    @PreAuthorize("hasRole('ADMIN')")
+    public MetadataCacheStatsResponse getMetadataCacheStats() {
+        return s3MetadataCache.stats();
+    }
+
+
+    // page through the whole bucket, handing every object to the consumer
+    private void listAllS3Objects(Consumer<MedicalRecordS3Metadata> consumer) {
+        ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucketName);
+        ListObjectsV2Result result;
+        int pages = 0;
+
+        do {
+            result = s3Client.listObjectsV2(request);
+            pages++;
+
+            for (S3ObjectSummary summary : result.getObjectSummaries())
+                consumer.accept(medicalRecordMapper.toMedicalRecordS3Metadata(summary));
+
+            request.setContinuationToken(result.getNextContinuationToken());
+        } while (result.isTruncated());
+
+        storageMetrics.recordListPages("index", pages);
+    }
+
+
+    // files of one batch share the same millisecond, same-named files are moved to the next free millisecond
+    private List<String> generateUniqueFileNames(String patientId, List<MultipartFile> files) {
+        Instant utcNow = ZonedDateTime.now(ZoneId.of("UTC")).toInstant();
+        Set<String> fileNames = new LinkedHashSet<>();
+
+        for (MultipartFile file : files) {
+            Instant fileInstant = utcNow;
+            while (!fileNames.add(RecordKeyUtils.generateFileName(patientId, fileInstant, file)))
+                fileInstant = fileInstant.plusMillis(1);
         }
 
-        return convertedFile;
+        return new ArrayList<>(fileNames);
+    }
+
+
+    private static MedicalRecordBatchItemResponse failedItem(String fileName, ErrorCode errorCode) {
+        return MedicalRecordBatchItemResponse.builder()
+                .fileName(fileName)
+                .success(false)
+                .code(errorCode.getCode())
+                .message(errorCode.getMessage())
+                .build();
+    }
+
+
+    /*
+     * Stream the upload from the multipart part straight into S3: the content length is known up front,
+     * so the SDK neither buffers the whole body nor needs an intermediate file.
+     * Large files go through the multipart engine, which sends their parts concurrently.
+     * Encrypted uploads are encrypted chunk by chunk on the way, their encrypted length being known up front too.
+     * */
+    private MedicalRecordS3Metadata putMultipartFileToS3(String fileName, MultipartFile file) throws IOException {
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setContentLength(file.getSize());
+        objectMetadata.setContentType(file.getContentType());
+
+        // null for an upload stored unencrypted
+        ChunkedCipher cipher = recordEncryptor.isEnabled() ? recordEncryptor.newCipher() : null;
+        if (cipher != null)
+            recordEncryptor.tag(objectMetadata, cipher);
+
+        Optional<CompressionCodec> codec = recordCompressor.codecFor(file.getContentType(), file.getSize());
+        if (codec.isPresent())
+            return putCompressedFileToS3(fileName, file, objectMetadata, codec.get(), cipher);
+
+        if (cipher != null)
+            objectMetadata.setContentLength(cipher.encryptedLength(file.getSize()));
+
+        try (InputStream inputStream = encrypting(file.getInputStream(), cipher)) {
+            if (file.getSize() >= multipartThreshold.toBytes())
+                return withEncryption(multipartUploadEngine.upload(fileName, inputStream, objectMetadata), cipher);
+
+            PutObjectRequest putObjectRequest = new PutObjectRequest(bucketName, fileName, inputStream, objectMetadata);
+
+            // the SDK marks the stream to replay it on retries, bound that mark to the upload buffer
+            putObjectRequest.getRequestClientOptions().setReadLimit((int) uploadBufferSize.toBytes() + 1);
+
+            PutObjectResult putObjectResult = s3Client.putObject(putObjectRequest);
+
+            return withEncryption(s3MetadataResolver.fromPutObjectResult(
+                    fileName, objectMetadata.getContentLength(), putObjectResult), cipher);
+        }
+    }
+
+
+    /*
+     * The compressed length is only known once compressed: files under the multipart threshold are compressed in
+     * memory and sent with a single put, larger ones are compressed while the multipart engine reads their parts.
+     * The compressed bytes are what gets encrypted, when cipher is not null.
+     * */
+    private MedicalRecordS3Metadata putCompressedFileToS3(String fileName, MultipartFile file,
+                                                          ObjectMetadata objectMetadata, CompressionCodec codec,
+                                                          ChunkedCipher cipher)
+            throws IOException {
+        RecordCompressor.tag(objectMetadata, codec, file.getSize());
+
+        try (InputStream compressedStream = encrypting(
+                codec.compressing(file.getInputStream(), (int) uploadBufferSize.toBytes()), cipher)) {
+            if (file.getSize() >= multipartThreshold.toBytes())
+                return withEncryption(multipartUploadEngine.upload(fileName, compressedStream, objectMetadata), cipher);
+
+            byte[] compressedContent = compressedStream.readAllBytes();
+            objectMetadata.setContentLength(compressedContent.length);
+
+            PutObjectResult putObjectResult = s3Client.putObject(new PutObjectRequest(
+                    bucketName, fileName, new ByteArrayInputStream(compressedContent), objectMetadata));
+
+            log.info(">> uploadFile >> {} stored {}-compressed, {} of {} bytes",
+                    fileName, codec.getContentEncoding(), compressedContent.length, file.getSize());
+
+            return withEncryption(
+                    s3MetadataResolver.fromPutObjectResult(fileName, compressedContent.length, putObjectResult), cipher);
+        }
+    }
+
+
+    private static InputStream encrypting(InputStream inputStream, ChunkedCipher cipher) {
+        return cipher != null ? cipher.encrypting(inputStream) : inputStream;
+    }
+
+
+    // put responses carry no user metadata: the chunk size is recorded here, for ranged reads to find the chunks
+    private static MedicalRecordS3Metadata withEncryption(MedicalRecordS3Metadata s3Metadata, ChunkedCipher cipher) {
+        if (cipher != null)
+            s3Metadata.setEncryptionChunkSize(cipher.getChunkSize());
+        return s3Metadata;
     }
 
 
     // add uploaded file name to a database (MongoDB) for management
-    private MedicalRecordResponse insertMedicalRecordInDB(MedicalRecordS3Metadata s3Metadata) {
+    private MedicalRecordResponse insertMedicalRecordInDB(MedicalRecordS3Metadata s3Metadata, String patientId,
+                                                          String contentSha256) {
+        MedicalRecord medicalRecord =
+                buildMedicalRecord(s3Metadata, patientId, extractDataFromJWT().get("name").toString());
+        medicalRecord.setContentSha256(contentSha256);
+
+        log.info(">> uploadFile >> medicalRecord in DB: {}", medicalRecord);
+
+        medicalRecord = medicalRecordWriter.insert(medicalRecord);
+
+        return medicalRecordMapper.toMedicalRecordResponse(medicalRecord);
+    }
+
+
+    // a record named fileName served from the shared object, nothing is stored in S3
+    private MedicalRecordResponse insertSharedMedicalRecordInDB(String fileName, MedicalRecordS3Metadata sharedS3Metadata,
+                                                                String patientId, String contentSha256) {
+        Instant now = Instant.now();
         MedicalRecord medicalRecord = MedicalRecord.builder()
                 .id(UUID.randomUUID().toString())
-                .medicalRecordName(s3Metadata.getKey())
-                .patientId("get patientId sent from the producer")
-                .creationDateTime(Instant.now())
-                .latestUpdateDateTime(s3Metadata.getLastModified().toInstant())
+                .medicalRecordName(fileName)
+                .patientId(patientId)
+                .creationDateTime(now)
+                .latestUpdateDateTime(now)
                 .s3Availability(true)
                 .updatedByUser(extractDataFromJWT().get("name").toString())
+                .contentSha256(contentSha256)
+                .contentKey(sharedS3Metadata.getKey())
                 .build();
 
-        log.info(">> uploadFile >> medicalRecord in DB: {}", medicalRecord);
+        try {
+            medicalRecord = medicalRecordWriter.insert(medicalRecord);
+        } catch (RuntimeException e) {
+            // the reference would otherwise keep the object forever
+            recordBlobRegistry.release(sharedS3Metadata.getKey(), fileName);
+            throw e;
+        }
 
-        medicalRecord = medicalRecordRepository.save(medicalRecord);
+        log.info(">> uploadFile >> {} references the identical {}, no upload", fileName, sharedS3Metadata.getKey());
 
-        return modelMapper.map(medicalRecord, MedicalRecordResponse.class);
+        MedicalRecordResponse medicalRecordResponse = medicalRecordMapper.toMedicalRecordResponse(medicalRecord);
+        medicalRecordResponse.setMedicalRecordS3Metadata(sharedS3Metadata);
+        return medicalRecordResponse;
     }
 
 
-    private MedicalRecordResponse updateMedicalRecordExistenceStatusInDB(String fileName) {
-        MedicalRecord savedMedicalRecord = medicalRecordRepository
-                .findByMedicalRecordName(fileName)
-                .orElseThrow(() -> new AppException(ErrorCode.MEDICAL_RECORD_NOT_EXISTING));
+    // also used by the async engine, so that both write records the same way
+    static MedicalRecord buildMedicalRecord(MedicalRecordS3Metadata s3Metadata, String patientId,
+                                            String updatedByUser) {
+        return MedicalRecord.builder()
+                .id(UUID.randomUUID().toString())
+                .medicalRecordName(s3Metadata.getKey())
+                .patientId(patientId)
+                .creationDateTime(Instant.now())
+                .latestUpdateDateTime(s3Metadata.getLastModified().toInstant())
+                .s3Availability(true)
+                .updatedByUser(updatedByUser)
+                .build();
+    }
 
-        savedMedicalRecord.setLatestUpdateDateTime(Instant.now());
-        savedMedicalRecord.setS3Availability(false);
-        savedMedicalRecord.setUpdatedByUser(extractDataFromJWT().get("name").toString());
 
-        savedMedicalRecord = medicalRecordRepository.save(savedMedicalRecord);
+    private MedicalRecordResponse updateMedicalRecordExistenceStatusInDB(String fileName) {
+        MedicalRecord savedMedicalRecord = medicalRecordWriter
+                .markUnavailable(fileName, extractDataFromJWT().get("name").toString());
 
-        return modelMapper.map(savedMedicalRecord, MedicalRecordResponse.class);
+        return medicalRecordMapper.toMedicalRecordResponse(savedMedicalRecord);
     }
 }
@@ -0,0 +1,303 @@
+package com.pnk.record_management.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.bulk.BulkWriteError;
+import com.pnk.record_management.entity.MedicalRecord;
+import com.pnk.record_management.exception.AppException;
+import com.pnk.record_management.exception.ErrorCode;
+import com.pnk.record_management.service.MedicalRecordOutbox.Operation;
+import com.pnk.record_management.service.MedicalRecordOutbox.OutboxEntry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndReplaceOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+
+/*
+ * Write-behind writer, selected with application.record-write.mode=write-behind: a change is appended to the local
+ * outbox and the request responds without waiting for MongoDB. A single flusher thread applies the queued changes
+ * with one ordered bulk write per batch, once batch-size changes are queued or flush-interval after the first one.
+ * At most queue-capacity changes wait at a time: a request finding the queue full waits up to enqueue-timeout, then
+ * is refused. Changes left in the outbox by a stop or a crash are applied first on the next start.
+ * A deletion answered this way carries only the changed fields, the record itself is not read.
+ * */
+@Service
+@ConditionalOnProperty(name = "application.record-write.mode", havingValue = "write-behind")
+@RequiredArgsConstructor // injected by Constructor, no longer need of @Autowire
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@Slf4j
+public class WriteBehindMedicalRecordWriter implements MedicalRecordWriter {
+
+    static final Duration SHUTDOWN_TIMEOUT = Duration.ofSeconds(30);
+
+    MongoTemplate mongoTemplate;
+
+    ObjectMapper objectMapper;
+
+    StorageMetrics storageMetrics;
+
+    @NonFinal
+    @Value("${application.record-write.write-behind.directory}")
+    Path directory;
+
+    @NonFinal
+    @Value("${application.record-write.write-behind.batch-size}")
+    int batchSize;
+
+    @NonFinal
+    @Value("${application.record-write.write-behind.flush-interval}")
+    Duration flushInterval;
+
+    @NonFinal
+    @Value("${application.record-write.write-behind.queue-capacity}")
+    int queueCapacity;
+
+    @NonFinal
+    @Value("${application.record-write.write-behind.enqueue-timeout}")
+    Duration enqueueTimeout;
+
+    @NonFinal
+    @Value("${application.record-write.write-behind.retry-delay}")
+    Duration retryDelay;
+
+    BlockingQueue<OutboxEntry> queue = new LinkedBlockingQueue<>();
+
+    @NonFinal
+    Semaphore capacity;
+
+    @NonFinal
+    MedicalRecordOutbox outbox;
+
+    @NonFinal
+    Thread flusher;
+
+    @NonFinal
+    volatile boolean running;
+
+
+    @PostConstruct
+    public void start() throws IOException {
+        capacity = new Semaphore(queueCapacity);
+        outbox = new MedicalRecordOutbox(directory, objectMapper, storageMetrics);
+
+        List<OutboxEntry> pendingEntries = outbox.readPending();
+        if (!pendingEntries.isEmpty())
+            log.info(">> start >> {} record changes of the previous run to apply", pendingEntries.size());
+
+        running = true;
+        flusher = new CustomizableThreadFactory("record-write-behind-").newThread(() -> flush(pendingEntries));
+        flusher.start();
+    }
+
+
+    /*
+     * Waits for the queued changes to be applied; if MongoDB cannot be reached they stay in the outbox
+     * */
+    @PreDestroy
+    public void stop() throws InterruptedException, IOException {
+        running = false;
+        flusher.join(SHUTDOWN_TIMEOUT.toMillis());
+        if (flusher.isAlive()) {
+            flusher.interrupt();
+            flusher.join();
+        }
+
+        log.info(">> stop >> {} record changes left in the outbox", outbox.backlog());
+        outbox.close();
+    }
+
+
+    @Override
+    public MedicalRecord insert(MedicalRecord medicalRecord) {
+        enqueue(Operation.INSERT, medicalRecord);
+        return medicalRecord;
+    }
+
+
+    @Override
+    public MedicalRecord markUnavailable(String medicalRecordName, String updatedByUser) {
+        MedicalRecord medicalRecord = unavailableRecord(medicalRecordName, updatedByUser, Instant.now());
+
+        enqueue(Operation.MARK_UNAVAILABLE, medicalRecord);
+        return medicalRecord;
+    }
+
+
+    @Override
+    public List<MedicalRecord> insertAll(List<MedicalRecord> medicalRecords) {
+        enqueue(Operation.INSERT, medicalRecords);
+        return medicalRecords;
+    }
+
+
+    @Override
+    public long markAllUnavailable(Collection<String> medicalRecordNames, String updatedByUser) {
+        Instant now = Instant.now();
+        List<MedicalRecord> medicalRecords = medicalRecordNames.stream()
+                .map(medicalRecordName -> unavailableRecord(medicalRecordName, updatedByUser, now))
+                .toList();
+
+        enqueue(Operation.MARK_UNAVAILABLE, medicalRecords);
+        return medicalRecords.size();
+    }
+
+
+    private static MedicalRecord unavailableRecord(String medicalRecordName, String updatedByUser, Instant now) {
+        return MedicalRecord.builder()
+                .medicalRecordName(medicalRecordName)
+                .latestUpdateDateTime(now)
+                .s3Availability(false)
+                .updatedByUser(updatedByUser)
+                .build();
+    }
+
+
+    private void enqueue(Operation operation, MedicalRecord medicalRecord) {
+        enqueue(operation, List.of(medicalRecord));
+    }
+
+
+    // the changes of a batch are journaled together, they are refused together when the queue stays full
+    private void enqueue(Operation operation, List<MedicalRecord> medicalRecords) {
+        if (medicalRecords.isEmpty())
+            return;
+
+        try {
+            if (!capacity.tryAcquire(medicalRecords.size(), enqueueTimeout.toNanos(), TimeUnit.NANOSECONDS)) {
+                log.warn(">> enqueue >> Outbox full, {} of {} records refused", operation, medicalRecords.size());
+                throw new AppException(ErrorCode.RECORD_WRITE_QUEUE_FULL);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AppException(ErrorCode.RECORD_WRITE_QUEUE_FULL);
+        }
+
+        try {
+            // queued once forced, in journal order
+            outbox.append(operation, medicalRecords, queue::addAll);
+        } catch (IOException e) {
+            capacity.release(medicalRecords.size());
+            log.error(">> enqueue >> Cannot journal {} of {} records", operation, medicalRecords.size(), e);
+            throw new AppException(ErrorCode.FILE_PERSISTENCE_FAILED);
+        }
+    }
+
+
+    private void flush(List<OutboxEntry> pendingEntries) {
+        try {
+            for (int i = 0; i < pendingEntries.size(); i += batchSize) {
+                if (!applyUntilDone(pendingEntries.subList(i, Math.min(i + batchSize, pendingEntries.size()))))
+                    return;
+            }
+
+            List<OutboxEntry> batch = new ArrayList<>(batchSize);
+            while (running || !queue.isEmpty()) {
+                OutboxEntry first = queue.poll(flushInterval.toNanos(), TimeUnit.NANOSECONDS);
+                if (first == null)
+                    continue;
+
+                batch.add(first);
+                long flushDeadline = System.nanoTime() + flushInterval.toNanos();
+                while (batch.size() < batchSize) {
+                    OutboxEntry next = queue.poll(flushDeadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                }
+
+                if (!applyUntilDone(batch))
+                    return;
+                capacity.release(batch.size());
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /*
+     * Applies the batch, retrying while MongoDB is unreachable; false when given up on because of the shutdown
+     * */
+    private boolean applyUntilDone(List<OutboxEntry> batch) throws InterruptedException {
+        while (true) {
+            try {
+                apply(batch);
+                outbox.markApplied(batch.get(batch.size() - 1).sequence());
+                log.debug(">> flush >> {} record changes applied", batch.size());
+                return true;
+            } catch (DataAccessException | IOException e) {
+                if (!running) {
+                    log.warn(">> flush >> {} record changes kept in the outbox: {}", batch.size(), e.getMessage());
+                    return false;
+                }
+                log.warn(">> flush >> {} record changes not applied, retrying: {}", batch.size(), e.getMessage());
+                TimeUnit.NANOSECONDS.sleep(retryDelay.toNanos());
+            }
+        }
+    }
+
+
+    /*
+     * Ordered, so that a record inserted and deleted in the same batch ends up deleted. A change refused by MongoDB
+     * (e.g. a duplicate name) would be refused again: it is logged and skipped, the rest of the batch goes on.
+     * */
+    private void apply(List<OutboxEntry> batch) {
+        List<OutboxEntry> remaining = batch;
+
+        while (!remaining.isEmpty()) {
+            BulkOperations changes = mongoTemplate.bulkOps(BulkOperations.BulkMode.ORDERED, MedicalRecord.class);
+            for (OutboxEntry entry : remaining) {
+                MedicalRecord medicalRecord = entry.medicalRecord();
+                switch (entry.operation()) {
+                    case INSERT -> changes.replaceOne(
+                            new Query(Criteria.where("id").is(medicalRecord.getId())),
+                            medicalRecord, FindAndReplaceOptions.options().upsert());
+                    case MARK_UNAVAILABLE -> changes.updateOne(
+                            new Query(Criteria.where("medicalRecordName").is(medicalRecord.getMedicalRecordName())),
+                            new Update()
+                                    .set("s3Availability", false)
+                                    .set("latestUpdateDateTime", medicalRecord.getLatestUpdateDateTime())
+                                    .set("updatedByUser", medicalRecord.getUpdatedByUser())
+                                    .inc("version", 1));
+                }
+            }
+
+            try {
+                changes.execute();
+                return;
+            } catch (BulkOperationException e) {
+                BulkWriteError error = e.getErrors().get(0);
+                log.error(">> flush >> {} dropped: {}", remaining.get(error.getIndex()), error.getMessage());
+                remaining = remaining.subList(error.getIndex() + 1, remaining.size());
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.pnk.record_management.utils;
+
+
+public class ContentEncodingUtils {
+
+    private ContentEncodingUtils() {
+    }
+
+
+    /*
+     * Whether an Accept-Encoding header lets the response be sent with this content coding: listed by name (or
+     * through "*") with a weight above 0. RFC 9110 reads a missing header as "anything goes", yet clients sending
+     * none are the ones that cannot decode (scripts, plain HTTP libraries), so it accepts nothing here.
+     * */
+    public static boolean isAccepted(String acceptEncodingHeader, String contentCoding) {
+        if (acceptEncodingHeader == null)
+            return false;
+
+        Double codingWeight = null;
+        Double anyWeight = null;
+
+        for (String element : acceptEncodingHeader.split(",")) {
+            String[] nameAndParameters = element.split(";");
+            String name = nameAndParameters[0].trim();
+            double weight = weightOf(nameAndParameters);
+
+            if (name.equalsIgnoreCase(contentCoding) || name.equalsIgnoreCase("x-" + contentCoding))
+                codingWeight = weight;
+            else if (name.equals("*"))
+                anyWeight = weight;
+        }
+
+        // the coding named explicitly wins over "*"
+        double weight = codingWeight != null ? codingWeight : anyWeight != null ? anyWeight : 0;
+        return weight > 0;
+    }
+
+
+    // "q=0.5" among the parameters, 1 when absent, 0 when malformed
+    private static double weightOf(String[] nameAndParameters) {
+        for (int i = 1; i < nameAndParameters.length; i++) {
+            String parameter = nameAndParameters[i].trim();
+            if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+}
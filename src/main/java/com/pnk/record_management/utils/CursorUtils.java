@@ -0,0 +1,41 @@
+package com.pnk.record_management.utils;
+
+import com.pnk.record_management.exception.AppException;
+import com.pnk.record_management.exception.ErrorCode;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+
+/*
+ * Opaque continuation cursors: the position to resume from, URL-safe Base64 encoded so that clients do not
+ * build or alter them
+ * */
+@Slf4j
+public class CursorUtils {
+
+    private CursorUtils() {
+    }
+
+
+    public static String encode(String position) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    /*
+     * Position encoded in cursor, null for the first page (no cursor)
+     * */
+    public static String decode(String cursor) {
+        if (cursor == null || cursor.isEmpty())
+            return null;
+
+        try {
+            return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            log.info(">> decode >> Malformed cursor: {}", cursor);
+            throw new AppException(ErrorCode.INVALID_PAGINATION);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.pnk.record_management.utils;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+
+
+@Slf4j
+public class HttpRangeUtils {
+
+    private static final String BYTES_UNIT = "bytes=";
+
+    private HttpRangeUtils() {
+    }
+
+
+    /*
+     * Parse a single byte range: "bytes=0-499", "bytes=500-" or "bytes=-500".
+     * Returns null when the header is absent, malformed or asks for several ranges;
+     * the whole representation is served in that case, as RFC 9110 allows.
+     * */
+    public static ByteRange parseRange(String rangeHeader) {
+        if (rangeHeader == null || !rangeHeader.startsWith(BYTES_UNIT))
+            return null;
+
+        String rangeSpec = rangeHeader.substring(BYTES_UNIT.length()).trim();
+        int dashIndex = rangeSpec.indexOf('-');
+        if (dashIndex < 0 || rangeSpec.contains(","))
+            return null;
+
+        try {
+            String first = rangeSpec.substring(0, dashIndex).trim();
+            String last = rangeSpec.substring(dashIndex + 1).trim();
+
+            if (first.isEmpty())
+                return last.isEmpty() ? null : new ByteRange(null, null, Long.parseLong(last));
+
+            long firstBytePosition = Long.parseLong(first);
+            Long lastBytePosition = last.isEmpty() ? null : Long.parseLong(last);
+
+            if (firstBytePosition < 0 || (lastBytePosition != null && lastBytePosition < firstBytePosition))
+                return null;
+
+            return new ByteRange(firstBytePosition, lastBytePosition, null);
+        } catch (NumberFormatException e) {
+            log.info(">> parseRange >> Ignoring malformed Range header: {}", rangeHeader);
+            return null;
+        }
+    }
+
+
+    public static boolean isEntityTag(String ifRangeHeader) {
+        return ifRangeHeader.startsWith("\"") || ifRangeHeader.startsWith("W/");
+    }
+
+
+    /*
+     * The HTTP-date of an If-Range header, null when it cannot be parsed
+     * */
+    public static Date parseHttpDate(String ifRangeHeader) {
+        try {
+            return Date.from(ZonedDateTime.parse(ifRangeHeader, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant());
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+
+    @Getter
+    @AllArgsConstructor(access = AccessLevel.PRIVATE)
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    public static class ByteRange {
+
+        Long firstBytePosition;
+
+        // null for an open-ended range
+        Long lastBytePosition;
+
+        // only set for "bytes=-N": the last N bytes
+        Long suffixLength;
+
+        public boolean isSuffix() {
+            return suffixLength != null;
+        }
+    }
+}
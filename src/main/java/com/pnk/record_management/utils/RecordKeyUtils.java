@@ -0,0 +1,64 @@
+package com.pnk.record_management.utils;
+
+import com.pnk.record_management.exception.AppException;
+import com.pnk.record_management.exception.ErrorCode;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.regex.Pattern;
+
+
+/*
+ * Object key layout: "<patientId>_<yyyy_MM_dd_hh_mm_ss_SSS>_<epochSecond>_<originalFilename>".
+ * Every key of a patient shares the "<patientId>_" prefix, so a patient's records are listed with a prefix-restricted
+ * listing. Patient ids cannot contain '_', which keeps one patient's prefix from matching another patient's keys,
+ * and keys stay single path segments for the /files/{fileName} endpoints.
+ * */
+public class RecordKeyUtils {
+
+    private static final Pattern PATIENT_ID_PATTERN = Pattern.compile("[A-Za-z0-9-]{1,64}");
+
+    private static final String PATIENT_SEPARATOR = "_";
+
+    // what follows the patient prefix: time prefix, epoch second and original file name
+    private static final Pattern KEY_SUFFIX_PATTERN = Pattern.compile("\\d{4}(_\\d{2}){5}_\\d{3}_\\d+_.+");
+
+    private RecordKeyUtils() {
+    }
+
+
+    public static boolean isValidPatientId(String patientId) {
+        return patientId != null && PATIENT_ID_PATTERN.matcher(patientId).matches();
+    }
+
+
+    public static String patientKeyPrefix(String patientId) {
+        if (!isValidPatientId(patientId))
+            throw new AppException(ErrorCode.INVALID_PATIENT_ID);
+
+        return patientId + PATIENT_SEPARATOR;
+    }
+
+
+    /*
+     * Patient of a key of the patient layout, null for keys of the old layout (no patient prefix)
+     * */
+    public static String extractPatientId(String key) {
+        int separatorIndex = key.indexOf(PATIENT_SEPARATOR);
+        if (separatorIndex < 1)
+            return null;
+
+        String patientId = key.substring(0, separatorIndex);
+        String keySuffix = key.substring(separatorIndex + 1);
+        return isValidPatientId(patientId) && KEY_SUFFIX_PATTERN.matcher(keySuffix).matches() ? patientId : null;
+    }
+
+
+    public static String generateFileName(String patientId, Instant utcNow, MultipartFile file) {
+        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy_MM_dd_hh_mm_ss_SSS");
+        String timePrefix = utcNow.atZone(ZoneId.of("UTC")).format(formatter);
+        return patientKeyPrefix(patientId) + timePrefix + "_" + utcNow.getEpochSecond() + "_" + file.getOriginalFilename();
+    }
+}
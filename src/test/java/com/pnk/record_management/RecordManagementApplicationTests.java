@@ -2,8 +2,10 @@ package com.pnk.record_management;
 
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.TestPropertySource;
 
 @SpringBootTest
+@TestPropertySource("/test.properties")
 class RecordManagementApplicationTests {
 
 	@Test
@@ -0,0 +1,59 @@
+package com.pnk.record_management.configuration;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import java.util.concurrent.ExecutorService;
+
+import static com.pnk.record_management.utils.JwtUtils.extractDataFromJWT;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class ExecutorConfigurationTest {
+
+    ExecutorConfiguration executorConfiguration = new ExecutorConfiguration();
+
+    @AfterEach
+    void tearDown() {
+        SecurityContextHolder.clearContext();
+    }
+
+
+    /**
+     * Method under test: {@link ExecutorConfiguration#storageTaskExecutor()}
+     */
+    @Test
+    void testStorageTaskExecutor_PropagatesSecurityContext() throws Exception {
+        SecurityContextHolder.getContext().setAuthentication(
+                new TestingAuthenticationToken("admin", "dummy-jwt", "ROLE_ADMIN"));
+
+        ExecutorService storageTaskExecutor = executorConfiguration.storageTaskExecutor();
+        try {
+            assertEquals("admin", storageTaskExecutor.submit(() -> extractDataFromJWT().get("name")).get());
+            assertFalse(storageTaskExecutor.submit(() -> Thread.currentThread().isVirtual()).get());
+        } finally {
+            storageTaskExecutor.shutdown();
+        }
+    }
+
+
+    /**
+     * Method under test: {@link ExecutorConfiguration#virtualStorageTaskExecutor()}
+     */
+    @Test
+    void testVirtualStorageTaskExecutor_PropagatesSecurityContext() throws Exception {
+        SecurityContextHolder.getContext().setAuthentication(
+                new TestingAuthenticationToken("admin", "dummy-jwt", "ROLE_ADMIN"));
+
+        ExecutorService storageTaskExecutor = executorConfiguration.virtualStorageTaskExecutor();
+        try {
+            assertEquals("admin", storageTaskExecutor.submit(() -> extractDataFromJWT().get("name")).get());
+            assertEquals("dummy-jwt", storageTaskExecutor.submit(() -> extractDataFromJWT().get("jwtToken")).get());
+            assertTrue(storageTaskExecutor.submit(() -> Thread.currentThread().isVirtual()).get());
+        } finally {
+            storageTaskExecutor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.pnk.record_management.configuration;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.pnk.record_management.service.StorageMetrics;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+
+class InstrumentedS3ClientTest {
+
+    AmazonS3 s3Client = mock(AmazonS3.class);
+
+    MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    AmazonS3 instrumentedS3Client = InstrumentedS3Client.instrument(s3Client, new StorageMetrics(meterRegistry));
+
+
+    /**
+     * Method under test: {@link InstrumentedS3Client#invoke(Object, java.lang.reflect.Method, Object[])}
+     */
+    @Test
+    void testInvoke_TimedPerOperationAndOutcome() {
+        // Arrange
+        ListObjectsV2Result listing = new ListObjectsV2Result();
+        when(s3Client.listObjectsV2(any(ListObjectsV2Request.class))).thenReturn(listing);
+        AmazonS3Exception notFound = new AmazonS3Exception("Not Found");
+        notFound.setStatusCode(404);
+        when(s3Client.getObjectMetadata("dummy-bucket-name", "missing.txt")).thenThrow(notFound);
+
+        // Act
+        ListObjectsV2Result result = instrumentedS3Client.listObjectsV2(new ListObjectsV2Request());
+        AmazonS3Exception exception = assertThrows(AmazonS3Exception.class,
+                () -> instrumentedS3Client.getObjectMetadata("dummy-bucket-name", "missing.txt"));
+
+        // Assert: the client's own result and exception reach the caller
+        assertSame(listing, result);
+        assertSame(notFound, exception);
+        assertEquals(1, meterRegistry.get(StorageMetrics.S3_REQUESTS)
+                .tags("client", "sync", "operation", "list", "outcome", "SUCCESS").timer().count());
+        assertEquals(1, meterRegistry.get(StorageMetrics.S3_REQUESTS)
+                .tags("client", "sync", "operation", "head", "outcome", "CLIENT_ERROR").timer().count());
+    }
+
+
+    /**
+     * Method under test: {@link InstrumentedS3Client#invoke(Object, java.lang.reflect.Method, Object[])}
+     */
+    @Test
+    void testInvoke_OtherMethodsPassedThroughUntimed() {
+        // Arrange
+        when(s3Client.doesBucketExistV2("dummy-bucket-name")).thenReturn(true);
+
+        // Act & Assert
+        assertTrue(instrumentedS3Client.doesBucketExistV2("dummy-bucket-name"));
+        assertTrue(meterRegistry.find(StorageMetrics.S3_REQUESTS).timers().isEmpty());
+    }
+}
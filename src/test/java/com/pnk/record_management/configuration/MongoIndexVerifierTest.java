@@ -0,0 +1,103 @@
+package com.pnk.record_management.configuration;
+
+import com.mongodb.client.MongoDatabase;
+import com.pnk.record_management.entity.MedicalRecord;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+
+class MongoIndexVerifierTest {
+
+    MongoTemplate mongoTemplate;
+
+    MongoDatabase mongoDatabase;
+
+    MongoIndexVerifier mongoIndexVerifier;
+
+    @BeforeEach
+    void setUp() {
+        mongoTemplate = mock(MongoTemplate.class);
+        mongoDatabase = mock(MongoDatabase.class);
+        when(mongoTemplate.getDb()).thenReturn(mongoDatabase);
+        when(mongoTemplate.getCollectionName(MedicalRecord.class)).thenReturn("medical-record");
+
+        mongoIndexVerifier = new MongoIndexVerifier(mongoTemplate);
+    }
+
+
+    private static Document explanation(Document winningPlan) {
+        return new Document("queryPlanner", new Document("winningPlan", winningPlan));
+    }
+
+
+    private static Document indexScan() {
+        return new Document("stage", "FETCH")
+                .append("inputStage", new Document("stage", "IXSCAN").append("indexName", "medicalRecordName"));
+    }
+
+
+    /**
+     * Method under test: {@link MongoIndexVerifier#findUnindexedStage(Document)}
+     */
+    @Test
+    void testFindUnindexedStage() {
+        assertNull(MongoIndexVerifier.findUnindexedStage(indexScan()));
+        assertEquals("COLLSCAN", MongoIndexVerifier.findUnindexedStage(new Document("stage", "COLLSCAN")));
+        // in-memory sort on top of an index scan of another field
+        assertEquals("SORT", MongoIndexVerifier.findUnindexedStage(
+                new Document("stage", "SORT").append("inputStage", indexScan())));
+        // slot-based engine plan wrapping an OR of two branches
+        assertEquals("COLLSCAN", MongoIndexVerifier.findUnindexedStage(new Document("queryPlan",
+                new Document("stage", "OR").append("inputStages",
+                        List.of(indexScan(), new Document("stage", "COLLSCAN"))))));
+    }
+
+
+    /**
+     * Method under test: {@link MongoIndexVerifier#run(org.springframework.boot.ApplicationArguments)}
+     */
+    @Test
+    void testRun_FailModeRefusesCollectionScans() {
+        // Arrange
+        ReflectionTestUtils.setField(mongoIndexVerifier, "mode", "fail");
+        when(mongoDatabase.runCommand(any(Bson.class)))
+                .thenReturn(explanation(indexScan()))
+                .thenReturn(explanation(new Document("stage", "COLLSCAN")))
+                .thenReturn(explanation(indexScan()));
+
+        // Act & Assert
+        IllegalStateException exception =
+                assertThrows(IllegalStateException.class, () -> mongoIndexVerifier.run(null));
+        assertTrue(exception.getMessage().contains("findByPatientIdAndS3AvailabilityTrueOrderByCreationDateTimeDesc"));
+        verify(mongoDatabase, times(MongoIndexVerifier.REPOSITORY_QUERIES.size())).runCommand(any(Bson.class));
+    }
+
+
+    /**
+     * Method under test: {@link MongoIndexVerifier#run(org.springframework.boot.ApplicationArguments)}
+     */
+    @Test
+    void testRun_WarnAndOffModesDoNotFail() {
+        // Arrange
+        when(mongoDatabase.runCommand(any(Bson.class))).thenReturn(explanation(new Document("stage", "COLLSCAN")));
+
+        // Act & Assert
+        ReflectionTestUtils.setField(mongoIndexVerifier, "mode", "warn");
+        assertDoesNotThrow(() -> mongoIndexVerifier.run(null));
+
+        ReflectionTestUtils.setField(mongoIndexVerifier, "mode", "off");
+        clearInvocations(mongoDatabase);
+        assertDoesNotThrow(() -> mongoIndexVerifier.run(null));
+        verify(mongoDatabase, never()).runCommand(any(Bson.class));
+    }
+}
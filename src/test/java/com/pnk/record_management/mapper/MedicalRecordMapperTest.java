@@ -0,0 +1,100 @@
+package com.pnk.record_management.mapper;
+
+import com.amazonaws.services.s3.model.Owner;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.pnk.record_management.dto.response.MedicalRecordResponse;
+import com.pnk.record_management.dto.response.MedicalRecordS3Metadata;
+import com.pnk.record_management.entity.MedicalRecord;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class MedicalRecordMapperTest {
+
+    MedicalRecordMapper medicalRecordMapper = new MedicalRecordMapperImpl();
+
+
+    /**
+     * Method under test: {@link MedicalRecordMapper#toMedicalRecordResponse(MedicalRecord)}
+     */
+    @Test
+    void testToMedicalRecordResponse() {
+        // Arrange
+        Instant now = Instant.now();
+        MedicalRecordS3Metadata s3Metadata = MedicalRecordS3Metadata.builder()
+                .bucketName("dummy-bucket-name")
+                .key("patient-1_record.txt")
+                .size(4)
+                .build();
+        MedicalRecord medicalRecord = MedicalRecord.builder()
+                .id("1")
+                .medicalRecordName("patient-1_record.txt")
+                .patientId("patient-1")
+                .creationDateTime(now)
+                .latestUpdateDateTime(now)
+                .s3Availability(true)
+                .updatedByUser("admin")
+                .medicalRecordS3Metadata(s3Metadata)
+                .contentSha256("sha256")
+                .contentKey("patient-1_earlier-record.txt")
+                .version(3L)
+                .build();
+
+        // Act
+        MedicalRecordResponse medicalRecordResponse = medicalRecordMapper.toMedicalRecordResponse(medicalRecord);
+
+        // Assert: every property, the embedded S3 metadata shared as before with ModelMapper
+        assertEquals(MedicalRecordResponse.builder()
+                .id("1")
+                .medicalRecordName("patient-1_record.txt")
+                .patientId("patient-1")
+                .creationDateTime(now)
+                .latestUpdateDateTime(now)
+                .s3Availability(true)
+                .updatedByUser("admin")
+                .medicalRecordS3Metadata(s3Metadata)
+                .contentSha256("sha256")
+                .contentKey("patient-1_earlier-record.txt")
+                .version(3L)
+                .build(), medicalRecordResponse);
+        assertSame(s3Metadata, medicalRecordResponse.getMedicalRecordS3Metadata());
+        assertNull(medicalRecordMapper.toMedicalRecordResponse(null));
+    }
+
+
+    /**
+     * Method under test: {@link MedicalRecordMapper#toMedicalRecordS3Metadata(S3ObjectSummary)}
+     */
+    @Test
+    void testToMedicalRecordS3Metadata() {
+        // Arrange
+        Date lastModified = new Date();
+        Owner owner = new Owner("owner-id", "owner");
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setBucketName("dummy-bucket-name");
+        summary.setKey("patient-1_record.txt");
+        summary.setETag("9a0364b9e99bb480dd25e1f0284c8555");
+        summary.setSize(4);
+        summary.setLastModified(lastModified);
+        summary.setStorageClass("STANDARD");
+        summary.setOwner(owner);
+
+        // Act
+        MedicalRecordS3Metadata s3Metadata = medicalRecordMapper.toMedicalRecordS3Metadata(summary);
+
+        // Assert
+        assertEquals(MedicalRecordS3Metadata.builder()
+                .bucketName("dummy-bucket-name")
+                .key("patient-1_record.txt")
+                .etag("9a0364b9e99bb480dd25e1f0284c8555")
+                .size(4)
+                .lastModified(lastModified)
+                .storageClass("STANDARD")
+                .owner(owner)
+                .build(), s3Metadata);
+    }
+}
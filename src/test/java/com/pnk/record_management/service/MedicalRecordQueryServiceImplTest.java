@@ -0,0 +1,134 @@
+package com.pnk.record_management.service;
+
+import com.pnk.record_management.dto.request.MedicalRecordQueryRequest;
+import com.pnk.record_management.dto.response.MedicalRecordResponse;
+import com.pnk.record_management.dto.response.PageResponse;
+import com.pnk.record_management.entity.MedicalRecord;
+import com.pnk.record_management.exception.AppException;
+import com.pnk.record_management.exception.ErrorCode;
+import com.pnk.record_management.mapper.MedicalRecordMapperImpl;
+import com.pnk.record_management.utils.CursorUtils;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+
+class MedicalRecordQueryServiceImplTest {
+
+    MongoTemplate mongoTemplate;
+
+    MedicalRecordQueryServiceImpl medicalRecordQueryService;
+
+    @BeforeEach
+    void setUp() {
+        mongoTemplate = mock(MongoTemplate.class);
+        medicalRecordQueryService = new MedicalRecordQueryServiceImpl(mongoTemplate, new MedicalRecordMapperImpl());
+        ReflectionTestUtils.setField(medicalRecordQueryService, "pageMaxLimit", 1000);
+    }
+
+
+    private static MedicalRecord record(String id, Instant creationDateTime) {
+        return MedicalRecord.builder()
+                .id(id)
+                .medicalRecordName("patient-42_" + id + ".txt")
+                .patientId("patient-42")
+                .creationDateTime(creationDateTime)
+                .s3Availability(true)
+                .build();
+    }
+
+
+    /**
+     * Method under test: {@link MedicalRecordQueryServiceImpl#queryRecords(MedicalRecordQueryRequest, int, String)}
+     */
+    @Test
+    void testQueryRecords_FiltersProjectionAndNextCursor() {
+        // Arrange
+        Instant createdFrom = Instant.parse("2024-01-01T00:00:00Z");
+        Instant newest = Instant.parse("2024-03-01T00:00:00Z");
+        Instant older = Instant.parse("2024-02-01T00:00:00Z");
+        ArgumentCaptor<Query> queryCaptor = ArgumentCaptor.forClass(Query.class);
+        when(mongoTemplate.find(queryCaptor.capture(), eq(MedicalRecord.class)))
+                .thenReturn(List.of(record("id-3", newest), record("id-2", older), record("id-1", older)));
+
+        // Act
+        PageResponse<MedicalRecordResponse> page = medicalRecordQueryService.queryRecords(
+                MedicalRecordQueryRequest.builder()
+                        .patientId("patient-42")
+                        .s3Availability(true)
+                        .createdFrom(createdFrom)
+                        .build(), 2, null);
+
+        // Assert
+        Query query = queryCaptor.getValue();
+        assertEquals(3, query.getLimit());
+        assertEquals(new Document("creationDateTime", -1).append("id", -1), query.getSortObject());
+        assertTrue(query.getFieldsObject().containsKey("patientId"));
+        assertFalse(query.getFieldsObject().containsKey("medicalRecordS3Metadata"));
+        String filter = query.getQueryObject().toString();
+        assertTrue(filter.contains("patientId=patient-42"));
+        assertTrue(filter.contains("s3Availability=true"));
+        assertTrue(filter.contains("$gte"));
+
+        assertEquals(List.of("id-3", "id-2"), page.getItems().stream().map(MedicalRecordResponse::getId).toList());
+        assertEquals(older + "|id-2", CursorUtils.decode(page.getNextCursor()));
+    }
+
+
+    /**
+     * Method under test: {@link MedicalRecordQueryServiceImpl#queryRecords(MedicalRecordQueryRequest, int, String)}
+     */
+    @Test
+    void testQueryRecords_CursorStartsAfterLastRecordOnLastPage() {
+        // Arrange
+        Instant older = Instant.parse("2024-02-01T00:00:00Z");
+        ArgumentCaptor<Query> queryCaptor = ArgumentCaptor.forClass(Query.class);
+        when(mongoTemplate.find(queryCaptor.capture(), eq(MedicalRecord.class)))
+                .thenReturn(List.of(record("id-1", older)));
+
+        // Act
+        PageResponse<MedicalRecordResponse> page = medicalRecordQueryService.queryRecords(
+                new MedicalRecordQueryRequest(), 2, CursorUtils.encode(older + "|id-2"));
+
+        // Assert
+        String filter = queryCaptor.getValue().getQueryObject().toString();
+        assertTrue(filter.contains("$or"));
+        assertTrue(filter.contains("id=Document{{$lt=id-2}}"));
+        assertEquals(1, page.getItems().size());
+        assertNull(page.getNextCursor());
+    }
+
+
+    /**
+     * Method under test: {@link MedicalRecordQueryServiceImpl#queryRecords(MedicalRecordQueryRequest, int, String)}
+     */
+    @Test
+    void testQueryRecords_InvalidRequests() {
+        MedicalRecordQueryRequest noFilter = new MedicalRecordQueryRequest();
+        Instant now = Instant.now();
+
+        assertEquals(ErrorCode.INVALID_PAGINATION, assertThrows(AppException.class,
+                () -> medicalRecordQueryService.queryRecords(noFilter, 0, null)).getErrorCode());
+        assertEquals(ErrorCode.INVALID_PAGINATION, assertThrows(AppException.class,
+                () -> medicalRecordQueryService.queryRecords(noFilter, 10, CursorUtils.encode("not-a-position")))
+                .getErrorCode());
+        assertEquals(ErrorCode.INVALID_TIME_RANGE, assertThrows(AppException.class,
+                () -> medicalRecordQueryService.queryRecords(MedicalRecordQueryRequest.builder()
+                        .updatedFrom(now)
+                        .updatedTo(now.minusSeconds(60))
+                        .build(), 10, null)).getErrorCode());
+        verify(mongoTemplate, never()).find(any(Query.class), eq(MedicalRecord.class));
+    }
+}
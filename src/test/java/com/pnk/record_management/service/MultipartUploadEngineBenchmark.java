@@ -0,0 +1,92 @@
+package com.pnk.record_management.service;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.pnk.record_management.support.InMemoryAmazonS3;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/*
+ * Throughput of large uploads against a simulated link: 20ms per request and 40MB/s per connection,
+ * roughly what a single S3 connection sustains. Run with `mvn test -Pbenchmark`.
+ * */
+@Slf4j
+@Tag("benchmark")
+class MultipartUploadEngineBenchmark {
+
+    static final String BUCKET_NAME = "benchmark-bucket";
+
+    static final long FILE_SIZE = DataSize.ofMegabytes(400).toBytes();
+
+
+    @ParameterizedTest(name = "part-size {0}MB, parallelism {1}")
+    @CsvSource({"400, 1", "16, 1", "16, 4", "16, 8", "16, 16", "8, 16"})
+    void uploadThroughput(int partSizeMegabytes, int parallelism) throws IOException {
+        InMemoryAmazonS3 s3Client = new InMemoryAmazonS3(
+                BUCKET_NAME, Duration.ofMillis(20), DataSize.ofMegabytes(40).toBytes(), false);
+        ExecutorService executorService = Executors.newCachedThreadPool();
+
+        try {
+            S3MetadataResolver s3MetadataResolver = new S3MetadataResolver(s3Client);
+            ReflectionTestUtils.setField(s3MetadataResolver, "bucketName", BUCKET_NAME);
+
+            MultipartUploadEngine multipartUploadEngine =
+                    new MultipartUploadEngine(s3Client, s3MetadataResolver, executorService);
+            ReflectionTestUtils.setField(multipartUploadEngine, "bucketName", BUCKET_NAME);
+            ReflectionTestUtils.setField(multipartUploadEngine, "partSize", DataSize.ofMegabytes(partSizeMegabytes));
+            ReflectionTestUtils.setField(multipartUploadEngine, "parallelism", parallelism);
+
+            long startedAt = System.nanoTime();
+            multipartUploadEngine.upload("benchmark-scan.dcm", new ZeroInputStream(FILE_SIZE), new ObjectMetadata());
+            double seconds = (System.nanoTime() - startedAt) / 1e9;
+
+            log.info(">> uploadThroughput >> part-size {}MB, parallelism {}: {} MB in {} s = {} MB/s",
+                    partSizeMegabytes, parallelism, FILE_SIZE >> 20,
+                    String.format("%.2f", seconds), String.format("%.1f", (FILE_SIZE >> 20) / seconds));
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+
+    /*
+     * Stream of `size` zero bytes that allocates nothing
+     * */
+    private static final class ZeroInputStream extends InputStream {
+
+        long remaining;
+
+        ZeroInputStream(long size) {
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() {
+            if (remaining == 0)
+                return -1;
+            remaining--;
+            return 0;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (remaining == 0)
+                return -1;
+            int count = (int) Math.min(length, remaining);
+            Arrays.fill(buffer, offset, offset + count, (byte) 0);
+            remaining -= count;
+            return count;
+        }
+    }
+}
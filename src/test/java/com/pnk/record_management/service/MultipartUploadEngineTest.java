@@ -0,0 +1,109 @@
+package com.pnk.record_management.service;
+
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.pnk.record_management.dto.response.MedicalRecordS3Metadata;
+import com.pnk.record_management.support.InMemoryAmazonS3;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class MultipartUploadEngineTest {
+
+    static final String BUCKET_NAME = "dummy-bucket-name";
+
+    InMemoryAmazonS3 s3Client;
+
+    ExecutorService executorService;
+
+    MultipartUploadEngine multipartUploadEngine;
+
+    @BeforeEach
+    void setUp() {
+        s3Client = new InMemoryAmazonS3(BUCKET_NAME);
+        executorService = Executors.newCachedThreadPool();
+
+        S3MetadataResolver s3MetadataResolver = new S3MetadataResolver(s3Client);
+        ReflectionTestUtils.setField(s3MetadataResolver, "bucketName", BUCKET_NAME);
+
+        multipartUploadEngine = new MultipartUploadEngine(s3Client, s3MetadataResolver, executorService);
+        ReflectionTestUtils.setField(multipartUploadEngine, "bucketName", BUCKET_NAME);
+        ReflectionTestUtils.setField(multipartUploadEngine, "partSize", DataSize.ofMegabytes(5));
+        ReflectionTestUtils.setField(multipartUploadEngine, "parallelism", 3);
+    }
+
+
+    @AfterEach
+    void tearDown() {
+        executorService.shutdownNow();
+    }
+
+
+    private static byte[] randomContent(int size) {
+        byte[] content = new byte[size];
+        new Random(42).nextBytes(content);
+        return content;
+    }
+
+
+    /**
+     * Method under test: {@link MultipartUploadEngine#upload(String, java.io.InputStream, ObjectMetadata)}
+     */
+    @Test
+    void testUpload_SplitsIntoConcurrentParts() throws IOException {
+        byte[] content = randomContent(12 * 1024 * 1024 + 17);
+
+        MedicalRecordS3Metadata s3Metadata = multipartUploadEngine
+                .upload("scan.dcm", new ByteArrayInputStream(content), new ObjectMetadata());
+
+        assertEquals(content.length, s3Metadata.getSize());
+        assertTrue(s3Metadata.getEtag().endsWith("-3"));
+        assertEquals(3, s3Client.requestCount("uploadPart"));
+        assertEquals(1, s3Client.requestCount("completeMultipartUpload"));
+        assertArrayEquals(content, s3Client.getObject(BUCKET_NAME, "scan.dcm").getObjectContent().readAllBytes());
+    }
+
+
+    /**
+     * Method under test: {@link MultipartUploadEngine#upload(String, java.io.InputStream, ObjectMetadata)}
+     */
+    @Test
+    void testUpload_SmallStreamUsesSinglePut() throws IOException {
+        byte[] content = randomContent(1024);
+
+        MedicalRecordS3Metadata s3Metadata = multipartUploadEngine
+                .upload("note.txt", new ByteArrayInputStream(content), new ObjectMetadata());
+
+        assertEquals(1024, s3Metadata.getSize());
+        assertEquals(1, s3Client.requestCount("putObject"));
+        assertEquals(0, s3Client.requestCount("initiateMultipartUpload"));
+    }
+
+
+    /**
+     * Method under test: {@link MultipartUploadEngine#upload(String, java.io.InputStream, ObjectMetadata)}
+     */
+    @Test
+    void testUpload_AbortsOnPartFailure() {
+        s3Client.failPartNumber(2);
+        byte[] content = randomContent(20 * 1024 * 1024);
+
+        assertThrows(AmazonS3Exception.class, () -> multipartUploadEngine
+                .upload("scan.dcm", new ByteArrayInputStream(content), new ObjectMetadata()));
+
+        assertEquals(1, s3Client.requestCount("abortMultipartUpload"));
+        assertTrue(s3Client.pendingMultipartUploads().isEmpty());
+        assertEquals(0, s3Client.objectCount());
+    }
+}
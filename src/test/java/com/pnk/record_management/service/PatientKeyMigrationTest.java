@@ -0,0 +1,168 @@
+package com.pnk.record_management.service;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.pnk.record_management.dto.response.KeyMigrationReport;
+import com.pnk.record_management.entity.MedicalRecord;
+import com.pnk.record_management.repository.MedicalRecordRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+
+class PatientKeyMigrationTest {
+
+    MedicalRecordRepository medicalRecordRepository;
+
+    AmazonS3 s3Client;
+
+    ExecutorService storageTaskExecutor;
+
+    PatientKeyMigration patientKeyMigration;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        medicalRecordRepository = mock(MedicalRecordRepository.class);
+        s3Client = mock(AmazonS3.class);
+        storageTaskExecutor = Executors.newFixedThreadPool(2);
+
+        patientKeyMigration = new PatientKeyMigration(medicalRecordRepository, s3Client, new S3KeyIndex(),
+                new S3MetadataCache(mock(S3MetadataResolver.class), Caffeine.newBuilder().build()),
+                new RecordContentCache(1024, 1024, 0, 1024, Path.of("unused"), Duration.ofSeconds(30),
+                        new StorageMetrics(new SimpleMeterRegistry())), storageTaskExecutor);
+        ReflectionTestUtils.setField(patientKeyMigration, "bucketName", "dummy-bucket-name");
+        ReflectionTestUtils.setField(patientKeyMigration, "parallelism", 2);
+    }
+
+
+    @AfterEach
+    void tearDown() {
+        storageTaskExecutor.shutdownNow();
+    }
+
+
+    private static MedicalRecord medicalRecord(String key, String patientId) {
+        return MedicalRecord.builder()
+                .id("id-" + key)
+                .medicalRecordName(key)
+                .patientId(patientId)
+                .s3Availability(true)
+                .build();
+    }
+
+
+    /**
+     * Method under test: {@link PatientKeyMigration#migrate()}
+     */
+    @Test
+    void testMigrate_CopiesThenRepointsThenDeletes() {
+        // Arrange
+        when(medicalRecordRepository.streamByS3AvailabilityTrue()).thenReturn(Stream.of(
+                medicalRecord("2023_01_01_legacy-EHR.txt", "patient-42"),
+                medicalRecord("patient-42_2024_08_31_test-EHR.txt", "patient-42"),
+                medicalRecord("2023_01_02_unknown-EHR.txt", "get patientId sent from the producer"),
+                medicalRecord("2023_01_03_broken-EHR.txt", "patient-7")));
+        when(s3Client.copyObject(anyString(), eq("2023_01_03_broken-EHR.txt"), anyString(), anyString()))
+                .thenThrow(new RuntimeException("Simulated failure"));
+        when(medicalRecordRepository.findAndRename(any(MedicalRecord.class), anyString(), anyString()))
+                .thenAnswer(invocation -> Optional.of(invocation.getArgument(0)));
+
+        // Act
+        KeyMigrationReport report = patientKeyMigration.migrate();
+
+        // Assert
+        assertEquals(1, report.getMigrated());
+        assertEquals(1, report.getAlreadyMigrated());
+        assertEquals(1, report.getSkipped());
+        assertEquals(1, report.getFailed());
+
+        InOrder inOrder = inOrder(s3Client, medicalRecordRepository);
+        inOrder.verify(s3Client).copyObject("dummy-bucket-name", "2023_01_01_legacy-EHR.txt",
+                "dummy-bucket-name", "patient-42_2023_01_01_legacy-EHR.txt");
+        inOrder.verify(medicalRecordRepository).findAndRename(
+                argThat(medicalRecord -> medicalRecord.getId().equals("id-2023_01_01_legacy-EHR.txt")),
+                eq("patient-42_2023_01_01_legacy-EHR.txt"), eq(PatientKeyMigration.MIGRATION_USER));
+        inOrder.verify(s3Client).deleteObject("dummy-bucket-name", "2023_01_01_legacy-EHR.txt");
+
+        // a failed copy leaves both the object and its record untouched
+        verify(s3Client, never()).deleteObject("dummy-bucket-name", "2023_01_03_broken-EHR.txt");
+        verify(medicalRecordRepository, times(1)).findAndRename(any(MedicalRecord.class), anyString(), anyString());
+        verify(medicalRecordRepository, never()).save(any(MedicalRecord.class));
+    }
+
+
+    /**
+     * Method under test: {@link PatientKeyMigration#migrate()}
+     */
+    @Test
+    void testMigrate_RecordChangedSinceReadKeepsOldKey() {
+        // Arrange
+        when(medicalRecordRepository.streamByS3AvailabilityTrue()).thenReturn(Stream.of(
+                medicalRecord("2023_01_01_legacy-EHR.txt", "patient-42")));
+        // deleted by a user between the read and the rename: the version no longer matches
+        when(medicalRecordRepository.findAndRename(any(MedicalRecord.class), anyString(), anyString()))
+                .thenReturn(Optional.empty());
+
+        // Act
+        KeyMigrationReport report = patientKeyMigration.migrate();
+
+        // Assert
+        assertEquals(0, report.getMigrated());
+        assertEquals(1, report.getFailed());
+        verify(s3Client).deleteObject("dummy-bucket-name", "patient-42_2023_01_01_legacy-EHR.txt");
+        verify(s3Client, never()).deleteObject("dummy-bucket-name", "2023_01_01_legacy-EHR.txt");
+    }
+
+
+    /**
+     * Method under test: {@link PatientKeyMigration#migrate()}
+     */
+    @Test
+    void testMigrate_RestartDeletesOldObjectLeftBetweenRenameAndDelete() {
+        // Arrange
+        when(medicalRecordRepository.streamByS3AvailabilityTrue()).thenReturn(Stream.of(
+                medicalRecord("2023_01_01_legacy-EHR.txt", "patient-42")));
+        when(medicalRecordRepository.findAndRename(any(MedicalRecord.class), anyString(), anyString()))
+                .thenAnswer(invocation -> Optional.of(invocation.getArgument(0)));
+        // the process dies once the record is renamed, before the old object is deleted
+        doThrow(new RuntimeException("Simulated crash")).doNothing()
+                .when(s3Client).deleteObject("dummy-bucket-name", "2023_01_01_legacy-EHR.txt");
+
+        KeyMigrationReport interruptedReport = patientKeyMigration.migrate();
+        assertEquals(1, interruptedReport.getFailed());
+
+        // the restart reads the record under its new key, the old object still in the bucket
+        when(medicalRecordRepository.streamByS3AvailabilityTrue()).thenReturn(Stream.of(
+                medicalRecord("patient-42_2023_01_01_legacy-EHR.txt", "patient-42")));
+        when(s3Client.doesObjectExist("dummy-bucket-name", "2023_01_01_legacy-EHR.txt")).thenReturn(true);
+        when(medicalRecordRepository.findByMedicalRecordName("2023_01_01_legacy-EHR.txt"))
+                .thenReturn(Optional.empty());
+
+        // Act
+        KeyMigrationReport report = patientKeyMigration.migrate();
+
+        // Assert
+        assertEquals(1, report.getAlreadyMigrated());
+        assertEquals(0, report.getFailed());
+        verify(s3Client, times(2)).deleteObject("dummy-bucket-name", "2023_01_01_legacy-EHR.txt");
+        verify(s3Client, never()).deleteObject("dummy-bucket-name", "patient-42_2023_01_01_legacy-EHR.txt");
+        verify(medicalRecordRepository, times(1)).findAndRename(any(MedicalRecord.class), anyString(), anyString());
+    }
+}
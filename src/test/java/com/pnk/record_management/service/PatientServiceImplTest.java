@@ -0,0 +1,146 @@
+package com.pnk.record_management.service;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.pnk.record_management.dto.response.MedicalRecordResponse;
+import com.pnk.record_management.entity.MedicalRecord;
+import com.pnk.record_management.exception.AppException;
+import com.pnk.record_management.exception.ErrorCode;
+import com.pnk.record_management.mapper.MedicalRecordMapperImpl;
+import com.pnk.record_management.repository.MedicalRecordRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+
+class PatientServiceImplTest {
+
+    MedicalRecordRepository medicalRecordRepository;
+
+    AmazonS3 s3Client;
+
+    ExecutorService storageTaskExecutor;
+
+    PatientServiceImpl patientService;
+
+    @BeforeEach
+    void setUp() {
+        medicalRecordRepository = mock(MedicalRecordRepository.class);
+        s3Client = mock(AmazonS3.class);
+        storageTaskExecutor = Executors.newSingleThreadExecutor();
+
+        patientService = new PatientServiceImpl(medicalRecordRepository, s3Client, storageTaskExecutor,
+                new MedicalRecordMapperImpl());
+        ReflectionTestUtils.setField(patientService, "bucketName", "dummy-bucket-name");
+    }
+
+
+    @AfterEach
+    void tearDown() {
+        storageTaskExecutor.shutdownNow();
+    }
+
+
+    private static MedicalRecord medicalRecord(String key) {
+        return MedicalRecord.builder()
+                .id("id-" + key)
+                .medicalRecordName(key)
+                .patientId("patient-42")
+                .s3Availability(true)
+                .build();
+    }
+
+
+    /**
+     * Method under test: {@link PatientServiceImpl#getPatientFiles(String)}
+     */
+    @Test
+    void testGetPatientFiles_JoinsRecordsWithPrefixListing() {
+        // Arrange
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setKey("patient-42_2024_08_31_10_00_00_000_1725098400_test-EHR.txt");
+        summary.setETag("dummy-eTag");
+        summary.setSize(6L);
+
+        ListObjectsV2Result listing = new ListObjectsV2Result();
+        listing.getObjectSummaries().add(summary);
+
+        ArgumentCaptor<ListObjectsV2Request> requestCaptor = ArgumentCaptor.forClass(ListObjectsV2Request.class);
+        when(s3Client.listObjectsV2(requestCaptor.capture())).thenReturn(listing);
+        when(medicalRecordRepository.findByPatientIdAndS3AvailabilityTrueOrderByCreationDateTimeDesc("patient-42"))
+                .thenReturn(List.of(
+                        medicalRecord("patient-42_2024_08_31_10_00_00_000_1725098400_test-EHR.txt"),
+                        medicalRecord("2023_01_01_10_00_00_000_1672567200_legacy-EHR.txt")));
+
+        // Act
+        List<MedicalRecordResponse> patientFiles = patientService.getPatientFiles("patient-42");
+
+        // Assert
+        assertEquals("patient-42_", requestCaptor.getValue().getPrefix());
+        // the record still under a key of the old layout has no object under the prefix
+        assertEquals(1, patientFiles.size());
+        assertEquals("dummy-eTag", patientFiles.getFirst().getMedicalRecordS3Metadata().getEtag());
+        assertEquals(6L, patientFiles.getFirst().getMedicalRecordS3Metadata().getSize());
+    }
+
+
+    /**
+     * Method under test: {@link PatientServiceImpl#getPatientFiles(String)}
+     */
+    @Test
+    void testGetPatientFiles_SharedRecordResolvedByContentKey() {
+        // Arrange: the repeat upload references the object of the first one
+        String originalKey = "patient-42_2024_08_31_10_00_00_000_1725098400_test-EHR.txt";
+        String duplicateKey = "patient-42_2024_09_01_10_00_00_000_1725184800_test-EHR.txt";
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setKey(originalKey);
+        summary.setETag("dummy-eTag");
+        summary.setSize(6L);
+
+        ListObjectsV2Result listing = new ListObjectsV2Result();
+        listing.getObjectSummaries().add(summary);
+
+        MedicalRecord duplicateRecord = medicalRecord(duplicateKey);
+        duplicateRecord.setContentKey(originalKey);
+
+        when(s3Client.listObjectsV2(any(ListObjectsV2Request.class))).thenReturn(listing);
+        when(medicalRecordRepository.findByPatientIdAndS3AvailabilityTrueOrderByCreationDateTimeDesc("patient-42"))
+                .thenReturn(List.of(duplicateRecord, medicalRecord(originalKey)));
+
+        // Act
+        List<MedicalRecordResponse> patientFiles = patientService.getPatientFiles("patient-42");
+
+        // Assert: both records, the duplicate with the metadata of the shared object
+        assertEquals(List.of(duplicateKey, originalKey),
+                patientFiles.stream().map(MedicalRecordResponse::getMedicalRecordName).toList());
+        assertEquals(originalKey, patientFiles.getFirst().getMedicalRecordS3Metadata().getKey());
+        assertEquals("dummy-eTag", patientFiles.getFirst().getMedicalRecordS3Metadata().getEtag());
+    }
+
+
+    /**
+     * Method under test: {@link PatientServiceImpl#getPatientFiles(String)}
+     */
+    @Test
+    void testGetPatientFiles_InvalidPatientId() {
+        // Act & Assert
+        AppException exception = assertThrows(AppException.class, () -> patientService.getPatientFiles("42_1"));
+        assertEquals(ErrorCode.INVALID_PATIENT_ID, exception.getErrorCode());
+        verify(s3Client, never()).listObjectsV2(any(ListObjectsV2Request.class));
+        verify(medicalRecordRepository, never())
+                .findByPatientIdAndS3AvailabilityTrueOrderByCreationDateTimeDesc(anyString());
+    }
+}
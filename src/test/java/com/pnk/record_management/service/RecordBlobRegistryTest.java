@@ -0,0 +1,123 @@
+package com.pnk.record_management.service;
+
+import com.pnk.record_management.entity.RecordBlob;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+
+class RecordBlobRegistryTest {
+
+    MongoTemplate mongoTemplate;
+
+    RecordBlobRegistry recordBlobRegistry;
+
+    @BeforeEach
+    void setUp() {
+        mongoTemplate = mock(MongoTemplate.class);
+        recordBlobRegistry = new RecordBlobRegistry(mongoTemplate);
+    }
+
+
+    private void storedAfterRelease(List<String> remainingReferences) {
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                eq(RecordBlob.class)))
+                .thenReturn(remainingReferences == null ? null : RecordBlob.builder()
+                        .id("shared.txt")
+                        .references(new ArrayList<>(remainingReferences))
+                        .build());
+    }
+
+
+    /**
+     * Method under test: {@link RecordBlobRegistry#release(String, String)}
+     */
+    @Test
+    void testRelease_ObjectKeptWhileReferenced() {
+        // Arrange
+        storedAfterRelease(List.of("second-copy.txt"));
+
+        // Act
+        boolean deletable = recordBlobRegistry.release("shared.txt", "first-copy.txt");
+
+        // Assert
+        assertFalse(deletable);
+        verify(mongoTemplate, never()).remove(any(Query.class), eq(RecordBlob.class));
+    }
+
+
+    /**
+     * Method under test: {@link RecordBlobRegistry#release(String, String)}
+     */
+    @Test
+    void testRelease_LastReferenceRemovesBlob() {
+        // Arrange
+        storedAfterRelease(List.of());
+
+        // Act
+        boolean deletable = recordBlobRegistry.release("shared.txt", "second-copy.txt");
+
+        // Assert
+        assertTrue(deletable);
+        verify(mongoTemplate).remove(any(Query.class), eq(RecordBlob.class));
+    }
+
+
+    /**
+     * Method under test: {@link RecordBlobRegistry#release(String, String)}
+     */
+    @Test
+    void testRelease_UnsharedObjectDeletable() {
+        // Arrange
+        storedAfterRelease(null);
+
+        // Act & Assert
+        assertTrue(recordBlobRegistry.release("record.txt", "record.txt"));
+    }
+
+
+    /**
+     * Method under test: {@link RecordBlobRegistry#findObjectKeys(java.util.Collection)}
+     */
+    @Test
+    void testFindObjectKeys() {
+        // Arrange: the record shared.txt was uploaded with has been released already, its object is still shared
+        when(mongoTemplate.find(any(Query.class), eq(RecordBlob.class))).thenReturn(List.of(RecordBlob.builder()
+                .id("shared.txt")
+                .references(List.of("first-copy.txt", "second-copy.txt"))
+                .build()));
+
+        // Act
+        Map<String, String> objectKeys =
+                recordBlobRegistry.findObjectKeys(List.of("shared.txt", "second-copy.txt", "record.txt"));
+
+        // Assert: only the requested records are mapped
+        assertEquals(Map.of("shared.txt", "shared.txt", "second-copy.txt", "shared.txt"), objectKeys);
+    }
+
+
+    /**
+     * Method under test: {@link RecordBlobRegistry#sha256(java.io.InputStream)}
+     */
+    @Test
+    void testSha256() throws IOException {
+        assertEquals("571ca3b4ef92a81f8c062f2c2437b9116435d1575589a7b64a5c607d058fde0d",
+                RecordBlobRegistry.sha256(
+                        new ByteArrayInputStream("sample content".getBytes(StandardCharsets.UTF_8))));
+    }
+}
@@ -0,0 +1,118 @@
+package com.pnk.record_management.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+
+/*
+ * Compression ratio and CPU time per MB of each codec on synthetic records: HL7 lab results, a JSON export and random
+ * bytes standing for an already compressed format (the skip list keeps those from being compressed).
+ * Run with `mvn test -Pbenchmark`.
+ * */
+@Slf4j
+@Tag("benchmark")
+class RecordCompressionBenchmark {
+
+    static final int RECORD_SIZE = 16 << 20;
+
+    static final int BUFFER_SIZE = 128 << 10;
+
+    static final int ROUNDS = 5;
+
+
+    @ParameterizedTest(name = "{0}, {1}")
+    @CsvSource({
+            "GZIP, HL7", "DEFLATE, HL7",
+            "GZIP, JSON", "DEFLATE, JSON",
+            "GZIP, RANDOM", "DEFLATE, RANDOM"})
+    void compression(CompressionCodec codec, Payload payload) throws IOException {
+        byte[] record = payload.generate(RECORD_SIZE);
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+        // first round warms the codec up, it is not measured
+        byte[] compressed = compress(codec, record);
+        long compressionNanos = 0;
+        long decompressionNanos = 0;
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long startedAt = threadMXBean.getCurrentThreadCpuTime();
+            compressed = compress(codec, record);
+            compressionNanos += threadMXBean.getCurrentThreadCpuTime() - startedAt;
+
+            startedAt = threadMXBean.getCurrentThreadCpuTime();
+            try (InputStream decodingStream = codec.decoding(new ByteArrayInputStream(compressed))) {
+                decodingStream.transferTo(OutputStream.nullOutputStream());
+            }
+            decompressionNanos += threadMXBean.getCurrentThreadCpuTime() - startedAt;
+        }
+
+        double megabytes = (double) RECORD_SIZE * ROUNDS / (1 << 20);
+        log.info(">> compression >> {}, {}: ratio {}, compression {} ms CPU/MB, decompression {} ms CPU/MB",
+                codec, payload, String.format("%.2f", (double) record.length / compressed.length),
+                String.format("%.2f", compressionNanos / 1e6 / megabytes),
+                String.format("%.2f", decompressionNanos / 1e6 / megabytes));
+    }
+
+
+    private static byte[] compress(CompressionCodec codec, byte[] record) throws IOException {
+        try (InputStream compressingStream = codec.compressing(new ByteArrayInputStream(record), BUFFER_SIZE)) {
+            return compressingStream.readAllBytes();
+        }
+    }
+
+
+    enum Payload {
+
+        HL7 {
+            @Override
+            String line(Random random, int index) {
+                return "OBX|" + index + "|NM|" + random.nextInt(90000) + "^Glucose^LN||" + (60 + random.nextInt(90))
+                        + "|mg/dL|70-99|" + (random.nextBoolean() ? "N" : "H") + "|||F|||2024083" + random.nextInt(10)
+                        + "1015\r";
+            }
+        },
+
+        JSON {
+            @Override
+            String line(Random random, int index) {
+                return "{\"id\":\"" + Long.toHexString(random.nextLong()) + "\",\"patientId\":\"patient-"
+                        + random.nextInt(10000) + "\",\"medicalRecordName\":\"patient-" + random.nextInt(10000)
+                        + "_2024_08_31_10_15_30_123_" + index + "_EHR.txt\",\"s3Availability\":true},\n";
+            }
+        },
+
+        RANDOM {
+            @Override
+            byte[] generate(int size) {
+                byte[] record = new byte[size];
+                new Random(42).nextBytes(record);
+                return record;
+            }
+        };
+
+
+        String line(Random random, int index) {
+            throw new UnsupportedOperationException();
+        }
+
+
+        byte[] generate(int size) {
+            Random random = new Random(42);
+            StringBuilder record = new StringBuilder(size + 256);
+            for (int index = 1; record.length() < size; index++)
+                record.append(line(random, index));
+            return record.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.pnk.record_management.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.springframework.http.MediaType;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class RecordCompressorTest {
+
+    RecordCompressor recordCompressor;
+
+    @BeforeEach
+    void setUp() {
+        recordCompressor = new RecordCompressor();
+        ReflectionTestUtils.setField(recordCompressor, "enabled", true);
+        ReflectionTestUtils.setField(recordCompressor, "codec", CompressionCodec.DEFLATE);
+        ReflectionTestUtils.setField(recordCompressor, "minSize", DataSize.ofKilobytes(1));
+        ReflectionTestUtils.setField(recordCompressor, "skipContentTypes",
+                List.of(MediaType.parseMediaType("image/*"), MediaType.parseMediaType("application/zip")));
+    }
+
+
+    /**
+     * Method under test: {@link RecordCompressor#codecFor(String, long)}
+     */
+    @Test
+    void testCodecFor() {
+        assertEquals(Optional.of(CompressionCodec.DEFLATE), recordCompressor.codecFor("text/plain", 4096));
+        assertEquals(Optional.of(CompressionCodec.DEFLATE), recordCompressor.codecFor(null, 4096));
+        assertEquals(Optional.of(CompressionCodec.DEFLATE), recordCompressor.codecFor("not a type", 4096));
+        // already compressed formats, parameters included
+        assertEquals(Optional.empty(), recordCompressor.codecFor("image/png", 4096));
+        assertEquals(Optional.empty(), recordCompressor.codecFor("application/zip; name=scan.zip", 4096));
+        // too small to be worth it
+        assertEquals(Optional.empty(), recordCompressor.codecFor("text/plain", 100));
+
+        ReflectionTestUtils.setField(recordCompressor, "enabled", false);
+        assertEquals(Optional.empty(), recordCompressor.codecFor("text/plain", 4096));
+    }
+
+
+    /**
+     * Method under test: {@link CompressionCodec#compressing(InputStream, int)}
+     */
+    @ParameterizedTest
+    @EnumSource(CompressionCodec.class)
+    void testCompressing_RoundTrip(CompressionCodec codec) throws IOException {
+        // Arrange: larger than the buffer, so that the source is read in several rounds
+        byte[] content = "OBX|1|NM|GLU^Glucose||105|mg/dL|70-99|H|||F\r".repeat(2000).getBytes(StandardCharsets.UTF_8);
+
+        // Act
+        byte[] compressed;
+        try (InputStream compressingStream = codec.compressing(new ByteArrayInputStream(content), 1024)) {
+            compressed = compressingStream.readAllBytes();
+        }
+
+        // Assert
+        assertTrue(compressed.length < content.length / 20);
+        try (InputStream decodingStream = codec.decoding(new ByteArrayInputStream(compressed))) {
+            assertArrayEquals(content, decodingStream.readAllBytes());
+        }
+        assertEquals(Optional.of(codec),
+                CompressionCodec.fromContentEncoding(codec.getContentEncoding().toUpperCase()));
+    }
+
+
+    /**
+     * Method under test: {@link ChunkInflater#update(byte[], int, int, java.io.OutputStream)}
+     */
+    @ParameterizedTest
+    @EnumSource(CompressionCodec.class)
+    void testChunkInflater_DecodesWhateverPiecesArrive(CompressionCodec codec) throws IOException {
+        // Arrange
+        byte[] content = "OBX|1|NM|GLU^Glucose||105|mg/dL|70-99|H|||F\r".repeat(500).getBytes(StandardCharsets.UTF_8);
+        byte[] compressed;
+        try (InputStream compressingStream = codec.compressing(new ByteArrayInputStream(content), 1024)) {
+            compressed = compressingStream.readAllBytes();
+        }
+
+        // Act: pushed in pieces of 1 to 7 bytes, splitting the header, the body and the trailer alike
+        ChunkInflater inflater = new ChunkInflater(codec);
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        for (int offset = 0, piece = 1; offset < compressed.length; offset += piece, piece = piece % 7 + 1)
+            inflater.update(compressed, offset, Math.min(piece, compressed.length - offset), decoded);
+        inflater.finish();
+        inflater.end();
+
+        // Assert
+        assertArrayEquals(content, decoded.toByteArray());
+    }
+
+
+    /**
+     * Method under test: {@link ChunkInflater#update(byte[], int, int, java.io.OutputStream)}
+     */
+    @Test
+    void testChunkInflater_GzipNamedMembersAndCorruption() throws IOException {
+        // Arrange: two members, the first carrying a file name, as gzip tools write them
+        byte[] firstMember = {0x1f, (byte) 0x8b, 8, 8, 0, 0, 0, 0, 0, 3, 'a', '.', 't', 'x', 't', 0,
+                0x4b, 0x4c, 0x4a, 0x06, 0x00, (byte) 0xc2, 0x41, 0x24, 0x35, 0x03, 0x00, 0x00, 0x00};
+        ByteArrayOutputStream secondMember = new ByteArrayOutputStream();
+        try (OutputStream gzipStream = CompressionCodec.GZIP.encoding(secondMember)) {
+            gzipStream.write("def".getBytes(StandardCharsets.UTF_8));
+        }
+        ByteArrayOutputStream stored = new ByteArrayOutputStream();
+        stored.write(firstMember);
+        stored.write(secondMember.toByteArray());
+
+        // Act
+        ChunkInflater inflater = new ChunkInflater(CompressionCodec.GZIP);
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        inflater.update(stored.toByteArray(), 0, stored.size(), decoded);
+        inflater.finish();
+
+        // Assert
+        assertEquals("abcdef", decoded.toString(StandardCharsets.UTF_8));
+
+        // a flipped CRC byte, and a member cut short
+        byte[] corrupted = firstMember.clone();
+        corrupted[corrupted.length - 8] ^= 1;
+        assertThrows(IOException.class, () -> new ChunkInflater(CompressionCodec.GZIP)
+                .update(corrupted, 0, corrupted.length, new ByteArrayOutputStream()));
+
+        ChunkInflater truncatedInflater = new ChunkInflater(CompressionCodec.GZIP);
+        truncatedInflater.update(firstMember, 0, firstMember.length - 3, new ByteArrayOutputStream());
+        assertThrows(IOException.class, truncatedInflater::finish);
+    }
+}
@@ -0,0 +1,236 @@
+package com.pnk.record_management.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Date;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class RecordContentCacheTest {
+
+    @TempDir
+    Path directory;
+
+    MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    RecordContentCache recordContentCache;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        // off-heap: objects up to 8 bytes within 16 bytes, disk: objects up to 64 bytes within 100 bytes
+        recordContentCache = new RecordContentCache(16, 8, 100, 64, directory, Duration.ofMinutes(1),
+                new StorageMetrics(meterRegistry));
+    }
+
+
+    private void cache(String key, String etag, byte[] content) {
+        RecordContentCache.ContentWriter contentWriter =
+                recordContentCache.open(key, etag, new Date(), content.length);
+        assertNotNull(contentWriter);
+        contentWriter.write(content, 0, content.length);
+        contentWriter.commit();
+    }
+
+
+    private static String read(RecordContentCache.CachedContent cachedContent, long position, long count)
+            throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (RecordContentCache.ContentReader contentReader = cachedContent.openReader(position, count)) {
+            contentReader.transferTo(outputStream);
+        }
+        return outputStream.toString();
+    }
+
+
+    private long cachedFileCount() throws IOException {
+        try (var files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+
+    @Test
+    void testSmallObjectIsKeptOffHeap() throws IOException {
+        cache("small.txt", "etag-1", "content".getBytes());
+
+        RecordContentCache.CachedContent cachedContent = recordContentCache.get("small.txt", "etag-1");
+        assertNotNull(cachedContent);
+        assertEquals("content", read(cachedContent, 0, 7));
+        assertEquals("tent", read(cachedContent, 3, 4));
+        assertEquals(7, recordContentCache.offHeapBytes());
+        assertEquals(0, cachedFileCount());
+    }
+
+
+    @Test
+    void testLargeObjectIsSpilledToDisk() throws IOException {
+        cache("large.txt", "etag-1", "a larger sample content".getBytes());
+
+        RecordContentCache.CachedContent cachedContent = recordContentCache.get("large.txt", "etag-1");
+        assertEquals("sample", read(cachedContent, 9, 6));
+        try (RecordContentCache.ContentReader contentReader = cachedContent.openReader(0, cachedContent.getSize())) {
+            assertEquals("a larger sample content", new String(contentReader.readAllBytes()));
+        }
+        assertEquals(23, recordContentCache.diskBytes());
+        assertEquals(1, cachedFileCount());
+    }
+
+
+    @Test
+    void testDiskTierFileIoIsTimed() throws IOException {
+        cache("small.txt", "etag-1", "content".getBytes());
+        cache("large.txt", "etag-1", "a larger sample content".getBytes());
+        read(recordContentCache.get("large.txt", "etag-1"), 9, 6);
+
+        // off-heap entries do no file I/O
+        Timer writes = meterRegistry.get(StorageMetrics.FILE_IO)
+                .tags("store", "content-cache", "operation", "write", "outcome", "SUCCESS").timer();
+        assertEquals(1, writes.count());
+        assertEquals(23, meterRegistry.get(StorageMetrics.FILE_IO_SIZE)
+                .tags("store", "content-cache", "operation", "write").summary().totalAmount());
+        assertEquals(6, meterRegistry.get(StorageMetrics.FILE_IO_SIZE)
+                .tags("store", "content-cache", "operation", "read").summary().totalAmount());
+    }
+
+
+    @Test
+    void testOffHeapBudgetReservedBeforeDownloadCompletes() {
+        RecordContentCache.ContentWriter first = recordContentCache.open("first.txt", "etag-1", new Date(), 8);
+        RecordContentCache.ContentWriter second = recordContentCache.open("second.txt", "etag-1", new Date(), 8);
+        assertNotNull(first);
+        assertNotNull(second);
+
+        // the budget is held by the two downloads, the third one streams without caching
+        assertNull(recordContentCache.open("third.txt", "etag-1", new Date(), 8));
+
+        first.abort();
+        assertNotNull(recordContentCache.open("third.txt", "etag-1", new Date(), 8));
+    }
+
+
+    @Test
+    void testColdestOffHeapObjectsEvictedToReserve() {
+        cache("first.txt", "etag-1", "content1".getBytes());
+        cache("second.txt", "etag-1", "content2".getBytes());
+
+        cache("third.txt", "etag-1", "content3".getBytes());
+
+        assertEquals(16, recordContentCache.offHeapBytes());
+        assertNotNull(recordContentCache.get("third.txt", "etag-1"));
+        assertEquals(1, Stream.of("first.txt", "second.txt")
+                .filter(key -> recordContentCache.get(key, "etag-1") == null)
+                .count());
+    }
+
+
+    @Test
+    void testDiskBudgetReservedBeforeDownloadCompletes() throws IOException {
+        RecordContentCache.ContentWriter first = recordContentCache.open("first.txt", "etag-1", new Date(), 40);
+        RecordContentCache.ContentWriter second = recordContentCache.open("second.txt", "etag-1", new Date(), 40);
+        assertNotNull(first);
+        assertNotNull(second);
+
+        // 80 of the 100 bytes are held by the two downloads, the third one streams without caching
+        assertNull(recordContentCache.open("third.txt", "etag-1", new Date(), 40));
+
+        first.abort();
+        RecordContentCache.ContentWriter third = recordContentCache.open("third.txt", "etag-1", new Date(), 40);
+        assertNotNull(third);
+        second.abort();
+        third.abort();
+        assertEquals(0, cachedFileCount());
+    }
+
+
+    @Test
+    void testColdestDiskObjectsEvictedToReserve() {
+        cache("first.txt", "etag-1", new byte[40]);
+        cache("second.txt", "etag-1", new byte[40]);
+
+        RecordContentCache.ContentWriter contentWriter =
+                recordContentCache.open("third.txt", "etag-1", new Date(), 40);
+
+        assertNotNull(contentWriter);
+        assertEquals(40, recordContentCache.diskBytes());
+        contentWriter.abort();
+    }
+
+
+    @Test
+    void testContentStaleOnceFreshForElapsed() throws IOException {
+        RecordContentCache shortLivedCache = new RecordContentCache(16, 8, 100, 64, directory, Duration.ZERO,
+                new StorageMetrics(meterRegistry));
+        RecordContentCache.ContentWriter contentWriter =
+                shortLivedCache.open("small.txt", "etag-1", new Date(), 7);
+        contentWriter.write("content".getBytes(), 0, 7);
+        contentWriter.commit();
+        cache("small.txt", "etag-1", "content".getBytes());
+
+        assertFalse(shortLivedCache.isFresh(shortLivedCache.get("small.txt", "etag-1")));
+        assertTrue(recordContentCache.isFresh(recordContentCache.get("small.txt", "etag-1")));
+    }
+
+
+    @Test
+    void testOtherEtagIsAMiss() {
+        cache("small.txt", "etag-1", "content".getBytes());
+
+        assertNull(recordContentCache.get("small.txt", "etag-2"));
+        assertNull(recordContentCache.get("missing.txt", "etag-1"));
+    }
+
+
+    @Test
+    void testTooLargeObjectIsNotCached() {
+        assertNull(recordContentCache.open("huge.txt", "etag-1", new Date(), 65));
+    }
+
+
+    @Test
+    void testIncompleteWriteIsNotCached() throws IOException {
+        RecordContentCache.ContentWriter contentWriter =
+                recordContentCache.open("large.txt", "etag-1", new Date(), 20);
+        contentWriter.write("only a part".getBytes(), 0, 11);
+        contentWriter.commit();
+
+        assertNull(recordContentCache.get("large.txt", "etag-1"));
+        assertEquals(0, cachedFileCount());
+    }
+
+
+    @Test
+    void testEvictionKeepsDiskWithinBudget() throws IOException {
+        for (int i = 0; i < 5; i++)
+            cache("large-" + i + ".txt", "etag-1", new byte[40]);
+
+        assertTrue(recordContentCache.diskBytes() <= 100);
+        assertEquals(recordContentCache.diskBytes() / 40, cachedFileCount());
+    }
+
+
+    @Test
+    void testInvalidateDeletesFileButOpenReaderKeepsWorking() throws IOException {
+        cache("large.txt", "etag-1", "a larger sample content".getBytes());
+        RecordContentCache.CachedContent cachedContent = recordContentCache.get("large.txt", "etag-1");
+
+        try (RecordContentCache.ContentReader contentReader = cachedContent.openReader(0, cachedContent.getSize())) {
+            recordContentCache.invalidate("large.txt");
+
+            assertNull(recordContentCache.get("large.txt", "etag-1"));
+            assertEquals(0, cachedFileCount());
+            assertEquals("a larger sample content", new String(contentReader.readAllBytes()));
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.pnk.record_management.service;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import javax.crypto.KeyGenerator;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+
+/*
+ * Throughput of the chunked AES-256-GCM in MB/s per core (bytes over CPU time of the measuring thread) for several
+ * chunk sizes, and the CPU cost of a 4KB range read against decrypting the whole object.
+ * With the AES-NI / carry-less multiply intrinsics, whose HotSpot flags are logged first, expect GB/s per core; the
+ * software fallback is measured by running again with
+ * -DargLine="-XX:+UnlockDiagnosticVMOptions -XX:-UseAESIntrinsics -XX:-UseAESCTRIntrinsics -XX:-UseGHASHIntrinsics".
+ * Run with `mvn test -Pbenchmark`.
+ * */
+@Slf4j
+@Tag("benchmark")
+class RecordEncryptionBenchmark {
+
+    static final int RECORD_SIZE = 64 << 20;
+
+    static final int BUFFER_SIZE = 64 << 10;
+
+    static final int ROUNDS = 5;
+
+    static final int RANGE_READS = 1000;
+
+
+    // UseAES is only on when the CPU has AES instructions; the others are diagnostic flags, hidden unless unlocked
+    @BeforeAll
+    static void logIntrinsics() {
+        HotSpotDiagnosticMXBean hotSpot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+        for (String flag : List.of("UseAES", "UseAESIntrinsics", "UseAESCTRIntrinsics", "UseGHASHIntrinsics")) {
+            try {
+                log.info(">> intrinsics >> {} = {}", flag, hotSpot.getVMOption(flag).getValue());
+            } catch (IllegalArgumentException e) {
+                log.info(">> intrinsics >> {} not visible without -XX:+UnlockDiagnosticVMOptions", flag);
+            }
+        }
+    }
+
+
+    @ParameterizedTest(name = "chunk size {0}")
+    @ValueSource(ints = {16 << 10, 64 << 10, 1 << 20})
+    void throughput(int chunkSize) throws Exception {
+        ChunkedCipher cipher = newCipher(chunkSize);
+        byte[] record = new byte[RECORD_SIZE];
+        new Random(42).nextBytes(record);
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+        // first round warms the cipher up and checks the round trip, it is not measured
+        byte[] encrypted = encrypt(cipher, record);
+        assertArrayEquals(record, decrypt(cipher, encrypted, cipher.wholeObject(RECORD_SIZE)));
+
+        long encryptionNanos = 0;
+        long decryptionNanos = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long startedAt = threadMXBean.getCurrentThreadCpuTime();
+            encrypted = encrypt(cipher, record);
+            encryptionNanos += threadMXBean.getCurrentThreadCpuTime() - startedAt;
+
+            startedAt = threadMXBean.getCurrentThreadCpuTime();
+            try (InputStream decryptingStream = cipher.decrypting(
+                    new ByteArrayInputStream(encrypted), cipher.wholeObject(RECORD_SIZE), BUFFER_SIZE)) {
+                decryptingStream.transferTo(OutputStream.nullOutputStream());
+            }
+            decryptionNanos += threadMXBean.getCurrentThreadCpuTime() - startedAt;
+        }
+
+        double megabytes = (double) RECORD_SIZE * ROUNDS / (1 << 20);
+        log.info(">> throughput >> chunk size {}: encryption {} MB/s per core, decryption {} MB/s per core, "
+                        + "overhead {}%", chunkSize,
+                String.format("%.0f", megabytes / (encryptionNanos / 1e9)),
+                String.format("%.0f", megabytes / (decryptionNanos / 1e9)),
+                String.format("%.3f", 100.0 * (encrypted.length - RECORD_SIZE) / RECORD_SIZE));
+    }
+
+
+    @Test
+    void rangeRead() throws Exception {
+        ChunkedCipher cipher = newCipher(64 << 10);
+        byte[] record = new byte[RECORD_SIZE];
+        new Random(42).nextBytes(record);
+        byte[] encrypted = encrypt(cipher, record);
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        Random random = new Random(7);
+
+        // as served: only the encrypted bytes of the chunks holding the range are read
+        long rangeNanos = 0;
+        for (int read = 0; read < RANGE_READS; read++) {
+            int first = random.nextInt(RECORD_SIZE - 4096);
+            ChunkedCipher.EncryptedRange range = cipher.encryptedRange(first, first + 4095, RECORD_SIZE);
+            byte[] rangeBytes = Arrays.copyOfRange(
+                    encrypted, (int) range.encryptedFirst(), (int) range.encryptedLast() + 1);
+
+            long startedAt = threadMXBean.getCurrentThreadCpuTime();
+            byte[] plaintext = decrypt(cipher, rangeBytes, range);
+            rangeNanos += threadMXBean.getCurrentThreadCpuTime() - startedAt;
+
+            assertArrayEquals(Arrays.copyOfRange(record, first, first + 4096), plaintext);
+        }
+
+        long startedAt = threadMXBean.getCurrentThreadCpuTime();
+        decrypt(cipher, encrypted, cipher.wholeObject(RECORD_SIZE));
+        long wholeNanos = threadMXBean.getCurrentThreadCpuTime() - startedAt;
+
+        log.info(">> rangeRead >> 4KB range of a {}MB object: {} us CPU, whole object: {} ms CPU",
+                RECORD_SIZE >> 20, String.format("%.1f", rangeNanos / 1e3 / RANGE_READS),
+                String.format("%.1f", wholeNanos / 1e6));
+    }
+
+
+    private static ChunkedCipher newCipher(int chunkSize) throws GeneralSecurityException {
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(256);
+        return new ChunkedCipher(keyGenerator.generateKey(), chunkSize);
+    }
+
+
+    private static byte[] encrypt(ChunkedCipher cipher, byte[] record) throws IOException {
+        try (InputStream encryptingStream = cipher.encrypting(new ByteArrayInputStream(record))) {
+            return encryptingStream.readAllBytes();
+        }
+    }
+
+
+    private static byte[] decrypt(ChunkedCipher cipher, byte[] encrypted, ChunkedCipher.EncryptedRange range)
+            throws IOException {
+        try (InputStream decryptingStream =
+                     cipher.decrypting(new ByteArrayInputStream(encrypted), range, BUFFER_SIZE)) {
+            return decryptingStream.readAllBytes();
+        }
+    }
+}
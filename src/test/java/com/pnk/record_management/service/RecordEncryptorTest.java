@@ -0,0 +1,200 @@
+package com.pnk.record_management.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class RecordEncryptorTest {
+
+    static final String MASTER_KEY = "WWcmrL8vk7OW+PzoTu2n8l5DLj9dRlclzTL6xme2QYI=";
+
+    RecordEncryptor recordEncryptor;
+
+    @BeforeEach
+    void setUp() {
+        recordEncryptor = new RecordEncryptor();
+        ReflectionTestUtils.setField(recordEncryptor, "enabled", true);
+        ReflectionTestUtils.setField(recordEncryptor, "chunkSize", DataSize.ofBytes(1024));
+        ReflectionTestUtils.setField(recordEncryptor, "masterKey", MASTER_KEY);
+    }
+
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        new Random(42).nextBytes(content);
+        return content;
+    }
+
+
+    private static byte[] encrypt(ChunkedCipher cipher, byte[] content) throws IOException {
+        try (InputStream encryptingStream = cipher.encrypting(new ByteArrayInputStream(content))) {
+            return encryptingStream.readAllBytes();
+        }
+    }
+
+
+    private static byte[] decrypt(ChunkedCipher.EncryptedRange range, byte[] encryptedBytes) throws IOException {
+        // a buffer smaller than a chunk, so that chunks arrive in several pieces
+        try (InputStream decryptingStream =
+                     range.cipher().decrypting(new ByteArrayInputStream(encryptedBytes), range, 100)) {
+            return decryptingStream.readAllBytes();
+        }
+    }
+
+
+    /**
+     * Method under test: {@link ChunkedCipher#encrypting(InputStream)}
+     */
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, 1023, 1024, 1025, 4096, 10_000})
+    void testEncrypting_RoundTrip(int length) throws IOException {
+        // Arrange
+        byte[] content = content(length);
+        ChunkedCipher cipher = recordEncryptor.newCipher();
+
+        // Act
+        byte[] encryptedContent = encrypt(cipher, content);
+
+        // Assert
+        assertEquals(cipher.encryptedLength(length), encryptedContent.length);
+        assertEquals(length, cipher.plainLength(encryptedContent.length));
+        assertArrayEquals(content, decrypt(cipher.wholeObject(length), encryptedContent));
+    }
+
+
+    /**
+     * Method under test: {@link ChunkedCipher#encryptedRange(long, long, long)}
+     */
+    @Test
+    void testEncryptedRange_OnlyTouchedChunksDecrypted() throws IOException {
+        // Arrange
+        byte[] content = content(10_000);
+        ChunkedCipher cipher = recordEncryptor.newCipher();
+        byte[] encryptedContent = encrypt(cipher, content);
+
+        for (long[] plainRange : new long[][]{{0, 0}, {1000, 1100}, {2047, 2048}, {5000, 9999}, {9999, 9999}}) {
+            // Act
+            ChunkedCipher.EncryptedRange range = cipher.encryptedRange(plainRange[0], plainRange[1], content.length);
+            byte[] rangeBytes = Arrays.copyOfRange(
+                    encryptedContent, (int) range.encryptedFirst(), (int) range.encryptedLast() + 1);
+
+            // Assert
+            assertEquals(plainRange[0] / 1024, range.firstChunk());
+            assertEquals(plainRange[1] / 1024, range.lastChunk());
+            assertArrayEquals(Arrays.copyOfRange(content, (int) plainRange[0], (int) plainRange[1] + 1),
+                    decrypt(range, rangeBytes));
+        }
+    }
+
+
+    /**
+     * Method under test: {@link ChunkDecryptor#update(byte[], int, int, java.io.OutputStream)}
+     */
+    @Test
+    void testDecryptor_TamperedChunkRejected() throws IOException {
+        // Arrange
+        byte[] content = content(4096);
+        ChunkedCipher cipher = recordEncryptor.newCipher();
+        byte[] encryptedContent = encrypt(cipher, content);
+        encryptedContent[1500] ^= 1;
+
+        ByteArrayOutputStream plaintext = new ByteArrayOutputStream();
+        ChunkDecryptor decryptor = cipher.wholeObject(content.length).decryptor();
+
+        // Act & Assert: the first chunk is intact, nothing of the altered second one comes out
+        assertThrows(IOException.class,
+                () -> decryptor.update(encryptedContent, 0, encryptedContent.length, plaintext));
+        assertEquals(1024, plaintext.size());
+    }
+
+
+    /**
+     * Method under test: {@link ChunkDecryptor#finish()}
+     */
+    @Test
+    void testDecryptor_TruncationDetected() throws IOException {
+        // Arrange: exactly the first two chunks of four
+        byte[] content = content(4096);
+        ChunkedCipher cipher = recordEncryptor.newCipher();
+        byte[] encryptedContent = encrypt(cipher, content);
+        byte[] truncatedContent = Arrays.copyOf(encryptedContent, 2 * (1024 + ChunkedCipher.TAG_LENGTH));
+
+        // Act & Assert: read as a whole object of 2048 bytes, the second chunk is not flagged as the final one
+        assertThrows(IOException.class, () -> decrypt(cipher.wholeObject(2048), truncatedContent));
+        // read against its real length, the missing chunks are reported
+        assertThrows(IOException.class, () -> decrypt(cipher.wholeObject(content.length), truncatedContent));
+    }
+
+
+    /**
+     * Method under test: {@link RecordEncryptor#cipherOf(Map)}
+     */
+    @Test
+    void testCipherOf_DataKeyUnwrappedFromMetadata() throws IOException {
+        // Arrange
+        byte[] content = content(3000);
+        ChunkedCipher cipher = recordEncryptor.newCipher();
+        byte[] encryptedContent = encrypt(cipher, content);
+        Map<String, String> userMetadata = recordEncryptor.metadataOf(cipher);
+
+        // Act
+        ChunkedCipher storedCipher = recordEncryptor.cipherOf(userMetadata);
+
+        // Assert
+        assertTrue(RecordEncryptor.isEncrypted(userMetadata));
+        assertEquals(1024, RecordEncryptor.chunkSizeOf(userMetadata));
+        assertArrayEquals(content, decrypt(storedCipher.wholeObject(content.length), encryptedContent));
+        assertFalse(RecordEncryptor.isEncrypted(Map.of()));
+    }
+
+
+    /**
+     * Method under test: {@link RecordEncryptor#cipherOf(Map)}
+     */
+    @Test
+    void testCipherOf_WrongMasterKeyRejected() {
+        // Arrange
+        Map<String, String> userMetadata = recordEncryptor.metadataOf(recordEncryptor.newCipher());
+        byte[] otherMasterKey = new byte[32];
+        new Random(7).nextBytes(otherMasterKey);
+        ReflectionTestUtils.setField(recordEncryptor, "masterKey", Base64.getEncoder().encodeToString(otherMasterKey));
+
+        // Act & Assert
+        assertThrows(IllegalStateException.class, () -> recordEncryptor.cipherOf(userMetadata));
+    }
+
+
+    /**
+     * Method under test: {@link RecordEncryptor#checkMasterKey()}
+     */
+    @ParameterizedTest
+    @ValueSource(ints = {16, 24, 31, 33})
+    void testCheckMasterKey_OnlyA256BitKeyAccepted(int keyLength) {
+        // Arrange
+        ReflectionTestUtils.setField(recordEncryptor, "masterKey",
+                Base64.getEncoder().encodeToString(new byte[keyLength]));
+
+        // Act & Assert
+        assertThrows(IllegalStateException.class, () -> recordEncryptor.checkMasterKey());
+        ReflectionTestUtils.setField(recordEncryptor, "enabled", false);
+        assertThrows(IllegalStateException.class, () -> recordEncryptor.checkMasterKey());
+
+        ReflectionTestUtils.setField(recordEncryptor, "masterKey", MASTER_KEY);
+        assertDoesNotThrow(() -> recordEncryptor.checkMasterKey());
+    }
+}
@@ -0,0 +1,506 @@
+package com.pnk.record_management.service;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.pnk.record_management.dto.response.MedicalRecordAsyncDownload;
+import com.pnk.record_management.dto.response.MedicalRecordResponse;
+import com.pnk.record_management.dto.response.MedicalRecordS3Metadata;
+import com.pnk.record_management.entity.MedicalRecord;
+import com.pnk.record_management.exception.AppException;
+import com.pnk.record_management.exception.ErrorCode;
+import com.pnk.record_management.mapper.MedicalRecordMapperImpl;
+import com.pnk.record_management.repository.MedicalRecordRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.core.async.ResponsePublisher;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.utils.BinaryUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.*;
+
+
+class S3AsyncStorageServiceImplTest {
+
+    S3AsyncClient s3AsyncClient;
+
+    MedicalRecordRepository medicalRecordRepository;
+
+    S3KeyIndex s3KeyIndex;
+
+    S3MetadataCache s3MetadataCache;
+
+    ExecutorService storageTaskExecutor;
+
+    RecordBlobRegistry recordBlobRegistry;
+
+    RecordEncryptor recordEncryptor;
+
+    RecordCompressor recordCompressor;
+
+    StorageMetrics storageMetrics;
+
+    S3AsyncStorageServiceImpl s3AsyncStorageService;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        s3AsyncClient = mock(S3AsyncClient.class);
+        medicalRecordRepository = mock(MedicalRecordRepository.class);
+        s3KeyIndex = new S3KeyIndex();
+        s3MetadataCache = new S3MetadataCache(mock(S3MetadataResolver.class), Caffeine.newBuilder().build());
+        storageTaskExecutor = Executors.newFixedThreadPool(2);
+        recordBlobRegistry = mock(RecordBlobRegistry.class);
+        storageMetrics = new StorageMetrics(new SimpleMeterRegistry());
+        recordEncryptor = new RecordEncryptor();
+        ReflectionTestUtils.setField(recordEncryptor, "chunkSize", DataSize.ofBytes(8));
+        ReflectionTestUtils.setField(recordEncryptor, "masterKey", RecordEncryptorTest.MASTER_KEY);
+        recordCompressor = new RecordCompressor();
+        ReflectionTestUtils.setField(recordCompressor, "enabled", false);
+        ReflectionTestUtils.setField(recordCompressor, "codec", CompressionCodec.GZIP);
+        ReflectionTestUtils.setField(recordCompressor, "minSize", DataSize.ofBytes(0));
+        ReflectionTestUtils.setField(recordCompressor, "skipContentTypes", List.of());
+
+        s3AsyncStorageService = new S3AsyncStorageServiceImpl(new DirectMedicalRecordWriter(medicalRecordRepository),
+                s3AsyncClient, s3KeyIndex, s3MetadataCache,
+                new RecordContentCache(1024, 1024, 0, 1024, Path.of("unused"), Duration.ofSeconds(30), storageMetrics),
+                storageTaskExecutor,
+                recordBlobRegistry, recordEncryptor, recordCompressor, storageMetrics, new MedicalRecordMapperImpl());
+        ReflectionTestUtils.setField(s3AsyncStorageService, "bucketName", "dummy-bucket-name");
+        ReflectionTestUtils.setField(s3AsyncStorageService, "uploadBufferSize", DataSize.ofKilobytes(8));
+        ReflectionTestUtils.setField(s3AsyncStorageService, "multipartThreshold", DataSize.ofMegabytes(32));
+
+        SecurityContextHolder.getContext().setAuthentication(
+                new TestingAuthenticationToken("admin", "dummy-jwt", "ROLE_ADMIN"));
+    }
+
+
+    @AfterEach
+    void tearDown() {
+        storageTaskExecutor.shutdownNow();
+        SecurityContextHolder.clearContext();
+    }
+
+
+    private static <T> CompletableFuture<T> s3Error(int statusCode) {
+        return CompletableFuture.failedFuture(S3Exception.builder().statusCode(statusCode).build());
+    }
+
+
+    private static byte[] gzip(String content) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream gzipStream = CompressionCodec.GZIP.encoding(compressed)) {
+            gzipStream.write(content.getBytes());
+        }
+        return compressed.toByteArray();
+    }
+
+
+    /**
+     * Method under test: {@link S3AsyncStorageServiceImpl#uploadFileToS3(org.springframework.web.multipart.MultipartFile, String)}
+     */
+    @Test
+    void testUploadFileToS3_IndexesCachesAndSavesRecord() throws Exception {
+        // Arrange
+        when(s3AsyncClient.putObject(any(PutObjectRequest.class), any(AsyncRequestBody.class)))
+                .thenReturn(CompletableFuture.completedFuture(PutObjectResponse.builder().eTag("\"abc\"").build()));
+        when(medicalRecordRepository.save(any())).thenAnswer(invocation -> invocation.getArgument(0));
+
+        // Act
+        MedicalRecordResponse response = s3AsyncStorageService
+                .uploadFileToS3(new MockMultipartFile(
+                        "file", "test-EHR.txt", "text/plain", "sample content".getBytes()), "patient-42")
+                .get(5, TimeUnit.SECONDS);
+
+        // Assert
+        ArgumentCaptor<PutObjectRequest> requestCaptor = ArgumentCaptor.forClass(PutObjectRequest.class);
+        verify(s3AsyncClient).putObject(requestCaptor.capture(), any(AsyncRequestBody.class));
+        assertEquals(14L, requestCaptor.getValue().contentLength());
+
+        String key = response.getMedicalRecordS3Metadata().getKey();
+        assertTrue(key.startsWith("patient-42_") && key.endsWith("_test-EHR.txt"));
+        assertEquals("abc", response.getMedicalRecordS3Metadata().getEtag());
+        assertEquals("admin", response.getUpdatedByUser());
+        assertEquals(1, s3KeyIndex.searchContains("test-EHR").size());
+        assertTrue(s3MetadataCache.getIfPresent(key).isPresent());
+    }
+
+
+    /**
+     * Method under test: {@link S3AsyncStorageServiceImpl#uploadFileToS3(org.springframework.web.multipart.MultipartFile, String)}
+     */
+    @Test
+    void testUploadFileToS3_CompressedWhenEnabled() throws Exception {
+        // Arrange
+        ReflectionTestUtils.setField(recordCompressor, "enabled", true);
+        ByteArrayOutputStream sentBody = new ByteArrayOutputStream();
+        when(s3AsyncClient.putObject(any(PutObjectRequest.class), any(AsyncRequestBody.class)))
+                .thenAnswer(invocation -> {
+                    invocation.<AsyncRequestBody>getArgument(1)
+                            .subscribe(byteBuffer -> sentBody.writeBytes(BinaryUtils.copyBytesFrom(byteBuffer)))
+                            .get(5, TimeUnit.SECONDS);
+                    return CompletableFuture.completedFuture(PutObjectResponse.builder().eTag("\"abc\"").build());
+                });
+        when(medicalRecordRepository.save(any())).thenAnswer(invocation -> invocation.getArgument(0));
+        String content = "OBX|1|NM|GLU^Glucose||105|mg/dL|70-99|H|||F\r".repeat(100);
+
+        // Act
+        MedicalRecordResponse response = s3AsyncStorageService
+                .uploadFileToS3(new MockMultipartFile(
+                        "file", "test-EHR.txt", "text/plain", content.getBytes()), "patient-42")
+                .get(5, TimeUnit.SECONDS);
+
+        // Assert: stored gzip-encoded, tagged with its original length
+        ArgumentCaptor<PutObjectRequest> requestCaptor = ArgumentCaptor.forClass(PutObjectRequest.class);
+        verify(s3AsyncClient).putObject(requestCaptor.capture(), any(AsyncRequestBody.class));
+        PutObjectRequest request = requestCaptor.getValue();
+        assertEquals("gzip", request.contentEncoding());
+        assertEquals(Long.toString(content.length()), request.metadata().get("uncompressed-length"));
+        assertEquals(sentBody.size(), request.contentLength());
+        assertTrue(sentBody.size() < content.length() / 10);
+        try (InputStream decodingStream =
+                     CompressionCodec.GZIP.decoding(new ByteArrayInputStream(sentBody.toByteArray()))) {
+            assertEquals(content, new String(decodingStream.readAllBytes()));
+        }
+        assertEquals(sentBody.size(), response.getMedicalRecordS3Metadata().getSize());
+    }
+
+
+    /**
+     * Method under test: {@link S3AsyncStorageServiceImpl#uploadFileToS3(org.springframework.web.multipart.MultipartFile, String)}
+     */
+    @Test
+    void testUploadFileToS3_LargeFileCompressedWhileSent() throws Exception {
+        // Arrange
+        ReflectionTestUtils.setField(recordCompressor, "enabled", true);
+        ReflectionTestUtils.setField(s3AsyncStorageService, "multipartThreshold", DataSize.ofKilobytes(1));
+        ByteArrayOutputStream sentBody = new ByteArrayOutputStream();
+        when(s3AsyncClient.putObject(any(PutObjectRequest.class), any(AsyncRequestBody.class)))
+                .thenAnswer(invocation -> {
+                    AsyncRequestBody requestBody = invocation.getArgument(1);
+                    // the multipart client splits a body of unknown length into parts
+                    assertTrue(requestBody.contentLength().isEmpty());
+                    requestBody.subscribe(byteBuffer -> sentBody.writeBytes(BinaryUtils.copyBytesFrom(byteBuffer)))
+                            .get(5, TimeUnit.SECONDS);
+                    return CompletableFuture.completedFuture(PutObjectResponse.builder().eTag("\"abc\"").build());
+                });
+        when(medicalRecordRepository.save(any())).thenAnswer(invocation -> invocation.getArgument(0));
+        String content = "OBX|1|NM|GLU^Glucose||105|mg/dL|70-99|H|||F\r".repeat(100);
+
+        // Act
+        MedicalRecordResponse response = s3AsyncStorageService
+                .uploadFileToS3(new MockMultipartFile(
+                        "file", "test-EHR.txt", "text/plain", content.getBytes()), "patient-42")
+                .get(5, TimeUnit.SECONDS);
+
+        // Assert: not compressed in memory first, the stored size counted while sent
+        ArgumentCaptor<PutObjectRequest> requestCaptor = ArgumentCaptor.forClass(PutObjectRequest.class);
+        verify(s3AsyncClient).putObject(requestCaptor.capture(), any(AsyncRequestBody.class));
+        assertNull(requestCaptor.getValue().contentLength());
+        assertEquals("gzip", requestCaptor.getValue().contentEncoding());
+        try (InputStream decodingStream =
+                     CompressionCodec.GZIP.decoding(new ByteArrayInputStream(sentBody.toByteArray()))) {
+            assertEquals(content, new String(decodingStream.readAllBytes()));
+        }
+        assertEquals(sentBody.size(), response.getMedicalRecordS3Metadata().getSize());
+    }
+
+
+    /**
+     * Method under test: {@link S3AsyncStorageServiceImpl#searchS3ExactFilename(String)}
+     */
+    @Test
+    void testSearchS3ExactFilename_MissingKeyIsEmpty() throws Exception {
+        // Arrange
+        when(s3AsyncClient.headObject(any(HeadObjectRequest.class))).thenReturn(s3Error(404));
+
+        // Act
+        List<MedicalRecordS3Metadata> matchingFiles =
+                s3AsyncStorageService.searchS3ExactFilename("missing.txt").get(5, TimeUnit.SECONDS);
+
+        // Assert
+        assertTrue(matchingFiles.isEmpty());
+        assertTrue(s3MetadataCache.getIfPresent("missing.txt").isEmpty());
+    }
+
+
+    /**
+     * Method under test: {@link S3AsyncStorageServiceImpl#streamFileFromS3(String, String, String, String)}
+     */
+    @Test
+    void testStreamFileFromS3_RangedBodyIsPushedIntoEmitter() throws Exception {
+        // Arrange
+        ArgumentCaptor<GetObjectRequest> requestCaptor = ArgumentCaptor.forClass(GetObjectRequest.class);
+        when(s3AsyncClient.getObject(requestCaptor.capture(), any(AsyncResponseTransformer.class)))
+                .thenReturn(CompletableFuture.completedFuture(new ResponsePublisher<>(
+                        GetObjectResponse.builder()
+                                .eTag("\"abc\"")
+                                .contentLength(4L)
+                                .contentRange("bytes 7-10/19")
+                                .build(),
+                        AsyncRequestBody.fromBytes("file".getBytes()))));
+
+        // Act
+        MedicalRecordAsyncDownload download = s3AsyncStorageService
+                .streamFileFromS3("test-EHR.txt", "bytes=7-10", null, null).get(5, TimeUnit.SECONDS);
+        CollectingEmitter emitter = new CollectingEmitter();
+        download.getContent().accept(emitter);
+
+        // Assert
+        assertEquals("bytes=7-10", requestCaptor.getValue().range());
+        assertTrue(download.isPartial());
+        assertEquals(7, download.getRangeStart());
+        assertEquals(10, download.getRangeEnd());
+        assertEquals(19, download.getInstanceLength());
+        assertEquals("abc", download.getEtag());
+        assertEquals("file", emitter.awaitContent());
+    }
+
+
+    /**
+     * Method under test: {@link S3AsyncStorageServiceImpl#streamFileFromS3(String, String, String, String)}
+     */
+    @Test
+    void testStreamFileFromS3_FailedIfRangeSendsWholeObject() throws Exception {
+        // Arrange
+        when(s3AsyncClient.getObject(any(GetObjectRequest.class), any(AsyncResponseTransformer.class)))
+                .thenReturn(s3Error(412))
+                .thenReturn(CompletableFuture.completedFuture(new ResponsePublisher<>(
+                        GetObjectResponse.builder().eTag("\"new\"").contentLength(19L).build(),
+                        AsyncRequestBody.fromBytes("Sample file content".getBytes()))));
+
+        // Act
+        MedicalRecordAsyncDownload download = s3AsyncStorageService
+                .streamFileFromS3("test-EHR.txt", "bytes=7-10", "\"old\"", null).get(5, TimeUnit.SECONDS);
+
+        // Assert
+        ArgumentCaptor<GetObjectRequest> requestCaptor = ArgumentCaptor.forClass(GetObjectRequest.class);
+        verify(s3AsyncClient, times(2)).getObject(requestCaptor.capture(), any(AsyncResponseTransformer.class));
+        assertEquals("\"old\"", requestCaptor.getAllValues().get(0).ifMatch());
+        assertNull(requestCaptor.getAllValues().get(1).range());
+        assertFalse(download.isPartial());
+        assertEquals(19, download.getContentLength());
+    }
+
+
+    /**
+     * Method under test: {@link S3AsyncStorageServiceImpl#streamFileFromS3(String, String, String, String)}
+     */
+    @Test
+    void testStreamFileFromS3_EncryptedRangeDecryptedFromItsChunks() throws Exception {
+        // Arrange: "Sample file content" in chunks of 8 bytes, 24 bytes each once encrypted
+        ChunkedCipher cipher = recordEncryptor.newCipher();
+        byte[] storedContent;
+        try (InputStream encryptingStream =
+                     cipher.encrypting(new ByteArrayInputStream("Sample file content".getBytes()))) {
+            storedContent = encryptingStream.readAllBytes();
+        }
+        GetObjectResponse.Builder response = GetObjectResponse.builder()
+                .eTag("\"abc\"")
+                .metadata(recordEncryptor.metadataOf(cipher));
+
+        // S3 applies the plaintext range of the first GET to the encrypted bytes
+        when(s3AsyncClient.getObject(any(GetObjectRequest.class), any(AsyncResponseTransformer.class)))
+                .thenReturn(CompletableFuture.completedFuture(new ResponsePublisher<>(
+                        response.contentLength(4L).contentRange("bytes 7-10/" + storedContent.length).build(),
+                        AsyncRequestBody.fromBytes(Arrays.copyOfRange(storedContent, 7, 11)))))
+                .thenReturn(CompletableFuture.completedFuture(new ResponsePublisher<>(
+                        response.contentLength(48L).contentRange("bytes 0-47/" + storedContent.length).build(),
+                        AsyncRequestBody.fromBytes(Arrays.copyOfRange(storedContent, 0, 48)))));
+
+        // Act
+        MedicalRecordAsyncDownload download = s3AsyncStorageService
+                .streamFileFromS3("test-EHR.txt", "bytes=7-10", null, null).get(5, TimeUnit.SECONDS);
+        CollectingEmitter emitter = new CollectingEmitter();
+        download.getContent().accept(emitter);
+
+        // Assert: the chunks holding bytes 7 to 10 are fetched again, from the same version
+        ArgumentCaptor<GetObjectRequest> requestCaptor = ArgumentCaptor.forClass(GetObjectRequest.class);
+        verify(s3AsyncClient, times(2)).getObject(requestCaptor.capture(), any(AsyncResponseTransformer.class));
+        assertEquals("bytes=0-47", requestCaptor.getAllValues().get(1).range());
+        assertEquals("\"abc\"", requestCaptor.getAllValues().get(1).ifMatch());
+        assertTrue(download.isPartial());
+        assertEquals(7, download.getRangeStart());
+        assertEquals(10, download.getRangeEnd());
+        assertEquals(19, download.getInstanceLength());
+        assertEquals("file", emitter.awaitContent());
+    }
+
+
+    /**
+     * Method under test: {@link S3AsyncStorageServiceImpl#streamFileFromS3(String, String, String, String)}
+     */
+    @Test
+    void testStreamFileFromS3_CompressedObjectDecodedUnlessAccepted() throws Exception {
+        // Arrange
+        byte[] storedContent = gzip("Sample file content");
+        when(s3AsyncClient.getObject(any(GetObjectRequest.class), any(AsyncResponseTransformer.class)))
+                .thenAnswer(invocation -> CompletableFuture.completedFuture(new ResponsePublisher<>(
+                        GetObjectResponse.builder()
+                                .eTag("\"abc\"")
+                                .contentLength((long) storedContent.length)
+                                .contentEncoding("gzip")
+                                .metadata(Map.of("uncompressed-length", "19"))
+                                .build(),
+                        AsyncRequestBody.fromBytes(storedContent))));
+
+        // Act: no Accept-Encoding, then one accepting gzip
+        MedicalRecordAsyncDownload decodedDownload = s3AsyncStorageService
+                .streamFileFromS3("test-EHR.txt", null, null, null).get(5, TimeUnit.SECONDS);
+        CollectingEmitter decodedEmitter = new CollectingEmitter();
+        decodedDownload.getContent().accept(decodedEmitter);
+        MedicalRecordAsyncDownload encodedDownload = s3AsyncStorageService
+                .streamFileFromS3("test-EHR.txt", null, null, "gzip, br").get(5, TimeUnit.SECONDS);
+
+        // Assert
+        assertNull(decodedDownload.getContentEncoding());
+        assertEquals(19, decodedDownload.getContentLength());
+        assertEquals("Sample file content", decodedEmitter.awaitContent());
+        assertEquals("gzip", encodedDownload.getContentEncoding());
+        assertEquals(storedContent.length, encodedDownload.getContentLength());
+    }
+
+
+    /**
+     * Method under test: {@link S3AsyncStorageServiceImpl#streamFileFromS3(String, String, String, String)}
+     */
+    @Test
+    void testStreamFileFromS3_RangeOfDecodedObjectDropped() throws Exception {
+        // Arrange: S3 applies the range to the encoded bytes
+        byte[] storedContent = gzip("Sample file content");
+        GetObjectResponse.Builder response = GetObjectResponse.builder()
+                .eTag("\"abc\"")
+                .contentEncoding("gzip")
+                .metadata(Map.of("uncompressed-length", "19"));
+        when(s3AsyncClient.getObject(any(GetObjectRequest.class), any(AsyncResponseTransformer.class)))
+                .thenReturn(CompletableFuture.completedFuture(new ResponsePublisher<>(
+                        response.contentLength(4L).contentRange("bytes 7-10/" + storedContent.length).build(),
+                        AsyncRequestBody.fromBytes(Arrays.copyOfRange(storedContent, 7, 11)))))
+                .thenReturn(CompletableFuture.completedFuture(new ResponsePublisher<>(
+                        response.contentLength((long) storedContent.length).contentRange(null).build(),
+                        AsyncRequestBody.fromBytes(storedContent))));
+
+        // Act
+        MedicalRecordAsyncDownload download = s3AsyncStorageService
+                .streamFileFromS3("test-EHR.txt", "bytes=7-10", null, "identity").get(5, TimeUnit.SECONDS);
+        CollectingEmitter emitter = new CollectingEmitter();
+        download.getContent().accept(emitter);
+
+        // Assert: the whole object fetched again, from the same version
+        ArgumentCaptor<GetObjectRequest> requestCaptor = ArgumentCaptor.forClass(GetObjectRequest.class);
+        verify(s3AsyncClient, times(2)).getObject(requestCaptor.capture(), any(AsyncResponseTransformer.class));
+        assertNull(requestCaptor.getAllValues().get(1).range());
+        assertEquals("\"abc\"", requestCaptor.getAllValues().get(1).ifMatch());
+        assertFalse(download.isPartial());
+        assertEquals("Sample file content", emitter.awaitContent());
+    }
+
+
+    /**
+     * Method under test: {@link S3AsyncStorageServiceImpl#deleteFileFromS3(String)}
+     */
+    @Test
+    void testDeleteFileFromS3_MissingObject() {
+        // Arrange
+        when(s3AsyncClient.headObject(any(HeadObjectRequest.class))).thenReturn(s3Error(404));
+
+        // Act
+        ExecutionException exception = assertThrows(ExecutionException.class,
+                () -> s3AsyncStorageService.deleteFileFromS3("missing.txt").get(5, TimeUnit.SECONDS));
+
+        // Assert
+        AppException appException = assertInstanceOf(AppException.class, exception.getCause());
+        assertEquals(ErrorCode.MEDICAL_RECORD_NOT_EXISTING, appException.getErrorCode());
+        verify(s3AsyncClient, never()).deleteObject(any(java.util.function.Consumer.class));
+        verify(medicalRecordRepository, never()).save(any());
+    }
+
+
+    /**
+     * Method under test: {@link S3AsyncStorageServiceImpl#deleteFileFromS3(String)}
+     */
+    @Test
+    void testDeleteFileFromS3_SharedObjectKeptWhileReferenced() throws Exception {
+        // Arrange
+        when(recordBlobRegistry.findObjectKey("duplicate-EHR.txt")).thenReturn(Optional.of("test-EHR.txt"));
+        when(recordBlobRegistry.release("test-EHR.txt", "duplicate-EHR.txt")).thenReturn(false);
+        when(s3AsyncClient.headObject(any(HeadObjectRequest.class)))
+                .thenReturn(CompletableFuture.completedFuture(HeadObjectResponse.builder().contentLength(6L).build()));
+        when(medicalRecordRepository.findAndMarkUnavailable("duplicate-EHR.txt", "admin"))
+                .thenReturn(Optional.of(MedicalRecord.builder().medicalRecordName("duplicate-EHR.txt").build()));
+
+        // Act
+        MedicalRecordResponse response =
+                s3AsyncStorageService.deleteFileFromS3("duplicate-EHR.txt").get(5, TimeUnit.SECONDS);
+
+        // Assert
+        assertEquals("duplicate-EHR.txt", response.getMedicalRecordName());
+        verify(s3AsyncClient).headObject(argThat((HeadObjectRequest request) -> request.key().equals("test-EHR.txt")));
+        verify(s3AsyncClient, never()).deleteObject(any(java.util.function.Consumer.class));
+    }
+
+
+    /*
+     * Collects what is sent instead of writing it to a response
+     * */
+    private static final class CollectingEmitter extends ResponseBodyEmitter {
+
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+        final CountDownLatch completed = new CountDownLatch(1);
+
+        @Override
+        public synchronized void send(Object object, MediaType mediaType) {
+            content.writeBytes((byte[]) object);
+        }
+
+        @Override
+        public synchronized void complete() {
+            completed.countDown();
+        }
+
+        String awaitContent() throws InterruptedException {
+            assertTrue(completed.await(5, TimeUnit.SECONDS));
+            synchronized (this) {
+                return content.toString();
+            }
+        }
+    }
+}
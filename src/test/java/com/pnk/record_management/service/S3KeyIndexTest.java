@@ -0,0 +1,215 @@
+package com.pnk.record_management.service;
+
+import com.pnk.record_management.dto.response.MedicalRecordS3Metadata;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class S3KeyIndexTest {
+
+    S3KeyIndex s3KeyIndex;
+
+    @BeforeEach
+    void setUp() {
+        s3KeyIndex = newIndex(Duration.ofMinutes(10));
+        s3KeyIndex.buildIfStale(consumer -> {
+            consumer.accept(metadata("2024_08_31_10_00_00_000_1725098400_blood-test.pdf"));
+            consumer.accept(metadata("2024_09_01_11_00_00_000_1725188400_x-ray.png"));
+            consumer.accept(metadata("2023_01_01_09_00_00_000_1672563600_discharge-summary.txt"));
+        });
+    }
+
+
+    private static S3KeyIndex newIndex(Duration maxAge) {
+        S3KeyIndex s3KeyIndex = new S3KeyIndex();
+        ReflectionTestUtils.setField(s3KeyIndex, "maxAge", maxAge);
+        return s3KeyIndex;
+    }
+
+
+    private static MedicalRecordS3Metadata metadata(String key) {
+        return MedicalRecordS3Metadata.builder()
+                .bucketName("dummy-bucket-name")
+                .key(key)
+                .etag("dummy-eTag")
+                .build();
+    }
+
+
+    private static List<String> keys(List<MedicalRecordS3Metadata> matchingFiles) {
+        return matchingFiles.stream().map(MedicalRecordS3Metadata::getKey).toList();
+    }
+
+
+    @Test
+    void testSearchContains() {
+        assertEquals(
+                List.of("2024_08_31_10_00_00_000_1725098400_blood-test.pdf",
+                        "2024_09_01_11_00_00_000_1725188400_x-ray.png"),
+                keys(s3KeyIndex.searchContains("2024")));
+        assertEquals(
+                List.of("2024_09_01_11_00_00_000_1725188400_x-ray.png"),
+                keys(s3KeyIndex.searchContains("x-ray")));
+        assertTrue(s3KeyIndex.searchContains("mri").isEmpty());
+    }
+
+
+    @Test
+    void testSearchContains_ShortWordFallsBackToScan() {
+        assertEquals(
+                List.of("2024_09_01_11_00_00_000_1725188400_x-ray.png"),
+                keys(s3KeyIndex.searchContains("x-")));
+    }
+
+
+    @Test
+    void testSearchContains_GramsPresentButNotContiguous() {
+        // "summ" and "test" grams all exist, but not as one contiguous word
+        assertTrue(s3KeyIndex.searchContains("summtest").isEmpty());
+    }
+
+
+    @Test
+    void testAddAndRemove() {
+        s3KeyIndex.add(metadata("2024_10_01_08_00_00_000_1727769600_mri.dcm"));
+        assertEquals(1, s3KeyIndex.searchContains("mri").size());
+
+        s3KeyIndex.remove("2024_10_01_08_00_00_000_1727769600_mri.dcm");
+        assertTrue(s3KeyIndex.searchContains("mri").isEmpty());
+        assertEquals(3, s3KeyIndex.size());
+    }
+
+
+    @Test
+    void testRemove_CompactsAfterManyDeletions() {
+        for (int i = 0; i < 2000; i++)
+            s3KeyIndex.add(metadata("bulk-" + i + ".txt"));
+        for (int i = 0; i < 2000; i++)
+            s3KeyIndex.remove("bulk-" + i + ".txt");
+
+        assertEquals(3, s3KeyIndex.size());
+        assertTrue(s3KeyIndex.searchContains("bulk").isEmpty());
+        assertEquals(2, s3KeyIndex.searchContains("2024").size());
+    }
+
+
+    @Test
+    void testBuildIfAbsent_OnlyOnce() {
+        AtomicInteger listings = new AtomicInteger();
+        s3KeyIndex.buildIfStale(consumer -> listings.incrementAndGet());
+
+        assertTrue(s3KeyIndex.isBuilt());
+        assertEquals(0, listings.get());
+    }
+
+
+    @Test
+    void testBuildIfAbsent_KeepsMutationsReceivedDuringListing() {
+        S3KeyIndex freshIndex = newIndex(Duration.ofMinutes(10));
+        freshIndex.buildIfStale(consumer -> {
+            consumer.accept(metadata("listed-record.txt"));
+            consumer.accept(metadata("deleted-while-listing.txt"));
+            freshIndex.add(metadata("uploaded-while-listing.txt"));
+            freshIndex.remove("deleted-while-listing.txt");
+        });
+
+        assertEquals(List.of("listed-record.txt", "uploaded-while-listing.txt"), keys(freshIndex.searchContains(".txt")));
+    }
+
+
+    @Test
+    void testBuildIfAbsent_ConcurrentVirtualThreadsListOnce() throws Exception {
+        S3KeyIndex freshIndex = newIndex(Duration.ofMinutes(10));
+        AtomicInteger listings = new AtomicInteger();
+        CountDownLatch listingStarted = new CountDownLatch(1);
+        CountDownLatch releaseListing = new CountDownLatch(1);
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<?>> builds = new ArrayList<>();
+            builds.add(executor.submit(() -> freshIndex.buildIfStale(consumer -> {
+                listings.incrementAndGet();
+                listingStarted.countDown();
+                awaitQuietly(releaseListing);
+                consumer.accept(metadata("listed-record.txt"));
+            })));
+            assertTrue(listingStarted.await(5, TimeUnit.SECONDS));
+            // more waiting callers than carrier threads: they wait on the lock unmounted
+            for (int i = 0; i < 4 * Runtime.getRuntime().availableProcessors(); i++)
+                builds.add(executor.submit(() -> freshIndex.buildIfStale(consumer -> listings.incrementAndGet())));
+            releaseListing.countDown();
+
+            for (Future<?> build : builds)
+                build.get(5, TimeUnit.SECONDS);
+        }
+
+        assertEquals(1, listings.get());
+        assertEquals(List.of("listed-record.txt"), keys(freshIndex.searchContains(".txt")));
+    }
+
+
+    @Test
+    void testBuildIfStale_RebuiltPastMaxAge() {
+        S3KeyIndex staleIndex = newIndex(Duration.ZERO);
+        staleIndex.buildIfStale(consumer -> {
+            consumer.accept(metadata("deleted-on-other-instance.txt"));
+            consumer.accept(metadata("listed-record.txt"));
+        });
+
+        // the bucket as changed by another instance
+        staleIndex.buildIfStale(consumer -> {
+            consumer.accept(metadata("listed-record.txt"));
+            consumer.accept(metadata("uploaded-on-other-instance.txt"));
+        });
+
+        assertEquals(List.of("listed-record.txt", "uploaded-on-other-instance.txt"),
+                keys(staleIndex.searchContains(".txt")));
+    }
+
+
+    @Test
+    void testBuildIfStale_FailedRebuildKeepsPreviousIndex() {
+        S3KeyIndex staleIndex = newIndex(Duration.ZERO);
+        staleIndex.buildIfStale(consumer -> consumer.accept(metadata("listed-record.txt")));
+
+        staleIndex.buildIfStale(consumer -> {
+            consumer.accept(metadata("partially-listed.txt"));
+            throw new IllegalStateException("listing failed");
+        });
+
+        assertTrue(staleIndex.isBuilt());
+        assertEquals(List.of("listed-record.txt"), keys(staleIndex.searchContains(".txt")));
+    }
+
+
+    @Test
+    void testBuildIfStale_FailedFirstBuildThrows() {
+        S3KeyIndex freshIndex = newIndex(Duration.ofMinutes(10));
+
+        assertThrows(IllegalStateException.class, () -> freshIndex.buildIfStale(consumer -> {
+            throw new IllegalStateException("listing failed");
+        }));
+        assertFalse(freshIndex.isBuilt());
+    }
+
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.pnk.record_management.service;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.pnk.record_management.dto.response.MedicalRecordS3Metadata;
+import com.pnk.record_management.dto.response.MetadataCacheStatsResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+
+class S3MetadataCacheTest {
+
+    S3MetadataResolver s3MetadataResolver;
+
+    S3MetadataCache s3MetadataCache;
+
+    @BeforeEach
+    void setUp() {
+        s3MetadataResolver = mock(S3MetadataResolver.class);
+        s3MetadataCache = new S3MetadataCache(s3MetadataResolver, Caffeine.newBuilder()
+                .maximumSize(2)
+                .executor(Runnable::run)
+                .recordStats()
+                .build());
+    }
+
+
+    private static MedicalRecordS3Metadata metadata(String key) {
+        return MedicalRecordS3Metadata.builder()
+                .bucketName("dummy-bucket-name")
+                .key(key)
+                .etag("dummy-eTag")
+                .build();
+    }
+
+
+    @Test
+    void testResolve_SecondLookupIsServedFromCache() {
+        when(s3MetadataResolver.resolve("test-EHR.txt")).thenReturn(Optional.of(metadata("test-EHR.txt")));
+
+        assertTrue(s3MetadataCache.resolve("test-EHR.txt").isPresent());
+        assertTrue(s3MetadataCache.resolve("test-EHR.txt").isPresent());
+
+        verify(s3MetadataResolver, times(1)).resolve("test-EHR.txt");
+        MetadataCacheStatsResponse stats = s3MetadataCache.stats();
+        assertEquals(1, stats.getHitCount());
+        assertEquals(1, stats.getMissCount());
+        assertEquals(1, stats.getEstimatedSize());
+    }
+
+
+    @Test
+    void testResolve_MissingKeysAreNotCached() {
+        when(s3MetadataResolver.resolve("missing-EHR.txt")).thenReturn(Optional.empty());
+
+        assertTrue(s3MetadataCache.resolve("missing-EHR.txt").isEmpty());
+        assertTrue(s3MetadataCache.resolve("missing-EHR.txt").isEmpty());
+
+        verify(s3MetadataResolver, times(2)).resolve("missing-EHR.txt");
+    }
+
+
+    @Test
+    void testPutAndInvalidate() {
+        s3MetadataCache.put(metadata("test-EHR.txt"));
+        assertTrue(s3MetadataCache.resolve("test-EHR.txt").isPresent());
+        verifyNoInteractions(s3MetadataResolver);
+
+        s3MetadataCache.invalidate("test-EHR.txt");
+        when(s3MetadataResolver.resolve("test-EHR.txt")).thenReturn(Optional.empty());
+        assertTrue(s3MetadataCache.resolve("test-EHR.txt").isEmpty());
+
+        s3MetadataCache.put(metadata("a.txt"));
+        s3MetadataCache.put(metadata("b.txt"));
+        s3MetadataCache.invalidateAll(List.of("a.txt", "b.txt"));
+        assertEquals(0, s3MetadataCache.stats().getEstimatedSize());
+    }
+
+
+    @Test
+    void testStats_CountsEvictions() {
+        for (int i = 0; i < 10; i++)
+            s3MetadataCache.put(metadata("record-" + i + ".txt"));
+
+        MetadataCacheStatsResponse stats = s3MetadataCache.stats();
+        assertEquals(2, stats.getEstimatedSize());
+        assertEquals(8, stats.getEvictionCount());
+    }
+}
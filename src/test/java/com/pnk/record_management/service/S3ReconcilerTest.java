@@ -0,0 +1,425 @@
+package com.pnk.record_management.service;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.pnk.record_management.dto.response.ReconciliationReport;
+import com.pnk.record_management.entity.MedicalRecord;
+import com.pnk.record_management.entity.RecordBlob;
+import com.pnk.record_management.entity.ReconciliationCheckpoint;
+import com.pnk.record_management.entity.ReconciliationLease;
+import com.pnk.record_management.repository.ReconciliationCheckpointRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+
+class S3ReconcilerTest {
+
+    MongoTemplate mongoTemplate;
+
+    ReconciliationCheckpointRepository checkpointRepository;
+
+    AmazonS3 s3Client;
+
+    BulkOperations bulkOperations;
+
+    ExecutorService storageTaskExecutor;
+
+    RecordBlobRegistry recordBlobRegistry;
+
+    SimpleMeterRegistry meterRegistry;
+
+    S3Reconciler s3Reconciler;
+
+    @BeforeEach
+    void setUp() {
+        mongoTemplate = mock(MongoTemplate.class);
+        checkpointRepository = mock(ReconciliationCheckpointRepository.class);
+        s3Client = mock(AmazonS3.class);
+        bulkOperations = mock(BulkOperations.class);
+        storageTaskExecutor = Executors.newFixedThreadPool(2);
+
+        when(mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, MedicalRecord.class)).thenReturn(bulkOperations);
+        when(checkpointRepository.findById(any())).thenReturn(Optional.empty());
+        // no other instance reconciling
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                eq(ReconciliationLease.class))).thenReturn(new ReconciliationLease());
+
+        recordBlobRegistry = new RecordBlobRegistry(mongoTemplate);
+        meterRegistry = new SimpleMeterRegistry();
+
+        s3Reconciler = new S3Reconciler(mongoTemplate, checkpointRepository, s3Client, storageTaskExecutor,
+                recordBlobRegistry, new StorageMetrics(meterRegistry));
+        ReflectionTestUtils.setField(s3Reconciler, "bucketName", "dummy-bucket-name");
+        ReflectionTestUtils.setField(s3Reconciler, "splitKeys", List.of());
+        ReflectionTestUtils.setField(s3Reconciler, "parallelism", 2);
+        ReflectionTestUtils.setField(s3Reconciler, "pageSize", 2);
+        ReflectionTestUtils.setField(s3Reconciler, "maxPagesPerSecond", 1000.0);
+        ReflectionTestUtils.setField(s3Reconciler, "gracePeriod", Duration.ofMinutes(15));
+        ReflectionTestUtils.setField(s3Reconciler, "leaseDuration", Duration.ofMinutes(5));
+    }
+
+
+    @AfterEach
+    void tearDown() {
+        storageTaskExecutor.shutdownNow();
+    }
+
+
+    private static ListObjectsV2Result listing(boolean truncated, S3ObjectSummary... summaries) {
+        ListObjectsV2Result result = new ListObjectsV2Result();
+        result.getObjectSummaries().addAll(List.of(summaries));
+        result.setTruncated(truncated);
+        return result;
+    }
+
+
+    private static S3ObjectSummary summary(String key, Instant lastModified) {
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setKey(key);
+        summary.setLastModified(Date.from(lastModified));
+        return summary;
+    }
+
+
+    private static MedicalRecord medicalRecord(String key, boolean s3Availability) {
+        return medicalRecord(key, s3Availability, Instant.now().minus(Duration.ofDays(7)));
+    }
+
+
+    private static MedicalRecord medicalRecord(String key, boolean s3Availability, Instant latestUpdateDateTime) {
+        return MedicalRecord.builder()
+                .medicalRecordName(key)
+                .s3Availability(s3Availability)
+                .latestUpdateDateTime(latestUpdateDateTime)
+                .build();
+    }
+
+
+    /**
+     * Method under test: {@link S3Reconciler#keyRanges(List)}
+     */
+    @Test
+    void testKeyRanges() {
+        assertEquals(List.of(new S3Reconciler.KeyRange(null, null)), S3Reconciler.keyRanges(List.of()));
+        assertEquals(List.of(
+                        new S3Reconciler.KeyRange(null, "A"),
+                        new S3Reconciler.KeyRange("A", "m"),
+                        new S3Reconciler.KeyRange("m", null)),
+                S3Reconciler.keyRanges(List.of("m", "A", "", "m")));
+    }
+
+
+    /**
+     * Method under test: {@link S3Reconciler#reconcile()}
+     */
+    @Test
+    void testReconcile_RepairsDriftOfEachPageWithOneBulkWrite() {
+        // Arrange
+        Instant lastWeek = Instant.now().minus(Duration.ofDays(7));
+        String adoptedKey = "patient-42_2024_08_31_10_15_30_123_1725099330_orphan-EHR.txt";
+        when(s3Client.listObjectsV2(any(ListObjectsV2Request.class))).thenReturn(listing(false,
+                summary(adoptedKey, lastWeek),
+                summary("patient-42_deleted-EHR.txt", lastWeek),
+                summary("patient-42_uploading-EHR.txt", Instant.now())));
+        when(mongoTemplate.find(any(Query.class), eq(MedicalRecord.class)))
+                // records of the listed objects
+                .thenReturn(List.of(medicalRecord("patient-42_deleted-EHR.txt", false)))
+                // available records of the interval
+                .thenReturn(List.of(medicalRecord("patient-42_missing-EHR.txt", true)));
+
+        // Act
+        ReconciliationReport report = s3Reconciler.reconcile();
+
+        // Assert
+        assertEquals(3, report.getScannedKeys());
+        assertEquals(1, report.getAdoptedObjects());
+        assertEquals(1, report.getRestoredRecords());
+        assertEquals(1, report.getMissingObjects());
+        assertEquals(1, report.getCompletedRanges());
+
+        // the recent object may still get its record from the upload, it is left alone
+        verify(bulkOperations).insert(argThat((List<MedicalRecord> medicalRecords) -> medicalRecords.size() == 1
+                && medicalRecords.get(0).getMedicalRecordName().equals(adoptedKey)
+                && medicalRecords.get(0).getPatientId().equals("patient-42")
+                && medicalRecords.get(0).isS3Availability()));
+        ArgumentCaptor<Query> queryCaptor = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> updateCaptor = ArgumentCaptor.forClass(Update.class);
+        verify(bulkOperations, times(2)).updateMulti(queryCaptor.capture(), updateCaptor.capture());
+        assertTrue(queryCaptor.getAllValues().get(0).toString().contains("patient-42_deleted-EHR.txt"));
+        assertEquals(true, updateCaptor.getAllValues().get(0).getUpdateObject().get("$set", Document.class)
+                .get("s3Availability"));
+        assertTrue(queryCaptor.getAllValues().get(1).toString().contains("patient-42_missing-EHR.txt"));
+        assertEquals(false, updateCaptor.getAllValues().get(1).getUpdateObject().get("$set", Document.class)
+                .get("s3Availability"));
+        verify(bulkOperations).execute();
+
+        verify(checkpointRepository).save(argThat(checkpoint -> checkpoint.isCompleted()
+                && checkpoint.getScannedKeys() == 3 && checkpoint.getMissingObjects() == 1));
+
+        // meters of the run and of its only range, "..", whose pass just completed
+        assertEquals(3, meterRegistry.get(StorageMetrics.RECONCILIATION_SCANNED).counter().count());
+        assertEquals(1, meterRegistry.get(StorageMetrics.RECONCILIATION_REPAIRS).tag("repair", "adopted")
+                .counter().count());
+        assertEquals(1, meterRegistry.get(StorageMetrics.RECONCILIATION_REPAIRS).tag("repair", "restored")
+                .counter().count());
+        assertEquals(1, meterRegistry.get(StorageMetrics.RECONCILIATION_REPAIRS).tag("repair", "missing")
+                .counter().count());
+        double lastPageSeconds = meterRegistry.get(StorageMetrics.RECONCILIATION_LAST_PAGE).tag("range", "..")
+                .timeGauge().value(TimeUnit.SECONDS);
+        assertTrue(Math.abs(Instant.now().getEpochSecond() - lastPageSeconds) < 60);
+        double lagSeconds = meterRegistry.get(StorageMetrics.RECONCILIATION_LAG).tag("range", "..")
+                .timeGauge().value(TimeUnit.SECONDS);
+        assertTrue(lagSeconds >= 0 && lagSeconds < 60);
+    }
+
+
+    /**
+     * Method under test: {@link S3Reconciler#reconcile()}
+     */
+    @Test
+    void testReconcile_ResumesFromCheckpointAndSavesEveryPage() {
+        // Arrange
+        Instant lastWeek = Instant.now().minus(Duration.ofDays(7));
+        when(checkpointRepository.findById("..")).thenReturn(Optional.of(ReconciliationCheckpoint.builder()
+                .id("..")
+                .lastKey("c")
+                .scannedKeys(3)
+                .build()));
+        ArgumentCaptor<ListObjectsV2Request> requestCaptor = ArgumentCaptor.forClass(ListObjectsV2Request.class);
+        when(s3Client.listObjectsV2(requestCaptor.capture()))
+                .thenReturn(listing(true, summary("d", lastWeek), summary("e", lastWeek)))
+                .thenReturn(listing(false, summary("f", lastWeek)));
+        when(mongoTemplate.find(any(Query.class), eq(MedicalRecord.class)))
+                // every listed object has its record, no other record in the intervals
+                .thenAnswer(invocation -> invocation.getArgument(0).toString().contains("$in")
+                        ? List.of(medicalRecord("d", true), medicalRecord("e", true), medicalRecord("f", true))
+                        : List.of());
+
+        // Act
+        ReconciliationReport report = s3Reconciler.reconcile();
+
+        // Assert
+        assertEquals(List.of("c", "e"),
+                requestCaptor.getAllValues().stream().map(ListObjectsV2Request::getStartAfter).toList());
+        assertEquals(3, report.getScannedKeys());
+        assertEquals(0, report.getAdoptedObjects() + report.getRestoredRecords() + report.getMissingObjects());
+        verify(bulkOperations, never()).execute();
+
+        ArgumentCaptor<ReconciliationCheckpoint> checkpointCaptor =
+                ArgumentCaptor.forClass(ReconciliationCheckpoint.class);
+        verify(checkpointRepository, times(2)).save(checkpointCaptor.capture());
+        ReconciliationCheckpoint checkpoint = checkpointCaptor.getValue();
+        assertTrue(checkpoint.isCompleted());
+        assertEquals(6, checkpoint.getScannedKeys());
+    }
+
+
+    /**
+     * Method under test: {@link S3Reconciler#reconcile()}
+     */
+    @Test
+    void testReconcile_SharedObjectOfDeletedOriginalNotRestored() {
+        // Arrange: the original record is deleted while an identical upload still shares its object
+        Instant lastWeek = Instant.now().minus(Duration.ofDays(7));
+        String originalKey = "patient-42_2024_08_31_10_15_30_123_1725099330_EHR.txt";
+        String duplicateKey = "patient-42_2024_09_01_10_15_30_123_1725185730_EHR.txt";
+        RecordBlob releasedRecordBlob = RecordBlob.builder()
+                .id(originalKey)
+                .patientId("patient-42")
+                .references(List.of(duplicateKey))
+                .build();
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                eq(RecordBlob.class))).thenReturn(releasedRecordBlob);
+        when(mongoTemplate.find(any(Query.class), eq(RecordBlob.class))).thenReturn(List.of(releasedRecordBlob));
+        assertFalse(recordBlobRegistry.release(originalKey, originalKey));
+
+        when(s3Client.listObjectsV2(any(ListObjectsV2Request.class)))
+                .thenReturn(listing(false, summary(originalKey, lastWeek)));
+        when(mongoTemplate.find(any(Query.class), eq(MedicalRecord.class)))
+                // records of the listed objects: the deleted original
+                .thenReturn(List.of(medicalRecord(originalKey, false)))
+                // available records of the interval: the duplicate has no object of its own, it is not looked for
+                .thenReturn(List.of());
+
+        // Act
+        ReconciliationReport report = s3Reconciler.reconcile();
+
+        // Assert: the deleted record stays deleted, the object stays for the duplicate
+        assertEquals(1, report.getScannedKeys());
+        assertEquals(0, report.getAdoptedObjects() + report.getRestoredRecords() + report.getMissingObjects());
+        verify(bulkOperations, never()).updateMulti(any(Query.class), any(Update.class));
+        verify(bulkOperations, never()).execute();
+    }
+
+
+    /**
+     * Method under test: {@link S3Reconciler#reconcile()}
+     */
+    @Test
+    void testReconcile_RecordDeletedAfterListingNotRestored() {
+        // Arrange: the object is listed, then deleted along with its record before the records are looked up
+        Instant lastWeek = Instant.now().minus(Duration.ofDays(7));
+        when(s3Client.listObjectsV2(any(ListObjectsV2Request.class)))
+                .thenReturn(listing(false, summary("patient-42_deleted-EHR.txt", lastWeek)));
+        when(mongoTemplate.find(any(Query.class), eq(MedicalRecord.class)))
+                .thenReturn(List.of(medicalRecord("patient-42_deleted-EHR.txt", false, Instant.now())))
+                .thenReturn(List.of());
+
+        // Act
+        ReconciliationReport report = s3Reconciler.reconcile();
+
+        // Assert
+        assertEquals(0, report.getRestoredRecords());
+        verify(bulkOperations, never()).execute();
+    }
+
+
+    /**
+     * Method under test: {@link S3Reconciler#reconcile()}
+     */
+    @Test
+    void testReconcile_RecordUploadedAfterListingNotMarkedMissing() {
+        // Arrange: the page is listed before the object of an upload is put, its record saved right after
+        Instant lastWeek = Instant.now().minus(Duration.ofDays(7));
+        when(s3Client.listObjectsV2(any(ListObjectsV2Request.class)))
+                .thenReturn(listing(false, summary("patient-42_old-EHR.txt", lastWeek)));
+        when(mongoTemplate.find(any(Query.class), eq(MedicalRecord.class)))
+                .thenReturn(List.of(medicalRecord("patient-42_old-EHR.txt", true)))
+                .thenReturn(List.of(
+                        medicalRecord("patient-42_old-EHR.txt", true),
+                        medicalRecord("patient-42_uploaded-EHR.txt", true, Instant.now()),
+                        medicalRecord("patient-42_lost-EHR.txt", true)));
+
+        // Act
+        ReconciliationReport report = s3Reconciler.reconcile();
+
+        // Assert: only the record older than the grace period is marked missing, if still untouched when written
+        assertEquals(1, report.getMissingObjects());
+        ArgumentCaptor<Query> queryCaptor = ArgumentCaptor.forClass(Query.class);
+        verify(bulkOperations).updateMulti(queryCaptor.capture(), any(Update.class));
+        Document repairedRecords = queryCaptor.getValue().getQueryObject();
+        assertEquals(List.of("patient-42_lost-EHR.txt"),
+                repairedRecords.get("medicalRecordName", Document.class).get("$in"));
+        assertEquals(true, repairedRecords.get("s3Availability"));
+        assertTrue(repairedRecords.get("latestUpdateDateTime", Document.class).containsKey("$not"));
+    }
+
+
+    /**
+     * Method under test: {@link S3Reconciler#reconcile()}
+     */
+    @Test
+    void testReconcile_RangeLeasedByAnotherInstanceSkipped() {
+        // Arrange
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                eq(ReconciliationLease.class))).thenThrow(new DuplicateKeyException("lease held"));
+
+        // Act
+        ReconciliationReport report = s3Reconciler.reconcile();
+
+        // Assert
+        assertEquals(1, report.getSkippedRanges());
+        assertEquals(0, report.getCompletedRanges() + report.getFailedRanges());
+        verify(s3Client, never()).listObjectsV2(any(ListObjectsV2Request.class));
+        verify(checkpointRepository, never()).save(any());
+        verify(mongoTemplate, never()).remove(any(Query.class), eq(ReconciliationLease.class));
+    }
+
+
+    /**
+     * Method under test: {@link S3Reconciler#reconcile()}
+     */
+    @Test
+    void testReconcile_LeaseExtendedEveryPageAndReleased() {
+        // Arrange
+        Instant lastWeek = Instant.now().minus(Duration.ofDays(7));
+        when(s3Client.listObjectsV2(any(ListObjectsV2Request.class)))
+                .thenReturn(listing(true, summary("d", lastWeek), summary("e", lastWeek)))
+                .thenReturn(listing(false, summary("f", lastWeek)));
+        when(mongoTemplate.find(any(Query.class), eq(MedicalRecord.class))).thenReturn(List.of());
+
+        // Act
+        ReconciliationReport report = s3Reconciler.reconcile();
+
+        // Assert: taken for the range, then extended before each of the two pages
+        assertEquals(1, report.getCompletedRanges());
+        ArgumentCaptor<Update> leaseCaptor = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate, times(3)).findAndModify(any(Query.class), leaseCaptor.capture(),
+                any(FindAndModifyOptions.class), eq(ReconciliationLease.class));
+        Document leaseUpdate = leaseCaptor.getValue().getUpdateObject().get("$set", Document.class);
+        assertTrue(leaseUpdate.get("expiresAt", Instant.class).isAfter(Instant.now().plus(Duration.ofMinutes(4))));
+        verify(mongoTemplate).remove(argThat((Query query) -> "..".equals(query.getQueryObject().get("_id"))),
+                eq(ReconciliationLease.class));
+    }
+
+
+    /**
+     * Method under test: {@link S3Reconciler#reconcile()}
+     */
+    @Test
+    void testReconcile_LeaseTakenOverMidRangeStopsIt() {
+        // Arrange: this instance stalled past its lease, another one took the range over after the first page
+        Instant lastWeek = Instant.now().minus(Duration.ofDays(7));
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                eq(ReconciliationLease.class)))
+                .thenReturn(new ReconciliationLease())
+                .thenReturn(new ReconciliationLease())
+                .thenThrow(new DuplicateKeyException("lease taken over"));
+        when(s3Client.listObjectsV2(any(ListObjectsV2Request.class)))
+                .thenReturn(listing(true, summary("d", lastWeek), summary("e", lastWeek)));
+        when(mongoTemplate.find(any(Query.class), eq(MedicalRecord.class))).thenReturn(List.of());
+
+        // Act
+        ReconciliationReport report = s3Reconciler.reconcile();
+
+        // Assert: the checkpoint of the first page is the last one this instance saves
+        assertEquals(1, report.getSkippedRanges());
+        assertEquals(2, report.getScannedKeys());
+        verify(s3Client, times(1)).listObjectsV2(any(ListObjectsV2Request.class));
+        verify(checkpointRepository, times(1)).save(argThat(checkpoint -> !checkpoint.isCompleted()));
+    }
+
+
+    /**
+     * Method under test: {@link S3Reconciler#scheduledReconcile()}
+     */
+    @Test
+    void testScheduledReconcile_RunsAPass() {
+        // Arrange
+        when(s3Client.listObjectsV2(any(ListObjectsV2Request.class))).thenReturn(listing(false));
+
+        // Act
+        s3Reconciler.scheduledReconcile();
+
+        // Assert
+        verify(checkpointRepository).save(argThat(ReconciliationCheckpoint::isCompleted));
+    }
+}
@@ -0,0 +1,149 @@
+package com.pnk.record_management.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
+
+
+/*
+ * An illustration of the round trips and lost updates of concurrent status updates of a single record, against a
+ * simulated MongoDB answering every command after 2ms; RecordUpdateContentionBenchmark of src/jmh measures the
+ * repository itself against a real MongoDB:
+ * - find-then-save: the find and save the service used to do, two round trips, concurrent changes are overwritten
+ * - versioned-save: the same with a version check on save, retried from the find on a conflict
+ * - find-and-modify: a single atomic round trip, the version incremented by the update itself
+ * Every update counts one change on the record, so the changes missing from it are the lost updates.
+ * Run with `mvn test -Pbenchmark`.
+ * */
+@Slf4j
+@Tag("benchmark")
+class SimulatedUpdateContentionBenchmark {
+
+    static final Duration ROUND_TRIP = Duration.ofMillis(2);
+
+    static final int UPDATES_PER_THREAD = 100;
+
+
+    @ParameterizedTest(name = "{0}, {1} threads")
+    @CsvSource({
+            "FIND_THEN_SAVE, 1", "VERSIONED_SAVE, 1", "FIND_AND_MODIFY, 1",
+            "FIND_THEN_SAVE, 16", "VERSIONED_SAVE, 16", "FIND_AND_MODIFY, 16",
+            "FIND_THEN_SAVE, 64", "VERSIONED_SAVE, 64", "FIND_AND_MODIFY, 64"})
+    void contendedUpdates(Strategy strategy, int threads) throws Exception {
+        SimulatedCollection collection = new SimulatedCollection();
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+
+        try {
+            long startedAt = System.nanoTime();
+            List<Future<?>> updaters = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                updaters.add(executorService.submit(() -> {
+                    for (int j = 0; j < UPDATES_PER_THREAD; j++)
+                        strategy.update(collection);
+                    return null;
+                }));
+            }
+            for (Future<?> updater : updaters)
+                updater.get();
+            double seconds = (System.nanoTime() - startedAt) / 1e9;
+
+            long updates = (long) threads * UPDATES_PER_THREAD;
+            log.info(">> contendedUpdates >> {}, {} threads: {} updates/s, {} round trips per update, {} lost updates",
+                    strategy, threads, String.format("%.0f", updates / seconds),
+                    String.format("%.2f", collection.roundTrips.sum() / (double) updates),
+                    updates - collection.document.get().changes());
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+
+    enum Strategy {
+
+        FIND_THEN_SAVE {
+            @Override
+            void update(SimulatedCollection collection) throws InterruptedException {
+                StoredRecord read = collection.find();
+                collection.save(read.changed(), null);
+            }
+        },
+
+        VERSIONED_SAVE {
+            @Override
+            void update(SimulatedCollection collection) throws InterruptedException {
+                while (true) {
+                    StoredRecord read = collection.find();
+                    if (collection.save(read.changed(), read.version()))
+                        return;
+                }
+            }
+        },
+
+        FIND_AND_MODIFY {
+            @Override
+            void update(SimulatedCollection collection) throws InterruptedException {
+                collection.findAndModify(StoredRecord::changed);
+            }
+        };
+
+        abstract void update(SimulatedCollection collection) throws InterruptedException;
+    }
+
+
+    record StoredRecord(long version, long changes) {
+
+        StoredRecord changed() {
+            return new StoredRecord(version + 1, changes + 1);
+        }
+    }
+
+
+    /*
+     * One document; every command waits a round trip, then is applied atomically as MongoDB applies a single
+     * document write
+     * */
+    static final class SimulatedCollection {
+
+        final AtomicReference<StoredRecord> document = new AtomicReference<>(new StoredRecord(0, 0));
+
+        final LongAdder roundTrips = new LongAdder();
+
+        StoredRecord find() throws InterruptedException {
+            roundTrip();
+            return document.get();
+        }
+
+        // replaces the document, only if it still has expectedVersion when one is given
+        boolean save(StoredRecord replacement, Long expectedVersion) throws InterruptedException {
+            roundTrip();
+            if (expectedVersion == null) {
+                document.set(replacement);
+                return true;
+            }
+            StoredRecord current = document.get();
+            return current.version() == expectedVersion && document.compareAndSet(current, replacement);
+        }
+
+        StoredRecord findAndModify(UnaryOperator<StoredRecord> update) throws InterruptedException {
+            roundTrip();
+            return document.updateAndGet(update);
+        }
+
+        private void roundTrip() throws InterruptedException {
+            roundTrips.increment();
+            TimeUnit.NANOSECONDS.sleep(ROUND_TRIP.toNanos());
+        }
+    }
+}
@@ -1,40 +1,81 @@
 package com.pnk.record_management.service;
 
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.Headers;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.Owner;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.pnk.record_management.dto.response.MedicalRecordBatchItemResponse;
+import com.pnk.record_management.dto.response.MedicalRecordDownload;
 import com.pnk.record_management.dto.response.MedicalRecordResponse;
 import com.pnk.record_management.dto.response.MedicalRecordS3Metadata;
+import com.pnk.record_management.dto.response.PageResponse;
 import com.pnk.record_management.entity.MedicalRecord;
+import com.pnk.record_management.exception.AppException;
+import com.pnk.record_management.exception.ErrorCode;
+import com.pnk.record_management.mapper.MedicalRecordMapper;
+import com.pnk.record_management.mapper.MedicalRecordMapperImpl;
 import com.pnk.record_management.repository.MedicalRecordRepository;
+import com.pnk.record_management.utils.CursorUtils;
 import lombok.experimental.NonFinal;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
-import org.modelmapper.ModelMapper;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.dao.DataAccessResourceFailureException;
 import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDate;
 import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.*;
 
@@ -50,9 +91,27 @@ class StorageServiceImplTest {
     @MockBean
     private MedicalRecordRepository medicalRecordRepository;
 
+    @MockBean
+    private RecordBlobRegistry recordBlobRegistry;
+
     @Autowired
     private StorageService storageService;
 
+    @Autowired
+    private Cache<String, MedicalRecordS3Metadata> s3MetadataCache;
+
+    @Autowired
+    private RecordContentCache recordContentCache;
+
+    @Autowired
+    private RecordCompressor recordCompressor;
+
+    @Autowired
+    private RecordEncryptor recordEncryptor;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
     @Mock
     private MultipartFile multipartFile;
 
@@ -63,7 +122,10 @@ class StorageServiceImplTest {
     @Value("${application.bucket.name}")
     private String bucketName;
 
-    ModelMapper modelMapper = new ModelMapper();
+    // SHA-256 of "sample content"
+    static final String SAMPLE_CONTENT_SHA256 = "571ca3b4ef92a81f8c062f2c2437b9116435d1575589a7b64a5c607d058fde0d";
+
+    MedicalRecordMapper medicalRecordMapper = new MedicalRecordMapperImpl();
 
     MedicalRecordS3Metadata medicalRecordS3Metadata;
     MedicalRecord medicalRecord;
@@ -71,6 +133,10 @@ class StorageServiceImplTest {
 
     @BeforeEach
     void setUp() {
+        // the cache beans outlive a single test
+        s3MetadataCache.invalidateAll();
+        recordContentCache.invalidateAll();
+
         medicalRecordS3Metadata = MedicalRecordS3Metadata.builder()
                 .bucketName("dummy-bucket-name")
                 .key("test-EHR.txt")
@@ -92,17 +158,754 @@ class StorageServiceImplTest {
                 .medicalRecordS3Metadata(medicalRecordS3Metadata)
                 .build();
 
-        medicalRecordResponse = modelMapper.map(medicalRecord, MedicalRecordResponse.class);
+        medicalRecordResponse = medicalRecordMapper.toMedicalRecordResponse(medicalRecord);
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#uploadFileToS3(MultipartFile, String)}
+     */
+    @Test
+    void testUploadFileToS3_StreamsWithoutTemporaryFile() {
+        // Arrange
+        SecurityContextHolder.getContext().setAuthentication(
+                new TestingAuthenticationToken("admin", "dummy-jwt", "ROLE_ADMIN"));
+
+        MultipartFile uploadedFile = new MockMultipartFile(
+                "file", "test-EHR.txt", "text/plain", "sample content".getBytes());
+
+        PutObjectResult putObjectResult = new PutObjectResult();
+        putObjectResult.setETag("dummy-eTag");
+
+        ArgumentCaptor<PutObjectRequest> requestCaptor = ArgumentCaptor.forClass(PutObjectRequest.class);
+        when(s3Client.putObject(requestCaptor.capture())).thenReturn(putObjectResult);
+        when(medicalRecordRepository.save(any(MedicalRecord.class)))
+                .thenAnswer(invocation -> invocation.getArgument(0));
+
+        try {
+            // Act
+            MedicalRecordResponse uploadedRecordResponse = storageService.uploadFileToS3(uploadedFile, "patient-42");
+
+            // Assert
+            PutObjectRequest putObjectRequest = requestCaptor.getValue();
+            assertNull(putObjectRequest.getFile());
+            assertNotNull(putObjectRequest.getInputStream());
+            assertEquals(14L, putObjectRequest.getMetadata().getContentLength());
+            assertEquals("text/plain", putObjectRequest.getMetadata().getContentType());
+            assertFalse(new File("test-EHR.txt").exists());
+
+            assertTrue(uploadedRecordResponse.getMedicalRecordName().startsWith("patient-42_"));
+            assertTrue(uploadedRecordResponse.getMedicalRecordName().endsWith("_test-EHR.txt"));
+            assertEquals("patient-42", uploadedRecordResponse.getPatientId());
+            assertEquals("dummy-eTag", uploadedRecordResponse.getMedicalRecordS3Metadata().getEtag());
+            assertEquals(14L, uploadedRecordResponse.getMedicalRecordS3Metadata().getSize());
+            verify(s3Client, never()).getObjectMetadata(anyString(), anyString());
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#uploadFileToS3(MultipartFile, String)}
+     */
+    @Test
+    void testUploadFileToS3_CompressedWhenEnabled() throws IOException {
+        // Arrange
+        SecurityContextHolder.getContext().setAuthentication(
+                new TestingAuthenticationToken("admin", "dummy-jwt", "ROLE_ADMIN"));
+        ReflectionTestUtils.setField(recordCompressor, "enabled", true);
+
+        byte[] content = "MSH|^~\\&|LAB|HOSPITAL|EHR|HOSPITAL|20240831||ORU^R01|42|P|2.5\r"
+                .repeat(100).getBytes(StandardCharsets.UTF_8);
+        MultipartFile uploadedFile = new MockMultipartFile("file", "lab-result.hl7", "text/plain", content);
+
+        PutObjectResult putObjectResult = new PutObjectResult();
+        putObjectResult.setETag("dummy-eTag");
+
+        ArgumentCaptor<PutObjectRequest> requestCaptor = ArgumentCaptor.forClass(PutObjectRequest.class);
+        when(s3Client.putObject(requestCaptor.capture())).thenReturn(putObjectResult);
+        when(medicalRecordRepository.save(any(MedicalRecord.class)))
+                .thenAnswer(invocation -> invocation.getArgument(0));
+
+        try {
+            // Act
+            MedicalRecordResponse uploadedRecordResponse = storageService.uploadFileToS3(uploadedFile, "patient-42");
+
+            // Assert
+            ObjectMetadata storedMetadata = requestCaptor.getValue().getMetadata();
+            assertEquals("gzip", storedMetadata.getContentEncoding());
+            assertEquals(Long.toString(content.length),
+                    storedMetadata.getUserMetaDataOf(RecordCompressor.UNCOMPRESSED_LENGTH_METADATA));
+            assertTrue(storedMetadata.getContentLength() < content.length / 10);
+            assertEquals(storedMetadata.getContentLength(),
+                    uploadedRecordResponse.getMedicalRecordS3Metadata().getSize());
+
+            try (InputStream storedContent = new GZIPInputStream(requestCaptor.getValue().getInputStream())) {
+                assertArrayEquals(content, storedContent.readAllBytes());
+            }
+        } finally {
+            ReflectionTestUtils.setField(recordCompressor, "enabled", false);
+            SecurityContextHolder.clearContext();
+        }
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#uploadFileToS3(MultipartFile, String)}
+     */
+    @Test
+    void testUploadFileToS3_EncryptedWhenEnabled() throws IOException {
+        // Arrange
+        SecurityContextHolder.getContext().setAuthentication(
+                new TestingAuthenticationToken("admin", "dummy-jwt", "ROLE_ADMIN"));
+        ReflectionTestUtils.setField(recordEncryptor, "enabled", true);
+
+        byte[] content = "MSH|^~\\&|LAB|HOSPITAL|EHR|HOSPITAL|20240831||ORU^R01|42|P|2.5\r"
+                .repeat(2000).getBytes(StandardCharsets.UTF_8);
+        MultipartFile uploadedFile = new MockMultipartFile("file", "lab-result.hl7", "text/plain", content);
+
+        PutObjectResult putObjectResult = new PutObjectResult();
+        putObjectResult.setETag("dummy-eTag");
+
+        ArgumentCaptor<PutObjectRequest> requestCaptor = ArgumentCaptor.forClass(PutObjectRequest.class);
+        when(s3Client.putObject(requestCaptor.capture())).thenReturn(putObjectResult);
+        when(medicalRecordRepository.save(any(MedicalRecord.class)))
+                .thenAnswer(invocation -> invocation.getArgument(0));
+
+        try {
+            // Act
+            MedicalRecordResponse uploadedRecordResponse = storageService.uploadFileToS3(uploadedFile, "patient-42");
+
+            // Assert: a chunk of 64KB and the final one, each with its tag
+            ObjectMetadata storedMetadata = requestCaptor.getValue().getMetadata();
+            ChunkedCipher cipher = recordEncryptor.cipherOf(storedMetadata.getUserMetadata());
+            assertEquals(content.length + 2 * ChunkedCipher.TAG_LENGTH, storedMetadata.getContentLength());
+            assertEquals(storedMetadata.getContentLength(),
+                    uploadedRecordResponse.getMedicalRecordS3Metadata().getSize());
+            assertEquals(64 * 1024, uploadedRecordResponse.getMedicalRecordS3Metadata().getEncryptionChunkSize());
+
+            byte[] storedContent = requestCaptor.getValue().getInputStream().readAllBytes();
+            assertEquals(storedMetadata.getContentLength(), storedContent.length);
+            try (InputStream decryptedContent = cipher.decrypting(new ByteArrayInputStream(storedContent),
+                    cipher.wholeObject(content.length), 4096)) {
+                assertArrayEquals(content, decryptedContent.readAllBytes());
+            }
+        } finally {
+            ReflectionTestUtils.setField(recordEncryptor, "enabled", false);
+            SecurityContextHolder.clearContext();
+        }
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#uploadFileToS3(MultipartFile, String)}
+     */
+    @Test
+    void testUploadFileToS3_AlreadyCompressedFormatStoredAsIs() {
+        // Arrange
+        SecurityContextHolder.getContext().setAuthentication(
+                new TestingAuthenticationToken("admin", "dummy-jwt", "ROLE_ADMIN"));
+        ReflectionTestUtils.setField(recordCompressor, "enabled", true);
+
+        MultipartFile uploadedFile = new MockMultipartFile("file", "x-ray.jpg", "image/jpeg", new byte[4096]);
+
+        ArgumentCaptor<PutObjectRequest> requestCaptor = ArgumentCaptor.forClass(PutObjectRequest.class);
+        when(s3Client.putObject(requestCaptor.capture())).thenReturn(new PutObjectResult());
+        when(medicalRecordRepository.save(any(MedicalRecord.class)))
+                .thenAnswer(invocation -> invocation.getArgument(0));
+
+        try {
+            // Act
+            storageService.uploadFileToS3(uploadedFile, "patient-42");
+
+            // Assert
+            assertNull(requestCaptor.getValue().getMetadata().getContentEncoding());
+            assertEquals(4096L, requestCaptor.getValue().getMetadata().getContentLength());
+        } finally {
+            ReflectionTestUtils.setField(recordCompressor, "enabled", false);
+            SecurityContextHolder.clearContext();
+        }
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#uploadFileToS3(MultipartFile, String)}
+     */
+    @Test
+    void testUploadFileToS3_DuplicateReferencesStoredObject() {
+        // Arrange
+        SecurityContextHolder.getContext().setAuthentication(
+                new TestingAuthenticationToken("admin", "dummy-jwt", "ROLE_ADMIN"));
+
+        MultipartFile uploadedFile = new MockMultipartFile(
+                "file", "test-EHR.txt", "text/plain", "sample content".getBytes());
+        String sharedKey = "patient-42_2024_08_31_10_15_30_123_test-EHR.txt";
+
+        ObjectMetadata sharedObjectMetadata = new ObjectMetadata();
+        sharedObjectMetadata.setHeader(Headers.ETAG, "dummy-eTag");
+        sharedObjectMetadata.setContentLength(14L);
+        sharedObjectMetadata.setLastModified(new Date());
+
+        when(recordBlobRegistry.isEnabled()).thenReturn(true);
+        when(recordBlobRegistry.acquire(eq("patient-42"), eq(SAMPLE_CONTENT_SHA256), anyString()))
+                .thenReturn(Optional.of(sharedKey));
+        when(s3Client.getObjectMetadata(bucketName, sharedKey)).thenReturn(sharedObjectMetadata);
+        when(medicalRecordRepository.save(any(MedicalRecord.class)))
+                .thenAnswer(invocation -> invocation.getArgument(0));
+
+        try {
+            // Act
+            MedicalRecordResponse uploadedRecordResponse = storageService.uploadFileToS3(uploadedFile, "patient-42");
+
+            // Assert: a record of its own, served from the stored object
+            verify(s3Client, never()).putObject(any(PutObjectRequest.class));
+            verify(recordBlobRegistry, never()).register(anyString(), anyString(), anyString());
+
+            String medicalRecordName = uploadedRecordResponse.getMedicalRecordName();
+            assertTrue(medicalRecordName.startsWith("patient-42_") && !medicalRecordName.equals(sharedKey));
+            verify(recordBlobRegistry).acquire("patient-42", SAMPLE_CONTENT_SHA256, medicalRecordName);
+            assertEquals(sharedKey, uploadedRecordResponse.getContentKey());
+            assertEquals(SAMPLE_CONTENT_SHA256, uploadedRecordResponse.getContentSha256());
+            assertEquals(sharedKey, uploadedRecordResponse.getMedicalRecordS3Metadata().getKey());
+            assertEquals("dummy-eTag", uploadedRecordResponse.getMedicalRecordS3Metadata().getEtag());
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#uploadFileToS3(MultipartFile, String)}
+     */
+    @Test
+    void testUploadFileToS3_NewContentStoredAndRegistered() {
+        // Arrange
+        SecurityContextHolder.getContext().setAuthentication(
+                new TestingAuthenticationToken("admin", "dummy-jwt", "ROLE_ADMIN"));
+
+        MultipartFile uploadedFile = new MockMultipartFile(
+                "file", "test-EHR.txt", "text/plain", "sample content".getBytes());
+
+        when(recordBlobRegistry.isEnabled()).thenReturn(true);
+        when(s3Client.putObject(any(PutObjectRequest.class))).thenReturn(new PutObjectResult());
+        when(medicalRecordRepository.save(any(MedicalRecord.class)))
+                .thenAnswer(invocation -> invocation.getArgument(0));
+
+        try {
+            // Act
+            MedicalRecordResponse uploadedRecordResponse = storageService.uploadFileToS3(uploadedFile, "patient-42");
+
+            // Assert
+            String medicalRecordName = uploadedRecordResponse.getMedicalRecordName();
+            verify(s3Client, times(1)).putObject(any(PutObjectRequest.class));
+            verify(recordBlobRegistry).register(medicalRecordName, "patient-42", SAMPLE_CONTENT_SHA256);
+            assertEquals(SAMPLE_CONTENT_SHA256, uploadedRecordResponse.getContentSha256());
+            assertNull(uploadedRecordResponse.getContentKey());
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#uploadFileToS3(MultipartFile, String)}
+     */
+    @Test
+    void testUploadFileToS3_UnsavedRecordDeletesItsObject() {
+        // Arrange
+        SecurityContextHolder.getContext().setAuthentication(
+                new TestingAuthenticationToken("admin", "dummy-jwt", "ROLE_ADMIN"));
+
+        MultipartFile uploadedFile = new MockMultipartFile(
+                "file", "test-EHR.txt", "text/plain", "sample content".getBytes());
+
+        ArgumentCaptor<PutObjectRequest> requestCaptor = ArgumentCaptor.forClass(PutObjectRequest.class);
+        when(s3Client.putObject(requestCaptor.capture())).thenReturn(new PutObjectResult());
+        when(medicalRecordRepository.save(any(MedicalRecord.class)))
+                .thenThrow(new DataAccessResourceFailureException("MongoDB unreachable"));
+
+        try {
+            // Act
+            assertThrows(RuntimeException.class, () -> storageService.uploadFileToS3(uploadedFile, "patient-42"));
+
+            // Assert
+            verify(s3Client).deleteObject(bucketName, requestCaptor.getValue().getKey());
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#uploadFileToS3(MultipartFile, String)}
+     */
+    @Test
+    void testUploadFileToS3_InvalidPatientId() {
+        // Arrange
+        SecurityContextHolder.getContext().setAuthentication(
+                new TestingAuthenticationToken("admin", "dummy-jwt", "ROLE_ADMIN"));
+
+        MultipartFile uploadedFile = new MockMultipartFile(
+                "file", "test-EHR.txt", "text/plain", "sample content".getBytes());
+
+        try {
+            // Act & Assert: '_' would let this patient's prefix overlap the keys of patient "patient"
+            AppException exception = assertThrows(AppException.class,
+                    () -> storageService.uploadFileToS3(uploadedFile, "patient_42"));
+            assertEquals(ErrorCode.INVALID_PATIENT_ID, exception.getErrorCode());
+            verify(s3Client, never()).putObject(any(PutObjectRequest.class));
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#uploadFilesToS3(List, String)}
+     */
+    @Test
+    void testUploadFilesToS3_ReportsEachFileAndInsertsOnce() {
+        // Arrange
+        SecurityContextHolder.getContext().setAuthentication(
+                new TestingAuthenticationToken("admin", "dummy-jwt", "ROLE_ADMIN"));
+
+        List<MultipartFile> uploadedFiles = List.of(
+                new MockMultipartFile("files", "test-EHR.txt", "text/plain", "sample content".getBytes()),
+                new MockMultipartFile("files", "broken-EHR.txt", "text/plain", "sample content".getBytes()),
+                new MockMultipartFile("files", "test-EHR.txt", "text/plain", "other content".getBytes()));
+
+        PutObjectResult putObjectResult = new PutObjectResult();
+        putObjectResult.setETag("dummy-eTag");
+
+        when(s3Client.putObject(any(PutObjectRequest.class))).thenAnswer(invocation -> {
+            PutObjectRequest putObjectRequest = invocation.getArgument(0);
+            if (putObjectRequest.getKey().endsWith("_broken-EHR.txt"))
+                throw new AmazonS3Exception("Simulated failure");
+            return putObjectResult;
+        });
+        when(medicalRecordRepository.insertUnordered(anyList())).thenReturn(Set.of());
+
+        try {
+            // Act
+            List<MedicalRecordBatchItemResponse> itemResponses = storageService.uploadFilesToS3(uploadedFiles, "patient-42");
+
+            // Assert
+            assertEquals(3, itemResponses.size());
+
+            assertTrue(itemResponses.get(0).isSuccess());
+            assertTrue(itemResponses.get(0).getFileName().endsWith("_test-EHR.txt"));
+            assertEquals("dummy-eTag", itemResponses.get(0).getResult().getMedicalRecordS3Metadata().getEtag());
+
+            assertFalse(itemResponses.get(1).isSuccess());
+            assertEquals(ErrorCode.FILE_UPLOAD_FAILED.getCode(), itemResponses.get(1).getCode());
+            assertNull(itemResponses.get(1).getResult());
+
+            // same original name in one batch still ends up under two distinct keys
+            assertTrue(itemResponses.get(2).isSuccess());
+            assertNotEquals(itemResponses.get(0).getFileName(), itemResponses.get(2).getFileName());
+
+            verify(medicalRecordRepository, times(1)).insertUnordered(anyList());
+            verify(medicalRecordRepository, never()).save(any(MedicalRecord.class));
+            verify(s3Client, never()).deleteObjects(any(DeleteObjectsRequest.class));
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#uploadFilesToS3(List, String)}
+     */
+    @Test
+    void testUploadFilesToS3_UnsavedRecordFailsAloneAndObjectDeleted() {
+        // Arrange
+        SecurityContextHolder.getContext().setAuthentication(
+                new TestingAuthenticationToken("admin", "dummy-jwt", "ROLE_ADMIN"));
+
+        List<MultipartFile> uploadedFiles = List.of(
+                new MockMultipartFile("files", "first-EHR.txt", "text/plain", "sample content".getBytes()),
+                new MockMultipartFile("files", "duplicate-EHR.txt", "text/plain", "sample content".getBytes()),
+                new MockMultipartFile("files", "third-EHR.txt", "text/plain", "sample content".getBytes()));
+
+        PutObjectResult putObjectResult = new PutObjectResult();
+        putObjectResult.setETag("dummy-eTag");
+
+        when(s3Client.putObject(any(PutObjectRequest.class))).thenReturn(putObjectResult);
+        // the second record of the bulk insert hits a write error
+        when(medicalRecordRepository.insertUnordered(anyList())).thenReturn(Set.of(1));
+        ArgumentCaptor<DeleteObjectsRequest> requestCaptor = ArgumentCaptor.forClass(DeleteObjectsRequest.class);
+        when(s3Client.deleteObjects(requestCaptor.capture())).thenReturn(new DeleteObjectsResult(List.of()));
+
+        try {
+            // Act
+            List<MedicalRecordBatchItemResponse> itemResponses = storageService.uploadFilesToS3(uploadedFiles, "patient-42");
+
+            // Assert
+            assertTrue(itemResponses.get(0).isSuccess());
+            assertTrue(itemResponses.get(2).isSuccess());
+
+            assertFalse(itemResponses.get(1).isSuccess());
+            assertEquals(ErrorCode.FILE_PERSISTENCE_FAILED.getCode(), itemResponses.get(1).getCode());
+
+            verify(s3Client, times(1)).deleteObjects(any(DeleteObjectsRequest.class));
+            List<String> deletedKeys = requestCaptor.getValue().getKeys().stream()
+                    .map(DeleteObjectsRequest.KeyVersion::getKey)
+                    .toList();
+            assertEquals(List.of(itemResponses.get(1).getFileName()), deletedKeys);
+            assertTrue(deletedKeys.get(0).endsWith("_duplicate-EHR.txt"));
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
     }
 
 
+    /**
+     * Method under test: {@link StorageServiceImpl#uploadFilesToS3(List, String)}
+     */
+    @Test
+    void testUploadFilesToS3_BatchTooLarge() {
+        // Arrange
+        SecurityContextHolder.getContext().setAuthentication(
+                new TestingAuthenticationToken("admin", "dummy-jwt", "ROLE_ADMIN"));
+
+        MultipartFile uploadedFile = new MockMultipartFile(
+                "files", "test-EHR.txt", "text/plain", "sample content".getBytes());
+        List<MultipartFile> uploadedFiles = Collections.nCopies(101, uploadedFile);
+
+        try {
+            // Act & Assert
+            AppException exception = assertThrows(AppException.class,
+                    () -> storageService.uploadFilesToS3(uploadedFiles, "patient-42"));
+            assertEquals(ErrorCode.BATCH_TOO_LARGE, exception.getErrorCode());
+            verify(s3Client, never()).putObject(any(PutObjectRequest.class));
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#searchS3ExactFilename(String)}
+     */
     @Test
     void testSearchS3ExactFilename() {
+        // Arrange
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setHeader(Headers.ETAG, "dummy-eTag");
+        objectMetadata.setContentLength(6L);
+
+        when(s3Client.getObjectMetadata(bucketName, "test-EHR.txt")).thenReturn(objectMetadata);
+        when(s3Client.getObjectMetadata(bucketName, "missing-EHR.txt")).thenThrow(notFound());
+
+        // Act
+        List<MedicalRecordS3Metadata> found = storageService.searchS3ExactFilename("test-EHR.txt");
+        List<MedicalRecordS3Metadata> missing = storageService.searchS3ExactFilename("missing-EHR.txt");
+
+        // Assert
+        assertEquals(1, found.size());
+        assertEquals("test-EHR.txt", found.getFirst().getKey());
+        assertEquals("dummy-eTag", found.getFirst().getEtag());
+        assertEquals(6L, found.getFirst().getSize());
+        assertEquals("STANDARD", found.getFirst().getStorageClass());
+        assertTrue(missing.isEmpty());
+        verify(s3Client, never()).listObjectsV2(any(ListObjectsV2Request.class));
     }
 
 
+    /**
+     * Method under test: {@link StorageServiceImpl#searchS3ExactFilename(String)}
+     */
+    @Test
+    void testSearchS3ExactFilename_CachedAfterUpload() {
+        // Arrange
+        SecurityContextHolder.getContext().setAuthentication(
+                new TestingAuthenticationToken("admin", "dummy-jwt", "ROLE_ADMIN"));
+
+        PutObjectResult putObjectResult = new PutObjectResult();
+        putObjectResult.setETag("dummy-eTag");
+
+        when(s3Client.putObject(any(PutObjectRequest.class))).thenReturn(putObjectResult);
+        when(medicalRecordRepository.save(any(MedicalRecord.class)))
+                .thenAnswer(invocation -> invocation.getArgument(0));
+
+        long hitCountBefore = storageService.getMetadataCacheStats().getHitCount();
+
+        try {
+            // Act
+            String uploadedFileName = storageService.uploadFileToS3(new MockMultipartFile(
+                    "file", "test-EHR.txt", "text/plain", "sample content".getBytes()), "patient-42")
+                    .getMedicalRecordName();
+            List<MedicalRecordS3Metadata> found = storageService.searchS3ExactFilename(uploadedFileName);
+            List<MedicalRecordS3Metadata> foundAgain = storageService.searchS3ExactFilename(uploadedFileName);
+
+            // Assert
+            assertEquals("dummy-eTag", found.getFirst().getEtag());
+            assertEquals(found, foundAgain);
+            verify(s3Client, never()).getObjectMetadata(anyString(), anyString());
+            assertEquals(hitCountBefore + 2, storageService.getMetadataCacheStats().getHitCount());
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#streamFileFromS3(String, String, String, String)}
+     */
+    @Test
+    void testStreamFileFromS3_HotObjectServedFromContentCache() throws IOException {
+        // Arrange
+        String fileName = "testFile.txt";
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setHeader(Headers.ETAG, "dummy-eTag");
+        objectMetadata.setContentLength(12L);
+
+        S3Object wholeS3Object = new S3Object();
+        wholeS3Object.setObjectMetadata(objectMetadata);
+        wholeS3Object.setObjectContent(
+                new S3ObjectInputStream(new ByteArrayInputStream("test content".getBytes()), null));
+
+        when(s3Client.getObject(any(GetObjectRequest.class))).thenReturn(wholeS3Object);
+
+        // Act
+        ByteArrayOutputStream firstOutputStream = new ByteArrayOutputStream();
+        storageService.streamFileFromS3(fileName, null, null, null).getContent().writeTo(firstOutputStream);
+
+        MedicalRecordDownload rangedDownload = storageService.streamFileFromS3(fileName, "bytes=-7", null, null);
+        ByteArrayOutputStream rangedOutputStream = new ByteArrayOutputStream();
+        rangedDownload.getContent().writeTo(rangedOutputStream);
+
+        byte[] downloadedContent = storageService.downloadFileFromS3(fileName);
+
+        // Assert
+        assertEquals("test content", firstOutputStream.toString());
+        assertTrue(rangedDownload.isPartial());
+        assertEquals(5, rangedDownload.getRangeStart());
+        assertEquals(11, rangedDownload.getRangeEnd());
+        assertEquals(12, rangedDownload.getInstanceLength());
+        assertEquals("dummy-eTag", rangedDownload.getEtag());
+        assertEquals("content", rangedOutputStream.toString());
+        assertEquals("test content", new String(downloadedContent));
+        verify(s3Client, times(1)).getObject(any(GetObjectRequest.class));
+        verify(s3Client, never()).getObject(anyString(), anyString());
+        verify(s3Client, never()).getObjectMetadata(anyString(), anyString());
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#streamFileFromS3(String, String, String, String)}
+     */
+    @Test
+    void testStreamFileFromS3_ContentPastFreshnessRevalidated() throws IOException {
+        // Arrange
+        String fileName = "testFile.txt";
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setHeader(Headers.ETAG, "dummy-eTag");
+        objectMetadata.setContentLength(12L);
+
+        S3Object wholeS3Object = new S3Object();
+        wholeS3Object.setObjectMetadata(objectMetadata);
+        wholeS3Object.setObjectContent(
+                new S3ObjectInputStream(new ByteArrayInputStream("test content".getBytes()), null));
+
+        when(s3Client.getObject(any(GetObjectRequest.class))).thenReturn(wholeS3Object);
+        when(s3Client.getObjectMetadata(bucketName, fileName)).thenReturn(objectMetadata);
+        storageService.streamFileFromS3(fileName, null, null, null).getContent().writeTo(new ByteArrayOutputStream());
+        ReflectionTestUtils.setField(recordContentCache, "freshFor", Duration.ZERO);
+
+        try {
+            // Act
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            storageService.streamFileFromS3(fileName, null, null, null).getContent().writeTo(outputStream);
+
+            // Assert: a HEAD request instead of a second GET
+            assertEquals("test content", outputStream.toString());
+            verify(s3Client, times(1)).getObject(any(GetObjectRequest.class));
+            verify(s3Client, times(1)).getObjectMetadata(bucketName, fileName);
+        } finally {
+            ReflectionTestUtils.setField(recordContentCache, "freshFor", Duration.ofSeconds(30));
+        }
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#streamFileFromS3(String, String, String, String)}
+     */
+    @Test
+    void testStreamFileFromS3_ContentOfObjectDeletedElsewhereNotServed() throws IOException {
+        // Arrange
+        String fileName = "testFile.txt";
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setHeader(Headers.ETAG, "dummy-eTag");
+        objectMetadata.setContentLength(12L);
+
+        S3Object wholeS3Object = new S3Object();
+        wholeS3Object.setObjectMetadata(objectMetadata);
+        wholeS3Object.setObjectContent(
+                new S3ObjectInputStream(new ByteArrayInputStream("test content".getBytes()), null));
+
+        when(s3Client.getObject(any(GetObjectRequest.class))).thenReturn(wholeS3Object).thenThrow(notFound());
+        storageService.streamFileFromS3(fileName, null, null, null).getContent().writeTo(new ByteArrayOutputStream());
+        // deleted by another instance
+        when(s3Client.getObjectMetadata(bucketName, fileName)).thenThrow(notFound());
+        ReflectionTestUtils.setField(recordContentCache, "freshFor", Duration.ZERO);
+
+        try {
+            // Act & Assert
+            AppException exception = assertThrows(AppException.class,
+                    () -> storageService.streamFileFromS3(fileName, null, null, null));
+            assertEquals(ErrorCode.MEDICAL_RECORD_NOT_EXISTING, exception.getErrorCode());
+            assertNull(recordContentCache.get(fileName, "dummy-eTag"));
+        } finally {
+            ReflectionTestUtils.setField(recordContentCache, "freshFor", Duration.ofSeconds(30));
+        }
+    }
+
+
+    private static AmazonS3Exception notFound() {
+        AmazonS3Exception notFound = new AmazonS3Exception("Not Found");
+        notFound.setStatusCode(404);
+        return notFound;
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#searchS3ContainsFilename(String)}
+     */
     @Test
     void testSearchS3ContainsFilename() {
+        // Arrange
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setBucketName(bucketName);
+        summary.setKey("2024_08_31_10_00_00_000_1725098400_test-EHR.txt");
+        summary.setETag("dummy-eTag");
+        summary.setSize(6L);
+
+        ListObjectsV2Result listing = new ListObjectsV2Result();
+        listing.getObjectSummaries().add(summary);
+        listing.setTruncated(false);
+
+        when(s3Client.listObjectsV2(any(ListObjectsV2Request.class))).thenReturn(listing);
+
+        // Act
+        List<MedicalRecordS3Metadata> firstSearch = storageService.searchS3ContainsFilename("EHR");
+        List<MedicalRecordS3Metadata> secondSearch = storageService.searchS3ContainsFilename("scan");
+
+        // Assert
+        assertEquals(1, firstSearch.size());
+        assertEquals("2024_08_31_10_00_00_000_1725098400_test-EHR.txt", firstSearch.getFirst().getKey());
+        assertTrue(secondSearch.isEmpty());
+        // the bucket is listed once to build the key index, later searches never touch S3
+        verify(s3Client, atMost(1)).listObjectsV2(any(ListObjectsV2Request.class));
+    }
+
+
+    private static ListObjectsV2Result listing(boolean truncated, String... keys) {
+        ListObjectsV2Result listing = new ListObjectsV2Result();
+        for (String key : keys) {
+            S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setKey(key);
+            summary.setETag("dummy-eTag");
+            listing.getObjectSummaries().add(summary);
+        }
+        listing.setTruncated(truncated);
+        listing.setNextContinuationToken(truncated ? "next-page" : null);
+        return listing;
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#searchS3ContainsFilename(String, int, String)}
+     */
+    @Test
+    void testSearchS3ContainsFilename_StopsOncePageIsFull() {
+        // Arrange
+        ArgumentCaptor<ListObjectsV2Request> requestCaptor = ArgumentCaptor.forClass(ListObjectsV2Request.class);
+        when(s3Client.listObjectsV2(requestCaptor.capture()))
+                .thenReturn(listing(true, "a_2024_EHR.txt", "b_2023_EHR.txt", "c_2024_scan.png", "d_2024_EHR.txt"));
+
+        // Act
+        PageResponse<MedicalRecordS3Metadata> page = storageService.searchS3ContainsFilename("2024", 2, null);
+
+        // Assert
+        assertEquals(List.of("a_2024_EHR.txt", "c_2024_scan.png"),
+                page.getItems().stream().map(MedicalRecordS3Metadata::getKey).toList());
+        assertEquals("c_2024_scan.png", CursorUtils.decode(page.getNextCursor()));
+        assertNull(requestCaptor.getValue().getStartAfter());
+        // the listing is truncated but the page is full: no further S3 page is requested
+        verify(s3Client, times(1)).listObjectsV2(any(ListObjectsV2Request.class));
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#searchS3ContainsFilename(String, int, String)}
+     */
+    @Test
+    void testSearchS3ContainsFilename_LastPageHasNoCursor() {
+        // Arrange
+        ArgumentCaptor<ListObjectsV2Request> requestCaptor = ArgumentCaptor.forClass(ListObjectsV2Request.class);
+        when(s3Client.listObjectsV2(requestCaptor.capture()))
+                .thenReturn(listing(true, "d_2024_EHR.txt"))
+                .thenReturn(listing(false, "e_2022_EHR.txt"));
+
+        // Act
+        PageResponse<MedicalRecordS3Metadata> page =
+                storageService.searchS3ContainsFilename("2024", 2, CursorUtils.encode("c_2024_scan.png"));
+
+        // Assert
+        assertEquals(1, page.getItems().size());
+        assertEquals("d_2024_EHR.txt", page.getItems().getFirst().getKey());
+        assertNull(page.getNextCursor());
+        assertEquals("c_2024_scan.png", requestCaptor.getValue().getStartAfter());
+        verify(s3Client, times(2)).listObjectsV2(any(ListObjectsV2Request.class));
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#searchS3ContainsFilename(String, int, String)}
+     */
+    @Test
+    void testSearchS3ContainsFilename_InvalidPagination() {
+        // Act & Assert
+        AppException invalidLimit = assertThrows(AppException.class,
+                () -> storageService.searchS3ContainsFilename("2024", 0, null));
+        AppException invalidCursor = assertThrows(AppException.class,
+                () -> storageService.searchS3ContainsFilename("2024", 10, "not a cursor!"));
+
+        assertEquals(ErrorCode.INVALID_PAGINATION, invalidLimit.getErrorCode());
+        assertEquals(ErrorCode.INVALID_PAGINATION, invalidCursor.getErrorCode());
+        verify(s3Client, never()).listObjectsV2(any(ListObjectsV2Request.class));
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#streamS3ContainsFilename(String)}
+     */
+    @Test
+    void testStreamS3ContainsFilename_WritesEachPageAsItIsListed() throws IOException {
+        // Arrange
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        List<String> flushedBeforeSecondPage = new ArrayList<>();
+
+        when(s3Client.listObjectsV2(any(ListObjectsV2Request.class)))
+                .thenReturn(listing(true, "a_2024_EHR.txt", "b_2023_EHR.txt"))
+                .thenAnswer(invocation -> {
+                    flushedBeforeSecondPage.add(outputStream.toString());
+                    return listing(false, "c_2024_scan.png");
+                });
+
+        // Act
+        storageService.streamS3ContainsFilename("2024").writeTo(outputStream);
+
+        // Assert: exactly one JSON document per line, nothing before or between them
+        String firstLine = objectMapper.writeValueAsString(medicalRecordMapper.toMedicalRecordS3Metadata(
+                listing(false, "a_2024_EHR.txt").getObjectSummaries().getFirst()));
+        String secondLine = objectMapper.writeValueAsString(medicalRecordMapper.toMedicalRecordS3Metadata(
+                listing(false, "c_2024_scan.png").getObjectSummaries().getFirst()));
+        assertEquals(firstLine + "\n" + secondLine + "\n", outputStream.toString());
+        // the match of the first page was sent before the second page was even requested
+        assertEquals(firstLine + "\n", flushedBeforeSecondPage.getFirst());
     }
 
 
@@ -128,6 +931,97 @@ class StorageServiceImplTest {
     }
 
 
+    private static byte[] gzip(String content) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(compressed)) {
+            gzipOutputStream.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        return compressed.toByteArray();
+    }
+
+
+    private static S3Object compressedS3Object(byte[] storedContent, String contentRange, long uncompressedLength) {
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setHeader(Headers.ETAG, "dummy-eTag");
+        objectMetadata.setContentEncoding("gzip");
+        objectMetadata.addUserMetadata(
+                RecordCompressor.UNCOMPRESSED_LENGTH_METADATA, Long.toString(uncompressedLength));
+        if (contentRange != null)
+            objectMetadata.setHeader(Headers.CONTENT_RANGE, contentRange);
+        objectMetadata.setContentLength(storedContent.length);
+
+        S3Object s3Object = new S3Object();
+        s3Object.setObjectMetadata(objectMetadata);
+        s3Object.setObjectContent(new S3ObjectInputStream(new ByteArrayInputStream(storedContent), null));
+        return s3Object;
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#downloadFileFromS3(String)}
+     */
+    @Test
+    void testDownloadFileFromS3_CompressedRecordDecompressed() throws IOException {
+        // Arrange
+        String fileName = "testFile.txt";
+        when(s3Client.getObject(bucketName, fileName))
+                .thenReturn(compressedS3Object(gzip("test content"), null, 12));
+
+        // Act
+        byte[] result = storageService.downloadFileFromS3(fileName);
+
+        // Assert
+        assertEquals("test content", new String(result, StandardCharsets.UTF_8));
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#downloadFileFromS3(String)}
+     */
+    @Test
+    void testDownloadFileFromS3_DuplicateServedFromSharedObject() {
+        // Arrange
+        byte[] expectedContent = "test content".getBytes();
+        when(s3Client.getObject(bucketName, "duplicate-EHR.txt")).thenThrow(notFound());
+        when(recordBlobRegistry.findObjectKey("duplicate-EHR.txt")).thenReturn(Optional.of("test-EHR.txt"));
+        when(s3Client.getObject(bucketName, "test-EHR.txt")).thenReturn(s3Object);
+        when(s3Object.getObjectContent())
+                .thenReturn(new S3ObjectInputStream(new ByteArrayInputStream(expectedContent), null));
+
+        // Act
+        byte[] result = storageService.downloadFileFromS3("duplicate-EHR.txt");
+
+        // Assert
+        assertArrayEquals(expectedContent, result);
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#downloadFileFromS3(String)}
+     */
+    @Test
+    void testDownloadFileFromS3_DeletedOriginalOfSharedObjectNotServed() {
+        // Arrange: test-EHR.txt was deleted, its object stays for duplicate-EHR.txt
+        byte[] expectedContent = "test content".getBytes();
+        when(recordBlobRegistry.isReleased("test-EHR.txt")).thenReturn(true);
+        when(s3Client.getObject(bucketName, "duplicate-EHR.txt")).thenThrow(notFound());
+        when(recordBlobRegistry.findObjectKey("duplicate-EHR.txt")).thenReturn(Optional.of("test-EHR.txt"));
+        when(s3Client.getObject(bucketName, "test-EHR.txt")).thenReturn(s3Object);
+        when(s3Object.getObjectContent())
+                .thenReturn(new S3ObjectInputStream(new ByteArrayInputStream(expectedContent), null));
+        when(s3Client.listObjectsV2(any(ListObjectsV2Request.class))).thenReturn(listing(false, "test-EHR.txt"));
+        when(recordBlobRegistry.findReleasedObjectKeys(List.of("test-EHR.txt"))).thenReturn(Set.of("test-EHR.txt"));
+
+        // Act & Assert
+        AppException exception =
+                assertThrows(AppException.class, () -> storageService.downloadFileFromS3("test-EHR.txt"));
+        assertEquals(ErrorCode.MEDICAL_RECORD_NOT_EXISTING, exception.getErrorCode());
+        assertThrows(AppException.class, () -> storageService.streamFileFromS3("test-EHR.txt", null, null, null));
+        assertTrue(storageService.searchS3ContainsFilename("EHR", 10, null).getItems().isEmpty());
+        assertArrayEquals(expectedContent, storageService.downloadFileFromS3("duplicate-EHR.txt"));
+    }
+
+
     /**
      * Method under test: {@link StorageServiceImpl#downloadFileFromS3(String)}
      */
@@ -191,13 +1085,464 @@ class StorageServiceImplTest {
     }
 
 
+    /**
+     * Method under test: {@link StorageServiceImpl#streamFileFromS3(String, String, String, String)}
+     */
+    @Test
+    void testStreamFileFromS3_Range() throws IOException {
+        // Arrange
+        String fileName = "testFile.txt";
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setHeader(Headers.CONTENT_RANGE, "bytes 5-11/12");
+        objectMetadata.setHeader(Headers.ETAG, "dummy-eTag");
+        objectMetadata.setContentLength(7L);
+
+        S3Object rangedS3Object = new S3Object();
+        rangedS3Object.setObjectMetadata(objectMetadata);
+        rangedS3Object.setObjectContent(
+                new S3ObjectInputStream(new ByteArrayInputStream("content".getBytes()), null));
+
+        ArgumentCaptor<GetObjectRequest> requestCaptor = ArgumentCaptor.forClass(GetObjectRequest.class);
+        when(s3Client.getObject(requestCaptor.capture())).thenReturn(rangedS3Object);
+
+        // Act
+        MedicalRecordDownload download = storageService.streamFileFromS3(fileName, "bytes=5-", "\"dummy-eTag\"", null);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        download.getContent().writeTo(outputStream);
+
+        // Assert
+        assertArrayEquals(new long[]{5, Long.MAX_VALUE - 1}, requestCaptor.getValue().getRange());
+        assertEquals(List.of("\"dummy-eTag\""), requestCaptor.getValue().getMatchingETagConstraints());
+        assertTrue(download.isPartial());
+        assertEquals(5, download.getRangeStart());
+        assertEquals(11, download.getRangeEnd());
+        assertEquals(12, download.getInstanceLength());
+        assertEquals("content", outputStream.toString());
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#streamFileFromS3(String, String, String, String)}
+     */
+    @Test
+    void testStreamFileFromS3_IfRangeMismatchSendsWholeObject() throws IOException {
+        // Arrange
+        String fileName = "testFile.txt";
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setContentLength(12L);
+
+        S3Object wholeS3Object = new S3Object();
+        wholeS3Object.setObjectMetadata(objectMetadata);
+        wholeS3Object.setObjectContent(
+                new S3ObjectInputStream(new ByteArrayInputStream("test content".getBytes()), null));
+
+        // S3 answers null when the ETag constraint of the ranged GET fails
+        when(s3Client.getObject(any(GetObjectRequest.class))).thenReturn(null);
+        when(s3Client.getObject(bucketName, fileName)).thenReturn(wholeS3Object);
+
+        // Act
+        MedicalRecordDownload download = storageService.streamFileFromS3(fileName, "bytes=0-3", "\"stale-eTag\"", null);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        download.getContent().writeTo(outputStream);
+
+        // Assert
+        assertFalse(download.isPartial());
+        assertEquals(12, download.getContentLength());
+        assertEquals("test content", outputStream.toString());
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#streamFileFromS3(String, String, String, String)}
+     */
+    @Test
+    void testStreamFileFromS3_CompressedSentAsStoredToAcceptingClient() throws IOException {
+        // Arrange
+        String fileName = "testFile.txt";
+        byte[] storedContent = gzip("test content");
+        when(s3Client.getObject(any(GetObjectRequest.class)))
+                .thenReturn(compressedS3Object(storedContent, null, 12));
+
+        // Act
+        MedicalRecordDownload download = storageService.streamFileFromS3(fileName, null, null, "br;q=1.0, gzip;q=0.8");
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        download.getContent().writeTo(outputStream);
+
+        // Assert
+        assertEquals("gzip", download.getContentEncoding());
+        assertEquals(storedContent.length, download.getContentLength());
+        assertArrayEquals(storedContent, outputStream.toByteArray());
+        // the content cache only holds decoded content
+        assertNull(recordContentCache.get(fileName, "dummy-eTag"));
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#streamFileFromS3(String, String, String, String)}
+     */
+    @Test
+    void testStreamFileFromS3_CompressedDecodedForOtherClients() throws IOException {
+        // Arrange
+        String fileName = "testFile.txt";
+        byte[] storedContent = gzip("test content");
+        // the range applies to the encoded bytes, meaningless once decoded
+        when(s3Client.getObject(any(GetObjectRequest.class))).thenReturn(compressedS3Object(
+                Arrays.copyOfRange(storedContent, 0, 4), "bytes 0-3/" + storedContent.length, 12));
+        when(s3Client.getObject(bucketName, fileName)).thenReturn(compressedS3Object(storedContent, null, 12));
+
+        // Act
+        MedicalRecordDownload download = storageService.streamFileFromS3(fileName, "bytes=0-3", null, "gzip;q=0");
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        download.getContent().writeTo(outputStream);
+
+        // Assert
+        assertNull(download.getContentEncoding());
+        assertFalse(download.isPartial());
+        assertEquals(12, download.getContentLength());
+        assertEquals("test content", outputStream.toString(StandardCharsets.UTF_8));
+        verify(s3Client, times(1)).getObject(bucketName, fileName);
+        assertNotNull(recordContentCache.get(fileName, "dummy-eTag"));
+    }
+
+
+    private static byte[] encrypt(ChunkedCipher cipher, byte[] content) throws IOException {
+        try (InputStream encryptingStream = cipher.encrypting(new ByteArrayInputStream(content))) {
+            return encryptingStream.readAllBytes();
+        }
+    }
+
+
+    // S3 answering a GET of an encrypted object, applying its range when there is one
+    private static S3Object encryptedS3Object(byte[] storedContent, Map<String, String> userMetadata, long[] range) {
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setHeader(Headers.ETAG, "dummy-eTag");
+        objectMetadata.setUserMetadata(userMetadata);
+
+        byte[] body = storedContent;
+        if (range != null) {
+            int last = (int) Math.min(range[1], storedContent.length - 1);
+            body = Arrays.copyOfRange(storedContent, (int) range[0], last + 1);
+            objectMetadata.setHeader(Headers.CONTENT_RANGE,
+                    "bytes " + range[0] + "-" + last + "/" + storedContent.length);
+        }
+        objectMetadata.setContentLength(body.length);
+
+        S3Object s3Object = new S3Object();
+        s3Object.setObjectMetadata(objectMetadata);
+        s3Object.setObjectContent(new S3ObjectInputStream(new ByteArrayInputStream(body), null));
+        return s3Object;
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#streamFileFromS3(String, String, String, String)}
+     */
+    @Test
+    void testStreamFileFromS3_EncryptedRangeReadsItsChunksOnly() throws IOException {
+        // Arrange: 200000 bytes in chunks of 64KB, the object known to be encrypted
+        String fileName = "testFile.txt";
+        byte[] content = new byte[200_000];
+        new java.util.Random(42).nextBytes(content);
+        ChunkedCipher cipher = recordEncryptor.newCipher();
+        byte[] storedContent = encrypt(cipher, content);
+        Map<String, String> userMetadata = recordEncryptor.metadataOf(cipher);
+
+        s3MetadataCache.put(fileName, MedicalRecordS3Metadata.builder()
+                .key(fileName)
+                .etag("dummy-eTag")
+                .size(storedContent.length)
+                .encryptionChunkSize(cipher.getChunkSize())
+                .build());
+
+        ArgumentCaptor<GetObjectRequest> requestCaptor = ArgumentCaptor.forClass(GetObjectRequest.class);
+        when(s3Client.getObject(requestCaptor.capture())).thenAnswer(invocation -> encryptedS3Object(
+                storedContent, userMetadata, invocation.getArgument(0, GetObjectRequest.class).getRange()));
+
+        // Act
+        MedicalRecordDownload download = storageService.streamFileFromS3(fileName, "bytes=70000-70009", null, null);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        download.getContent().writeTo(outputStream);
+
+        // Assert: a single GET of the second chunk, 65536 bytes plus tag
+        assertArrayEquals(new long[]{65552, 131103}, requestCaptor.getValue().getRange());
+        verify(s3Client, times(1)).getObject(any(GetObjectRequest.class));
+        assertTrue(download.isPartial());
+        assertEquals(70000, download.getRangeStart());
+        assertEquals(70009, download.getRangeEnd());
+        assertEquals(10, download.getContentLength());
+        assertEquals(content.length, download.getInstanceLength());
+        assertArrayEquals(Arrays.copyOfRange(content, 70000, 70010), outputStream.toByteArray());
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#streamFileFromS3(String, String, String, String)}
+     */
+    @Test
+    void testStreamFileFromS3_EncryptedRangeRefetchedWhenNotKnownEncrypted() throws IOException {
+        // Arrange: nothing cached, the first GET asks for the plaintext range
+        String fileName = "testFile.txt";
+        byte[] content = new byte[200_000];
+        new java.util.Random(42).nextBytes(content);
+        ChunkedCipher cipher = recordEncryptor.newCipher();
+        byte[] storedContent = encrypt(cipher, content);
+        Map<String, String> userMetadata = recordEncryptor.metadataOf(cipher);
+
+        ArgumentCaptor<GetObjectRequest> requestCaptor = ArgumentCaptor.forClass(GetObjectRequest.class);
+        when(s3Client.getObject(requestCaptor.capture())).thenAnswer(invocation -> encryptedS3Object(
+                storedContent, userMetadata, invocation.getArgument(0, GetObjectRequest.class).getRange()));
+
+        // Act
+        MedicalRecordDownload download = storageService.streamFileFromS3(fileName, "bytes=199900-", null, null);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        download.getContent().writeTo(outputStream);
+
+        // Assert: the last chunk, from the version the data key was read from
+        GetObjectRequest chunksRequest = requestCaptor.getAllValues().get(1);
+        assertArrayEquals(new long[]{3 * 65552, storedContent.length - 1}, chunksRequest.getRange());
+        assertEquals(List.of("\"dummy-eTag\""), chunksRequest.getMatchingETagConstraints());
+        assertEquals(199900, download.getRangeStart());
+        assertArrayEquals(Arrays.copyOfRange(content, 199900, content.length),
+                outputStream.toByteArray());
+        // now known to be encrypted
+        assertEquals(cipher.getChunkSize(), s3MetadataCache.getIfPresent(fileName).getEncryptionChunkSize());
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#downloadFileFromS3(String)}
+     */
+    @Test
+    void testDownloadFileFromS3_EncryptedRecordDecryptedNotCached() throws IOException {
+        // Arrange
+        String fileName = "testFile.txt";
+        ChunkedCipher cipher = recordEncryptor.newCipher();
+        when(s3Client.getObject(bucketName, fileName)).thenReturn(encryptedS3Object(
+                encrypt(cipher, "test content".getBytes()), recordEncryptor.metadataOf(cipher), null));
+
+        // Act
+        byte[] result = storageService.downloadFileFromS3(fileName);
+
+        // Assert
+        assertEquals("test content", new String(result, StandardCharsets.UTF_8));
+        assertNull(recordContentCache.get(fileName, "dummy-eTag"));
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#streamFileFromS3(String, String, String, String)}
+     */
+    @Test
+    void testStreamFileFromS3_RangeNotSatisfiable() {
+        AmazonS3Exception invalidRange = new AmazonS3Exception("Invalid range");
+        invalidRange.setStatusCode(416);
+        when(s3Client.getObject(any(GetObjectRequest.class))).thenThrow(invalidRange);
+
+        AppException thrown = assertThrows(AppException.class,
+                () -> storageService.streamFileFromS3("testFile.txt", "bytes=100-", null, null));
+
+        assertEquals(ErrorCode.RANGE_NOT_SATISFIABLE, thrown.getErrorCode());
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#deleteFileFromS3(String)}
+     */
     @Test
     void testDeleteFileFromS3() {
+        // Arrange
+        SecurityContextHolder.getContext().setAuthentication(
+                new TestingAuthenticationToken("admin", "dummy-jwt", "ROLE_ADMIN"));
+
+        when(s3Client.getObjectMetadata(bucketName, "test-EHR.txt"))
+                .thenReturn(new ObjectMetadata())
+                .thenThrow(notFound());
+        // the record as changed by MongoDB, in the same round trip
+        when(medicalRecordRepository.findAndMarkUnavailable("test-EHR.txt", "admin"))
+                .thenAnswer(invocation -> {
+                    medicalRecord.setS3Availability(false);
+                    medicalRecord.setUpdatedByUser("admin");
+                    medicalRecord.setVersion(1L);
+                    return Optional.of(medicalRecord);
+                });
+
+        try {
+            // Act
+            MedicalRecordResponse deletedRecordResponse = storageService.deleteFileFromS3("test-EHR.txt");
+
+            // Assert
+            assertFalse(deletedRecordResponse.isS3Availability());
+            assertEquals("admin", deletedRecordResponse.getUpdatedByUser());
+            assertEquals(1L, deletedRecordResponse.getVersion());
+            verify(medicalRecordRepository, never()).save(any(MedicalRecord.class));
+            verify(s3Client, times(1)).deleteObject(bucketName, "test-EHR.txt");
+            verify(s3Client, times(2)).getObjectMetadata(bucketName, "test-EHR.txt");
+            verify(s3Client, never()).listObjectsV2(any(ListObjectsV2Request.class));
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#deleteFileFromS3(String)}
+     */
+    @Test
+    void testDeleteFileFromS3_SharedObjectKeptWhileReferenced() {
+        // Arrange
+        SecurityContextHolder.getContext().setAuthentication(
+                new TestingAuthenticationToken("admin", "dummy-jwt", "ROLE_ADMIN"));
+
+        when(recordBlobRegistry.findObjectKey("duplicate-EHR.txt")).thenReturn(Optional.of("test-EHR.txt"));
+        when(recordBlobRegistry.release("test-EHR.txt", "duplicate-EHR.txt")).thenReturn(false);
+        when(s3Client.getObjectMetadata(bucketName, "test-EHR.txt")).thenReturn(new ObjectMetadata());
+        when(medicalRecordRepository.findAndMarkUnavailable("duplicate-EHR.txt", "admin"))
+                .thenAnswer(invocation -> {
+                    medicalRecord.setMedicalRecordName("duplicate-EHR.txt");
+                    medicalRecord.setS3Availability(false);
+                    return Optional.of(medicalRecord);
+                });
+
+        try {
+            // Act
+            MedicalRecordResponse deletedRecordResponse = storageService.deleteFileFromS3("duplicate-EHR.txt");
+
+            // Assert
+            assertEquals("duplicate-EHR.txt", deletedRecordResponse.getMedicalRecordName());
+            assertFalse(deletedRecordResponse.isS3Availability());
+            verify(s3Client, never()).deleteObject(anyString(), anyString());
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#deleteFileFromS3(String)}
+     */
+    @Test
+    void testDeleteFileFromS3_LastReferenceDeletesSharedObject() {
+        // Arrange
+        SecurityContextHolder.getContext().setAuthentication(
+                new TestingAuthenticationToken("admin", "dummy-jwt", "ROLE_ADMIN"));
+
+        when(recordBlobRegistry.findObjectKey("duplicate-EHR.txt")).thenReturn(Optional.of("test-EHR.txt"));
+        when(recordBlobRegistry.release("test-EHR.txt", "duplicate-EHR.txt")).thenReturn(true);
+        when(s3Client.getObjectMetadata(bucketName, "test-EHR.txt"))
+                .thenReturn(new ObjectMetadata())
+                .thenThrow(notFound());
+        when(medicalRecordRepository.findAndMarkUnavailable("duplicate-EHR.txt", "admin"))
+                .thenReturn(Optional.of(medicalRecord));
+
+        try {
+            // Act
+            storageService.deleteFileFromS3("duplicate-EHR.txt");
+
+            // Assert
+            verify(s3Client, times(1)).deleteObject(bucketName, "test-EHR.txt");
+            verify(medicalRecordRepository).findAndMarkUnavailable("duplicate-EHR.txt", "admin");
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#deleteFilesFromS3(List)}
+     */
+    @Test
+    void testDeleteFilesFromS3_BatchesKeysAndUpdatesOnce() {
+        // Arrange
+        SecurityContextHolder.getContext().setAuthentication(
+                new TestingAuthenticationToken("admin", "dummy-jwt", "ROLE_ADMIN"));
+
+        List<String> fileNames = new ArrayList<>();
+        for (int i = 0; i < 1500; i++)
+            fileNames.add("record-" + i + ".txt");
+        fileNames.add("record-0.txt"); // duplicates are deleted only once
+
+        MultiObjectDeleteException.DeleteError deleteError = new MultiObjectDeleteException.DeleteError();
+        deleteError.setKey("record-1200.txt");
+        deleteError.setCode("AccessDenied");
+        deleteError.setMessage("Access Denied");
+
+        ArgumentCaptor<DeleteObjectsRequest> requestCaptor = ArgumentCaptor.forClass(DeleteObjectsRequest.class);
+        when(s3Client.deleteObjects(requestCaptor.capture()))
+                .thenReturn(new DeleteObjectsResult(List.of()))
+                .thenThrow(new MultiObjectDeleteException(List.of(deleteError), List.of()));
+        when(medicalRecordRepository.updateS3AvailabilityByMedicalRecordNameIn(
+                anyCollection(), eq(false), any(Instant.class), eq("admin")))
+                .thenReturn(1499L);
+
+        try {
+            // Act
+            List<MedicalRecordBatchItemResponse> itemResponses = storageService.deleteFilesFromS3(fileNames);
+
+            // Assert
+            List<DeleteObjectsRequest> requests = requestCaptor.getAllValues();
+            assertEquals(2, requests.size());
+            assertEquals(1000, requests.get(0).getKeys().size());
+            assertEquals(500, requests.get(1).getKeys().size());
+            assertTrue(requests.get(0).getQuiet());
+
+            assertEquals(1500, itemResponses.size());
+            assertEquals(1499, itemResponses.stream().filter(MedicalRecordBatchItemResponse::isSuccess).count());
+
+            MedicalRecordBatchItemResponse failedItem = itemResponses.get(1200);
+            assertEquals("record-1200.txt", failedItem.getFileName());
+            assertFalse(failedItem.isSuccess());
+            assertEquals(ErrorCode.FILE_DELETION_FAILED.getCode(), failedItem.getCode());
+
+            verify(medicalRecordRepository, times(1)).updateS3AvailabilityByMedicalRecordNameIn(
+                    argThat(names -> names.size() == 1499 && !names.contains("record-1200.txt")),
+                    eq(false), any(Instant.class), eq("admin"));
+            verify(s3Client, never()).deleteObject(anyString(), anyString());
+            verify(s3Client, never()).getObjectMetadata(anyString(), anyString());
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+    }
+
+
+    /**
+     * Method under test: {@link StorageServiceImpl#deleteFilesFromS3(List)}
+     */
+    @Test
+    void testDeleteFilesFromS3_SharedObjectDeletedWithLastReference() {
+        // Arrange
+        SecurityContextHolder.getContext().setAuthentication(
+                new TestingAuthenticationToken("admin", "dummy-jwt", "ROLE_ADMIN"));
+
+        // shared.txt is referenced by first-copy.txt and second-copy.txt, only the first one is deleted here
+        List<String> fileNames = List.of("record.txt", "first-copy.txt", "shared.txt");
+        when(recordBlobRegistry.findObjectKeys(fileNames))
+                .thenReturn(Map.of("first-copy.txt", "shared.txt", "shared.txt", "shared.txt"));
+        when(recordBlobRegistry.release("shared.txt", "first-copy.txt")).thenReturn(false);
+        when(recordBlobRegistry.release("shared.txt", "shared.txt")).thenReturn(false);
+
+        ArgumentCaptor<DeleteObjectsRequest> requestCaptor = ArgumentCaptor.forClass(DeleteObjectsRequest.class);
+        when(s3Client.deleteObjects(requestCaptor.capture())).thenReturn(new DeleteObjectsResult(List.of()));
+
+        try {
+            // Act
+            List<MedicalRecordBatchItemResponse> itemResponses = storageService.deleteFilesFromS3(fileNames);
+
+            // Assert
+            assertEquals(List.of("record.txt"), requestCaptor.getValue().getKeys().stream()
+                    .map(DeleteObjectsRequest.KeyVersion::getKey)
+                    .toList());
+            assertTrue(itemResponses.stream().allMatch(MedicalRecordBatchItemResponse::isSuccess));
+            verify(medicalRecordRepository, times(1)).updateS3AvailabilityByMedicalRecordNameIn(
+                    argThat(names -> names.containsAll(fileNames) && names.size() == 3),
+                    eq(false), any(Instant.class), eq("admin"));
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
     }
 
 
     /**
-     * Method under test: {@link StorageServiceImpl#uploadFileToS3(MultipartFile)}
+     * Method under test: {@link StorageServiceImpl#uploadFileToS3(MultipartFile, String)}
      */
 //    @Test
 //    void testConvertMultiPartFileToFile_Success() throws IOException {
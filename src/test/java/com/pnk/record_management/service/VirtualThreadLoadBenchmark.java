@@ -0,0 +1,143 @@
+package com.pnk.record_management.service;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.pnk.record_management.entity.MedicalRecord;
+import com.pnk.record_management.repository.MedicalRecordRepository;
+import com.pnk.record_management.support.InMemoryAmazonS3;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.test.context.TestPropertySource;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+
+/*
+ * Request throughput of the blocking upload + download path, with 20ms per S3 request and 5ms per MongoDB save.
+ * "platform" is Tomcat's default pool of 200 request threads, "virtual" one virtual thread per request
+ * (spring.threads.virtual.enabled). Caches are disabled so that every request blocks on I/O.
+ * Run with `mvn test -Pbenchmark`.
+ * */
+@Slf4j
+@Tag("benchmark")
+@SpringBootTest
+@TestPropertySource(value = "/test.properties", properties = {
+        "application.metadata-cache.maximum-size=0",
+        "application.content-cache.off-heap-budget=0",
+        "application.content-cache.disk-budget=0",
+        // per-request logging would serialize the requests on the appenders
+        "logging.level.com.pnk.record_management=WARN",
+        "logging.level.com.pnk.record_management.service.VirtualThreadLoadBenchmark=INFO"})
+class VirtualThreadLoadBenchmark {
+
+    static final int TOMCAT_MAX_THREADS = 200;
+
+    static final int REQUESTS = 4000;
+
+    static final byte[] CONTENT = "sample content".getBytes();
+
+    @Autowired
+    private StorageService storageService;
+
+
+    @TestConfiguration
+    static class SimulatedS3Configuration {
+
+        @Bean
+        @Primary
+        AmazonS3 simulatedS3Client() {
+            return new InMemoryAmazonS3("hospitalmgmt-record-service", Duration.ofMillis(20), 0, true);
+        }
+
+
+        // stub-only: a regular mock would record every one of the thousands of invocations
+        @Bean
+        @Primary
+        MedicalRecordRepository simulatedMedicalRecordRepository() {
+            MedicalRecordRepository medicalRecordRepository =
+                    mock(MedicalRecordRepository.class, withSettings().stubOnly());
+            when(medicalRecordRepository.save(any(MedicalRecord.class))).thenAnswer(invocation -> {
+                Thread.sleep(5);
+                return invocation.getArgument(0);
+            });
+            return medicalRecordRepository;
+        }
+    }
+
+
+    @ParameterizedTest(name = "{0} threads")
+    @ValueSource(strings = {"platform", "virtual"})
+    void requestThroughput(String threads) throws Exception {
+        ExecutorService requestExecutor = threads.equals("virtual")
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(TOMCAT_MAX_THREADS);
+
+        try {
+            // warm-up: class loading, proxies, connection-less code paths
+            runRequests(requestExecutor, TOMCAT_MAX_THREADS);
+
+            long startedAt = System.nanoTime();
+            long[] latencies = runRequests(requestExecutor, REQUESTS);
+            double seconds = (System.nanoTime() - startedAt) / 1e9;
+
+            Arrays.sort(latencies);
+            log.info(">> requestThroughput >> {} threads: {} requests in {} s = {} req/s, p50 {} ms, p99 {} ms",
+                    threads, REQUESTS, String.format("%.2f", seconds), String.format("%.0f", REQUESTS / seconds),
+                    latencies[latencies.length / 2] / 1_000_000, latencies[latencies.length * 99 / 100] / 1_000_000);
+        } finally {
+            requestExecutor.shutdownNow();
+        }
+    }
+
+
+    /*
+     * All requests arrive at once; the latency of each includes the time spent waiting for a request thread
+     * */
+    private long[] runRequests(ExecutorService requestExecutor, int requests) throws Exception {
+        long submittedAt = System.nanoTime();
+        List<Future<Long>> results = new ArrayList<>(requests);
+
+        for (int i = 0; i < requests; i++) {
+            String originalFilename = "load-" + i + ".txt";
+            results.add(requestExecutor.submit(() -> {
+                // what the security filter chain does on the request thread
+                SecurityContextHolder.getContext().setAuthentication(
+                        new TestingAuthenticationToken("admin", "dummy-jwt", "ROLE_ADMIN"));
+                try {
+                    String fileName = storageService.uploadFileToS3(new MockMultipartFile(
+                            "file", originalFilename, "text/plain", CONTENT), "patient-1").getMedicalRecordName();
+                    assertArrayEquals(CONTENT, storageService.downloadFileFromS3(fileName));
+                    return System.nanoTime() - submittedAt;
+                } finally {
+                    SecurityContextHolder.clearContext();
+                }
+            }));
+        }
+
+        long[] latencies = new long[requests];
+        for (int i = 0; i < requests; i++)
+            latencies[i] = results.get(i).get();
+        return latencies;
+    }
+}
@@ -0,0 +1,474 @@
+package com.pnk.record_management.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.pnk.record_management.entity.MedicalRecord;
+import com.pnk.record_management.exception.AppException;
+import com.pnk.record_management.exception.ErrorCode;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndReplaceOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.*;
+
+
+class WriteBehindMedicalRecordWriterTest {
+
+    @TempDir
+    Path outboxDirectory;
+
+    MongoTemplate mongoTemplate;
+
+    BulkOperations bulkOperations;
+
+    ObjectMapper objectMapper;
+
+    StorageMetrics storageMetrics = new StorageMetrics(new SimpleMeterRegistry());
+
+    WriteBehindMedicalRecordWriter writer;
+
+    @BeforeEach
+    void setUp() {
+        mongoTemplate = mock(MongoTemplate.class);
+        bulkOperations = mock(BulkOperations.class);
+        when(mongoTemplate.bulkOps(BulkOperations.BulkMode.ORDERED, MedicalRecord.class)).thenReturn(bulkOperations);
+        objectMapper = new ObjectMapper().findAndRegisterModules();
+
+        writer = new WriteBehindMedicalRecordWriter(mongoTemplate, objectMapper, storageMetrics);
+        ReflectionTestUtils.setField(writer, "directory", outboxDirectory);
+        ReflectionTestUtils.setField(writer, "batchSize", 10);
+        ReflectionTestUtils.setField(writer, "flushInterval", Duration.ofMillis(50));
+        ReflectionTestUtils.setField(writer, "queueCapacity", 100);
+        ReflectionTestUtils.setField(writer, "enqueueTimeout", Duration.ofMillis(10));
+        ReflectionTestUtils.setField(writer, "retryDelay", Duration.ofMillis(10));
+    }
+
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (ReflectionTestUtils.getField(writer, "flusher") != null)
+            writer.stop();
+    }
+
+
+    private static MedicalRecord medicalRecord(String id) {
+        return MedicalRecord.builder()
+                .id(id)
+                .medicalRecordName("patient-42_" + id + ".txt")
+                .patientId("patient-42")
+                .creationDateTime(Instant.now())
+                .s3Availability(true)
+                .updatedByUser("admin")
+                .build();
+    }
+
+
+    private MedicalRecordOutbox outbox() {
+        return (MedicalRecordOutbox) ReflectionTestUtils.getField(writer, "outbox");
+    }
+
+
+    private void awaitEmptyOutbox() throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (outbox().backlog() > 0 && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        assertEquals(0, outbox().backlog());
+    }
+
+
+    /**
+     * Method under test: {@link WriteBehindMedicalRecordWriter#insert(MedicalRecord)}
+     */
+    @Test
+    void testInsertAndMarkUnavailable_JournaledThenAppliedInBulk() throws Exception {
+        // Arrange
+        writer.start();
+
+        // Act
+        MedicalRecord inserted = writer.insert(medicalRecord("id-1"));
+        writer.insert(medicalRecord("id-2"));
+        MedicalRecord deleted = writer.markUnavailable("patient-42_id-1.txt", "admin");
+
+        // Assert
+        // the callers get their answer before anything reached MongoDB
+        assertEquals("id-1", inserted.getId());
+        assertFalse(deleted.isS3Availability());
+
+        awaitEmptyOutbox();
+        verify(bulkOperations, times(2)).replaceOne(any(Query.class), any(MedicalRecord.class),
+                any(FindAndReplaceOptions.class));
+        verify(bulkOperations).updateOne(
+                argThat((Query query) -> query.getQueryObject().get("medicalRecordName").equals("patient-42_id-1.txt")),
+                argThat((Update update) -> Boolean.FALSE.equals(
+                        update.getUpdateObject().get("$set", Document.class).get("s3Availability"))));
+        verify(bulkOperations, atLeastOnce()).execute();
+        // applied changes are not kept
+        assertEquals(0, Files.size(outboxDirectory.resolve(MedicalRecordOutbox.JOURNAL_FILE)));
+    }
+
+
+    /**
+     * Method under test: {@link WriteBehindMedicalRecordWriter#markAllUnavailable(java.util.Collection, String)}
+     */
+    @Test
+    void testBatchChanges_AppliedInOrderWithSingleChanges() throws Exception {
+        // Arrange
+        writer.start();
+
+        // Act: a single upload still queued, then a batch upload and a batch delete including it
+        writer.insert(medicalRecord("id-1"));
+        List<MedicalRecord> inserted = writer.insertAll(List.of(medicalRecord("id-2"), medicalRecord("id-3")));
+        long queuedChanges = writer.markAllUnavailable(List.of("patient-42_id-1.txt", "patient-42_id-2.txt"), "admin");
+
+        // Assert: the deletes are applied after the inserts they follow, never before
+        assertEquals(2, inserted.size());
+        assertEquals(2, queuedChanges);
+        awaitEmptyOutbox();
+        var inOrder = inOrder(bulkOperations);
+        inOrder.verify(bulkOperations, times(3)).replaceOne(any(Query.class), any(MedicalRecord.class),
+                any(FindAndReplaceOptions.class));
+        inOrder.verify(bulkOperations, times(2)).updateOne(any(Query.class), any(Update.class));
+    }
+
+
+    /**
+     * Method under test: {@link MedicalRecordOutbox#append}
+     */
+    @Test
+    void testAppend_ConcurrentAppendsGroupCommittedInJournalOrder() throws Exception {
+        // Arrange
+        int appends = 200;
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        List<Long> durableSequences = new ArrayList<>();
+
+        try (MedicalRecordOutbox outbox =
+                     new MedicalRecordOutbox(outboxDirectory, objectMapper, new StorageMetrics(meterRegistry));
+             ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            outbox.readPending();
+
+            // Act
+            List<Future<List<MedicalRecordOutbox.OutboxEntry>>> results = new ArrayList<>();
+            for (int i = 0; i < appends; i++) {
+                MedicalRecord medicalRecord = medicalRecord("id-" + i);
+                results.add(executor.submit(() -> outbox.append(MedicalRecordOutbox.Operation.INSERT,
+                        List.of(medicalRecord), entries -> entries.forEach(
+                                entry -> durableSequences.add(entry.sequence())))));
+            }
+            for (Future<List<MedicalRecordOutbox.OutboxEntry>> result : results)
+                result.get(5, TimeUnit.SECONDS);
+
+            // Assert: every append acknowledged once durable, handed over in journal order, by at most one force each
+            assertEquals(appends, durableSequences.size());
+            for (int i = 0; i < appends; i++)
+                assertEquals(i + 1, durableSequences.get(i));
+            assertEquals(appends, outbox.readPending().size());
+            long forces = meterRegistry.get(StorageMetrics.FILE_IO).tag("operation", "force").timer().count();
+            assertTrue(forces >= 1 && forces <= appends);
+        }
+    }
+
+
+    /**
+     * Method under test: {@link WriteBehindMedicalRecordWriter#start()}
+     */
+    @Test
+    void testStart_AppliesChangesLeftByPreviousRun() throws Exception {
+        // Arrange
+        try (MedicalRecordOutbox previousRun = new MedicalRecordOutbox(outboxDirectory, objectMapper, storageMetrics)) {
+            previousRun.readPending();
+            previousRun.append(MedicalRecordOutbox.Operation.INSERT, List.of(medicalRecord("id-1")), entries -> { });
+            previousRun.append(MedicalRecordOutbox.Operation.INSERT, List.of(medicalRecord("id-2")), entries -> { });
+        }
+        // a crash in the middle of an append
+        Files.writeString(outboxDirectory.resolve(MedicalRecordOutbox.JOURNAL_FILE), "{\"sequence\":3,",
+                StandardOpenOption.APPEND);
+
+        // Act
+        writer.start();
+
+        // Assert
+        awaitEmptyOutbox();
+        verify(bulkOperations).replaceOne(
+                argThat((Query query) -> "id-1".equals(query.getQueryObject().get("id"))),
+                argThat((MedicalRecord medicalRecord) -> medicalRecord.getId().equals("id-1")),
+                any(FindAndReplaceOptions.class));
+        verify(bulkOperations, times(2)).replaceOne(any(Query.class), any(MedicalRecord.class),
+                any(FindAndReplaceOptions.class));
+        assertEquals("2", Files.readString(outboxDirectory.resolve(MedicalRecordOutbox.APPLIED_SEQUENCE_FILE)));
+    }
+
+
+    /**
+     * Method under test: {@link WriteBehindMedicalRecordWriter#insert(MedicalRecord)}
+     */
+    @Test
+    void testInsert_FullQueueIsRefusedAndKeptChangesSurviveStop() throws Exception {
+        // Arrange
+        ReflectionTestUtils.setField(writer, "queueCapacity", 1);
+        when(bulkOperations.execute()).thenThrow(new DataAccessResourceFailureException("MongoDB unreachable"));
+        writer.start();
+
+        // Act
+        writer.insert(medicalRecord("id-1"));
+        AppException exception = assertThrows(AppException.class, () -> writer.insert(medicalRecord("id-2")));
+        writer.stop();
+
+        // Assert
+        assertEquals(ErrorCode.RECORD_WRITE_QUEUE_FULL, exception.getErrorCode());
+        try (MedicalRecordOutbox nextRun = new MedicalRecordOutbox(outboxDirectory, objectMapper, storageMetrics)) {
+            assertEquals(1, nextRun.readPending().size());
+        }
+        ReflectionTestUtils.setField(writer, "flusher", null);
+    }
+
+
+    /**
+     * Method under test: {@link MedicalRecordOutbox#append}
+     */
+    @Test
+    void testAppend_PartialWriteCutOffAndJournalStillReadable() throws Exception {
+        // Arrange
+        FaultyFileChannel[] journalChannel = new FaultyFileChannel[1];
+        try (MedicalRecordOutbox outbox = new MedicalRecordOutbox(outboxDirectory, objectMapper, storageMetrics,
+                channel -> journalChannel[0] = new FaultyFileChannel(channel))) {
+            outbox.readPending();
+            outbox.append(MedicalRecordOutbox.Operation.INSERT, List.of(medicalRecord("id-1")), entries -> { });
+
+            // Act
+            journalChannel[0].failNextWrite = true;
+            assertThrows(IOException.class, () -> outbox.append(MedicalRecordOutbox.Operation.INSERT,
+                    List.of(medicalRecord("id-2")), entries -> { }));
+            outbox.append(MedicalRecordOutbox.Operation.INSERT, List.of(medicalRecord("id-3")), entries -> { });
+        }
+
+        // Assert: the next run reads the acknowledged changes only
+        try (MedicalRecordOutbox nextRun = new MedicalRecordOutbox(outboxDirectory, objectMapper, storageMetrics)) {
+            List<MedicalRecordOutbox.OutboxEntry> pendingEntries = nextRun.readPending();
+            assertEquals(List.of("id-1", "id-3"),
+                    pendingEntries.stream().map(entry -> entry.medicalRecord().getId()).toList());
+            assertEquals(List.of(1L, 2L),
+                    pendingEntries.stream().map(MedicalRecordOutbox.OutboxEntry::sequence).toList());
+        }
+    }
+
+
+    /**
+     * Method under test: {@link MedicalRecordOutbox#append}
+     */
+    @Test
+    void testAppend_FailedForceRolledBackOutOfJournal() throws Exception {
+        // Arrange
+        FaultyFileChannel[] journalChannel = new FaultyFileChannel[1];
+        List<Long> durableSequences = new ArrayList<>();
+        try (MedicalRecordOutbox outbox = new MedicalRecordOutbox(outboxDirectory, objectMapper, storageMetrics,
+                channel -> journalChannel[0] = new FaultyFileChannel(channel))) {
+            outbox.readPending();
+            outbox.append(MedicalRecordOutbox.Operation.INSERT, List.of(medicalRecord("id-1")),
+                    entries -> entries.forEach(entry -> durableSequences.add(entry.sequence())));
+
+            // Act
+            journalChannel[0].failNextForce = true;
+            assertThrows(IOException.class, () -> outbox.append(MedicalRecordOutbox.Operation.INSERT,
+                    List.of(medicalRecord("id-2")), entries -> durableSequences.add(-1L)));
+            outbox.append(MedicalRecordOutbox.Operation.INSERT, List.of(medicalRecord("id-3")),
+                    entries -> entries.forEach(entry -> durableSequences.add(entry.sequence())));
+
+            // Assert: the refused change is neither acknowledged nor counted
+            assertEquals(List.of(1L, 2L), durableSequences);
+            assertEquals(2, outbox.backlog());
+        }
+
+        // and it is not applied by the next run either
+        try (MedicalRecordOutbox nextRun = new MedicalRecordOutbox(outboxDirectory, objectMapper, storageMetrics)) {
+            assertEquals(List.of("id-1", "id-3"), nextRun.readPending().stream()
+                    .map(entry -> entry.medicalRecord().getId())
+                    .toList());
+        }
+    }
+
+
+    /**
+     * Method under test: {@link MedicalRecordOutbox#readPending()}
+     */
+    @Test
+    void testReadPending_UnreadableLineQuarantined() throws Exception {
+        // Arrange
+        try (MedicalRecordOutbox previousRun = new MedicalRecordOutbox(outboxDirectory, objectMapper, storageMetrics)) {
+            previousRun.readPending();
+            previousRun.append(MedicalRecordOutbox.Operation.INSERT, List.of(medicalRecord("id-1")), entries -> { });
+        }
+        Path journal = outboxDirectory.resolve(MedicalRecordOutbox.JOURNAL_FILE);
+        // a line merged with a partial one, left by a run older than the cut of failed writes
+        Files.writeString(journal, "{\"sequence\":2,{\"sequence\":2}\n", StandardOpenOption.APPEND);
+
+        // Act
+        try (MedicalRecordOutbox outbox = new MedicalRecordOutbox(outboxDirectory, objectMapper, storageMetrics)) {
+            List<MedicalRecordOutbox.OutboxEntry> pendingEntries = outbox.readPending();
+
+            // Assert
+            assertEquals(1, pendingEntries.size());
+            assertEquals("{\"sequence\":2,{\"sequence\":2}\n",
+                    Files.readString(outboxDirectory.resolve(MedicalRecordOutbox.QUARANTINE_FILE)));
+        }
+    }
+
+
+    // the journal channel, failing its next write halfway or its next force on demand
+    static final class FaultyFileChannel extends FileChannel {
+
+        final FileChannel channel;
+
+        volatile boolean failNextWrite;
+
+        volatile boolean failNextForce;
+
+
+        FaultyFileChannel(FileChannel channel) {
+            this.channel = channel;
+        }
+
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            if (!failNextWrite)
+                return channel.write(source);
+
+            failNextWrite = false;
+            channel.write(source.slice(source.position(), source.remaining() / 2));
+            throw new IOException("No space left on device");
+        }
+
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            if (failNextForce) {
+                failNextForce = false;
+                throw new IOException("Input/output error");
+            }
+            channel.force(metaData);
+        }
+
+
+        @Override
+        public int read(ByteBuffer destination) throws IOException {
+            return channel.read(destination);
+        }
+
+
+        @Override
+        public long read(ByteBuffer[] destinations, int offset, int length) throws IOException {
+            return channel.read(destinations, offset, length);
+        }
+
+
+        @Override
+        public long write(ByteBuffer[] sources, int offset, int length) throws IOException {
+            return channel.write(sources, offset, length);
+        }
+
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            channel.truncate(size);
+            return this;
+        }
+
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return channel.transferTo(position, count, target);
+        }
+
+
+        @Override
+        public long transferFrom(ReadableByteChannel source, long position, long count) throws IOException {
+            return channel.transferFrom(source, position, count);
+        }
+
+
+        @Override
+        public int read(ByteBuffer destination, long position) throws IOException {
+            return channel.read(destination, position);
+        }
+
+
+        @Override
+        public int write(ByteBuffer source, long position) throws IOException {
+            return channel.write(source, position);
+        }
+
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return channel.map(mode, position, size);
+        }
+
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return channel.lock(position, size, shared);
+        }
+
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return channel.tryLock(position, size, shared);
+        }
+
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,388 @@
+package com.pnk.record_management.support;
+
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/*
+ * AmazonS3 stand-in keeping a single bucket in memory, for tests and benchmarks.
+ * Every request can be slowed down by a fixed latency plus a per-connection transfer rate to mimic the network;
+ * with retainContent=false only object sizes are kept, so very large uploads can be simulated.
+ * */
+public class InMemoryAmazonS3 extends AbstractAmazonS3 {
+
+    private final ConcurrentSkipListMap<String, StoredObject> objects = new ConcurrentSkipListMap<>();
+
+    private final Map<String, Map<Integer, StoredObject>> multipartUploads = new ConcurrentHashMap<>();
+
+    private final Map<String, AtomicInteger> requestCounts = new ConcurrentHashMap<>();
+
+    private final AtomicLong etagSequence = new AtomicLong();
+
+    private final String bucketName;
+
+    private final Duration requestLatency;
+
+    private final long bytesPerSecondPerConnection;
+
+    private final boolean retainContent;
+
+    // part number whose upload fails, to exercise abort paths
+    private volatile int failingPartNumber = -1;
+
+
+    public InMemoryAmazonS3(String bucketName) {
+        this(bucketName, Duration.ZERO, 0, true);
+    }
+
+
+    public InMemoryAmazonS3(String bucketName, Duration requestLatency, long bytesPerSecondPerConnection,
+                            boolean retainContent) {
+        this.bucketName = bucketName;
+        this.requestLatency = requestLatency;
+        this.bytesPerSecondPerConnection = bytesPerSecondPerConnection;
+        this.retainContent = retainContent;
+    }
+
+
+    public int requestCount(String operation) {
+        AtomicInteger count = requestCounts.get(operation);
+        return count == null ? 0 : count.get();
+    }
+
+
+    public int objectCount() {
+        return objects.size();
+    }
+
+
+    public Set<String> pendingMultipartUploads() {
+        return multipartUploads.keySet();
+    }
+
+
+    public void failPartNumber(int partNumber) {
+        this.failingPartNumber = partNumber;
+    }
+
+
+    /*
+     * Seed the bucket without going through (and paying for) a simulated request
+     * */
+    public void seed(String key, byte[] content) {
+        objects.put(key, storedObject(content, content.length, new ObjectMetadata()));
+    }
+
+
+    @Override
+    public PutObjectResult putObject(PutObjectRequest putObjectRequest) {
+        byte[] content = readAll(putObjectRequest.getInputStream());
+        simulate("putObject", content.length);
+
+        ObjectMetadata metadata = putObjectRequest.getMetadata() != null
+                ? putObjectRequest.getMetadata().clone()
+                : new ObjectMetadata();
+        StoredObject storedObject = storedObject(content, content.length, metadata);
+        objects.put(putObjectRequest.getKey(), storedObject);
+
+        PutObjectResult putObjectResult = new PutObjectResult();
+        putObjectResult.setETag(storedObject.etag);
+        putObjectResult.setMetadata(storedObject.metadata());
+        return putObjectResult;
+    }
+
+
+    @Override
+    public PutObjectResult putObject(String bucketName, String key, String content) {
+        return putObject(new PutObjectRequest(bucketName, key, new ByteArrayInputStream(content.getBytes()),
+                new ObjectMetadata()));
+    }
+
+
+    @Override
+    public S3Object getObject(String bucketName, String key) {
+        return getObject(new GetObjectRequest(bucketName, key));
+    }
+
+
+    @Override
+    public S3Object getObject(GetObjectRequest getObjectRequest) {
+        StoredObject storedObject = existing(getObjectRequest.getKey());
+
+        List<String> matchingETags = getObjectRequest.getMatchingETagConstraints();
+        if (!matchingETags.isEmpty() && !matchingETags.contains(storedObject.etag)
+                && !matchingETags.contains("\"" + storedObject.etag + "\""))
+            return null;
+
+        long start = 0;
+        long end = storedObject.size - 1;
+        long[] range = getObjectRequest.getRange();
+        if (range != null) {
+            if (range[0] >= storedObject.size)
+                throw error(416, "InvalidRange");
+            start = range[0];
+            end = Math.min(range[1], storedObject.size - 1);
+        }
+
+        long length = end - start + 1;
+        simulate("getObject", length);
+
+        ObjectMetadata metadata = storedObject.metadata();
+        metadata.setContentLength(length);
+        if (range != null)
+            metadata.setHeader(Headers.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + storedObject.size);
+
+        S3Object s3Object = new S3Object();
+        s3Object.setBucketName(bucketName);
+        s3Object.setKey(getObjectRequest.getKey());
+        s3Object.setObjectMetadata(metadata);
+        s3Object.setObjectContent(new S3ObjectInputStream(
+                new ByteArrayInputStream(storedObject.content(), (int) start, (int) length), null));
+        return s3Object;
+    }
+
+
+    @Override
+    public ObjectMetadata getObjectMetadata(String bucketName, String key) {
+        simulate("getObjectMetadata", 0);
+        return existing(key).metadata();
+    }
+
+
+    @Override
+    public ListObjectsV2Result listObjectsV2(ListObjectsV2Request listObjectsV2Request) {
+        simulate("listObjectsV2", 0);
+
+        String prefix = Objects.requireNonNullElse(listObjectsV2Request.getPrefix(), "");
+        String after = listObjectsV2Request.getContinuationToken() != null
+                ? listObjectsV2Request.getContinuationToken()
+                : listObjectsV2Request.getStartAfter();
+        int maxKeys = listObjectsV2Request.getMaxKeys() != null ? listObjectsV2Request.getMaxKeys() : 1000;
+
+        NavigableMap<String, StoredObject> candidates = after == null || after.isEmpty()
+                ? objects.tailMap(prefix, true)
+                : objects.tailMap(after, false);
+
+        ListObjectsV2Result result = new ListObjectsV2Result();
+        result.setBucketName(bucketName);
+        result.setPrefix(listObjectsV2Request.getPrefix());
+
+        for (Map.Entry<String, StoredObject> entry : candidates.entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                if (entry.getKey().compareTo(prefix) > 0)
+                    break;
+                continue;
+            }
+            if (result.getObjectSummaries().size() == maxKeys) {
+                result.setTruncated(true);
+                result.setNextContinuationToken(
+                        result.getObjectSummaries().getLast().getKey());
+                break;
+            }
+            result.getObjectSummaries().add(summary(entry.getKey(), entry.getValue()));
+        }
+        result.setKeyCount(result.getObjectSummaries().size());
+        return result;
+    }
+
+
+    @Override
+    public void deleteObject(String bucketName, String key) {
+        simulate("deleteObject", 0);
+        objects.remove(key);
+    }
+
+
+    @Override
+    public DeleteObjectsResult deleteObjects(DeleteObjectsRequest deleteObjectsRequest) {
+        simulate("deleteObjects", 0);
+
+        List<DeleteObjectsResult.DeletedObject> deletedObjects = new ArrayList<>();
+        for (DeleteObjectsRequest.KeyVersion keyVersion : deleteObjectsRequest.getKeys()) {
+            objects.remove(keyVersion.getKey());
+
+            DeleteObjectsResult.DeletedObject deletedObject = new DeleteObjectsResult.DeletedObject();
+            deletedObject.setKey(keyVersion.getKey());
+            deletedObjects.add(deletedObject);
+        }
+        return new DeleteObjectsResult(deletedObjects);
+    }
+
+
+    @Override
+    public CopyObjectResult copyObject(CopyObjectRequest copyObjectRequest) {
+        StoredObject source = existing(copyObjectRequest.getSourceKey());
+        simulate("copyObject", 0);
+
+        objects.put(copyObjectRequest.getDestinationKey(), source);
+
+        CopyObjectResult copyObjectResult = new CopyObjectResult();
+        copyObjectResult.setETag(source.etag);
+        copyObjectResult.setLastModifiedDate(source.lastModified);
+        return copyObjectResult;
+    }
+
+
+    @Override
+    public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+        simulate("initiateMultipartUpload", 0);
+
+        String uploadId = UUID.randomUUID().toString();
+        multipartUploads.put(uploadId, new ConcurrentSkipListMap<>());
+
+        InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+        result.setBucketName(bucketName);
+        result.setKey(request.getKey());
+        result.setUploadId(uploadId);
+        return result;
+    }
+
+
+    @Override
+    public UploadPartResult uploadPart(UploadPartRequest uploadPartRequest) {
+        byte[] content = readAll(uploadPartRequest.getInputStream());
+        simulate("uploadPart", content.length);
+
+        if (uploadPartRequest.getPartNumber() == failingPartNumber)
+            throw error(500, "InternalError");
+
+        Map<Integer, StoredObject> parts = multipartUploads.get(uploadPartRequest.getUploadId());
+        if (parts == null)
+            throw error(404, "NoSuchUpload");
+
+        StoredObject part = storedObject(content, content.length, new ObjectMetadata());
+        parts.put(uploadPartRequest.getPartNumber(), part);
+
+        UploadPartResult uploadPartResult = new UploadPartResult();
+        uploadPartResult.setPartNumber(uploadPartRequest.getPartNumber());
+        uploadPartResult.setETag(part.etag);
+        return uploadPartResult;
+    }
+
+
+    @Override
+    public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+        simulate("completeMultipartUpload", 0);
+
+        Map<Integer, StoredObject> parts = multipartUploads.remove(request.getUploadId());
+        if (parts == null)
+            throw error(404, "NoSuchUpload");
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        long size = 0;
+        for (PartETag partETag : request.getPartETags()) {
+            StoredObject part = parts.get(partETag.getPartNumber());
+            if (part == null || !part.etag.equals(partETag.getETag()))
+                throw error(400, "InvalidPart");
+            size += part.size;
+            if (retainContent)
+                content.writeBytes(part.content());
+        }
+
+        StoredObject storedObject = storedObject(content.toByteArray(), size, new ObjectMetadata());
+        objects.put(request.getKey(), storedObject);
+
+        CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+        result.setBucketName(bucketName);
+        result.setKey(request.getKey());
+        result.setETag(storedObject.etag + "-" + request.getPartETags().size());
+        return result;
+    }
+
+
+    @Override
+    public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+        simulate("abortMultipartUpload", 0);
+        multipartUploads.remove(request.getUploadId());
+    }
+
+
+    private StoredObject existing(String key) {
+        StoredObject storedObject = objects.get(key);
+        if (storedObject == null)
+            throw error(404, "NoSuchKey");
+        return storedObject;
+    }
+
+
+    private StoredObject storedObject(byte[] content, long size, ObjectMetadata metadata) {
+        String etag = Long.toHexString(etagSequence.incrementAndGet());
+        return new StoredObject(retainContent ? content : null, size, etag, new Date(), metadata);
+    }
+
+
+    private S3ObjectSummary summary(String key, StoredObject storedObject) {
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setBucketName(bucketName);
+        summary.setKey(key);
+        summary.setETag(storedObject.etag);
+        summary.setSize(storedObject.size);
+        summary.setLastModified(storedObject.lastModified);
+        summary.setStorageClass(StorageClass.Standard.toString());
+        return summary;
+    }
+
+
+    private void simulate(String operation, long transferredBytes) {
+        requestCounts.computeIfAbsent(operation, ignored -> new AtomicInteger()).incrementAndGet();
+
+        long nanos = requestLatency.toNanos();
+        if (bytesPerSecondPerConnection > 0)
+            nanos += transferredBytes * 1_000_000_000L / bytesPerSecondPerConnection;
+        if (nanos <= 0)
+            return;
+
+        try {
+            Thread.sleep(Duration.ofNanos(nanos));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during simulated S3 latency", e);
+        }
+    }
+
+
+    private static AmazonS3Exception error(int statusCode, String errorCode) {
+        AmazonS3Exception exception = new AmazonS3Exception(errorCode);
+        exception.setStatusCode(statusCode);
+        exception.setErrorCode(errorCode);
+        return exception;
+    }
+
+
+    private static byte[] readAll(InputStream inputStream) {
+        try (InputStream closingInputStream = inputStream) {
+            return closingInputStream.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+
+    private record StoredObject(byte[] stored, long size, String etag, Date lastModified, ObjectMetadata userMetadata) {
+
+        byte[] content() {
+            return stored != null ? stored : new byte[(int) Math.min(size, Integer.MAX_VALUE - 8)];
+        }
+
+        ObjectMetadata metadata() {
+            ObjectMetadata metadata = userMetadata.clone();
+            metadata.setContentLength(size);
+            metadata.setHeader(Headers.ETAG, etag);
+            metadata.setLastModified(lastModified);
+            return metadata;
+        }
+    }
+}